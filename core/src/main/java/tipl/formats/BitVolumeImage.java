@@ -0,0 +1,55 @@
+package tipl.formats;
+
+import tipl.util.ChunkedVolume;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+/**
+ * A read-only binary image backed by a bit-packed volume, the slices are only
+ * unpacked (and converted to the requested type) when they are read
+ *
+ * @author mader
+ */
+public class BitVolumeImage extends TImgRO.ATImgRO {
+    private static final long serialVersionUID = 4236015741893606121L;
+    protected final ChunkedVolume.Bool volume;
+
+    /**
+     * @param ivolume the data
+     * @param tempImg the image to take the position, element size and log from
+     */
+    public BitVolumeImage(final ChunkedVolume.Bool ivolume, final TImgTools.HasDimensions tempImg) {
+        super(tempImg, TImgTools.IMAGETYPE_BOOL);
+        if (!ivolume.getDim().isEqual(tempImg.getDim()))
+            throw new IllegalArgumentException("BitVolumeImage: dimensions do not match "
+                    + ivolume.getDim() + " != " + tempImg.getDim());
+        volume = ivolume;
+        offset = tempImg.getOffset();
+    }
+
+    public BitVolumeImage(final ChunkedVolume.Bool ivolume, final D3int ipos, final D3float ielSize) {
+        super(ivolume.getDim(), ipos, ielSize, TImgTools.IMAGETYPE_BOOL);
+        volume = ivolume;
+    }
+
+    public ChunkedVolume.Bool getVolume() {
+        return volume;
+    }
+
+    @Override
+    public Object getPolyImage(final int sliceNumber, final int asType) {
+        return TImgTools.convertArrayType(volume.getSlice(sliceNumber),
+                TImgTools.IMAGETYPE_BOOL, asType, getSigned(), getShortScaleFactor());
+    }
+
+    @Override
+    public String getSampleName() {
+        return BitVolumeImage.class.getSimpleName() + ", dim:" + getDim();
+    }
+
+    @Override
+    public int isFast() {
+        return TImgTools.SPEED_MEMORY_CALCULATE;
+    }
+}
@@ -4,10 +4,16 @@
 package tipl.formats;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import tipl.tools.BaseTIPLPluginIn;
 import tipl.util.*;
@@ -64,6 +70,266 @@ public class ConcurrentReader implements TImgRO {
 		}
 	}
 
+	/**
+	 * A reader which keeps a small window of slices ahead of where the image is being read. The
+	 * direction of every reading thread is followed separately (so the threads of a plugin can
+	 * each work on their own block of slices), while the direction is forward or backward the
+	 * next slices are read in the background and slices which have fallen behind are dropped.
+	 * Random access just reads the slice directly, so at most a few windows of slices are ever
+	 * kept in memory
+	 * 
+	 * @author maderk
+	 * 
+	 */
+	public static class PrefetchReader extends ConcurrentReader {
+		/** the number of slices read ahead of the cursor */
+		public static int DEFAULT_WINDOW = 4;
+		/** the number of slices kept behind the cursor (for filters which read neighbors) */
+		public static int DEFAULT_HISTORY = 2;
+
+		/**
+		 * the recent slices read by a single thread
+		 */
+		protected static class Cursor {
+			public int last = -1;
+			/** positive when reading forward and negative when reading backward */
+			public int trend = 0;
+
+			public int getDirection() {
+				return Integer.signum(trend);
+			}
+		}
+
+		protected static class PrefetchedSlice {
+			final public int type;
+			final public Future<Object> slice;
+
+			public PrefetchedSlice(final int type, final Future<Object> slice) {
+				this.type = type;
+				this.slice = slice;
+			}
+		}
+
+		private static ExecutorService prefetchRunner = null;
+
+		/**
+		 * all of the prefetching readers share the io threads
+		 */
+		protected static synchronized ExecutorService getPrefetchRunner() {
+			if (prefetchRunner == null)
+				prefetchRunner = TIPLGlobal.getIOExecutor();
+			return prefetchRunner;
+		}
+
+		protected final int window;
+		protected final int history;
+		protected final Map<Integer, PrefetchedSlice> slices = new HashMap<Integer, PrefetchedSlice>();
+		/** the cursors of the threads which have read most recently */
+		protected final LinkedHashMap<Long, Cursor> cursors = new LinkedHashMap<Long, Cursor>(
+				16, 0.75f, true);
+		protected final int maxCursors;
+		protected long hits = 0;
+		protected long misses = 0;
+
+		public PrefetchReader(final TImgRO inImage) {
+			this(inImage, DEFAULT_WINDOW, DEFAULT_HISTORY);
+		}
+
+		/**
+		 * @param inImage
+		 *            the image to read
+		 * @param iwindow
+		 *            the number of slices to read ahead
+		 * @param ihistory
+		 *            the number of slices to keep behind the cursor
+		 */
+		public PrefetchReader(final TImgRO inImage, final int iwindow,
+				final int ihistory) {
+			super(inImage, getPrefetchRunner());
+			assert iwindow > 0 && ihistory >= 0;
+			window = iwindow;
+			history = ihistory;
+			maxCursors = Math.max(TIPLGlobal.availableCores, 1);
+		}
+
+		@Override
+		public Object getPolyImage(final int isliceNumber, final int asType) {
+			assert isliceNumber >= 0 && isliceNumber < getDim().z;
+			PrefetchedSlice cSlice;
+			FutureTask<Object> readNow = null;
+			synchronized (this) {
+				final Cursor cCursor = moveCursor(isliceNumber);
+				cSlice = slices.get(isliceNumber);
+				if ((cSlice != null) && (cSlice.type == asType)) {
+					hits++;
+				} else {
+					// read it on this thread, other threads needing it can wait for it
+					misses++;
+					readNow = new FutureTask<Object>(readSlice(isliceNumber, asType));
+					cSlice = new PrefetchedSlice(asType, readNow);
+					slices.put(isliceNumber, cSlice);
+				}
+				final int direction = cCursor.getDirection();
+				if (direction != 0) {
+					for (int i = 1; i <= window; i++) {
+						final int nextSlice = isliceNumber + direction * i;
+						if ((nextSlice < 0) || (nextSlice >= getDim().z))
+							break;
+						final PrefetchedSlice oldSlice = slices.get(nextSlice);
+						if ((oldSlice == null) || (oldSlice.type != asType))
+							slices.put(nextSlice, new PrefetchedSlice(asType,
+									readRunner.submit(readSlice(nextSlice, asType))));
+					}
+				}
+				evictSlices();
+			}
+			if (readNow != null)
+				readNow.run();
+			try {
+				return cSlice.slice.get();
+			} catch (final CancellationException e) {
+				// another thread moved the window on before the slice was done
+				return templateData.getPolyImage(isliceNumber, asType);
+			} catch (final Exception e) {
+				e.printStackTrace();
+				throw new IllegalArgumentException(
+						"Interrupt or Processing Error- Input Image: "
+								+ templateData + ", slice:" + isliceNumber);
+			}
+		}
+
+		/**
+		 * slices requested for later are read directly, waiting for the prefetched slices on
+		 * the same io threads which read them could use up all of the threads
+		 */
+		@Override
+		public Future<Object> getPolyImageLater(final int isliceNumber,
+				final int asType) {
+			return readRunner.submit(readSlice(isliceNumber, asType));
+		}
+
+		/**
+		 * @return the fraction of slices which had already been read
+		 */
+		public synchronized double getHitRatio() {
+			return (hits + misses) > 0 ? hits / ((double) (hits + misses)) : 0;
+		}
+
+		/**
+		 * @return the number of slices currently kept or being read
+		 */
+		public synchronized int getSliceCount() {
+			return slices.size();
+		}
+
+		/**
+		 * drop all of the slices, the io threads are shared so they keep running
+		 */
+		@Override
+		public synchronized void close() {
+			for (final PrefetchedSlice cSlice : slices.values())
+				cSlice.slice.cancel(false);
+			slices.clear();
+			cursors.clear();
+		}
+
+		/**
+		 * the prefetching is transparent so the name is the same as the original image
+		 */
+		@Override
+		public String getSampleName() {
+			return templateData.getSampleName();
+		}
+
+		@Override
+		public TypedPath getPath() {
+			return templateData.getPath();
+		}
+
+		protected Callable<Object> readSlice(final int isliceNumber, final int asType) {
+			return new Callable<Object>() {
+				@Override
+				public Object call() {
+					return templateData.getPolyImage(isliceNumber, asType);
+				}
+			};
+		}
+
+		/**
+		 * update the cursor of the current thread, steps of one or a few slices in the same
+		 * direction build up the trend while jumps larger than the window reset it
+		 */
+		protected Cursor moveCursor(final int isliceNumber) {
+			final long threadId = Thread.currentThread().getId();
+			Cursor cCursor = cursors.get(threadId);
+			if (cCursor == null) {
+				cCursor = new Cursor();
+				cursors.put(threadId, cCursor);
+				if (cursors.size() > maxCursors) {
+					final Iterator<Long> oldest = cursors.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+			}
+			final int step = isliceNumber - cCursor.last;
+			if (cCursor.last < 0) {
+				// starting at either end of the image is almost always a scan
+				if (isliceNumber == 0)
+					cCursor.trend = 1;
+				else if (isliceNumber == getDim().z - 1)
+					cCursor.trend = -1;
+			} else if (Math.abs(step) > window) {
+				cCursor.trend = 0;
+			} else if (step > 0) {
+				cCursor.trend = Math.min(cCursor.trend + 1, 3);
+			} else if (step < 0) {
+				cCursor.trend = Math.max(cCursor.trend - 1, -3);
+			}
+			cCursor.last = isliceNumber;
+			return cCursor;
+		}
+
+		/**
+		 * remove the slices which are not in the window or history of any cursor
+		 */
+		protected void evictSlices() {
+			final Iterator<Map.Entry<Integer, PrefetchedSlice>> sliceIter = slices
+					.entrySet().iterator();
+			while (sliceIter.hasNext()) {
+				final Map.Entry<Integer, PrefetchedSlice> cEntry = sliceIter.next();
+				final int cSlice = cEntry.getKey();
+				boolean keep = false;
+				for (final Cursor cCursor : cursors.values()) {
+					final int direction = cCursor.getDirection();
+					final int ahead = (cSlice - cCursor.last) * ((direction == 0) ? 1 : direction);
+					if (direction == 0)
+						keep |= Math.abs(ahead) <= history;
+					else
+						keep |= (ahead >= -history) && (ahead <= window);
+				}
+				if (!keep) {
+					cEntry.getValue().slice.cancel(false);
+					sliceIter.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * wrap an image so the next slices are read in the background while the current ones are
+	 * being processed, images which are already in memory are returned as they are
+	 * 
+	 * @param inImage
+	 *            the input image
+	 * @return the image with a prefetching reader if it is read from disk
+	 */
+	public static TImgRO PrefetchImage(final TImgRO inImage) {
+		if ((inImage instanceof PrefetchReader)
+				|| (inImage.isFast() >= ITIPLStorage.FAST_CACHED))
+			return inImage;
+		return new PrefetchReader(inImage);
+	}
+
 	/**
 	 * create from a standard TImg a cached version of an image
 	 * 
@@ -82,8 +348,12 @@ public class ConcurrentReader implements TImgRO {
 	protected final ExecutorService readRunner;
 
 	public ConcurrentReader(final TImgRO inImage) {
+		this(inImage, TIPLGlobal.getIOExecutor());
+	}
+
+	protected ConcurrentReader(final TImgRO inImage, final ExecutorService iRunner) {
 		templateData = inImage;
-		readRunner = TIPLGlobal.getIOExecutor();
+		readRunner = iRunner;
 	}
 
 	@Override
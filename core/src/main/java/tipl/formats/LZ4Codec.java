@@ -0,0 +1,201 @@
+package tipl.formats;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure java implementation of the LZ4 block format (no frame headers or checksums). The
+ * compressor is the simple greedy single hash table variant, it is not as tight as the reference
+ * implementation but any standard LZ4 block decoder can read its output
+ *
+ * @author mader
+ */
+public class LZ4Codec {
+    final private static int MIN_MATCH = 4;
+    /**
+     * the last match must start at least this many bytes before the end of the block
+     */
+    final private static int MF_LIMIT = 12;
+    /**
+     * the last bytes of a block are always literals
+     */
+    final private static int LAST_LITERALS = 5;
+    final private static int MAX_DISTANCE = 65535;
+    final private static int HASH_LOG = 16;
+
+    /**
+     * the largest size a block of the given length can take after compression
+     */
+    public static int maxCompressedLength(final int srcLen) {
+        return srcLen + srcLen / 255 + 16;
+    }
+
+    public static byte[] compress(final byte[] src) {
+        final byte[] dst = new byte[maxCompressedLength(src.length)];
+        return Arrays.copyOf(dst, compress(src, 0, src.length, dst, 0));
+    }
+
+    /**
+     * compress a block of data
+     *
+     * @param dst must have at least maxCompressedLength(srcLen) bytes after dstOff
+     * @return the number of bytes written to dst
+     */
+    public static int compress(final byte[] src, final int srcOff, final int srcLen,
+                               final byte[] dst, final int dstOff) {
+        final int srcEnd = srcOff + srcLen;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        if (srcLen > MF_LIMIT) {
+            final int[] hashTable = new int[1 << HASH_LOG];
+            Arrays.fill(hashTable, -1);
+            while (ip < mfLimit) {
+                final int seq = readInt(src, ip);
+                final int h = hash(seq);
+                int ref = hashTable[h];
+                hashTable[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                    ip++;
+                    continue;
+                }
+                // grow the match backwards into the pending literals
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen])
+                    matchLen++;
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+                ip += matchLen;
+                anchor = ip;
+            }
+        }
+        // the remaining bytes are literals
+        final int litLen = srcEnd - anchor;
+        final int token = op++;
+        if (litLen >= 15) {
+            dst[token] = (byte) (15 << 4);
+            op = writeLength(litLen - 15, dst, op);
+        } else {
+            dst[token] = (byte) (litLen << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+        return op - dstOff;
+    }
+
+    public static byte[] decompress(final byte[] src, final int dstLen) throws IOException {
+        final byte[] dst = new byte[dstLen];
+        decompress(src, 0, src.length, dst, 0, dstLen);
+        return dst;
+    }
+
+    /**
+     * decompress a block of data whose decompressed length is known
+     *
+     * @throws IOException if the block is corrupt or does not decompress to exactly dstLen bytes
+     */
+    public static void decompress(final byte[] src, final int srcOff, final int srcLen,
+                                  final byte[] dst, final int dstOff, final int dstLen) throws IOException {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        try {
+            while (ip < srcEnd) {
+                final int token = src[ip++] & 0xFF;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int cByte;
+                    do {
+                        cByte = src[ip++] & 0xFF;
+                        litLen += cByte;
+                    } while (cByte == 255);
+                }
+                if (ip + litLen > srcEnd || op + litLen > dstEnd)
+                    throw new IOException("LZ4 literals run past the end of the block");
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (ip >= srcEnd) break;
+
+                final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff)
+                    throw new IOException("LZ4 match offset " + offset + " is outside of the block");
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int cByte;
+                    do {
+                        cByte = src[ip++] & 0xFF;
+                        matchLen += cByte;
+                    } while (cByte == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (op + matchLen > dstEnd)
+                    throw new IOException("LZ4 match runs past the end of the output");
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    // overlapping matches repeat the last offset bytes
+                    for (int i = 0; i < matchLen; i++) dst[op++] = dst[ref++];
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("LZ4 block is truncated: " + e.getMessage());
+        }
+        if (op != dstEnd)
+            throw new IOException("LZ4 block decompressed to " + (op - dstOff) + " instead of " + dstLen + " bytes");
+    }
+
+    private static int writeSequence(final byte[] src, final int litStart, final int litLen,
+                                     final int offset, final int matchLen,
+                                     final byte[] dst, int op) {
+        final int token = op++;
+        int tokenVal;
+        if (litLen >= 15) {
+            tokenVal = 15 << 4;
+            op = writeLength(litLen - 15, dst, op);
+        } else {
+            tokenVal = litLen << 4;
+        }
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        final int mlCode = matchLen - MIN_MATCH;
+        if (mlCode >= 15) {
+            tokenVal |= 15;
+            op = writeLength(mlCode - 15, dst, op);
+        } else {
+            tokenVal |= mlCode;
+        }
+        dst[token] = (byte) tokenVal;
+        return op;
+    }
+
+    private static int writeLength(int len, final byte[] dst, int op) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int readInt(final byte[] src, final int off) {
+        return (src[off] & 0xFF) | ((src[off + 1] & 0xFF) << 8) | ((src[off + 2] & 0xFF) << 16)
+                | ((src[off + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(final int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+}
@@ -74,6 +74,21 @@ public class TImgHeader implements Serializable, TImgTools.HasDimensions, TImgTo
         tparam.setExtraFields(tiffProcLog);
     }
 
+    /**
+     * the same header fields as writeToTIFF for the native tiff encoder
+     */
+    public TiffCodec.Field[] toTiffFields() {
+        return new TiffCodec.Field[]{
+                TiffCodec.Field.bytes(TAG_ISSIGNED, (byte) (isSigned ? 5 : 0)),
+                TiffCodec.Field.floats(TAG_SHORTSCALE, getShortScaleFactor()),
+                TiffCodec.Field.sshorts(TAG_POS, (short) getPos().x, (short) getPos().y, (short) getPos().z),
+                TiffCodec.Field.sshorts(TAG_OFFSET, (short) getOffset().x, (short) getOffset().y,
+                        (short) getOffset().z),
+                TiffCodec.Field.floats(TAG_ELSIZE, (float) getElSize().x, (float) getElSize().y,
+                        (float) elSize.z),
+                TiffCodec.Field.ascii(TAG_PROCLOGSTART, procLog)};
+    }
+
     public void readFromTIFF(final TIFFField[] allfields) {
         int skippedTag = 0;
         int totalTag = 0;
@@ -48,6 +48,10 @@ public interface TSliceWriter extends Serializable {
 	 * @author mader
 	 */
 	abstract public static class Writers {
+		/**
+		 * the writer used when the path does not have the suffix of any writer
+		 */
+		public static String defaultType="tif";
 		public static HashMap<String, DWFactory> getAllFactories()
 				throws InstantiationException {
 			final HashMap<String, DWFactory> current = new HashMap<String, DWFactory>();
@@ -79,12 +83,12 @@ public interface TSliceWriter extends Serializable {
             return current;
 		}
 		/**
-		 * ChooseBest chooses the directory reader plugin which has the highest
-		 * number of matches in the given directory using the PathFilter
-		 * 
+		 * ChooseBest chooses the writer whose type matches the suffix of the path, if none
+		 * match the tiff folder writer is used
+		 *
 		 * @param path
 		 *            folder path name
-		 * @return best suited directory reader
+		 * @return best suited slice writer
 		 */
 		public static TSliceWriter ChooseBest(final TImgRO outImage,final TypedPath path,int imgType) {
 			HashMap<String, DWFactory> allFacts;
@@ -97,6 +101,10 @@ public interface TSliceWriter extends Serializable {
 
 			}
 			System.out.println("Loaded "+TSliceWriter.class.getName()+" Plugins:");
+			for(String cFilter: allFacts.keySet()) {
+				if (cFilter.length()>0 && path.checkSuffix("."+cFilter)) return allFacts.get(cFilter).get(outImage,path,imgType);
+			}
+			if (allFacts.containsKey(defaultType)) return allFacts.get(defaultType).get(outImage,path,imgType);
 			for(String cFilter: allFacts.keySet()) return allFacts.get(cFilter).get(outImage,path,imgType);
 			throw new IllegalArgumentException("No matching filters found:"+path);
 		}
@@ -106,8 +114,10 @@ public interface TSliceWriter extends Serializable {
 		 * @param tsw the initialized writer tool
 		 * @param inImage the image to be written
 		 */
-		public static void SimpleWrite(final TSliceWriter tsw,final TImgRO inImage, final int
+		public static void SimpleWrite(final TSliceWriter tsw,final TImgRO fullImage, final int
 				imageType) {
+			// read the next slices while the current one is being written
+			final TImgRO inImage = ConcurrentReader.PrefetchImage(fullImage);
 			for(int sliceNo=0;sliceNo<inImage.getDim().z;sliceNo++) {
 				final D3int cpos = new D3int(inImage.getPos().x,inImage.getPos().y,inImage.getPos
 						().z+sliceNo);
@@ -117,7 +127,7 @@ public interface TSliceWriter extends Serializable {
 								.getDim(),D3int.zero)
 						,sliceNo);
 			}
-
+			if (inImage instanceof ConcurrentReader) ((ConcurrentReader) inImage).close();
 		}
 	}
 
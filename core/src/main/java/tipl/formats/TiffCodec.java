@@ -0,0 +1,794 @@
+package tipl.formats;
+
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A small pure java codec for single image (slice) tiff files with the strip layouts the
+ * tiff writer produces: uncompressed, PackBits or Deflate compressed with 1, 8, 16 bit
+ * unsigned, 32 bit float or 8 bit RGB samples. The pixels are read directly into arrays of the
+ * native type, everything else (tiles, jpeg, lzw, ...) is left to JAI
+ *
+ * @author mader
+ */
+public class TiffCodec {
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_DEFLATE = 8;
+    public static final int COMPRESSION_PACKBITS = 32773;
+    /**
+     * the code deflate was registered with before it became official, JAI writes it and older
+     * JAI readers only recognize this one
+     */
+    public static final int COMPRESSION_DEFLATE_OLD = 32946;
+
+    public static final int TAG_WIDTH = 256;
+    public static final int TAG_LENGTH = 257;
+    public static final int TAG_BITSPERSAMPLE = 258;
+    public static final int TAG_COMPRESSION = 259;
+    public static final int TAG_PHOTOMETRIC = 262;
+    public static final int TAG_STRIPOFFSETS = 273;
+    public static final int TAG_SAMPLESPERPIXEL = 277;
+    public static final int TAG_ROWSPERSTRIP = 278;
+    public static final int TAG_STRIPBYTECOUNTS = 279;
+    public static final int TAG_PLANARCONFIG = 284;
+    public static final int TAG_PREDICTOR = 317;
+    public static final int TAG_TILEWIDTH = 322;
+    public static final int TAG_SAMPLEFORMAT = 339;
+
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_ASCII = 2;
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_SSHORT = 8;
+    public static final int TYPE_FLOAT = 11;
+
+    protected static final int SAMPLEFORMAT_UINT = 1;
+    protected static final int SAMPLEFORMAT_FLOAT = 3;
+    /**
+     * the size of the uncompressed strips the encoder makes
+     */
+    protected static final int STRIP_BYTES = 64 * 1024;
+
+    /**
+     * The layout of the first image in a tiff file
+     */
+    public static class Header {
+        public ByteOrder order;
+        public int width = -1;
+        public int height = -1;
+        public int bitsPerSample = 1;
+        public int samplesPerPixel = 1;
+        public int sampleFormat = SAMPLEFORMAT_UINT;
+        public int compression = COMPRESSION_NONE;
+        public int photometric = 1;
+        public int planarConfig = 1;
+        public int predictor = 1;
+        public int rowsPerStrip = Integer.MAX_VALUE;
+        public boolean isTiled = false;
+        public long[] stripOffsets;
+        public long[] stripByteCounts;
+
+        /**
+         * can the codec read the pixels or does it have to be left to JAI
+         */
+        public boolean isSupported() {
+            if (isTiled || (stripOffsets == null) || (width < 1) || (height < 1)) return false;
+            switch (compression) {
+                case COMPRESSION_NONE:
+                case COMPRESSION_PACKBITS:
+                case COMPRESSION_DEFLATE:
+                case COMPRESSION_DEFLATE_OLD:
+                    break;
+                default:
+                    return false;
+            }
+            if ((samplesPerPixel > 1) && (planarConfig != 1)) return false;
+            if ((predictor != 1) && !((predictor == 2) && (bitsPerSample == 8 || bitsPerSample == 16)))
+                return false;
+            if (samplesPerPixel == 3) return (bitsPerSample == 8);
+            if (samplesPerPixel != 1) return false;
+            switch (bitsPerSample) {
+                case 1:
+                case 8:
+                case 16:
+                    return (sampleFormat == SAMPLEFORMAT_UINT);
+                case 32:
+                    return (sampleFormat == SAMPLEFORMAT_FLOAT);
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * the number of bytes in one (uncompressed) row
+         */
+        public int getRowBytes() {
+            return (width * bitsPerSample * samplesPerPixel + 7) / 8;
+        }
+
+        @Override
+        public String toString() {
+            return "TiffHeader:" + width + "x" + height + ", bits:" + bitsPerSample + "x" +
+                    samplesPerPixel + ", format:" + sampleFormat + ", compression:" + compression;
+        }
+    }
+
+    /**
+     * A tag to be written into the file
+     */
+    public static class Field {
+        final public int tag;
+        final public int type;
+        final public int count;
+        /**
+         * the value as little endian bytes
+         */
+        final protected byte[] value;
+
+        protected Field(final int itag, final int itype, final int icount, final byte[] ivalue) {
+            tag = itag;
+            type = itype;
+            count = icount;
+            value = ivalue;
+        }
+
+        public static Field ascii(final int tag, final String text) {
+            final byte[] textBytes = (text + "\0").getBytes(Charset.forName("ISO-8859-1"));
+            return new Field(tag, TYPE_ASCII, textBytes.length, textBytes);
+        }
+
+        public static Field bytes(final int tag, final byte... values) {
+            return new Field(tag, TYPE_BYTE, values.length, values.clone());
+        }
+
+        public static Field sshorts(final int tag, final short... values) {
+            final ByteBuffer cBuf = ByteBuffer.allocate(2 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+            for (short cVal : values) cBuf.putShort(cVal);
+            return new Field(tag, TYPE_SSHORT, values.length, cBuf.array());
+        }
+
+        public static Field floats(final int tag, final float... values) {
+            final ByteBuffer cBuf = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+            for (float cVal : values) cBuf.putFloat(cVal);
+            return new Field(tag, TYPE_FLOAT, values.length, cBuf.array());
+        }
+
+        protected static Field shorts(final int tag, final int... values) {
+            final ByteBuffer cBuf = ByteBuffer.allocate(2 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+            for (int cVal : values) cBuf.putShort((short) cVal);
+            return new Field(tag, TYPE_SHORT, values.length, cBuf.array());
+        }
+
+        protected static Field longs(final int tag, final long... values) {
+            final ByteBuffer cBuf = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+            for (long cVal : values) cBuf.putInt((int) cVal);
+            return new Field(tag, TYPE_LONG, values.length, cBuf.array());
+        }
+    }
+
+    /**
+     * A slice reader which keeps the pixels in their native type and only converts them when
+     * they are read, the types and value ranges match the JAI based TIFSliceReader
+     */
+    public static class NativeSliceReader extends TReader.SliceReader {
+        private static final long serialVersionUID = -6150416744230713823L;
+        /**
+         * boolean[], byte[], short[] or float[] as returned by readPixels
+         */
+        protected final Object pixels;
+
+        public NativeSliceReader(final ByteBuffer inBuffer) throws IOException {
+            this(inBuffer, readHeader(inBuffer));
+        }
+
+        public NativeSliceReader(final ByteBuffer inBuffer, final Header cHeader) throws IOException {
+            pixels = readPixels(inBuffer, cHeader);
+            dim = new D3int(cHeader.width, cHeader.height, 1);
+            sliceSize = cHeader.width * cHeader.height;
+            switch (cHeader.bitsPerSample) {
+                case 1:
+                    imageType = TImgTools.IMAGETYPE_BOOL;
+                    maxVal = 1;
+                    break;
+                case 8:
+                    imageType = (cHeader.samplesPerPixel == 3) ? TImgTools.IMAGETYPE_RGB : TImgTools.IMAGETYPE_CHAR;
+                    maxVal = 255;
+                    break;
+                case 16:
+                    imageType = TImgTools.IMAGETYPE_INT;
+                    maxVal = 65536;
+                    break;
+                default:
+                    imageType = TImgTools.IMAGETYPE_FLOAT;
+                    maxVal = 65536;
+                    break;
+            }
+        }
+
+        /**
+         * the pixels in the type the file has
+         */
+        public Object getNativePixels() {
+            return pixels;
+        }
+
+        @Override
+        public Object polyReadImage(final int asType) throws IOException {
+            switch (imageType) {
+                case TImgTools.IMAGETYPE_FLOAT:
+                    return TImgTools.convertArrayType(pixels, TImgTools.IMAGETYPE_FLOAT, asType, false, 1);
+                case TImgTools.IMAGETYPE_RGB:
+                    final byte[] rgbPixels = (byte[]) pixels;
+                    final byte[][] grgb = new byte[sliceSize][3];
+                    for (int i = 0; i < sliceSize; i++) {
+                        grgb[i][0] = rgbPixels[3 * i];
+                        grgb[i][1] = rgbPixels[3 * i + 1];
+                        grgb[i][2] = rgbPixels[3 * i + 2];
+                    }
+                    return TImgTools.convertArrayType(grgb, TImgTools.IMAGETYPE_RGB, asType, false, 1);
+                default:
+                    return TImgTools.convertArrayType(getIntPixels(), TImgTools.IMAGETYPE_INT, asType, false, 1, maxVal);
+            }
+        }
+
+        /**
+         * the unsigned integer values of the 1, 8 and 16 bit images
+         */
+        protected int[] getIntPixels() {
+            final int[] gi = new int[sliceSize];
+            if (pixels instanceof boolean[]) {
+                final boolean[] boolPixels = (boolean[]) pixels;
+                for (int i = 0; i < sliceSize; i++) gi[i] = boolPixels[i] ? 1 : 0;
+            } else if (pixels instanceof byte[]) {
+                final byte[] bytePixels = (byte[]) pixels;
+                for (int i = 0; i < sliceSize; i++) gi[i] = bytePixels[i] & 0xFF;
+            } else {
+                final short[] shortPixels = (short[]) pixels;
+                for (int i = 0; i < sliceSize; i++) gi[i] = shortPixels[i] & 0xFFFF;
+            }
+            return gi;
+        }
+    }
+
+    /**
+     * read an entire file, local files are read through a file channel
+     */
+    public static ByteBuffer readFile(final TypedPath path) throws IOException {
+        if (!path.isLocal()) return ByteBuffer.wrap(path.getFileObject().getData());
+        final FileInputStream fis = new FileInputStream(path.getFile());
+        try {
+            final FileChannel fc = fis.getChannel();
+            final long fileSize = fc.size();
+            if (fileSize > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large (" + fileSize + ") to be read as a slice");
+            final ByteBuffer outBuffer = ByteBuffer.allocate((int) fileSize);
+            while (outBuffer.hasRemaining())
+                if (fc.read(outBuffer) < 0) break;
+            outBuffer.flip();
+            return outBuffer;
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * does the buffer start with a (classic, not big) tiff header
+     */
+    public static boolean isTiff(final ByteBuffer inBuffer) {
+        if (inBuffer.limit() < 8) return false;
+        final int b0 = inBuffer.get(0), b1 = inBuffer.get(1);
+        if ((b0 == 'I') && (b1 == 'I'))
+            return (inBuffer.get(2) == 42) && (inBuffer.get(3) == 0);
+        if ((b0 == 'M') && (b1 == 'M'))
+            return (inBuffer.get(2) == 0) && (inBuffer.get(3) == 42);
+        return false;
+    }
+
+    /**
+     * parse the first image file directory
+     */
+    public static Header readHeader(final ByteBuffer inBuffer) throws IOException {
+        if (!isTiff(inBuffer)) throw new IOException("Not a (classic) tiff file");
+        final ByteBuffer cBuf = inBuffer.duplicate();
+        final Header outHeader = new Header();
+        outHeader.order = (cBuf.get(0) == 'I') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        cBuf.order(outHeader.order);
+        final int ifdOffset = cBuf.getInt(4);
+        checkRange(cBuf, ifdOffset, 2);
+        final int entryCount = cBuf.getShort(ifdOffset) & 0xFFFF;
+        checkRange(cBuf, ifdOffset + 2, 12 * entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            final int entryPos = ifdOffset + 2 + 12 * i;
+            final int tag = cBuf.getShort(entryPos) & 0xFFFF;
+            switch (tag) {
+                case TAG_WIDTH:
+                    outHeader.width = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_LENGTH:
+                    outHeader.height = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_BITSPERSAMPLE:
+                    final long[] bits = readValues(cBuf, entryPos);
+                    outHeader.bitsPerSample = (int) bits[0];
+                    for (long cBits : bits)
+                        if (cBits != bits[0]) outHeader.bitsPerSample = -1;
+                    break;
+                case TAG_COMPRESSION:
+                    outHeader.compression = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_PHOTOMETRIC:
+                    outHeader.photometric = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_STRIPOFFSETS:
+                    outHeader.stripOffsets = readValues(cBuf, entryPos);
+                    break;
+                case TAG_SAMPLESPERPIXEL:
+                    outHeader.samplesPerPixel = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_ROWSPERSTRIP:
+                    outHeader.rowsPerStrip = (int) Math.min(readValues(cBuf, entryPos)[0], Integer.MAX_VALUE);
+                    break;
+                case TAG_STRIPBYTECOUNTS:
+                    outHeader.stripByteCounts = readValues(cBuf, entryPos);
+                    break;
+                case TAG_PLANARCONFIG:
+                    outHeader.planarConfig = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_PREDICTOR:
+                    outHeader.predictor = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                case TAG_TILEWIDTH:
+                    outHeader.isTiled = true;
+                    break;
+                case TAG_SAMPLEFORMAT:
+                    outHeader.sampleFormat = (int) readValues(cBuf, entryPos)[0];
+                    break;
+                default:
+                    // the other tags do not change the layout
+                    break;
+            }
+        }
+        return outHeader;
+    }
+
+    /**
+     * read the pixels of the image
+     *
+     * @return boolean[] for 1 bit, byte[] for 8 bit (3 interleaved bytes per pixel for rgb),
+     * short[] for 16 bit (unsigned values) and float[] for 32 bit images
+     */
+    public static Object readPixels(final ByteBuffer inBuffer, final Header cHeader) throws IOException {
+        if (!cHeader.isSupported())
+            throw new IOException(cHeader + " is not supported by " + TiffCodec.class.getSimpleName());
+        final int rowBytes = cHeader.getRowBytes();
+        final int rowSamples = cHeader.width * cHeader.samplesPerPixel;
+        final int rowsPerStrip = Math.min(cHeader.rowsPerStrip, cHeader.height);
+        final int stripCount = (cHeader.height + rowsPerStrip - 1) / rowsPerStrip;
+        if (cHeader.stripOffsets.length < stripCount)
+            throw new IOException(cHeader + " has only " + cHeader.stripOffsets.length + " of " + stripCount + " strips");
+        final Object outPixels = allocatePixels(cHeader);
+
+        byte[] stripBuffer = null;
+        Inflater inflater = null;
+        try {
+            for (int strip = 0; strip < stripCount; strip++) {
+                final int startRow = strip * rowsPerStrip;
+                final int rows = Math.min(rowsPerStrip, cHeader.height - startRow);
+                final int stripBytes = rows * rowBytes;
+                final int stripOffset = (int) cHeader.stripOffsets[strip];
+                final int storedBytes;
+                if (cHeader.stripByteCounts != null)
+                    storedBytes = (int) cHeader.stripByteCounts[strip];
+                else if (cHeader.compression == COMPRESSION_NONE) storedBytes = stripBytes;
+                else throw new IOException(cHeader + " is compressed but has no strip byte counts");
+                checkRange(inBuffer, stripOffset, storedBytes);
+
+                final ByteBuffer stripData;
+                if (cHeader.compression == COMPRESSION_NONE) {
+                    if (storedBytes < stripBytes)
+                        throw new IOException(cHeader + " strip " + strip + " is too short");
+                    stripData = inBuffer.duplicate();
+                    stripData.position(stripOffset);
+                } else {
+                    if ((stripBuffer == null) || (stripBuffer.length < stripBytes))
+                        stripBuffer = new byte[stripBytes];
+                    if (cHeader.compression == COMPRESSION_PACKBITS) {
+                        unpackBits(inBuffer, stripOffset, storedBytes, stripBuffer, stripBytes);
+                    } else {
+                        if (inflater == null) inflater = new Inflater();
+                        else inflater.reset();
+                        inflate(inflater, inBuffer, stripOffset, storedBytes, stripBuffer, stripBytes);
+                    }
+                    stripData = ByteBuffer.wrap(stripBuffer, 0, stripBytes);
+                }
+                stripData.order(cHeader.order);
+                copyStrip(stripData, cHeader, outPixels, startRow, rows, rowBytes, rowSamples);
+            }
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+        if (cHeader.predictor == 2) undoPredictor(outPixels, cHeader);
+        return outPixels;
+    }
+
+    protected static Object allocatePixels(final Header cHeader) {
+        final int pixelCount = cHeader.width * cHeader.height;
+        switch (cHeader.bitsPerSample) {
+            case 1:
+                return new boolean[pixelCount];
+            case 8:
+                return new byte[pixelCount * cHeader.samplesPerPixel];
+            case 16:
+                return new short[pixelCount];
+            default:
+                return new float[pixelCount];
+        }
+    }
+
+    /**
+     * copy the rows of one strip into the native array
+     */
+    protected static void copyStrip(final ByteBuffer stripData, final Header cHeader,
+                                    final Object outPixels, final int startRow, final int rows,
+                                    final int rowBytes, final int rowSamples) {
+        final int outPos = startRow * rowSamples;
+        final int sampleCount = rows * rowSamples;
+        switch (cHeader.bitsPerSample) {
+            case 1:
+                final boolean[] boolPixels = (boolean[]) outPixels;
+                final int rowStart = stripData.position();
+                for (int y = 0; y < rows; y++) {
+                    final int rowOffset = rowStart + y * rowBytes;
+                    final int outRow = outPos + y * cHeader.width;
+                    for (int x = 0; x < cHeader.width; x++)
+                        boolPixels[outRow + x] = ((stripData.get(rowOffset + (x >> 3)) >> (7 - (x & 7))) & 1) > 0;
+                }
+                break;
+            case 8:
+                stripData.get((byte[]) outPixels, outPos, sampleCount);
+                break;
+            case 16:
+                stripData.asShortBuffer().get((short[]) outPixels, outPos, sampleCount);
+                break;
+            default:
+                stripData.asFloatBuffer().get((float[]) outPixels, outPos, sampleCount);
+                break;
+        }
+    }
+
+    /**
+     * the horizontal differencing predictor stores every sample as the difference to the
+     * previous sample of the same channel in the row
+     */
+    protected static void undoPredictor(final Object outPixels, final Header cHeader) {
+        final int spp = cHeader.samplesPerPixel;
+        final int rowSamples = cHeader.width * spp;
+        for (int y = 0; y < cHeader.height; y++) {
+            final int rowStart = y * rowSamples;
+            if (outPixels instanceof byte[]) {
+                final byte[] bytePixels = (byte[]) outPixels;
+                for (int i = rowStart + spp; i < rowStart + rowSamples; i++)
+                    bytePixels[i] += bytePixels[i - spp];
+            } else {
+                final short[] shortPixels = (short[]) outPixels;
+                for (int i = rowStart + spp; i < rowStart + rowSamples; i++)
+                    shortPixels[i] += shortPixels[i - spp];
+            }
+        }
+    }
+
+    protected static void unpackBits(final ByteBuffer inBuffer, final int start, final int length,
+                                     final byte[] outBytes, final int outLength) throws IOException {
+        int inPos = start;
+        final int inEnd = start + length;
+        int outPos = 0;
+        while ((outPos < outLength) && (inPos < inEnd)) {
+            final int n = inBuffer.get(inPos++);
+            if (n >= 0) {
+                // n+1 literal bytes
+                final int count = Math.min(n + 1, inEnd - inPos);
+                if (outPos + count > outLength) throw new IOException("PackBits strip is too long");
+                for (int i = 0; i < count; i++) outBytes[outPos++] = inBuffer.get(inPos++);
+            } else if (n != -128) {
+                // the next byte -n+1 times
+                final int count = 1 - n;
+                if ((outPos + count > outLength) || (inPos >= inEnd))
+                    throw new IOException("PackBits strip is too long");
+                final byte cVal = inBuffer.get(inPos++);
+                Arrays.fill(outBytes, outPos, outPos + count, cVal);
+                outPos += count;
+            }
+        }
+        if (outPos < outLength) throw new IOException("PackBits strip is too short");
+    }
+
+    protected static void inflate(final Inflater inflater, final ByteBuffer inBuffer, final int start,
+                                  final int length, final byte[] outBytes, final int outLength)
+            throws IOException {
+        if (inBuffer.hasArray()) {
+            inflater.setInput(inBuffer.array(), inBuffer.arrayOffset() + start, length);
+        } else {
+            final byte[] inBytes = new byte[length];
+            final ByteBuffer cBuf = inBuffer.duplicate();
+            cBuf.position(start);
+            cBuf.get(inBytes);
+            inflater.setInput(inBytes);
+        }
+        int outPos = 0;
+        try {
+            while (outPos < outLength) {
+                final int read = inflater.inflate(outBytes, outPos, outLength - outPos);
+                if (read == 0) {
+                    if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())
+                        break;
+                }
+                outPos += read;
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException("Deflate strip is corrupt: " + e.getMessage());
+        }
+        if (outPos < outLength) throw new IOException("Deflate strip is too short");
+    }
+
+    protected static long[] readValues(final ByteBuffer cBuf, final int entryPos) throws IOException {
+        final int type = cBuf.getShort(entryPos + 2) & 0xFFFF;
+        final int count = cBuf.getInt(entryPos + 4);
+        final int valueSize;
+        switch (type) {
+            case TYPE_BYTE:
+                valueSize = 1;
+                break;
+            case TYPE_SHORT:
+                valueSize = 2;
+                break;
+            case TYPE_LONG:
+                valueSize = 4;
+                break;
+            default:
+                throw new IOException("Tag " + (cBuf.getShort(entryPos) & 0xFFFF) + " has an unexpected type " + type);
+        }
+        if (count < 1) throw new IOException("Tag " + (cBuf.getShort(entryPos) & 0xFFFF) + " is empty");
+        final int valuePos = (count * valueSize <= 4) ? entryPos + 8 : cBuf.getInt(entryPos + 8);
+        checkRange(cBuf, valuePos, count * valueSize);
+        final long[] outValues = new long[count];
+        for (int i = 0; i < count; i++) {
+            switch (valueSize) {
+                case 1:
+                    outValues[i] = cBuf.get(valuePos + i) & 0xFF;
+                    break;
+                case 2:
+                    outValues[i] = cBuf.getShort(valuePos + 2 * i) & 0xFFFF;
+                    break;
+                default:
+                    outValues[i] = cBuf.getInt(valuePos + 4 * i) & 0xFFFFFFFFL;
+                    break;
+            }
+        }
+        return outValues;
+    }
+
+    protected static void checkRange(final ByteBuffer cBuf, final long start, final long length)
+            throws IOException {
+        if ((start < 0) || (length < 0) || (start + length > cBuf.limit()))
+            throw new IOException("Tiff file is truncated, " + start + "+" + length + " > " + cBuf.limit());
+    }
+
+    /**
+     * Writes single image little endian tiff files, the buffers (and deflater) are kept between
+     * slices so an encoder should be used by one thread at a time
+     */
+    public static class Encoder {
+        final public int compression;
+        protected final Deflater deflater;
+        protected ByteBuffer outBuffer = ByteBuffer.allocate(0);
+        protected byte[] rawStrip = new byte[0];
+        protected byte[] packedStrip = new byte[0];
+
+        public Encoder(final int icompression) {
+            this(icompression, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        /**
+         * @param icompression the compression (COMPRESSION_NONE, _PACKBITS, _DEFLATE or
+         *                     _DEFLATE_OLD)
+         * @param deflateLevel the level used for deflate
+         */
+        public Encoder(final int icompression, final int deflateLevel) {
+            switch (icompression) {
+                case COMPRESSION_NONE:
+                case COMPRESSION_PACKBITS:
+                case COMPRESSION_DEFLATE:
+                case COMPRESSION_DEFLATE_OLD:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Compression " + icompression + " is not supported");
+            }
+            compression = icompression;
+            deflater = ((compression == COMPRESSION_DEFLATE) || (compression == COMPRESSION_DEFLATE_OLD)) ?
+                    new Deflater(deflateLevel) : null;
+        }
+
+        /**
+         * encode a slice as a tiff file
+         *
+         * @param pixels      byte[] (8 bit), short[] (16 bit) or float[] (32 bit) data
+         * @param width       the width of the slice
+         * @param height      the height of the slice
+         * @param extraFields additional tags (with numbers larger than the standard ones)
+         * @return a buffer (valid until the next call) holding the file
+         */
+        public ByteBuffer encode(final Object pixels, final int width, final int height,
+                                 final Field... extraFields) {
+            final int bitsPerSample;
+            final int sampleFormat;
+            if (pixels instanceof byte[]) {
+                bitsPerSample = 8;
+                sampleFormat = SAMPLEFORMAT_UINT;
+            } else if (pixels instanceof short[]) {
+                bitsPerSample = 16;
+                sampleFormat = SAMPLEFORMAT_UINT;
+            } else if (pixels instanceof float[]) {
+                bitsPerSample = 32;
+                sampleFormat = SAMPLEFORMAT_FLOAT;
+            } else {
+                throw new IllegalArgumentException(TImgTools.getImageTypeName(TImgTools.identifySliceType(pixels))
+                        + " slices can not be encoded, only byte, short and float");
+            }
+            final int sampleBytes = bitsPerSample / 8;
+            final int rowBytes = width * sampleBytes;
+            final int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(rowBytes, 1)));
+            final int stripCount = (height + rowsPerStrip - 1) / rowsPerStrip;
+            final long[] stripOffsets = new long[stripCount];
+            final long[] stripByteCounts = new long[stripCount];
+
+            outBuffer.clear();
+            outBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            ensureCapacity(8);
+            outBuffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+            if (rawStrip.length < rowsPerStrip * rowBytes) rawStrip = new byte[rowsPerStrip * rowBytes];
+            final ByteBuffer rawBuffer = ByteBuffer.wrap(rawStrip).order(ByteOrder.LITTLE_ENDIAN);
+            for (int strip = 0; strip < stripCount; strip++) {
+                final int startRow = strip * rowsPerStrip;
+                final int rows = Math.min(rowsPerStrip, height - startRow);
+                final int stripBytes = rows * rowBytes;
+                final int startSample = startRow * width;
+                rawBuffer.clear();
+                if (pixels instanceof byte[]) rawBuffer.put((byte[]) pixels, startSample, rows * width);
+                else if (pixels instanceof short[])
+                    rawBuffer.asShortBuffer().put((short[]) pixels, startSample, rows * width);
+                else rawBuffer.asFloatBuffer().put((float[]) pixels, startSample, rows * width);
+
+                stripOffsets[strip] = outBuffer.position();
+                switch (compression) {
+                    case COMPRESSION_PACKBITS:
+                        for (int y = 0; y < rows; y++) packRow(y * rowBytes, rowBytes);
+                        break;
+                    case COMPRESSION_DEFLATE:
+                    case COMPRESSION_DEFLATE_OLD:
+                        deflateStrip(stripBytes);
+                        break;
+                    default:
+                        ensureCapacity(stripBytes);
+                        outBuffer.put(rawStrip, 0, stripBytes);
+                        break;
+                }
+                stripByteCounts[strip] = outBuffer.position() - stripOffsets[strip];
+            }
+
+            final Field[] allFields = new Field[11 + extraFields.length];
+            allFields[0] = Field.longs(TAG_WIDTH, width);
+            allFields[1] = Field.longs(TAG_LENGTH, height);
+            allFields[2] = Field.shorts(TAG_BITSPERSAMPLE, bitsPerSample);
+            allFields[3] = Field.shorts(TAG_COMPRESSION, compression);
+            allFields[4] = Field.shorts(TAG_PHOTOMETRIC, 1); // black is zero
+            allFields[5] = Field.longs(TAG_STRIPOFFSETS, stripOffsets);
+            allFields[6] = Field.shorts(TAG_SAMPLESPERPIXEL, 1);
+            allFields[7] = Field.longs(TAG_ROWSPERSTRIP, rowsPerStrip);
+            allFields[8] = Field.longs(TAG_STRIPBYTECOUNTS, stripByteCounts);
+            allFields[9] = Field.shorts(TAG_PLANARCONFIG, 1);
+            allFields[10] = Field.shorts(TAG_SAMPLEFORMAT, sampleFormat);
+            System.arraycopy(extraFields, 0, allFields, 11, extraFields.length);
+            writeDirectory(allFields);
+            outBuffer.flip();
+            return outBuffer;
+        }
+
+        /**
+         * write the image file directory (the tags have to be sorted) at the end of the file
+         */
+        protected void writeDirectory(final Field[] allFields) {
+            if ((outBuffer.position() & 1) > 0) {
+                ensureCapacity(1);
+                outBuffer.put((byte) 0);
+            }
+            final int ifdOffset = outBuffer.position();
+            outBuffer.putInt(4, ifdOffset);
+            final int ifdSize = 2 + 12 * allFields.length + 4;
+            int valueOffset = ifdOffset + ifdSize;
+            int valueBytes = 0;
+            for (Field cField : allFields)
+                if (cField.value.length > 4) valueBytes += cField.value.length + (cField.value.length & 1);
+            ensureCapacity(ifdSize + valueBytes);
+            outBuffer.putShort((short) allFields.length);
+            for (Field cField : allFields) {
+                outBuffer.putShort((short) cField.tag).putShort((short) cField.type).putInt(cField.count);
+                if (cField.value.length > 4) {
+                    outBuffer.putInt(valueOffset);
+                    valueOffset += cField.value.length + (cField.value.length & 1);
+                } else {
+                    outBuffer.put(cField.value);
+                    for (int i = cField.value.length; i < 4; i++) outBuffer.put((byte) 0);
+                }
+            }
+            outBuffer.putInt(0); // no more images
+            for (Field cField : allFields) {
+                if (cField.value.length > 4) {
+                    outBuffer.put(cField.value);
+                    if ((cField.value.length & 1) > 0) outBuffer.put((byte) 0);
+                }
+            }
+        }
+
+        protected void deflateStrip(final int stripBytes) {
+            deflater.reset();
+            deflater.setInput(rawStrip, 0, stripBytes);
+            deflater.finish();
+            while (!deflater.finished()) {
+                ensureCapacity(Math.max(stripBytes / 4, 1024));
+                final int written = deflater.deflate(outBuffer.array(), outBuffer.arrayOffset() + outBuffer.position(),
+                        outBuffer.remaining());
+                outBuffer.position(outBuffer.position() + written);
+            }
+        }
+
+        /**
+         * PackBits compress a single row of the raw strip
+         */
+        protected void packRow(final int start, final int length) {
+            // the worst case is one header byte for every 128 bytes
+            ensureCapacity(length + length / 128 + 1);
+            final int end = start + length;
+            int pos = start;
+            while (pos < end) {
+                int run = 1;
+                while ((pos + run < end) && (run < 128) && (rawStrip[pos + run] == rawStrip[pos])) run++;
+                if (run > 1) {
+                    outBuffer.put((byte) (1 - run)).put(rawStrip[pos]);
+                    pos += run;
+                } else {
+                    // literals until the next run of at least 3 equal bytes
+                    int literals = 1;
+                    while ((pos + literals < end) && (literals < 128)) {
+                        final int next = pos + literals;
+                        if ((next + 2 < end) && (rawStrip[next] == rawStrip[next + 1]) &&
+                                (rawStrip[next] == rawStrip[next + 2])) break;
+                        literals++;
+                    }
+                    outBuffer.put((byte) (literals - 1)).put(rawStrip, pos, literals);
+                    pos += literals;
+                }
+            }
+        }
+
+        protected void ensureCapacity(final int extraBytes) {
+            if (outBuffer.remaining() >= extraBytes) return;
+            final int newSize = Math.max(outBuffer.capacity() * 2, outBuffer.position() + extraBytes);
+            final ByteBuffer newBuffer = ByteBuffer.allocate(newSize).order(ByteOrder.LITTLE_ENDIAN);
+            outBuffer.flip();
+            newBuffer.put(outBuffer);
+            outBuffer = newBuffer;
+        }
+    }
+}
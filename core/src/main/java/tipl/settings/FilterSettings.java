@@ -16,13 +16,14 @@ import tipl.util.TImgTools;
  */
 public class FilterSettings implements Serializable {
 	/** filter types
-	0 - Nearest Neighbor, 1 - Gaussian, 2 - Gradient, 3 - Laplace, 4 - Median
+	0 - Nearest Neighbor, 1 - Gaussian, 2 - Gradient, 3 - Laplace, 4 - Median, 5 - Mean
 	**/
 	final public static int NEAREST_NEIGHBOR=0;
 	final public static int GAUSSIAN=1;
 	final public static int GRADIENT=2;
 	final public static int LAPLACE=3;
 	final public static int MEDIAN=4;
+	final public static int MEAN=5;
 
     /**
      * Check the filter type and throw an error if it is not acceptable
@@ -31,7 +32,7 @@ public class FilterSettings implements Serializable {
      * @return
      */
     final public static boolean checkFilterType(int i, boolean throwException) {
-        if(i>=0 && i<=4) return true;
+        if(i>=0 && i<=5) return true;
         else if (throwException) throw new IllegalArgumentException("Filter type:"+i+" is unknown, please use one of the existing:"+filterHelpString);
         return false;
     }
@@ -52,13 +53,40 @@ public class FilterSettings implements Serializable {
 	 * of the filter for each region)
 	 */
 	public filterGenerator scalingFilterGenerator = null;
+	/**
+	 * The filter type and radius used to make the scalingFilterGenerator (needed for the separable
+	 * version which uses precomputed weights instead of the generator)
+	 */
+	public int filterType = NEAREST_NEIGHBOR;
+	public D3int filterSigma = new D3int(1,1,1);
+	/**
+	 * Run the filter as three 1D passes (x, y, then z) with precomputed weights, only the Gaussian
+	 * and Mean filters are separable, the others always use the full window
+	 */
+	public boolean separable = false;
+
+	/**
+	 * Can the current filter be run as separate passes
+	 * @return true if separable is set and the filter is a Gaussian (with a non-zero radius) or Mean
+	 */
+	public boolean isSeparable() {
+		if (!separable) return false;
+		switch (filterType) {
+		case GAUSSIAN:
+			return (filterSigma.x>0) && (filterSigma.y>0) && (filterSigma.z>0);
+		case MEAN:
+			return true;
+		default:
+			return false;
+		}
+	}
 	
 	/**
 	 * Set imagetype of output image (default = -1 is the same as the input type
 	 */
 	public int oimageType = -1;
 	static private final String filterHelpString = NEAREST_NEIGHBOR+" - Nearest Neighbor,"+
-            GAUSSIAN+" - Gaussian, "+GRADIENT+" - Gradient, "+LAPLACE+" - Laplace, "+MEDIAN+" - Median";
+            GAUSSIAN+" - Gaussian, "+GRADIENT+" - Gradient, "+LAPLACE+" - Laplace, "+MEDIAN+" - Median, "+MEAN+" - Mean";
 
 	public ArgumentParser setParameter(final ArgumentParser p,
 			final String prefix) {
@@ -76,7 +104,12 @@ public class FilterSettings implements Serializable {
 		upfactor = p.getOptionD3int(prefix + "upfactor", upfactor, "Upscale factor");
 		downfactor = p.getOptionD3int(prefix + "downfactor",downfactor, "Downscale factor");
 		
+		separable = p.getOptionBoolean(prefix + "separable", separable,
+				"Run Gaussian and Mean filters as separate x, y and z passes with precomputed weights");
+		
 		final D3int sigma = (filterParameter>0) ? new D3int((int) filterParameter) : upfactor;
+		this.filterType = filterType;
+		filterSigma = sigma;
 		switch (filterType) {
 		case NEAREST_NEIGHBOR:
 			scalingFilterGenerator = new filterGenerator() {
@@ -134,6 +167,14 @@ public class FilterSettings implements Serializable {
 				}
 			};
 			break;
+		case MEAN:
+			scalingFilterGenerator = new filterGenerator() {
+				@Override
+				public BaseTIPLPluginIn.filterKernel make() {
+					return BaseTIPLPluginIn.meanFilter();
+				}
+			};
+			break;
 		default:
 			throw new IllegalArgumentException("Filter type:"+filterType+" does not exist!");
 		}
@@ -1,7 +1,10 @@
 package tipl.tools;
 
+import tipl.formats.BitVolumeImage;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
+import tipl.util.BitVolume;
+import tipl.util.ChunkedVolume;
 import tipl.util.D3int;
 import tipl.util.TImgTools;
 
@@ -17,12 +20,12 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
     /**
      * First input aim
      */
-    public boolean[] inAim;
+    public ChunkedVolume.Bool inAim;
 
     /**
      * Output aim
      */
-    public volatile boolean[] outAim;
+    public volatile ChunkedVolume.Bool outAim;
 
     public BaseTIPLPluginBW() {
         isInitialized = false;
@@ -34,8 +37,7 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
         TImgRO.CanExport templateAim = TImgTools.makeTImgExportable(templateImage);
         if (isInitialized) {
             if (runCount > 0) {
-                final TImg outAimData = templateAim.inheritedAim(outAim, dim,
-                        offset);
+                final TImg outAimData = outAim.toTImg(templateAim, offset);
                 outAimData.appendProcLog(procLog);
                 return new TImg[]{outAimData};
             } else {
@@ -43,7 +45,7 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
                         .println("The plug-in : "
                                 + getPluginName()
                                 + ", has not yet been run, exported does not exactly make sense, original data will be sent.");
-                return new TImg[]{templateAim.inheritedAim(inAim, dim, offset)};
+                return new TImg[]{inAim.toTImg(templateAim, offset)};
             }
         } else {
             System.err
@@ -57,14 +59,14 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
 
     /**
      * initializer function taking boolean (other castings just convert the
-     * array first) linear array and the dimensions
+     * array first) linear array and the dimensions, the array is packed into
+     * bits so later changes to it are not seen by the plugin
      */
     @Deprecated
     public void ImportAim(final boolean[] inputmap, final D3int idim,
                           final D3int ioffset) {
         aimLength = inputmap.length;
-        inAim = new boolean[aimLength];
-        System.arraycopy(inputmap, 0, inAim, 0, aimLength);
+        inAim = ChunkedVolume.Bool.pack(inputmap, idim);
         InitLabels(idim, ioffset);
     }
 
@@ -76,9 +78,9 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
     public void ImportAim(final float[] inputmap, final D3int idim,
                           final D3int ioffset) {
         aimLength = inputmap.length;
-        inAim = new boolean[aimLength];
+        inAim = new ChunkedVolume.Bool(idim);
         for (int i = 0; i < aimLength; i++)
-            inAim[i] = inputmap[i] > 0;
+            inAim.set(i, inputmap[i] > 0);
         InitLabels(idim, ioffset);
     }
 
@@ -90,9 +92,9 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
     public void ImportAim(final int[] inputmap, final D3int idim,
                           final D3int ioffset) {
         aimLength = inputmap.length;
-        inAim = new boolean[aimLength];
+        inAim = new ChunkedVolume.Bool(idim);
         for (int i = 0; i < aimLength; i++)
-            inAim[i] = inputmap[i] > 0;
+            inAim.set(i, inputmap[i] > 0);
         InitLabels(idim, ioffset);
     }
 
@@ -104,9 +106,9 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
     public void ImportAim(final short[] inputmap, final D3int idim,
                           final D3int ioffset) {
         aimLength = inputmap.length;
-        inAim = new boolean[aimLength];
+        inAim = new ChunkedVolume.Bool(idim);
         for (int i = 0; i < aimLength; i++)
-            inAim[i] = inputmap[i] > 0;
+            inAim.set(i, inputmap[i] > 0);
         InitLabels(idim, ioffset);
     }
 
@@ -114,12 +116,40 @@ abstract public class BaseTIPLPluginBW extends BaseTIPLPluginIO {
      * initializer function taking an aim-file
      */
     public void ImportAim(final TImgRO inImg) {
-        ImportAim(TImgTools.makeTImgFullReadable(inImg).getBoolAim(),
-                inImg.getDim(), inImg.getOffset());
+        if (inImg instanceof BitVolumeImage) {
+            ImportAim(((BitVolumeImage) inImg).getVolume(), inImg.getOffset());
+            return;
+        }
+        ImportAim(ChunkedVolume.Bool.fromTImg(inImg), inImg.getOffset());
+    }
+
+    /**
+     * initializer function taking a chunked volume (which is used directly)
+     */
+    public void ImportAim(final ChunkedVolume.Bool inVol, final D3int ioffset) {
+        aimLength = inVol.length();
+        inAim = inVol;
+        InitLabels(inVol.getDim(), ioffset);
+    }
+
+    /**
+     * The input with the word-parallel logical and morphological operations
+     * of BitVolume, it uses the same bits as inAim so the in place operations
+     * (and, or, not, ...) also change inAim
+     */
+    protected BitVolume packInput() {
+        return BitVolume.wrap(inAim);
+    }
+
+    /**
+     * Store the result of a BitVolume operation as the output
+     */
+    protected void unpackOutput(final BitVolume result) {
+        outAim = result;
     }
 
     protected void InitLabels(final D3int idim, final D3int ioffset) {
-        outAim = (boolean[]) TImgTools.watchBigAlloc(TImgTools.IMAGETYPE_BOOL, aimLength);
+        outAim = new ChunkedVolume.Bool(idim);
         InitDims(idim, ioffset);
         isInitialized = true;
     }
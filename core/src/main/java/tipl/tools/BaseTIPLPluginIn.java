@@ -84,7 +84,11 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
      */
     // D3int pos;
 
-    protected int aimLength;
+    /**
+     * Number of voxels in the image, a long since the chunked volumes can have
+     * more than 2^31 voxels (see arrayLength for the single array plugins)
+     */
+    protected long aimLength;
     protected int lowx, lowy, lowz, uppx, uppy, uppz;
     /**
      * has the plug-in been properly initialized with data
@@ -104,6 +108,16 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
      */
     D3int offset;
 
+    /**
+     * aimLength for the plugins which keep the image in a single array
+     */
+    protected int arrayLength() {
+        if (aimLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(getPluginName() + ": " + aimLength
+                    + " voxels do not fit in a single array");
+        return (int) aimLength;
+    }
+
     public BaseTIPLPluginIn() {
         isInitialized = false;
         dependencyInjection();
@@ -173,6 +187,42 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
         return gaussFilterOut;
     }
 
+    /**
+     * Mean (box) filter, every voxel inside the scaling window has the same weight
+     */
+    public static filterKernel meanFilter() {
+        return new filterKernel() {
+            double cVox = 0.0;
+            double cWeight = 0.0;
+
+            @Override
+            public void addpt(final double oposx, final double ox,
+                              final double oposy, final double oy, final double oposz,
+                              final double oz, final double dcVox) {
+                cWeight += 1;
+                cVox += dcVox;
+            }
+
+            @Override
+            public String filterName() {
+                return "Mean";
+            }
+
+            @Override
+            public void reset() {
+                cWeight = 0.0;
+                cVox = 0.0;
+            }
+
+            @Override
+            public double value() {
+                if (cWeight > 0)
+                    return (cVox / cWeight);
+                return 0;
+            }
+        };
+    }
+
     /**
      * A sobel gradient filter useful for finding edges or performing edge
      * enhancement
@@ -331,13 +381,11 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
             @Override
             public double value() {
                 Collections.sort(fvals);
-                if (fvals.size() % 2 == 0)
-                    return fvals.get(fvals.size() / 2);
-                else {
-                    return 0.5
-                            * fvals.get((int) Math.floor(fvals.size() / 2))
-                            + fvals.get((int) Math.ceil(fvals.size() / 2));
-                }
+                final int n = fvals.size();
+                if (n % 2 == 0)
+                    return 0.5 * (fvals.get(n / 2 - 1) + fvals.get(n / 2));
+                else
+                    return fvals.get(n / 2);
             }
         };
     }
@@ -395,16 +443,7 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
     public static BaseTIPLPluginIn.morphKernel sphKernel(final double radx,
                                                          final double rady, final double radz) {
 
-        return new BaseTIPLPluginIn.morphKernel() {// Semi-axes radx,rady, radz
-            @Override
-            public boolean inside(final int off, final int off2, final int x1,
-                                  final int x2, final int y1, final int y2, final int z1,
-                                  final int z2) {
-                return (Math.pow((x1 - x2) / radx, 2)
-                        + Math.pow((y1 - y2) / rady, 2) + Math.pow((z1 - z2)
-                        / radz, 2)) <= 1;
-            }
-        };
+        return new EllipsoidKernel(radx, rady, radz);
     }
 
     /**
@@ -961,6 +1000,32 @@ abstract public class BaseTIPLPluginIn extends BaseTIPLPlugin implements
         boolean accept(int labelNumber, int voxCount, int thirdMetric);
     }
 
+    /**
+     * An ellipsoidal kernel with semi-axes radx, rady, radz, the radii are kept
+     * so the kernel can be recognized (for example to use a distance map
+     * instead of scanning the neighborhood)
+     */
+    public static class EllipsoidKernel implements morphKernel {
+        public final double radx;
+        public final double rady;
+        public final double radz;
+
+        public EllipsoidKernel(final double radx, final double rady, final double radz) {
+            this.radx = radx;
+            this.rady = rady;
+            this.radz = radz;
+        }
+
+        @Override
+        public boolean inside(final int off, final int off2, final int x1,
+                              final int x2, final int y1, final int y2, final int z1,
+                              final int z2) {
+            return (Math.pow((x1 - x2) / radx, 2)
+                    + Math.pow((y1 - y2) / rady, 2) + Math.pow((z1 - z2)
+                    / radz, 2)) <= 1;
+        }
+    }
+
     /**
      * stationaryKernel uses a hashtable for stationary ( f(a,b)=f(a+c,b+c) )
      * kernels to speed up calculations
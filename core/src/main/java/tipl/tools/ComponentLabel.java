@@ -15,7 +15,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     @TIPLPluginManager.PluginInfo(pluginType = "ComponentLabel",
             desc = "Full memory component labeling",
             sliceBased = false,
-            maximumSize = 1024 * 1024 * 1024,
+            maximumSize = -1,
             bytesPerVoxel = 3)
     final public static class clFactory implements TIPLPluginManager.TIPLPluginFactory {
         @Override
@@ -30,12 +30,12 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     /**
      * The input boolean image with the objects to be analyzed
      */
-    public boolean[] scdat;
+    public ChunkedVolume.Bool scdat;
     /**
      * The generated labels image where each distinct group is labeled
      * differently
      */
-    public int[] labels;
+    public ChunkedVolume.Int labels;
     public int maxlabel;
     public boolean verboseMode = true;
     /**
@@ -69,11 +69,12 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     public ComponentLabel(final boolean[] inputmap, final D3int idim,
                           final D3int ioffset) {
         aimLength = inputmap.length;
-        scdat = inputmap;
         if (invert) {
-            scdat = new boolean[aimLength];
+            scdat = new ChunkedVolume.Bool(idim);
             for (int i = 0; i < aimLength; i++)
-                scdat[i] = !inputmap[i];
+                scdat.set(i, !inputmap[i]);
+        } else {
+            scdat = ChunkedVolume.Bool.pack(inputmap, idim);
         }
         InitLabels(idim, ioffset);
     }
@@ -98,7 +99,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
         int curLabel = 1;
         long cVox = 0;
         long sVox = 0;
-        int off = 0;
+        long off = 0;
 
         // Code for stationaryKernel
         BaseTIPLPluginIn.stationaryKernel curKernel;
@@ -109,29 +110,28 @@ public class ComponentLabel extends BaseTIPLPluginIO {
 
         for (int z = lowz; z < uppz; z++) {
             for (int y = lowy; y < uppy; y++) {
-                off = (z * dim.y + y) * dim.x + lowx;
+                off = labels.index(lowx, y, z);
                 for (int x = lowx; x < uppx; x++, off++) {
 
-                    if ((scdat[off]) && (labels[off] == 0)) {
+                    if ((scdat.get(off)) && (labels.get(off) == 0)) {
                         cVox++;
                         int applyLabel = 0;
-                        int off2;
+                        long off2;
                         // for(int ik=0; ik<n.length; ik++) {
                         // off2=off+n[ik];
                         for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                 z + neighborSize.z, uppz - 1); z2++) {
                             for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
                                     y + neighborSize.y, uppy - 1); y2++) {
-                                off2 = (z2 * dim.y + y2) * dim.x
-                                        + max(x - neighborSize.x, lowx);
+                                off2 = labels.index(max(x - neighborSize.x, lowx), y2, z2);
                                 for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
                                         x + neighborSize.x, uppx - 1); x2++, off2++) {
-                                    if (curKernel.inside(off, off2, x, x2, y,
+                                    if (curKernel.inside(0, (int) (off2 - off), x, x2, y,
                                             y2, z, z2)) {
-                                        if ((scdat[off2]) && (off != off2)) {
+                                        if ((scdat.get(off2)) && (off != off2)) {
                                             if (applyLabel < 1) {
-                                                if (labels[off2] > 0) {
-                                                    applyLabel = labels[off2];
+                                                if (labels.get(off2) > 0) {
+                                                    applyLabel = labels.get(off2);
                                                     set_label(off, applyLabel);
                                                 }
                                             } else {
@@ -163,7 +163,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
             System.out.println("Done with first screen, labels:" + curLabel
                     + ", " + labelcounts.get(1) + " of " + cVox + " and "
                     + sVox + ":" + (labelcounts.get(1) + 0.0)
-                    / (aimLength + 0.0));
+                    / (labels.length() + 0.0));
 
         if (verboseMode)
             System.out.println("Merging Similar Groups...");
@@ -178,32 +178,31 @@ public class ComponentLabel extends BaseTIPLPluginIO {
 
             for (int z = lowz; z < uppz; z++) {
                 for (int y = lowy; y < uppy; y++) {
-                    off = (z * dim.y + y) * dim.x + lowx;
+                    off = labels.index(lowx, y, z);
                     for (int x = lowx; x < uppx; x++, off++) {
 
-                        if (labels[off] > 0) {// Eligble Full Voxel
+                        if (labels.get(off) > 0) {// Eligble Full Voxel
                             // for(int ik=0; ik<n.length; ik++) {
                             // off2=off+n[ik];
-                            int off2;
+                            long off2;
                             for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                     z + neighborSize.z, uppz - 1); z2++) {
                                 for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
                                         y + neighborSize.y, uppy - 1); y2++) {
-                                    off2 = (z2 * dim.y + y2) * dim.x
-                                            + max(x - neighborSize.x, lowx);
+                                    off2 = labels.index(max(x - neighborSize.x, lowx), y2, z2);
                                     for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
                                             x + neighborSize.x, uppx - 1); x2++, off2++) {
-                                        if (curKernel.inside(off, off2, x, x2,
+                                        if (curKernel.inside(0, (int) (off2 - off), x, x2,
                                                 y, y2, z, z2)) {
-                                            if ((labels[off2] != labels[off])
-                                                    && (labels[off2] > 0)) {
+                                            if ((labels.get(off2) != labels.get(off))
+                                                    && (labels.get(off2) > 0)) {
                                                 // label_merge(labels[off+n[ik]],labels[off],labelcounts,labels,aimLength);
                                                 final int labA = max(
-                                                        labels[off],
-                                                        labels[off2]);
+                                                        labels.get(off),
+                                                        labels.get(off2));
                                                 final int labB = min(
-                                                        labels[off],
-                                                        labels[off2]);
+                                                        labels.get(off),
+                                                        labels.get(off2));
                                                 labelremap.set(labA,
                                                         labB);
                                                 changescnt++;
@@ -225,7 +224,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
                 System.out.println("Labels:" + maxlabel + ", Steps : "
                         + swapSteps + " Swaps : " + changescnt
                         + ", Active Region(pm): " + (1000 * changescnt)
-                        / (aimLength));
+                        / (labels.length()));
             resetRemap();
 
             // for(int ir=1;ir<20;ir++) if (verboseMode)
@@ -329,8 +328,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     public TImg ExportLabelsAim(final TImgRO.CanExport templateAim) {
         if (isInitialized) {
             if (runCount > 0) {
-                final TImg outVirtualAim = templateAim.inheritedAim(labels,
-                        dim, new D3int(0));
+                final TImg outVirtualAim = labels.toTImg(templateAim, new D3int(0));
                 outVirtualAim.appendProcLog(procLog);
                 return outVirtualAim;
 
@@ -359,11 +357,10 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     public TImg ExportMaskAim(final TImgRO.CanExport templateAim) {
         if (isInitialized) {
             if (runCount > 0) {
-                final boolean[] outputMask = new boolean[labels.length];
-                for (int i = 0; i < labels.length; i++)
-                    outputMask[i] = (labels[i] > 0);
-                final TImg outVirtualAim = templateAim.inheritedAim(outputMask,
-                        dim, new D3int(0));
+                final ChunkedVolume.Bool outputMask = new ChunkedVolume.Bool(dim);
+                for (long i = 0; i < labels.length(); i++)
+                    outputMask.set(i, labels.get(i) > 0);
+                final TImg outVirtualAim = outputMask.toTImg(templateAim, new D3int(0));
                 outVirtualAim.appendProcLog(procLog);
                 return outVirtualAim;
 
@@ -409,11 +406,10 @@ public class ComponentLabel extends BaseTIPLPluginIO {
                         acceptList[ir] = false;
                 }
 
-                final boolean[] outputMask = new boolean[labels.length];
-                for (int i = 0; i < labels.length; i++)
-                    outputMask[i] = acceptList[labels[i]];
-                final TImg outVirtualAim = templateAim.inheritedAim(outputMask,
-                        dim, new D3int(0));
+                final ChunkedVolume.Bool outputMask = new ChunkedVolume.Bool(dim);
+                for (long i = 0; i < labels.length(); i++)
+                    outputMask.set(i, acceptList[labels.get(i)]);
+                final TImg outVirtualAim = outputMask.toTImg(templateAim, new D3int(0));
                 outVirtualAim.appendProcLog(procLog);
                 outVirtualAim.appendProcLog("CL: Applied Mask Filter:"
                         + inMaskFilter.getProcLog());
@@ -678,7 +674,7 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     }
 
     private void InitLabels(final D3int idim, final D3int ioffset) {
-        labels = new int[aimLength];
+        labels = new ChunkedVolume.Int(idim);
         labelcounts = new ArrayList<Integer>(10000);
         for (int ir = 0; ir <= (10000); ir++) {
             labelcounts.add(zero);
@@ -692,14 +688,11 @@ public class ComponentLabel extends BaseTIPLPluginIO {
     public void LoadImages(final TImgRO[] inImages) {
         if (inImages.length < 1)
             throw new IllegalArgumentException("Too few input images given!");
-        final boolean[] inputmap = TImgTools.makeTImgFullReadable(inImages[0])
-                .getBoolAim();
-        aimLength = inputmap.length;
-        scdat = inputmap;
+        scdat = ChunkedVolume.Bool.fromTImg(inImages[0]);
+        aimLength = scdat.length();
         if (invert) {
-            scdat = new boolean[aimLength];
-            for (int i = 0; i < aimLength; i++)
-                scdat[i] = !inputmap[i];
+            for (long i = 0; i < scdat.length(); i++)
+                scdat.set(i, !scdat.get(i));
         }
         InitLabels(inImages[0].getDim(), inImages[0].getOffset());
 
@@ -747,16 +740,17 @@ public class ComponentLabel extends BaseTIPLPluginIO {
         maxlabel = 0;
 
         int delVox = 0;
-        for (int ij = 0; ij < aimLength; ij++) {
-            if (labels[ij] > 0) {
-                final int labRemapVal = labelremap.get(labels[ij]);
-                if (labRemapVal != labels[ij]) {
-                    labels[ij] = labRemapVal;
+        for (long ij = 0; ij < labels.length(); ij++) {
+            final int cLabel = labels.get(ij);
+            if (cLabel > 0) {
+                final int labRemapVal = labelremap.get(cLabel);
+                if (labRemapVal != cLabel) {
+                    labels.set(ij, labRemapVal);
                     if (labRemapVal == 0)
                         delVox++;
                 }
-                if (labels[ij] > maxlabel)
-                    maxlabel = labels[ij];
+                if (labRemapVal > maxlabel)
+                    maxlabel = labRemapVal;
             }
         }
         if (verboseMode)
@@ -945,13 +939,14 @@ public class ComponentLabel extends BaseTIPLPluginIO {
 
     }
 
-    private void set_label(final int pt, final int applyLabel) {
+    private void set_label(final long pt, final int applyLabel) {
         labelcounts.set(applyLabel, labelcounts.get(applyLabel)
                 .intValue() + 1);
-        if (labels[pt] != 0)
-            labelcounts.set(labels[pt], labelcounts.get(labels[pt])
+        final int oldLabel = labels.get(pt);
+        if (oldLabel != 0)
+            labelcounts.set(oldLabel, labelcounts.get(oldLabel)
                     .intValue() - 1);
-        labels[pt] = applyLabel;
+        labels.set(pt, applyLabel);
     }
 
     /**
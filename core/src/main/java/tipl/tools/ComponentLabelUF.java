@@ -0,0 +1,625 @@
+package tipl.tools;
+
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+import tipl.util.ArgumentParser;
+import tipl.util.ChunkedVolume;
+import tipl.util.D3int;
+import tipl.util.ITIPLPlugin;
+import tipl.util.TIPLPluginManager;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Component labeling using a two-pass union-find over primitive label tables. The first sweep
+ * assigns provisional labels and records equivalences between them in a disjoint-set forest
+ * (path compression and union by rank), the second sweep writes the final compact labels. The
+ * output (label order, object filtering and the exported images) matches {@link ComponentLabel}
+ * but without the repeated merge passes or boxed label lists.
+ * <p/>
+ * In multicore mode every thread labels its own z-slab with its own forest, the slabs are then
+ * stitched together by merging the labels touching across the slab boundaries in a shared
+ * concurrent forest and a final parallel pass writes the same compact labels as the single
+ * threaded version.
+ */
+public class ComponentLabelUF extends ComponentLabel {
+    @TIPLPluginManager.PluginInfo(pluginType = "ComponentLabel",
+            desc = "Full memory union-find component labeling",
+            sliceBased = false,
+            maximumSize = -1,
+            bytesPerVoxel = 3,
+            speedRank = 11)
+    final public static class clufFactory implements TIPLPluginManager.TIPLPluginFactory {
+        @Override
+        public ITIPLPlugin get() {
+            return new ComponentLabelUF();
+        }
+    };
+
+    /**
+     * the voxel count for each of the final labels (index 0 is unused)
+     */
+    protected int[] finalCounts = new int[1];
+    /**
+     * label the image in parallel slabs (when more than one core is available)
+     */
+    public boolean multicore = true;
+    /**
+     * the step currently being run by runMulticore (see processWork)
+     */
+    protected int curPhase = PHASE_NONE;
+    protected static final int PHASE_NONE = 0;
+    protected static final int PHASE_LABEL = 1;
+    protected static final int PHASE_SEAM = 2;
+    protected static final int PHASE_RELABEL = 3;
+
+    /**
+     * the slice at which each slab starts, the slab index for each slice and the first global
+     * label of each slab (minus one) in multicore mode
+     */
+    protected int[] slabStart;
+    protected int[] sliceSlab;
+    protected int[] slabLabelBase;
+    protected UnionFind[] slabForests;
+    protected ConcurrentUnionFind seamForest;
+    protected int[][] neighborList;
+    protected int[] labelRemap;
+
+    public ComponentLabelUF() {
+        supportsThreading = true;
+    }
+
+    public ComponentLabelUF(final TImg bubblesAim) {
+        super(bubblesAim);
+        supportsThreading = true;
+    }
+
+    @Override
+    public String getPluginName() {
+        return "ComponentLabelUF";
+    }
+
+    @Override
+    public ArgumentParser setParameter(final ArgumentParser p,
+                                       final String cPrefix) {
+        final ArgumentParser t = super.setParameter(p, cPrefix);
+        multicore = t.getOptionBoolean(cPrefix + "multicore", multicore,
+                "Label the image in parallel slabs and merge the labels across the slab boundaries");
+        return t;
+    }
+
+    /**
+     * The linear offsets, and x,y,z steps of all of the neighbors which come before a voxel in
+     * raster order and are connected to it according to the kernel. Since connectivity is treated
+     * as symmetric (as the merge step in ComponentLabel does) only these half need to be checked.
+     *
+     * @param curKernel the kernel to use
+     * @return int[4][n] with dx, dy, dz, and the linear offset
+     */
+    protected int[][] getBackwardNeighbors(final BaseTIPLPluginIn.morphKernel curKernel) {
+        final int nx = 2 * neighborSize.x + 1;
+        final int ny = 2 * neighborSize.y + 1;
+        final int nz = 2 * neighborSize.z + 1;
+        final int[][] nList = new int[4][nx * ny * nz];
+        // evaluate the kernel as if it were centered in the middle of a large enough image
+        final int cx = neighborSize.x, cy = neighborSize.y, cz = neighborSize.z;
+        final int cOff = (cz * dim.y + cy) * dim.x + cx;
+        int nCount = 0;
+        for (int dz = -neighborSize.z; dz <= 0; dz++) {
+            for (int dy = -neighborSize.y; dy <= (dz < 0 ? neighborSize.y : 0); dy++) {
+                final int maxDx = ((dz < 0) || (dy < 0)) ? neighborSize.x : -1;
+                for (int dx = -neighborSize.x; dx <= maxDx; dx++) {
+                    final int dOff = (dz * dim.y + dy) * dim.x + dx;
+                    final boolean fwd = curKernel.inside(cOff, cOff + dOff, cx, cx + dx,
+                            cy, cy + dy, cz, cz + dz);
+                    final boolean bwd = curKernel.inside(cOff, cOff - dOff, cx, cx - dx,
+                            cy, cy - dy, cz, cz - dz);
+                    if (fwd || bwd) {
+                        nList[0][nCount] = dx;
+                        nList[1][nCount] = dy;
+                        nList[2][nCount] = dz;
+                        nList[3][nCount] = dOff;
+                        nCount++;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < 4; i++) nList[i] = Arrays.copyOf(nList[i], nCount);
+        return nList;
+    }
+
+    /**
+     * The linear offsets (in the labels image) of the neighbors from getBackwardNeighbors
+     */
+    protected long[] neighborOffsets(final int[][] nList) {
+        final long[] nOff = new long[nList[0].length];
+        for (int k = 0; k < nOff.length; k++)
+            nOff[k] = labels.index(nList[0][k], nList[1][k], nList[2][k]);
+        return nOff;
+    }
+
+    /**
+     * Provisionally label the slices from startZ to endZ (exclusive) merging any touching labels
+     * in the forest. Neighbors outside of the slab are ignored.
+     *
+     * @param startZ    first slice
+     * @param endZ      last slice (exclusive)
+     * @param nList     the neighbors from getBackwardNeighbors
+     * @param forest    the forest to add the labels to
+     * @return number of foreground voxels seen
+     */
+    protected long labelSlab(final int startZ, final int endZ, final int[][] nList,
+                             final UnionFind forest) {
+        final int[] ndx = nList[0], ndy = nList[1], ndz = nList[2];
+        final long[] nOff = neighborOffsets(nList);
+        final int nCount = nOff.length;
+        long cVox = 0;
+        for (int z = startZ; z < endZ; z++) {
+            for (int y = lowy; y < uppy; y++) {
+                long off = labels.index(lowx, y, z);
+                for (int x = lowx; x < uppx; x++, off++) {
+                    if (!scdat.get(off)) continue;
+                    cVox++;
+                    int applyLabel = 0;
+                    for (int k = 0; k < nCount; k++) {
+                        final int z2 = z + ndz[k];
+                        final int y2 = y + ndy[k];
+                        final int x2 = x + ndx[k];
+                        if ((z2 < startZ) || (y2 < lowy) || (y2 >= uppy) || (x2 < lowx)
+                                || (x2 >= uppx)) continue;
+                        final int nLabel = labels.get(off + nOff[k]);
+                        if (nLabel > 0) {
+                            if (applyLabel == 0) applyLabel = nLabel;
+                            else if (nLabel != applyLabel) forest.union(applyLabel, nLabel);
+                        }
+                    }
+                    if (applyLabel == 0) applyLabel = forest.makeSet();
+                    forest.count[applyLabel]++;
+                    labels.set(off, applyLabel);
+                }
+            }
+        }
+        return cVox;
+    }
+
+    /**
+     * Collapse the forest into compact labels (ordered by the first appearance in the image)
+     * and run the object filter over them
+     *
+     * @param forest the forest of provisional labels
+     * @return a lookup table from provisional label to final label (0 for removed objects)
+     */
+    protected int[] resolveLabels(final LabelForest forest) {
+        final int provCount = forest.size();
+        final int[] rootLabel = new int[provCount + 1];
+        int[] objCounts = new int[provCount + 1];
+        int objCount = 0;
+        for (int i = 1; i <= provCount; i++) {
+            final int root = forest.find(i);
+            if (rootLabel[root] == 0) rootLabel[root] = ++objCount;
+            objCounts[rootLabel[root]] += forest.getCount(i);
+        }
+        // Prescan the list
+        for (int ir = 1; ir <= objCount; ir++)
+            objFilter.prescan(ir, objCounts[ir]);
+        // Filter the list and compact the accepted objects
+        final int[] keptLabel = new int[objCount + 1];
+        maxlabel = 0;
+        for (int ir = 1; ir <= objCount; ir++) {
+            if (objFilter.accept(ir, objCounts[ir])) {
+                maxlabel++;
+                keptLabel[ir] = maxlabel;
+                objCounts[maxlabel] = objCounts[ir];
+            }
+        }
+        finalCounts = Arrays.copyOf(objCounts, maxlabel + 1);
+        objCounts = null;
+        if (verboseMode)
+            System.out.println("Labels:" + provCount + ", Objects: " + objCount
+                    + ", Removing objects outside of filter, remaining : " + maxlabel);
+        final int[] remap = new int[provCount + 1];
+        for (int i = 1; i <= provCount; i++)
+            remap[i] = keptLabel[rootLabel[forest.find(i)]];
+        return remap;
+    }
+
+    /**
+     * Write the final labels into the labels image for the slices startZ to endZ (exclusive)
+     *
+     * @param labelBase the value to add to the labels in the slab before looking them up
+     */
+    protected void relabelSlab(final int startZ, final int endZ, final int labelBase,
+                               final int[] remap) {
+        for (int z = startZ; z < endZ; z++) {
+            for (int y = lowy; y < uppy; y++) {
+                long off = labels.index(lowx, y, z);
+                for (int x = lowx; x < uppx; x++, off++) {
+                    final int cLabel = labels.get(off);
+                    if (cLabel > 0) labels.set(off, remap[labelBase + cLabel]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the labels of the first slices of a slab with the labels they touch in the slabs
+     * before it
+     *
+     * @param slab the index of the slab
+     */
+    protected void mergeSeam(final int slab) {
+        final int startZ = slabStart[slab];
+        final int endZ = min(startZ + neighborSize.z, slabStart[slab + 1]);
+        final int[] ndx = neighborList[0], ndy = neighborList[1], ndz = neighborList[2];
+        final long[] nOff = neighborOffsets(neighborList);
+        final int nCount = nOff.length;
+        final int cBase = slabLabelBase[slab];
+        for (int z = startZ; z < endZ; z++) {
+            for (int y = lowy; y < uppy; y++) {
+                long off = labels.index(lowx, y, z);
+                for (int x = lowx; x < uppx; x++, off++) {
+                    final int cLabel = labels.get(off);
+                    if (cLabel == 0) continue;
+                    for (int k = 0; k < nCount; k++) {
+                        final int z2 = z + ndz[k];
+                        final int y2 = y + ndy[k];
+                        final int x2 = x + ndx[k];
+                        if ((z2 >= startZ) || (z2 < lowz) || (y2 < lowy) || (y2 >= uppy)
+                                || (x2 < lowx) || (x2 >= uppx)) continue;
+                        final int nLabel = labels.get(off + nOff[k]);
+                        if (nLabel > 0)
+                            seamForest.union(cBase + cLabel,
+                                    slabLabelBase[sliceSlab[z2]] + nLabel);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The work is divided into slabs as normal but the slab index is also included
+     *
+     * @return int[] {startSlice, endSlice, slabIndex}
+     */
+    @Override
+    public Object divideThreadWork(final int cThread, final int inCores) {
+        final int[] range = (int[]) super.divideThreadWork(cThread, inCores);
+        if (range == null) return null;
+        return new int[]{range[0], range[1], cThread};
+    }
+
+    @Override
+    protected void processWork(final Object currentWork) {
+        final int[] range = (int[]) currentWork;
+        final int slab = range[2];
+        switch (curPhase) {
+            case PHASE_LABEL:
+                slabForests[slab] = new UnionFind(10000);
+                labelSlab(range[0], range[1], neighborList, slabForests[slab]);
+                return;
+            case PHASE_SEAM:
+                if (slab > 0) mergeSeam(slab);
+                return;
+            case PHASE_RELABEL:
+                relabelSlab(range[0], range[1], slabLabelBase[slab], labelRemap);
+                return;
+            default:
+                System.err.println("Warning : '" + getPluginName()
+                        + "' is being used incorrectly in multicore mode!!: " + curPhase);
+        }
+    }
+
+    /**
+     * the number of slabs the image will be divided into by divideThreadWork
+     */
+    protected int countSlabs() {
+        final int cores = neededCores();
+        int slabs = 0;
+        while ((slabs < cores) && (divideThreadWork(slabs, cores) != null)) slabs++;
+        return slabs;
+    }
+
+    /**
+     * Label each of the slabs in parallel, merge the seams and then relabel in parallel
+     *
+     * @param slabCount the number of slabs to use
+     * @return the number of provisional labels
+     */
+    protected int executeMulticore(final int slabCount) {
+        slabStart = new int[slabCount + 1];
+        sliceSlab = new int[uppz];
+        for (int i = 0; i < slabCount; i++) {
+            final int[] range = (int[]) divideThreadWork(i, neededCores());
+            slabStart[i] = range[0];
+            slabStart[i + 1] = range[1];
+            for (int z = range[0]; z < range[1]; z++) sliceSlab[z] = i;
+        }
+        slabForests = new UnionFind[slabCount];
+        launchThread = Thread.currentThread();
+        curPhase = PHASE_LABEL;
+        runMulticore();
+
+        // give each slab its own range of labels and copy the local merges into the shared forest
+        slabLabelBase = new int[slabCount];
+        int provCount = 0;
+        for (int i = 0; i < slabCount; i++) {
+            slabLabelBase[i] = provCount;
+            provCount += slabForests[i].size();
+        }
+        seamForest = new ConcurrentUnionFind(provCount);
+        for (int i = 0; i < slabCount; i++) {
+            final UnionFind cForest = slabForests[i];
+            for (int j = 1; j <= cForest.size(); j++)
+                seamForest.init(slabLabelBase[i] + j, slabLabelBase[i] + cForest.find(j),
+                        cForest.count[j]);
+            slabForests[i] = null;
+        }
+        if (verboseMode)
+            System.out.println("Done with slab labeling, labels:" + provCount + " in "
+                    + slabCount + " slabs, merging seams...");
+        curPhase = PHASE_SEAM;
+        runMulticore();
+
+        labelRemap = resolveLabels(seamForest);
+        seamForest = null;
+        curPhase = PHASE_RELABEL;
+        runMulticore();
+        curPhase = PHASE_NONE;
+        labelRemap = null;
+        slabForests = null;
+        return provCount;
+    }
+
+    @Override
+    public boolean execute() {
+        // background threads started by runMulticore
+        if ((workForThread != null) && workForThread.containsKey(Thread.currentThread()))
+            return runMulticore();
+
+        final BaseTIPLPluginIn.stationaryKernel curKernel;
+        if (neighborKernel == null)
+            curKernel = new BaseTIPLPluginIn.stationaryKernel();
+        else
+            curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
+        neighborList = getBackwardNeighbors(curKernel);
+
+        final int slabCount = (multicore && supportsThreading) ? countSlabs() : 1;
+        final int provCount;
+        if (slabCount > 1) {
+            provCount = executeMulticore(slabCount);
+        } else {
+            final UnionFind forest = new UnionFind(10000);
+            final long cVox = labelSlab(lowz, uppz, neighborList, forest);
+            if (verboseMode)
+                System.out.println("Done with first sweep, labels:" + forest.size() + " for "
+                        + cVox + " voxels, " + StrPctRatio(cVox, labels.length()));
+            provCount = forest.size();
+            relabelSlab(lowz, uppz, 0, resolveLabels(forest));
+        }
+
+        printList();
+        procLog += "CMD:ComponentLabelUF :N" + neighborSize + " Max Label:"
+                + maxlabel + ", Provisional Labels:" + provCount + ", Slabs:" + slabCount + "\n";
+        procLog += "CL: Filter Used:" + objFilter.getProcLog() + "\n";
+        procLog += "CL: Kernel Used ::\n";
+        procLog += printKernel(curKernel) + "\n\n";
+        runCount++;
+        return true;
+    }
+
+    @Override
+    public TImg ExportMaskAim(final TImgRO.CanExport templateAim,
+                              final CLFilter inMaskFilter) {
+        if (!isInitialized || (runCount < 1)) return super.ExportMaskAim(templateAim, inMaskFilter);
+        // Prescan the list
+        for (int ir = 1; ir <= maxlabel; ir++)
+            inMaskFilter.prescan(ir, finalCounts[ir]);
+        // Filter the list
+        final boolean[] acceptList = new boolean[maxlabel + 1];
+        for (int ir = 1; ir <= maxlabel; ir++)
+            acceptList[ir] = inMaskFilter.accept(ir, finalCounts[ir]);
+
+        final ChunkedVolume.Bool outputMask = new ChunkedVolume.Bool(dim);
+        for (long i = 0; i < labels.length(); i++)
+            outputMask.set(i, acceptList[labels.get(i)]);
+        final TImg outVirtualAim = outputMask.toTImg(templateAim, new D3int(0));
+        outVirtualAim.appendProcLog(procLog);
+        outVirtualAim.appendProcLog("CL: Applied Mask Filter:"
+                + inMaskFilter.getProcLog());
+        return outVirtualAim;
+    }
+
+    @Override
+    public Object getInfo(final String request) {
+        final String sr = request.trim().toLowerCase();
+        if (sr.equals("maxlabel"))
+            return maxlabel;
+        if (sr.equals("firstcount"))
+            return (maxlabel > 0) ? finalCounts[1] : 0;
+        if (sr.equals("avgcount")) {
+            long oVal = 0;
+            for (int ir = 1; ir <= maxlabel; ir++)
+                oVal += finalCounts[ir];
+            return oVal / (maxlabel + ((maxlabel == 0) ? 1.0 : 0.0));
+        }
+        return super.getInfo(request);
+    }
+
+    private void printList() {
+        if (verboseMode)
+            for (int ir = 1; ir <= Math.min(maxlabel, 20); ir++)
+                System.out.println(ir + ", " + finalCounts[ir]);
+    }
+
+    /**
+     * The read-only view of a forest of labels needed to resolve the final labels
+     */
+    public static interface LabelForest {
+        /**
+         * @return the number of labels (1 to size())
+         */
+        public int size();
+
+        /**
+         * @return the root of the set containing label
+         */
+        public int find(int label);
+
+        /**
+         * @return the voxel count of the label itself (not the whole set)
+         */
+        public int getCount(int label);
+    }
+
+    /**
+     * A disjoint-set forest over integer labels (1 to size()) stored in primitive arrays, with
+     * path compression and union by rank. Each label also carries a voxel count.
+     */
+    public static class UnionFind implements LabelForest {
+        protected int[] parent;
+        protected byte[] rank;
+        /**
+         * the voxel count for each label (not merged, see resolveLabels)
+         */
+        public int[] count;
+        protected int size = 0;
+
+        public UnionFind(final int initialSize) {
+            final int iSize = Math.max(initialSize, 1) + 1;
+            parent = new int[iSize];
+            rank = new byte[iSize];
+            count = new int[iSize];
+        }
+
+        /**
+         * @return the number of labels created so far
+         */
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int getCount(final int label) {
+            return count[label];
+        }
+
+        /**
+         * create a new label pointing to itself
+         *
+         * @return the new label
+         */
+        public int makeSet() {
+            size++;
+            if (size >= parent.length) {
+                final int newLength = parent.length + Math.max(parent.length / 2, 1024);
+                parent = Arrays.copyOf(parent, newLength);
+                rank = Arrays.copyOf(rank, newLength);
+                count = Arrays.copyOf(count, newLength);
+            }
+            parent[size] = size;
+            return size;
+        }
+
+        @Override
+        public int find(final int label) {
+            int root = label;
+            while (parent[root] != root) root = parent[root];
+            // path compression
+            int cur = label;
+            while (parent[cur] != root) {
+                final int next = parent[cur];
+                parent[cur] = root;
+                cur = next;
+            }
+            return root;
+        }
+
+        /**
+         * merge the sets containing labelA and labelB
+         *
+         * @return the new root
+         */
+        public int union(final int labelA, final int labelB) {
+            final int rootA = find(labelA);
+            final int rootB = find(labelB);
+            if (rootA == rootB) return rootA;
+            if (rank[rootA] < rank[rootB]) {
+                parent[rootA] = rootB;
+                return rootB;
+            }
+            if (rank[rootA] == rank[rootB]) rank[rootA]++;
+            parent[rootB] = rootA;
+            return rootA;
+        }
+    }
+
+    /**
+     * A fixed size disjoint-set forest which can be merged from several threads at once. Roots are
+     * always linked below the smaller label with a compare-and-set and find uses path halving, so
+     * no locking is needed.
+     */
+    public static class ConcurrentUnionFind implements LabelForest {
+        protected final AtomicIntegerArray parent;
+        protected final int[] count;
+        protected final int size;
+
+        /**
+         * @param size the number of labels, every label starts as its own set
+         */
+        public ConcurrentUnionFind(final int size) {
+            this.size = size;
+            parent = new AtomicIntegerArray(size + 1);
+            count = new int[size + 1];
+            for (int i = 0; i <= size; i++) parent.set(i, i);
+        }
+
+        /**
+         * set the initial parent and count for a label (not thread-safe, use before merging)
+         */
+        public void init(final int label, final int labelParent, final int labelCount) {
+            parent.set(label, labelParent);
+            count[label] = labelCount;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int getCount(final int label) {
+            return count[label];
+        }
+
+        @Override
+        public int find(final int label) {
+            int cur = label;
+            while (true) {
+                final int p = parent.get(cur);
+                if (p == cur) return cur;
+                final int gp = parent.get(p);
+                if (gp == p) return p;
+                // path halving, it does not matter if another thread got there first
+                parent.compareAndSet(cur, p, gp);
+                cur = gp;
+            }
+        }
+
+        /**
+         * merge the sets containing labelA and labelB
+         */
+        public void union(final int labelA, final int labelB) {
+            while (true) {
+                final int rootA = find(labelA);
+                final int rootB = find(labelB);
+                if (rootA == rootB) return;
+                final int lo = Math.min(rootA, rootB);
+                final int hi = Math.max(rootA, rootB);
+                if (parent.compareAndSet(hi, hi, lo)) return;
+            }
+        }
+    }
+
+}
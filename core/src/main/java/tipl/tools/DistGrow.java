@@ -116,9 +116,9 @@ public class DistGrow extends BaseTIPLPluginIO {
 	public DistGrow(final short[] inputmap, final D3int idim,
 			final D3int ioffset) {
 		aimLength = inputmap.length;
-		distmap = new int[aimLength];
-		mask = new boolean[aimLength];
-		for (int i = 0; i < aimLength; i++) {
+		distmap = new int[inputmap.length];
+		mask = new boolean[inputmap.length];
+		for (int i = 0; i < inputmap.length; i++) {
 			distmap[i] = inputmap[i];
 			mask[i] = distmap[i] > 0;
 		}
@@ -264,8 +264,8 @@ public class DistGrow extends BaseTIPLPluginIO {
 			return;
 		}
 
-		labels = new int[aimLength];
-		System.arraycopy(in_labels, 0, labels, 0, aimLength);
+		labels = new int[arrayLength()];
+		System.arraycopy(in_labels, 0, labels, 0, labels.length);
 
 		InitDims(idim, ioffset);
 
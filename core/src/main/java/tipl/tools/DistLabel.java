@@ -4,14 +4,21 @@ import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
+import tipl.util.ArgumentParser;
 import tipl.util.D3int;
 import tipl.util.ITIPLPlugin;
 import tipl.util.TIPLPluginManager;
 import tipl.util.TImgTools;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * DistLabel is the class used for labeling bubbles based on a distance map and
@@ -27,75 +34,324 @@ public class DistLabel extends BaseTIPLPluginIO {
 			return new DistLabel();
 		}
 	};
-	private static class bubbleFiller extends Thread {
-		// int cLabel;
-		// private SeedLabel cBubble;
+	/**
+	 * The region a bubble is allowed to read and fill (the upper bounds are
+	 * excluded), by default the whole image
+	 */
+	protected class FillWindow {
+		int x0 = lowx, y0 = lowy, z0 = lowz;
+		int x1 = uppx, y1 = uppy, z1 = uppz;
 
-		volatile DistLabel parent;
-		private SeedList bubList = new SeedList(MAXOVERLAP);
-		public boolean isFinished = false;
-		/** hovering means the thread is waiting for new bubbles **/
-		public boolean isHovering = true;
-		public int completedBubbles = 0;
-		private final int core;
-
-		public bubbleFiller(final DistLabel iparent, final int icore) {
-			super("BubbleFiller[" + icore + "]");
-			parent = iparent;
-			core = icore;
+		/**
+		 * try to enlarge the window so it contains the box (the part of it
+		 * inside the image, all bounds are included)
+		 * 
+		 * @return if the box is now inside of the window
+		 */
+		boolean cover(final int bx0, final int by0, final int bz0,
+				final int bx1, final int by1, final int bz1) {
+			return contains(bx0, by0, bz0, bx1, by1, bz1);
 		}
 
-		public synchronized void addBubble(final SeedLabel nBubble) {
-			bubList.append(nBubble);
-			completedBubbles++;
+		boolean contains(final int bx0, final int by0, final int bz0,
+				final int bx1, final int by1, final int bz1) {
+			return (max(bx0, lowx) >= x0) && (max(by0, lowy) >= y0)
+					&& (max(bz0, lowz) >= z0) && (min(bx1, uppx - 1) < x1)
+					&& (min(by1, uppy - 1) < y1) && (min(bz1, uppz - 1) < z1);
 		}
 
-		/** does the current bubble overlap one of the existing seeds **/
-		public boolean doesOverlap(final SeedLabel nBubble) {
-			return bubList.doesBubbleOverlap(nBubble);
+		@Override
+		public String toString() {
+			return "(" + x0 + "," + y0 + "," + z0 + ")-(" + x1 + "," + y1
+					+ "," + z1 + ")";
 		}
+	}
 
-		public int pendingBubbles() {
-			return bubList.length();
+	/**
+	 * Schedules the filling of the bubbles on a fixed pool of threads. The
+	 * seeds are taken in the order of the seed list (largest radius first) and every
+	 * bubble claims the cells of a coarse grid covering the window it is
+	 * allowed to fill. The window only depends on the distance map (see
+	 * bubbleReach) and a bubble never grows past it. A bubble is only started
+	 * when none of its cells are claimed by a running bubble or by a larger
+	 * bubble which is still waiting, so bubbles which do not overlap are
+	 * filled concurrently and overlapping bubbles are filled in the order of
+	 * the queue. The labels are numbered in the order of the queue as well,
+	 * so the result is the same for any number of cores.
+	 */
+	private class BubbleScheduler {
+		/** the pending seeds, largest first */
+		final ArrayDeque<SeedLabel> seedQueue;
+		/** the next seeds in the queue which are checked for conflicts */
+		final ArrayList<SeedLabel> lookAhead = new ArrayList<SeedLabel>();
+		final int maxLookAhead;
+		final ForkJoinPool fillPool;
+		/** the window of every seed */
+		final IdentityHashMap<SeedLabel, ClaimedWindow> windows;
+		final D3int gridDim;
+		/** number of running bubbles which have claimed each cell */
+		final int[] claimed;
+		/** cells claimed by waiting bubbles in the current scan */
+		final int[] blocked;
+		int scanStamp = 0;
+		int runningBubbles = 0;
+		/** the number of seeds taken from the queue (the label of the last one) */
+		int polledSeeds = 0;
+		/** the seeds which were started (and not skipped) by their label */
+		final boolean[] usedLabels;
+		int completedBubbles = 0;
+		int clippedBubbles = 0;
+		Throwable fillError = null;
+
+		BubbleScheduler(final SeedList seeds, final int nCores) {
+			// the list is already sorted and seeds with the same radius keep
+			// their order (a PriorityQueue would not)
+			seedQueue = new ArrayDeque<SeedLabel>(seeds.sl);
+			usedLabels = new boolean[seeds.length() + 1];
+			windows = new IdentityHashMap<SeedLabel, ClaimedWindow>(seeds.length());
+			maxLookAhead = Math.max(16, 4 * nCores);
+			fillPool = new ForkJoinPool(nCores);
+			gridDim = new D3int((dim.x + gridCell - 1) / gridCell,
+					(dim.y + gridCell - 1) / gridCell, (dim.z + gridCell - 1)
+							/ gridCell);
+			claimed = new int[(int) gridDim.prod()];
+			blocked = new int[claimed.length];
 		}
 
 		/**
-		 * Distribute (using divideThreadWork) and process (using processWork)
-		 * the work across the various threads
+		 * find the window of every seed, they only read the distance map so
+		 * they are all done at once on the pool
 		 */
-		@Override
-		public void run() {
-			/** wait for the list to be occupied **/
-			while ((isHovering) || (bubList.length() > 0)) {
-				while ((isHovering) && (bubList.length() < 1))
-					yield();
-				if (bubList.length() < 1)
-					break;
-				isFinished = false;
-				final SeedLabel cBubble = bubList.getFirst();
-
-				final long ist = System.currentTimeMillis();
-				try {
-					parent.fillBubble(cBubble.label, cBubble.cx, cBubble.cy,
-							cBubble.cz, cBubble.rad);
-				} catch (final Exception e) {
-					System.out.println("ERROR - Thread : " + this
-							+ " has crashed, proceed carefully!");
-					e.printStackTrace();
-				}
+		void locateWindows() {
+			final List<SeedLabel> seedList = new ArrayList<SeedLabel>(seedQueue);
+			final List<Callable<ClaimedWindow>> windowJobs = new ArrayList<Callable<ClaimedWindow>>(
+					seedList.size());
+			for (final SeedLabel cBubble : seedList)
+				windowJobs.add(new Callable<ClaimedWindow>() {
+					@Override
+					public ClaimedWindow call() {
+						return new ClaimedWindow(bubbleReach(cBubble));
+					}
+				});
+			final List<Future<ClaimedWindow>> windowList = fillPool.invokeAll(windowJobs);
+			try {
+				for (int i = 0; i < seedList.size(); i++)
+					windows.put(seedList.get(i), windowList.get(i).get());
+			} catch (final Exception e) {
+				throw new IllegalArgumentException(getPluginName()
+						+ ": locating the bubbles failed:" + e.getMessage(), e);
+			}
+		}
 
-				isFinished = true;
-				final SeedList newList = bubList.allButFirst();
+		/**
+		 * fill all of the bubbles and return the last label used
+		 */
+		int run() {
+			try {
+				locateWindows();
 				synchronized (this) {
-					bubList = newList;
+					dispatch();
+					while (((runningBubbles > 0) || (lookAhead.size() > 0))
+							&& (fillError == null)) {
+						try {
+							wait(10 * 1000);
+						} catch (final InterruptedException e) {
+							System.out
+									.println("ERROR - MainTHREAD was interrupted, proceed carefully!");
+						}
+						if (runningBubbles > 0)
+							System.out.println("BubbleScheduler: running "
+									+ runningBubbles + ", completed "
+									+ completedBubbles + ", waiting "
+									+ (lookAhead.size() + seedQueue.size()));
+					}
 				}
+			} finally {
+				fillPool.shutdown();
+			}
+			if (fillError != null)
+				throw new IllegalArgumentException(getPluginName()
+						+ ": bubble filling crashed:" + fillError.getMessage(),
+						fillError);
+			if (clippedBubbles > 0)
+				System.out.println("BubbleScheduler: " + clippedBubbles
+						+ " bubbles were stopped at the edge of their window");
+			return compactLabels();
+		}
 
+		/**
+		 * the labels of skipped seeds are missing so the rest are renumbered to
+		 * follow each other
+		 * 
+		 * @return the last label used plus one
+		 */
+		int compactLabels() {
+			final int[] newLabel = new int[polledSeeds + 1];
+			int nextLabel = 1;
+			boolean hasGaps = false;
+			for (int i = 1; i <= polledSeeds; i++) {
+				if (usedLabels[i])
+					newLabel[i] = nextLabel++;
+				else
+					hasGaps = true;
+			}
+			if (hasGaps) {
+				for (int i = 0; i < labels.length; i++)
+					if (labels[i] > 0)
+						labels[i] = newLabel[labels[i]];
+			}
+			return nextLabel;
+		}
+
+		/**
+		 * @param cWindow
+		 *            the window whose cells are visited
+		 * @param skip
+		 *            cells inside this window are not visited (can be null)
+		 * @param mode
+		 *            0 checks for conflicts, 1 claims the cells, -1 releases
+		 *            them and 2 blocks them for the current scan
+		 * @return if any of the cells are claimed or blocked (only for mode 0)
+		 */
+		boolean visitCells(final FillWindow cWindow, final FillWindow skip,
+				final int mode) {
+			for (int gz = cWindow.z0 / gridCell; gz <= (cWindow.z1 - 1)
+					/ gridCell; gz++) {
+				for (int gy = cWindow.y0 / gridCell; gy <= (cWindow.y1 - 1)
+						/ gridCell; gy++) {
+					int goff = (gz * gridDim.y + gy) * gridDim.x + cWindow.x0
+							/ gridCell;
+					for (int gx = cWindow.x0 / gridCell; gx <= (cWindow.x1 - 1)
+							/ gridCell; gx++, goff++) {
+						if ((skip != null)
+								&& skip.contains(gx * gridCell, gy * gridCell,
+										gz * gridCell, gx * gridCell,
+										gy * gridCell, gz * gridCell))
+							continue;
+						switch (mode) {
+						case 0:
+							if ((claimed[goff] > 0)
+									|| (blocked[goff] == scanStamp))
+								return true;
+							break;
+						case 2:
+							blocked[goff] = scanStamp;
+							break;
+						default:
+							claimed[goff] += mode;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * A window made of whole grid cells which are claimed by the bubble
+		 * while it is being filled
+		 */
+		class ClaimedWindow extends FillWindow {
+			boolean wasClipped = false;
+
+			/**
+			 * the cell aligned window around the box (all bounds are included)
+			 */
+			ClaimedWindow(final int[] reach) {
+				x0 = max(max(reach[0], lowx) / gridCell * gridCell, lowx);
+				y0 = max(max(reach[1], lowy) / gridCell * gridCell, lowy);
+				z0 = max(max(reach[2], lowz) / gridCell * gridCell, lowz);
+				x1 = min((min(reach[3], uppx - 1) / gridCell + 1) * gridCell, uppx);
+				y1 = min((min(reach[4], uppy - 1) / gridCell + 1) * gridCell, uppy);
+				z1 = min((min(reach[5], uppz - 1) / gridCell + 1) * gridCell, uppz);
+			}
+
+			@Override
+			boolean cover(final int bx0, final int by0, final int bz0,
+					final int bx1, final int by1, final int bz1) {
+				if (contains(bx0, by0, bz0, bx1, by1, bz1))
+					return true;
+				wasClipped = true;
+				return false;
+			}
+		}
+
+		/**
+		 * start every waiting bubble which does not conflict with a running or
+		 * a larger waiting bubble
+		 */
+		synchronized void dispatch() {
+			if (fillError != null)
+				return;
+			boolean started = true;
+			// keep going while seeds are started or skipped and more can be
+			// taken from the queue
+			while (started) {
+				started = false;
+				while ((lookAhead.size() < maxLookAhead)
+						&& (!seedQueue.isEmpty())) {
+					final SeedLabel nextBubble = seedQueue.poll();
+					nextBubble.label = ++polledSeeds;
+					lookAhead.add(nextBubble);
+				}
+				scanStamp++;
+				final Iterator<SeedLabel> waitIt = lookAhead.iterator();
+				while (waitIt.hasNext()) {
+					final SeedLabel cBubble = waitIt.next();
+					final ClaimedWindow window = windows.get(cBubble);
+					if (visitCells(window, null, 0)) {
+						visitCells(window, null, 2);
+						continue;
+					}
+					waitIt.remove();
+					started = !seedQueue.isEmpty();
+					// no running bubble can change the seed position now
+					final int toff = (cBubble.cz * dim.y + cBubble.cy) * dim.x
+							+ cBubble.cx;
+					if (!diffmask[toff])
+						continue;
+					usedLabels[cBubble.label] = true;
+					visitCells(window, null, 1);
+					runningBubbles++;
+					fillPool.execute(new Runnable() {
+						@Override
+						public void run() {
+							fillTask(cBubble, window);
+						}
+					});
+				}
+			}
+			if ((runningBubbles == 0) && lookAhead.isEmpty())
+				notifyAll();
+		}
+
+		void fillTask(final SeedLabel cBubble, final ClaimedWindow window) {
+			final long ist = System.currentTimeMillis();
+			try {
+				fillBubble(cBubble.label, cBubble.cx, cBubble.cy, cBubble.cz,
+						cBubble.rad, window);
+			} catch (final Throwable e) {
+				System.out.println("ERROR - Bubble : " + cBubble
+						+ " has crashed, proceed carefully!");
+				e.printStackTrace();
+				synchronized (this) {
+					fillError = e;
+				}
+			}
+			synchronized (this) {
+				visitCells(window, null, -1);
+				runningBubbles--;
+				completedBubbles++;
+				if (window.wasClipped)
+					clippedBubbles++;
 				System.out.println("BF Finished:"
 						+ StrRatio(System.currentTimeMillis() - ist, 1000)
-						+ ":, " + core + " @ <" + pendingBubbles() + ","
+						+ ":, " + Thread.currentThread().getName() + " @ <"
+						+ (lookAhead.size() + seedQueue.size()) + ","
 						+ cBubble + ">");
+				dispatch();
+				if (fillError != null)
+					notifyAll();
 			}
-
 		}
 	}
 
@@ -269,18 +525,6 @@ public class DistLabel extends BaseTIPLPluginIO {
 
 		}
 
-		public SeedList allButFirst() {
-			final SeedList newOut = new SeedList(overlapLimit);
-			boolean isFirst = true;
-			for (final SeedLabel curSeed : sl) {
-				if (!isFirst)
-					newOut.append(curSeed);
-				else
-					isFirst = false;
-			}
-			return newOut;
-		}
-
 		protected void append(final SeedLabel newSeed) {
 			sl.add(newSeed);
 		}
@@ -354,6 +598,17 @@ public class DistLabel extends BaseTIPLPluginIO {
 	/** Voxels to remove the border **/
 	public static final int OUTERSHELL = 2;
 	public static final int MAXOVERLAP = 40;
+	/** Size of the cells in the grid used to find overlapping bubbles **/
+	protected int gridCell = 8;
+	/**
+	 * Bubbles fill at most claimFactor times their radius from their center
+	 * (in each direction), bubbles which are further apart are filled at the
+	 * same time. With 0 or less (the default) every bubble can fill the whole
+	 * image, they are filled one at a time and the labels are the same as
+	 * filling the seed list in order. A limit changes the labels of bubbles
+	 * which would have grown past it.
+	 **/
+	protected double claimFactor = 0;
 
 	private final boolean DISTGROW = true;
 	/** The value for T_Grow **/
@@ -372,9 +627,8 @@ public class DistLabel extends BaseTIPLPluginIO {
 	final private boolean useLaplacian = false;
 
 	SeedList startSeedList;
-	int remVoxels = aimLength;
-	int totalVoxels = aimLength;
-	protected double lcAvg = 0;
+	long remVoxels = aimLength;
+	long totalVoxels = aimLength;
 
 	protected DistLabel() {
 		
@@ -454,84 +708,111 @@ public class DistLabel extends BaseTIPLPluginIO {
 	}
 
 	@Override
-	public boolean execute() {
+	public ArgumentParser setParameter(final ArgumentParser p,
+			final String prefix) {
+		gridCell = p.getOptionInt(prefix + "gridcell", gridCell,
+				"Size of the cells in the grid used to find overlapping bubbles");
+		claimFactor = p.getOptionDouble(prefix + "claimfactor", claimFactor,
+				"Bubbles fill at most this many radii from their center so bubbles further apart can be filled in parallel, bubbles which grow past it are clipped (0 or less is unlimited and sequential)");
+		return p;
+	}
 
-		final int nCores = neededCores();
-		// Identify local maxima regions
+	/**
+	 * The box a bubble can read or fill (all bounds are included): the
+	 * center of a bubble moves to the largest distance inside of it until it
+	 * stops changing, this only depends on the distance map so every sphere
+	 * on the way is included, and around the final center the box reaches
+	 * claimFactor times the final radius
+	 */
+	protected int[] bubbleReach(final SeedLabel cBubble) {
+		int xmax = cBubble.cx, ymax = cBubble.cy, zmax = cBubble.cz;
+		double cMaxVal = cBubble.rad;
+		double nDist = cMaxVal;
+		int nxi = xmax, nyi = ymax, nzi = zmax;
+		final int[] reach = new int[] { xmax, ymax, zmax, xmax, ymax, zmax };
+		boolean changedPos = true;
+		// the same search as fillBubble
+		while (changedPos) {
+			changedPos = false;
+			reach[0] = min(reach[0], (int) Math.floor(xmax - cMaxVal));
+			reach[1] = min(reach[1], (int) Math.floor(ymax - cMaxVal));
+			reach[2] = min(reach[2], (int) Math.floor(zmax - cMaxVal));
+			reach[3] = max(reach[3], (int) Math.ceil(xmax + cMaxVal));
+			reach[4] = max(reach[4], (int) Math.ceil(ymax + cMaxVal));
+			reach[5] = max(reach[5], (int) Math.ceil(zmax + cMaxVal));
+			final int tlowx = max(xmax - cMaxVal, lowx);
+			final int tlowy = max(ymax - cMaxVal, lowy);
+			final int tlowz = max(zmax - cMaxVal, lowz);
+			final int tuppx = min(xmax + cMaxVal, uppx);
+			final int tuppy = min(ymax + cMaxVal, uppy);
+			final int tuppz = min(zmax + cMaxVal, uppz);
+			for (int z = tlowz; z < tuppz; z++) {
+				final double zd = (zmax - z) * (zmax - z);
+				for (int y = tlowy; y < tuppy; y++) {
+					final double yd = (ymax - y) * (ymax - y);
+					int off = (z * dim.y + y) * dim.x + tlowx;
+					for (int x = tlowx; x < tuppx; x++, off++) {
+						if ((Math.sqrt((xmax - x) * (xmax - x) + yd + zd) < cMaxVal)
+								&& ((distScalar * distmap[off]) > nDist)) {
+							nDist = (distScalar * distmap[off]);
+							nxi = x;
+							nyi = y;
+							nzi = z;
+							changedPos = true;
+						}
+					}
+				}
+			}
+			if (changedPos) {
+				xmax = nxi;
+				ymax = nyi;
+				zmax = nzi;
+				cMaxVal = nDist;
+			}
+		}
+		if (claimFactor <= 0)
+			return new int[] { lowx, lowy, lowz, uppx - 1, uppy - 1, uppz - 1 };
+		final double claimReach = claimFactor * cMaxVal + 1;
+		reach[0] = min(reach[0], (int) Math.floor(xmax - claimReach));
+		reach[1] = min(reach[1], (int) Math.floor(ymax - claimReach));
+		reach[2] = min(reach[2], (int) Math.floor(zmax - claimReach));
+		reach[3] = max(reach[3], (int) Math.ceil(xmax + claimReach));
+		reach[4] = max(reach[4], (int) Math.ceil(ymax + claimReach));
+		reach[5] = max(reach[5], (int) Math.ceil(zmax + claimReach));
+		return reach;
+	}
 
-		// Run loop to make bubbles
+	/**
+	 * Fill the bubbles one at a time in the order of the seed list with the
+	 * whole image as window, the way they were filled before the
+	 * BubbleScheduler (the scheduler has to give the same labels with the
+	 * default claimFactor)
+	 * 
+	 * @return the last label used plus one
+	 */
+	protected int fillSequentially() {
 		int clabel = 1;
-
-		Thread.currentThread();
-		jStartTime = System.currentTimeMillis();
-		final bubbleFiller[] bfArray = new bubbleFiller[neededCores()];
-
-		// Call the other threads
-
-		for (int i = 0; i < nCores; i++) {
-			bfArray[i] = new bubbleFiller(this, i);
-			bfArray[i].start();
-		}
 		for (final SeedLabel cBubble : startSeedList.sl) {
 			final int toff = (cBubble.cz * dim.y + cBubble.cy) * dim.x
 					+ cBubble.cx;
 			if (diffmask[toff]) {
 				cBubble.label = clabel;
-
-				int mcore = matchCore(bfArray, cBubble);
-				if (mcore < 0)
-					mcore = lightestCore(bfArray);
-				if (mcore < 0) {
-					throw new IllegalArgumentException("ERROR - No Filler Threads Available?? ");
-				}
-				bfArray[mcore].addBubble(cBubble);
-				final int cbcnt = bfArray[mcore].pendingBubbles();
-				if (cbcnt > 15) {
-					try {
-						lightestCore(bfArray, true);
-						int tsteps = 0;
-						while (bfArray[mcore].pendingBubbles() > 5) {
-							Thread.sleep(200);
-							tsteps++;
-							if (tsteps % 50 == 0)
-								lightestCore(bfArray, true); // Every 10s say
-																// something
-						}
-						System.out.println((cbcnt - bfArray[mcore]
-								.pendingBubbles())
-								/ (0.2 * tsteps)
-								+ " bubbles per second on " + bfArray[mcore]);
-					} catch (final InterruptedException e) {
-						System.out
-								.println("ERROR - MainTHREAD was interrupted, proceed carefully!");
-					}
-				}
-
-				/**
-				 * while (!isCoreFree(bfArray,curCore)) { curCore++; if
-				 * (curCore>=neededCores) { curCore=0; //myThread.sleep(10);
-				 * myThread.yield(); } }
-				 **/
-
+				fillBubble(clabel, cBubble.cx, cBubble.cy, cBubble.cz,
+						cBubble.rad);
 				clabel++;
 			}
 		}
-		// Wind down
-		System.out.println("Winding Down Cores...");
-		/** don't wait for new bubbles **/
-		for (int i = 0; i < nCores; i++)
-			bfArray[i].isHovering = false;
-		for (int i = 0; i < nCores; i++) {
-			if (bfArray[i] != null) {
-				try {
-					System.out.println("Joining " + bfArray[i]);
-					bfArray[i].join(); // wait until thread has finished
-				} catch (final InterruptedException e) {
-					System.out.println("ERROR - Thread : " + bfArray[i]
-							+ " was interrupted, proceed carefully!");
-				}
-			}
-		}
+		return clabel;
+	}
+
+	@Override
+	public boolean execute() {
+
+		final int nCores = neededCores();
+		jStartTime = System.currentTimeMillis();
+		// Run loop to make bubbles
+		final int clabel = new BubbleScheduler(startSeedList, nCores).run();
+
 		final String outString = "BubbleFiller: Ran in "
 				+ StrRatio(System.currentTimeMillis() - jStartTime, 1000)
 				+ " seconds on " + nCores + " cores";
@@ -587,8 +868,19 @@ public class DistLabel extends BaseTIPLPluginIO {
 		}
 	}
 
+	protected void fillBubble(final int clabel, final int xmax,
+			final int ymax, final int zmax, final double cMaxVal) {
+		fillBubble(clabel, xmax, ymax, zmax, cMaxVal, new FillWindow());
+	}
+
+	/**
+	 * Fill the bubble without reading or writing any voxels outside of the
+	 * window, so bubbles with windows which do not overlap can be filled at
+	 * the same time. The window is enlarged (if possible) when the bubble
+	 * grows past it, the windows of the scheduler cannot be enlarged.
+	 */
 	protected void fillBubble(final int clabel, int xmax, int ymax, int zmax,
-			double cMaxVal) {
+			double cMaxVal, final FillWindow window) {
 
 		int off;
 		int bubbleSize = 0;
@@ -604,12 +896,12 @@ public class DistLabel extends BaseTIPLPluginIO {
 		int nxi, nyi, nzi;
 		int tlowx, tlowy, tlowz, tuppx, tuppy, tuppz;
 		// Initial Values
-		tlowx = max(xmax - cMaxVal, lowx);
-		tlowy = max(ymax - cMaxVal, lowy);
-		tlowz = max(zmax - cMaxVal, lowz);
-		tuppx = min(xmax + cMaxVal, uppx);
-		tuppy = min(ymax + cMaxVal, uppy);
-		tuppz = min(zmax + cMaxVal, uppz);
+		tlowx = max(xmax - cMaxVal, window.x0);
+		tlowy = max(ymax - cMaxVal, window.y0);
+		tlowz = max(zmax - cMaxVal, window.z0);
+		tuppx = min(xmax + cMaxVal, window.x1);
+		tuppy = min(ymax + cMaxVal, window.y1);
+		tuppz = min(zmax + cMaxVal, window.z1);
 		// Movable Values
 		double startX, startY, startZ, startR;
 		startX = xmax;
@@ -628,12 +920,19 @@ public class DistLabel extends BaseTIPLPluginIO {
 			selfVox = 0;
 			changedPos = false;
 
-			tlowx = max(xmax - cMaxVal, lowx);
-			tlowy = max(ymax - cMaxVal, lowy);
-			tlowz = max(zmax - cMaxVal, lowz);
-			tuppx = min(xmax + cMaxVal, uppx);
-			tuppy = min(ymax + cMaxVal, uppy);
-			tuppz = min(zmax + cMaxVal, uppz);
+			window.cover((int) Math.floor(xmax - cMaxVal),
+					(int) Math.floor(ymax - cMaxVal),
+					(int) Math.floor(zmax - cMaxVal),
+					(int) Math.ceil(xmax + cMaxVal),
+					(int) Math.ceil(ymax + cMaxVal),
+					(int) Math.ceil(zmax + cMaxVal));
+
+			tlowx = max(xmax - cMaxVal, window.x0);
+			tlowy = max(ymax - cMaxVal, window.y0);
+			tlowz = max(zmax - cMaxVal, window.z0);
+			tuppx = min(xmax + cMaxVal, window.x1);
+			tuppy = min(ymax + cMaxVal, window.y1);
+			tuppz = min(zmax + cMaxVal, window.z1);
 
 			for (int z = tlowz; z < tuppz; z++) {
 				final double zd = (zmax - z) * (zmax - z);
@@ -676,12 +975,12 @@ public class DistLabel extends BaseTIPLPluginIO {
 					zmax = (int) startZ;
 					cMaxVal = startR;
 				}
-				tlowx = max(xmax - cMaxVal, lowx);
-				tlowy = max(ymax - cMaxVal, lowy);
-				tlowz = max(zmax - cMaxVal, lowz);
-				tuppx = min(xmax + cMaxVal, uppx);
-				tuppy = min(ymax + cMaxVal, uppy);
-				tuppz = min(zmax + cMaxVal, uppz);
+				tlowx = max(xmax - cMaxVal, window.x0);
+				tlowy = max(ymax - cMaxVal, window.y0);
+				tlowz = max(zmax - cMaxVal, window.z0);
+				tuppx = min(xmax + cMaxVal, window.x1);
+				tuppy = min(ymax + cMaxVal, window.y1);
+				tuppz = min(zmax + cMaxVal, window.z1);
 				for (int z = tlowz; z < tuppz; z++) {
 					final double zd = (zmax - z) * (zmax - z);
 					for (int y = tlowy; y < tuppy; y++) {
@@ -706,12 +1005,12 @@ public class DistLabel extends BaseTIPLPluginIO {
 					+ " silenced vx");
 		} else {
 
-			tlowx = max(xmax - cMaxVal, lowx);
-			tlowy = max(ymax - cMaxVal, lowy);
-			tlowz = max(zmax - cMaxVal, lowz);
-			tuppx = min(xmax + cMaxVal, uppx);
-			tuppy = min(ymax + cMaxVal, uppy);
-			tuppz = min(zmax + cMaxVal, uppz);
+			tlowx = max(xmax - cMaxVal, window.x0);
+			tlowy = max(ymax - cMaxVal, window.y0);
+			tlowz = max(zmax - cMaxVal, window.z0);
+			tuppx = min(xmax + cMaxVal, window.x1);
+			tuppy = min(ymax + cMaxVal, window.y1);
+			tuppz = min(zmax + cMaxVal, window.z1);
 
 			for (int z = tlowz; z < tuppz; z++) {
 				final double zd = (zmax - z) * (zmax - z);
@@ -769,19 +1068,19 @@ public class DistLabel extends BaseTIPLPluginIO {
 
 								boolean distMatch = false;
 								if (mask[off]) {// Eligble empty voxel
-									for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
-											z + neighborSize.z, uppz - 1); z2++) {
+									for (int z2 = max(z - neighborSize.z, window.z0); z2 <= min(
+											z + neighborSize.z, window.z1 - 1); z2++) {
 										for (int y2 = max(y - neighborSize.y,
-												lowy); y2 <= min(y
-												+ neighborSize.y, uppy - 1); y2++) {
+												window.y0); y2 <= min(y
+												+ neighborSize.y, window.y1 - 1); y2++) {
 											int off2 = (z2 * dim.y + y2)
 													* dim.x
 													+ max(x - neighborSize.x,
-															lowx);
+															window.x0);
 											for (int x2 = max(x
-													- neighborSize.x, lowx); x2 <= min(
+													- neighborSize.x, window.x0); x2 <= min(
 													x + neighborSize.x,
-													uppx - 1); x2++, off2++) {
+													window.x1 - 1); x2++, off2++) {
 												if ((off != off2)
 														&& (!distMatch)) {
 													totalVoxels++;
@@ -861,12 +1160,14 @@ public class DistLabel extends BaseTIPLPluginIO {
 										labels[off] = clabel;
 										unfilledVox--;
 										mask[off] = false;
-										tlowx = min(tlowx, max(x - 1, lowx));
-										tlowy = min(tlowy, max(y - 1, lowy));
-										tlowz = min(tlowz, max(z - 1, lowz));
-										tuppx = max(tuppx, min(x + 1, uppx));
-										tuppy = max(tuppy, min(y + 1, uppy));
-										tuppz = max(tuppz, min(z + 1, uppz));
+										window.cover(x - 1, y - 1, z - 1,
+												x + 1, y + 1, z + 1);
+										tlowx = min(tlowx, max(x - 1, window.x0));
+										tlowy = min(tlowy, max(y - 1, window.y0));
+										tlowz = min(tlowz, max(z - 1, window.z0));
+										tuppx = max(tuppx, min(x + 1, window.x1));
+										tuppy = max(tuppy, min(y + 1, window.y1));
+										tuppz = max(tuppz, min(z + 1, window.z1));
 										changes++;
 										bubbleSize++;
 									}
@@ -903,8 +1204,8 @@ public class DistLabel extends BaseTIPLPluginIO {
 			return;
 		}
 
-		labels = new int[aimLength];
-		diffmask = new boolean[aimLength];
+		labels = new int[arrayLength()];
+		diffmask = new boolean[arrayLength()];
 
 		InitDims(idim, ioffset);
 
@@ -953,55 +1254,6 @@ public class DistLabel extends BaseTIPLPluginIO {
 		procLog += outString + "\n";
 	}
 
-	/** depreciated scheme for old threading **/
-	@Deprecated
-	protected boolean isCoreFree(final bubbleFiller[] coreArray,
-			final int coreIndex) {
-		if (coreArray[coreIndex] != null) {
-			return (coreArray[coreIndex].isFinished);
-		} else
-			return true;
-	}
-
-	@Deprecated
-	protected int lightestCore(final bubbleFiller[] coreArray) {
-		return lightestCore(coreArray, false);
-	}
-
-	@Deprecated
-	protected int lightestCore(final bubbleFiller[] coreArray,
-			final boolean printStatus) {
-		int lcore = -1;
-		int ljobs = 0;
-		double lcSum = 0;
-		int lcCount = 0;
-		final String startString = "<Core,CurrentLoad,TotalLoad>:";
-		String statusString = "";
-		for (int i = 0; i < coreArray.length; i++) {
-			if (coreArray[i] != null) {
-				final int pbubs = coreArray[i].pendingBubbles();
-				if (lcore < 0) {
-					lcore = i;
-					ljobs = pbubs;
-				}
-				if (pbubs < ljobs) {
-					lcore = i;
-					ljobs = pbubs;
-				}
-				lcSum += ljobs;
-				lcCount++;
-				if (printStatus)
-					statusString += "<" + i + "," + pbubs + ","
-							+ coreArray[i].completedBubbles + ">,";
-			}
-		}
-		lcAvg = lcSum / lcCount;
-		if (printStatus)
-			System.out.println(startString + "AVG-" + ((int) Math.round(lcAvg))
-					+ ":" + statusString);
-		return lcore;
-	}
-
 	/**
 	 * LoadAimData provides a single function which all of the other function
 	 * funnel into, it handles copying the data and setting up the needed
@@ -1013,8 +1265,8 @@ public class DistLabel extends BaseTIPLPluginIO {
 				.getIntAim();
 		aimLength = inputmap.length;
 		if (BaseTIPLPluginIn.doPreserveInput) {
-			distmap = new int[aimLength];
-			System.arraycopy(inputmap, 0, distmap, 0, aimLength);
+			distmap = new int[inputmap.length];
+			System.arraycopy(inputmap, 0, distmap, 0, inputmap.length);
 		} else {
 			distmap = inputmap;
 		}
@@ -1030,10 +1282,10 @@ public class DistLabel extends BaseTIPLPluginIO {
 				.getBoolAim();
 		aimLength = inputmap.length;
 		if (BaseTIPLPluginIn.doPreserveInput) {
-			distmap = new int[aimLength];
-			System.arraycopy(inputmap, 0, distmap, 0, aimLength);
-			mask = new boolean[aimLength];
-			System.arraycopy(inputmask, 0, mask, 0, aimLength);
+			distmap = new int[inputmap.length];
+			System.arraycopy(inputmap, 0, distmap, 0, inputmap.length);
+			mask = new boolean[inputmask.length];
+			System.arraycopy(inputmask, 0, mask, 0, inputmask.length);
 		} else {
 			distmap = inputmap;
 			mask = inputmask;
@@ -1231,18 +1483,6 @@ public class DistLabel extends BaseTIPLPluginIO {
 
 	}
 
-	@Deprecated
-	protected int matchCore(final bubbleFiller[] coreArray,
-			final SeedLabel nBubble) {
-		// lightestCore(coreArray);
-		for (int i = 0; i < coreArray.length; i++) {
-			if (coreArray[i] != null)
-				if (coreArray[i].doesOverlap(nBubble))
-					return i;
-		}
-		return -1;
-	}
-
 	@Override
 	public int wantedCores() {
 		return dim.z / 2;
@@ -16,7 +16,7 @@ public class EasyContour extends BaseTIPLPluginBW {
     @TIPLPluginManager.PluginInfo(pluginType = "EasyContour",
             desc = "Full memory easy contouring",
             sliceBased = false,
-            maximumSize = 1024 * 1024 * 1024)
+            maximumSize = -1)
     final public static class ecFactory implements TIPLPluginManager.TIPLPluginFactory {
         @Override
         public ITIPLPlugin get() {
@@ -162,7 +162,10 @@ public class EasyContour extends BaseTIPLPluginBW {
 
         cContour.vacuumDist = vacuumDist;
 
-        int off = 0;
+        long off = 0;
+        // the words at the ends of the slab are shared with the neighboring threads
+        final long slabStart = outAim.index(0, 0, bSlice);
+        final long slabEnd = outAim.index(0, 0, tSlice);
         int middleZ = bSlice;
         while (middleZ < tSlice) {
             cContour.innerContourMode = false;
@@ -174,9 +177,9 @@ public class EasyContour extends BaseTIPLPluginBW {
             if (cContour.needsVoxels()) {
                 for (int z = startZ; z <= finalZ; z++) {
                     for (int y = lowy; y < uppy; y++) {
-                        off = (z * dim.y + y) * dim.x + lowx;
+                        off = inAim.index(lowx, y, z);
                         for (int x = lowx; x < uppx; x++, off++) {
-                            if (inAim[off])
+                            if (inAim.get(off))
                                 cContour.addVox(x, y);
                         }
                     }
@@ -189,12 +192,12 @@ public class EasyContour extends BaseTIPLPluginBW {
                     System.out.println(z + " of " + uppz + ": " + cContour);
 
                 for (int y = lowy; y < uppy; y++) {
-                    off = (z * dim.y + y) * dim.x + lowx;
+                    off = inAim.index(lowx, y, z);
                     for (int x = lowx; x < uppx; x++, off++) {
                         if (cContour.isInside(x, y))
-                            outAim[off] = true;
+                            outAim.set(off, true, slabStart, slabEnd);
                         else
-                            outAim[off] = false;
+                            outAim.set(off, false, slabStart, slabEnd);
                     }
                 }
             }
@@ -209,11 +212,11 @@ public class EasyContour extends BaseTIPLPluginBW {
                         System.out.println(z + " of " + uppz + ": ic-"
                                 + cContour);
                     for (int y = lowy; y < uppy; y++) {
-                        off = (z * dim.y + y) * dim.x + lowx;
+                        off = inAim.index(lowx, y, z);
                         for (int x = lowx; x < uppx; x++, off++) {
-                            if (outAim[off]) {
+                            if (outAim.get(off)) {
                                 if (!cContour.isInside(x, y))
-                                    outAim[off] = false;
+                                    outAim.set(off, false, slabStart, slabEnd);
                             }
                         }
                     }
@@ -0,0 +1,291 @@
+package tipl.tools;
+
+import tipl.util.D3int;
+import tipl.util.TIPLGlobal;
+
+/**
+ * A simple pure-java fast fourier transform of real 3D volumes stored in a single float array.
+ * Each row (along x) of nx values is padded to rowLength(nx) floats so the nx/2+1 complex
+ * values of its transform (the rest follows from the symmetry of the transform of a real
+ * signal) fit in place as interleaved real and imaginary parts, the element x,y,z is at
+ * (z*ny+y)*rowLength(nx)+x. Every side must be a product of 2, 3 and 5 (see nextSmooth), the
+ * transform is done one axis at a time with a mixed radix transform on each line (computed in
+ * double precision) and the lines are divided among the cores.
+ *
+ * @author mader
+ */
+public class FFT3D {
+    /**
+     * the smallest number greater than or equal to n which only has the factors 2, 3 and 5
+     */
+    public static int nextSmooth(final int n) {
+        for (int out = Math.max(n, 1); ; out++) {
+            int rest = out;
+            for (final int f : new int[]{2, 3, 5})
+                while (rest % f == 0) rest /= f;
+            if (rest == 1) return out;
+        }
+    }
+
+    /**
+     * the number of floats in each row of a volume with nx values per row
+     */
+    public static int rowLength(final int nx) {
+        return 2 * (nx / 2 + 1);
+    }
+
+    /**
+     * the number of floats needed for a volume of the given size
+     */
+    public static int arrayLength(final D3int size) {
+        final long outLength = ((long) rowLength(size.x)) * size.y * size.z;
+        if (outLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("FFT3D: volume " + size + " is too large for an array");
+        return (int) outLength;
+    }
+
+    /**
+     * Transform a real volume in place into the first half of its spectrum
+     *
+     * @param data  the volume (arrayLength(size) floats)
+     * @param size  size of the volume (each side must only have the factors 2, 3 and 5)
+     * @param cores number of threads to use
+     */
+    public static void realForward(final float[] data, final D3int size, final int cores) {
+        transform(data, size, false, cores);
+    }
+
+    /**
+     * The inverse of realForward (including the 1/N scaling), the spectrum is replaced by the
+     * real volume
+     */
+    public static void realInverse(final float[] data, final D3int size, final int cores) {
+        transform(data, size, true, cores);
+    }
+
+    protected static void transform(final float[] data, final D3int size, final boolean inverse,
+                                    final int cores) {
+        final int nx = size.x, ny = size.y, nz = size.z;
+        if ((nextSmooth(nx) != nx) || (nextSmooth(ny) != ny) || (nextSmooth(nz) != nz))
+            throw new IllegalArgumentException("FFT3D: sides must only have the factors 2, 3 and 5: " + size);
+        if (data.length != arrayLength(size))
+            throw new IllegalArgumentException("FFT3D: array length does not match size " + size);
+        final int rx = rowLength(nx), hx = nx / 2 + 1;
+        final long sliceLength = ((long) rx) * ny;
+        final double scale = 1.0 / size.prod();
+        // x and y lines are within a single slice
+        final TIPLGlobal.BlockOp slicePass = new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final LineFFT xFFT = new LineFFT(nx, inverse);
+                final LineFFT yFFT = new LineFFT(ny, inverse);
+                for (int z = start; z < end; z++) {
+                    final int sliceStart = (int) (z * sliceLength);
+                    if (!inverse)
+                        for (int y = 0; y < ny; y++) xFFT.runReal(data, sliceStart + y * rx);
+                    for (int x = 0; x < hx; x++) yFFT.run(data, sliceStart + 2 * x, rx);
+                    if (inverse)
+                        for (int y = 0; y < ny; y++)
+                            xFFT.runRealInverse(data, sliceStart + y * rx, scale);
+                }
+            }
+        };
+        // z lines are divided by rows
+        final TIPLGlobal.BlockOp zPass = new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final LineFFT zFFT = new LineFFT(nz, inverse);
+                for (int y = start; y < end; y++)
+                    for (int x = 0; x < hx; x++) zFFT.run(data, y * rx + 2 * x, (int) sliceLength);
+            }
+        };
+        if (inverse) {
+            TIPLGlobal.runBlocks(cores, 0, ny, zPass);
+            TIPLGlobal.runBlocks(cores, 0, nz, slicePass);
+        } else {
+            TIPLGlobal.runBlocks(cores, 0, nz, slicePass);
+            TIPLGlobal.runBlocks(cores, 0, ny, zPass);
+        }
+    }
+
+    /**
+     * A self-sorting (Stockham) mixed radix transform of a single line with the factors, the
+     * twiddle factors and the buffers prepared once, the line is copied into the buffers
+     */
+    protected static class LineFFT {
+        final int n;
+        final double sign;
+        final int[] factors;
+        /**
+         * exp(sign*2*pi*i*t/n)
+         */
+        final double[] cosTable;
+        final double[] sinTable;
+        double[] bufRe, bufIm, tmpRe, tmpIm;
+
+        public LineFFT(final int n, final boolean inverse) {
+            this.n = n;
+            sign = inverse ? 1 : -1;
+            int rest = n, count = 0;
+            final int[] cFactors = new int[32];
+            while (rest % 4 == 0) {
+                cFactors[count++] = 4;
+                rest /= 4;
+            }
+            for (final int f : new int[]{2, 3, 5})
+                while (rest % f == 0) {
+                    cFactors[count++] = f;
+                    rest /= f;
+                }
+            factors = new int[count];
+            System.arraycopy(cFactors, 0, factors, 0, count);
+            cosTable = new double[n];
+            sinTable = new double[n];
+            for (int t = 0; t < n; t++) {
+                cosTable[t] = Math.cos(2 * Math.PI * t / n);
+                sinTable[t] = sign * Math.sin(2 * Math.PI * t / n);
+            }
+            bufRe = new double[n];
+            bufIm = new double[n];
+            tmpRe = new double[n];
+            tmpIm = new double[n];
+        }
+
+        /**
+         * transform the complex line with interleaved values at start, start+stride, ...
+         */
+        public void run(final float[] data, final int start, final int stride) {
+            for (int i = 0, off = start; i < n; i++, off += stride) {
+                bufRe[i] = data[off];
+                bufIm[i] = data[off + 1];
+            }
+            transform();
+            for (int i = 0, off = start; i < n; i++, off += stride) {
+                data[off] = (float) bufRe[i];
+                data[off + 1] = (float) bufIm[i];
+            }
+        }
+
+        /**
+         * replace the n real values of the row at start with the first n/2+1 complex values of
+         * their transform
+         */
+        public void runReal(final float[] data, final int start) {
+            for (int i = 0; i < n; i++) {
+                bufRe[i] = data[start + i];
+                bufIm[i] = 0;
+            }
+            transform();
+            for (int k = 0; k <= n / 2; k++) {
+                data[start + 2 * k] = (float) bufRe[k];
+                data[start + 2 * k + 1] = (float) bufIm[k];
+            }
+        }
+
+        /**
+         * the opposite of runReal, the rest of the spectrum is the complex conjugate of the
+         * first half and the real values are multiplied by scale
+         */
+        public void runRealInverse(final float[] data, final int start, final double scale) {
+            for (int k = 0; k <= n / 2; k++) {
+                bufRe[k] = data[start + 2 * k];
+                bufIm[k] = data[start + 2 * k + 1];
+            }
+            for (int k = n / 2 + 1; k < n; k++) {
+                bufRe[k] = bufRe[n - k];
+                bufIm[k] = -bufIm[n - k];
+            }
+            transform();
+            for (int i = 0; i < n; i++) data[start + i] = (float) (bufRe[i] * scale);
+        }
+
+        /**
+         * transform bufRe and bufIm, for every factor r the line is split into r interleaved
+         * parts which are combined with an r point transform and the twiddle factors
+         */
+        protected void transform() {
+            int len = n, stride = 1;
+            double[] srcRe = bufRe, srcIm = bufIm, dstRe = tmpRe, dstIm = tmpIm;
+            final double[] aRe = new double[5], aIm = new double[5];
+            for (final int r : factors) {
+                final int m = len / r;
+                final int tStep = n / len;
+                for (int p = 0; p < m; p++) {
+                    for (int q = 0; q < stride; q++) {
+                        for (int j = 0; j < r; j++) {
+                            aRe[j] = srcRe[q + stride * (p + j * m)];
+                            aIm[j] = srcIm[q + stride * (p + j * m)];
+                        }
+                        butterfly(r, aRe, aIm);
+                        for (int k = 0; k < r; k++) {
+                            final int t = p * k * tStep;
+                            final int dst = q + stride * (r * p + k);
+                            dstRe[dst] = aRe[k] * cosTable[t] - aIm[k] * sinTable[t];
+                            dstIm[dst] = aRe[k] * sinTable[t] + aIm[k] * cosTable[t];
+                        }
+                    }
+                }
+                stride *= r;
+                len = m;
+                double[] swap = srcRe;
+                srcRe = dstRe;
+                dstRe = swap;
+                swap = srcIm;
+                srcIm = dstIm;
+                dstIm = swap;
+            }
+            if (srcRe != bufRe) {
+                tmpRe = bufRe;
+                tmpIm = bufIm;
+                bufRe = srcRe;
+                bufIm = srcIm;
+            }
+        }
+
+        /**
+         * the r point transform of a in place
+         */
+        protected void butterfly(final int r, final double[] aRe, final double[] aIm) {
+            switch (r) {
+                case 2: {
+                    final double tRe = aRe[0] - aRe[1], tIm = aIm[0] - aIm[1];
+                    aRe[0] += aRe[1];
+                    aIm[0] += aIm[1];
+                    aRe[1] = tRe;
+                    aIm[1] = tIm;
+                    return;
+                }
+                case 4: {
+                    final double s0Re = aRe[0] + aRe[2], s0Im = aIm[0] + aIm[2];
+                    final double d0Re = aRe[0] - aRe[2], d0Im = aIm[0] - aIm[2];
+                    final double s1Re = aRe[1] + aRe[3], s1Im = aIm[1] + aIm[3];
+                    // (a1-a3) times exp(sign*i*pi/2)
+                    final double d1Re = -sign * (aIm[1] - aIm[3]), d1Im = sign * (aRe[1] - aRe[3]);
+                    aRe[0] = s0Re + s1Re;
+                    aIm[0] = s0Im + s1Im;
+                    aRe[1] = d0Re + d1Re;
+                    aIm[1] = d0Im + d1Im;
+                    aRe[2] = s0Re - s1Re;
+                    aIm[2] = s0Im - s1Im;
+                    aRe[3] = d0Re - d1Re;
+                    aIm[3] = d0Im - d1Im;
+                    return;
+                }
+                default: {
+                    // 3 and 5 as a direct sum with the roots from the table
+                    final double[] oRe = new double[r], oIm = new double[r];
+                    final int rStep = n / r;
+                    for (int k = 0; k < r; k++) {
+                        for (int j = 0; j < r; j++) {
+                            final int t = ((j * k) % r) * rStep;
+                            oRe[k] += aRe[j] * cosTable[t] - aIm[j] * sinTable[t];
+                            oIm[k] += aRe[j] * sinTable[t] + aIm[j] * cosTable[t];
+                        }
+                    }
+                    System.arraycopy(oRe, 0, aRe, 0, r);
+                    System.arraycopy(oIm, 0, aIm, 0, r);
+                }
+            }
+        }
+    }
+}
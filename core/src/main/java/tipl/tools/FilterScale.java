@@ -5,6 +5,8 @@ import tipl.formats.TImgRO;
 import tipl.settings.FilterSettings;
 import tipl.util.*;
 
+import java.util.Arrays;
+
 /**
  * A plugin to rescale and/or filter Aim files
  * 
@@ -86,6 +88,10 @@ public class FilterScale extends BaseTIPLPluginMult implements FilterSettings.Ha
 	protected int off = 0;
 
 	public boolean supportsThreading = true;
+	/** precomputed weights for the separable filter (null when the full window is used) */
+	protected SeparableAxis sepX = null;
+	protected SeparableAxis sepY = null;
+	protected SeparableAxis sepZ = null;
 
 	protected FilterScale() {
 		
@@ -295,7 +301,10 @@ public class FilterScale extends BaseTIPLPluginMult implements FilterSettings.Ha
 		final int[] range = (int[]) currentWork;
 		final int bSlice = range[0];
 		final int tSlice = range[1];
-		runFilter(bSlice, tSlice);
+		if (sepZ != null)
+			runSeparableFilter(bSlice, tSlice);
+		else
+			runFilter(bSlice, tSlice);
 	}
 	
 	@Override
@@ -311,6 +320,17 @@ public class FilterScale extends BaseTIPLPluginMult implements FilterSettings.Ha
 				+ dn.z + ")");
 		CalcOutDim();
 		AllocateDim();
+		if (curSettings.isSeparable()) {
+			final boolean isGauss = curSettings.filterType == FilterSettings.GAUSSIAN;
+			final D3int sigma = curSettings.filterSigma;
+			sepX = new SeparableAxis(odim.x, up.x, dn.x, lowx, uppx, sigma.x, isGauss);
+			sepY = new SeparableAxis(odim.y, up.y, dn.y, lowy, uppy, sigma.y, isGauss);
+			sepZ = new SeparableAxis(odim.z, up.z, dn.z, lowz, uppz, sigma.z, isGauss);
+		} else {
+			sepX = null;
+			sepY = null;
+			sepZ = null;
+		}
 		runMulticore();
 		runCount++;
 		String filterNameOut = "NearestNeighbor";
@@ -506,6 +526,256 @@ public class FilterScale extends BaseTIPLPluginMult implements FilterSettings.Ha
 
 	}
 
+	/**
+	 * The weights for filtering along one axis. For every output position the window in the input
+	 * is the same as runFilter uses and the Gaussian weight of a voxel is the product of the weights
+	 * along each axis, so normalizing each axis separately gives the same result as the 3D window
+	 */
+	protected static class SeparableAxis {
+		/** the first input position for each output position */
+		final int[] start;
+		/** normalized weights for each output position (empty if the window is empty) */
+		final float[][] weights;
+		/** the range of input positions used by any output position */
+		final int minInput, maxInput;
+
+		public SeparableAxis(final int outLength, final int up, final int dn,
+				final int low, final int upp, final int sigma, final boolean isGauss) {
+			start = new int[outLength];
+			weights = new float[outLength][];
+			int cMin = upp, cMax = low;
+			for (int o = 0; o < outLength; o++) {
+				// same interpolation as runFilter
+				final float ipos = (dn + 0.0f) / (up + 0.0f) * o;
+				final int ilow = max(low, (int) Math.floor(ipos - dn));
+				final int iupp = min((int) Math.ceil(ipos + dn), upp);
+				start[o] = ilow;
+				if (iupp <= ilow) {
+					weights[o] = new float[0];
+					continue;
+				}
+				final double[] cWeights = new double[iupp - ilow];
+				double wSum = 0;
+				for (int i = ilow; i < iupp; i++) {
+					final double cDist = (i - (double) ipos) / sigma;
+					cWeights[i - ilow] = isGauss ? Math.exp(-cDist * cDist) : 1.0;
+					wSum += cWeights[i - ilow];
+				}
+				weights[o] = new float[cWeights.length];
+				if (wSum > 0) for (int i = 0; i < cWeights.length; i++)
+					weights[o][i] = (float) (cWeights[i] / wSum);
+				cMin = min(cMin, ilow);
+				cMax = max(cMax, iupp);
+			}
+			minInput = cMin;
+			maxInput = cMax;
+		}
+
+		/** the first input position needed for the output range */
+		public int firstInput(final int oStart, final int oEnd) {
+			int cMin = maxInput;
+			for (int o = oStart; o < oEnd; o++)
+				if (weights[o].length > 0) cMin = min(cMin, start[o]);
+			return cMin;
+		}
+
+		/** the input position after the last one needed for the output range */
+		public int lastInput(final int oStart, final int oEnd) {
+			int cMax = minInput;
+			for (int o = oStart; o < oEnd; o++)
+				if (weights[o].length > 0) cMax = max(cMax, start[o] + weights[o].length);
+			return cMax;
+		}
+	}
+
+	/**
+	 * Read a slice of the input image as floats
+	 * 
+	 * @param iz
+	 *            slice number
+	 * @param sliceData
+	 *            the array (dim.x*dim.y) to fill
+	 */
+	protected void readInputSlice(final int iz, final float[] sliceData) {
+		final Object inArray;
+		switch (imageType) {
+		case TImgTools.IMAGETYPE_CHAR:
+			inArray = inAimByte;
+			break;
+		case TImgTools.IMAGETYPE_SHORT:
+			inArray = inAimShort;
+			break;
+		case TImgTools.IMAGETYPE_INT:
+			inArray = inAimInt;
+			break;
+		case TImgTools.IMAGETYPE_FLOAT:
+			inArray = inAimFloat;
+			break;
+		case TImgTools.IMAGETYPE_BOOL:
+			inArray = inAimMask;
+			break;
+		default:
+			throw new IllegalArgumentException(getPluginName()
+					+ ": Input type not supported " + imageType);
+		}
+		copyToFloat(inArray, imageType, iz * dim.x * dim.y, sliceData);
+	}
+
+	/**
+	 * Copy part of an array into a float array, the type switch is outside of the loops
+	 * 
+	 * @param inArray
+	 *            the input array
+	 * @param inType
+	 *            the type of the input array
+	 * @param inOffset
+	 *            where to start in the input
+	 * @param outData
+	 *            the output (filled completely)
+	 */
+	protected static void copyToFloat(final Object inArray, final int inType,
+			final int inOffset, final float[] outData) {
+		final int len = outData.length;
+		switch (inType) {
+		case TImgTools.IMAGETYPE_CHAR:
+			final char[] cArray = (char[]) inArray;
+			for (int i = 0; i < len; i++)
+				outData[i] = cArray[inOffset + i];
+			break;
+		case TImgTools.IMAGETYPE_SHORT:
+			final short[] sArray = (short[]) inArray;
+			for (int i = 0; i < len; i++)
+				outData[i] = sArray[inOffset + i];
+			break;
+		case TImgTools.IMAGETYPE_INT:
+			final int[] iArray = (int[]) inArray;
+			for (int i = 0; i < len; i++)
+				outData[i] = iArray[inOffset + i];
+			break;
+		case TImgTools.IMAGETYPE_FLOAT:
+			System.arraycopy(inArray, inOffset, outData, 0, len);
+			break;
+		case TImgTools.IMAGETYPE_BOOL:
+			final boolean[] bArray = (boolean[]) inArray;
+			for (int i = 0; i < len; i++)
+				outData[i] = bArray[inOffset + i] ? 1 : 0;
+			break;
+		default:
+			throw new IllegalArgumentException("Input type not supported " + inType);
+		}
+	}
+
+	/**
+	 * Write a finished output slice in the output type
+	 */
+	protected void writeOutputSlice(final int oz, final float[] sliceData) {
+		final int sliceSize = odim.x * odim.y;
+		final int ooff = oz * sliceSize;
+		switch (curSettings.oimageType) {
+		case TImgTools.IMAGETYPE_CHAR:
+			for (int i = 0; i < sliceSize; i++)
+				outAimByte[ooff + i] = (char) sliceData[i];
+			break;
+		case TImgTools.IMAGETYPE_SHORT:
+			for (int i = 0; i < sliceSize; i++)
+				outAimShort[ooff + i] = (short) sliceData[i];
+			break;
+		case TImgTools.IMAGETYPE_INT:
+			for (int i = 0; i < sliceSize; i++)
+				outAimInt[ooff + i] = (int) sliceData[i];
+			break;
+		case TImgTools.IMAGETYPE_FLOAT:
+			System.arraycopy(sliceData, 0, outAimFloat, ooff, sliceSize);
+			break;
+		case TImgTools.IMAGETYPE_BOOL:
+			for (int i = 0; i < sliceSize; i++)
+				outAimMask[ooff + i] = sliceData[i] >= 0.5;
+			break;
+		}
+	}
+
+	/**
+	 * Run the filter on a portion of the image as separate passes in x, y and z. Every input slice
+	 * needed by the output slices is first filtered in x and y and then the z pass combines them,
+	 * so each voxel costs the sum of the window widths rather than their product
+	 */
+	protected boolean runSeparableFilter(final int bSlice, final int tSlice) {
+		final D3int up = curSettings.upfactor;
+		final D3int dn = curSettings.downfactor;
+		if (supportsThreading)
+			System.out.println("Separable Filter Running -- :<" + bSlice + ","
+					+ tSlice + "> @ " + Thread.currentThread());
+		final long sTime = System.currentTimeMillis();
+		final int zStart = sepZ.firstInput(bSlice, tSlice);
+		final int zEnd = max(zStart, sepZ.lastInput(bSlice, tSlice));
+		final int oSliceSize = odim.x * odim.y;
+
+		final float[] inSlice = new float[dim.x * dim.y];
+		final float[] xSlice = new float[odim.x * dim.y];
+		// the x and y filtered input slices for the z pass
+		final float[][] xySlices = new float[zEnd - zStart][];
+
+		for (int iz = zStart; iz < zEnd; iz++) {
+			readInputSlice(iz, inSlice);
+			// x pass, only the rows which the y pass uses
+			for (int iy = sepY.minInput; iy < sepY.maxInput; iy++) {
+				final int inoff = iy * dim.x;
+				final int xoff = iy * odim.x;
+				for (int ox = 0; ox < odim.x; ox++) {
+					final float[] cWeights = sepX.weights[ox];
+					final int cStart = inoff + sepX.start[ox];
+					double cVal = 0;
+					for (int k = 0; k < cWeights.length; k++)
+						cVal += cWeights[k] * inSlice[cStart + k];
+					xSlice[xoff + ox] = (float) cVal;
+				}
+			}
+			// y pass
+			final float[] xySlice = new float[oSliceSize];
+			for (int oy = 0; oy < odim.y; oy++) {
+				final float[] cWeights = sepY.weights[oy];
+				final int ooff = oy * odim.x;
+				for (int k = 0; k < cWeights.length; k++) {
+					final float cWeight = cWeights[k];
+					final int xoff = (sepY.start[oy] + k) * odim.x;
+					for (int ox = 0; ox < odim.x; ox++)
+						xySlice[ooff + ox] += cWeight * xSlice[xoff + ox];
+				}
+			}
+			xySlices[iz - zStart] = xySlice;
+		}
+
+		// z pass
+		final float[] outSlice = new float[oSliceSize];
+		double outSum = 0.0;
+		for (int oz = bSlice; oz < tSlice; oz++) {
+			Arrays.fill(outSlice, 0);
+			final float[] cWeights = sepZ.weights[oz];
+			for (int k = 0; k < cWeights.length; k++) {
+				final float cWeight = cWeights[k];
+				final float[] xySlice = xySlices[sepZ.start[oz] + k - zStart];
+				for (int i = 0; i < oSliceSize; i++)
+					outSlice[i] += cWeight * xySlice[i];
+			}
+			for (int i = 0; i < oSliceSize; i++)
+				outSum += outSlice[i];
+			writeOutputSlice(oz, outSlice);
+		}
+
+		final float eTime = (System.currentTimeMillis() - sTime) / (1000F);
+		final double outCnt = ((double) oSliceSize) * (tSlice - bSlice);
+		String logAdd = "FilterScale Operation (Separable-"
+				+ curSettings.scalingFilterGenerator.make().filterName()
+				+ ") : Upscale:(" + up.x + ", " + up.y + ", " + up.z
+				+ "), Downscale (" + dn.x + ", " + dn.y + ", " + dn.z + "), T:"
+				+ eTime;
+		logAdd += "\n OutMean:" + String.format("%.2f", outSum / outCnt) + ", "
+				+ String.format("%.2f", outCnt / 1e6) + " Mvx, "
+				+ (zEnd - zStart) + " input slices";
+		System.out.println(logAdd);
+		return true;
+	}
+
 	@Override
 	protected void runFloat() {
 	}
@@ -40,7 +40,7 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 	 * boxScanner scans the number of filled boxes using a given box size in the
 	 * image
 	 */
-	protected static class boxScanner implements Callable<long[]> {
+	public static class boxScanner implements Callable<long[]> {
 		final ConcurrentReader runImg;
 		final D3int runBoxSize;
 		final D3int runImgSize;
@@ -93,7 +93,7 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 								- y;
 						final int maxx = min(x + runBoxSize.x, runImgSize.x)
 								- x;
-						final long boxVol = maxz * maxy * maxx;
+						final long boxVol = ((long) maxz) * maxy * maxx;
 						if (boxVol > 0) {
 							totalCount++;
 							totalCountV += boxVol;
@@ -129,6 +129,169 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 
 	}
 
+	/**
+	 * An occupancy pyramid of the image, level 0 is the image itself and every
+	 * level above is the OR of 2x2x2 blocks of the level below (so a cell at
+	 * level L says if anything is in the aligned box of side 2^L). The image
+	 * is only read once to build it and any box can then be checked by
+	 * descending from the coarse cells covering it, stopping as soon as an
+	 * occupied cell lies fully inside the box. Every level is packed into bits
+	 * so the whole pyramid takes about 8/7 of a bit per voxel of the image.
+	 */
+	public static class OccupancyPyramid {
+		final D3int[] levelDim;
+		final BitVolume[] levels;
+		/** number of occupied cells in each level */
+		final long[] levelCount;
+
+		public OccupancyPyramid(final ConcurrentReader inImg) {
+			final D3int dim = inImg.getDim();
+			int levelCnt = 1;
+			for (D3int cDim = dim; (cDim.x > 1) || (cDim.y > 1) || (cDim.z > 1); levelCnt++)
+				cDim = halfDim(cDim);
+			levelDim = new D3int[levelCnt];
+			levels = new BitVolume[levelCnt];
+			levelCount = new long[levelCnt];
+
+			levelDim[0] = dim;
+			final BitVolume base = new BitVolume(dim);
+			final int readBlock = 16;
+			for (int sz = 0; sz < dim.z; sz += readBlock) {
+				final List<Future<Object>> cachedSlices = inImg
+						.getPolyImageSlices(sz, sz + readBlock,
+								TImgTools.IMAGETYPE_BOOL);
+				for (int iz = 0; iz < cachedSlices.size(); iz++) {
+					final boolean[] curSlice;
+					try {
+						curSlice = (boolean[]) cachedSlices.get(iz).get();
+					} catch (final Exception e) {
+						e.printStackTrace();
+						throw new IllegalArgumentException(
+								"OccupancyPyramid: could not read slice "
+										+ (sz + iz) + ":" + e.getMessage());
+					}
+					base.setSlice(sz + iz, curSlice, 0);
+				}
+			}
+			levels[0] = base;
+			levelCount[0] = base.count();
+
+			for (int l = 1; l < levelCnt; l++) {
+				final D3int lDim = levelDim[l - 1];
+				final D3int uDim = halfDim(lDim);
+				final BitVolume lower = levels[l - 1];
+				final BitVolume upper = new BitVolume(uDim);
+				for (int z = 0; z < lDim.z; z++)
+					for (int y = 0; y < lDim.y; y++)
+						for (int x = 0; x < lDim.x; x++)
+							if (lower.get(x, y, z))
+								upper.set(x >> 1, y >> 1, z >> 1, true);
+				levelDim[l] = uDim;
+				levels[l] = upper;
+				levelCount[l] = upper.count();
+			}
+		}
+
+		protected static D3int halfDim(final D3int inDim) {
+			return new D3int((inDim.x + 1) / 2, (inDim.y + 1) / 2,
+					(inDim.z + 1) / 2);
+		}
+
+		public int getLevels() {
+			return levels.length;
+		}
+
+		/**
+		 * Does the box from (x0,y0,z0) up to (but not including) (x1,y1,z1)
+		 * contain any voxels
+		 */
+		public boolean isOccupied(final int x0, final int y0, final int z0,
+				final int x1, final int y1, final int z1) {
+			final int maxSide = max(max(x1 - x0, y1 - y0), z1 - z0);
+			// the smallest level whose cells are at least as big as the box, so
+			// at most 2 cells along each axis overlap it
+			int l = 0;
+			while (((1 << l) < maxSide) && (l < levels.length - 1))
+				l++;
+			for (int cz = z0 >> l; cz <= (z1 - 1) >> l; cz++)
+				for (int cy = y0 >> l; cy <= (y1 - 1) >> l; cy++)
+					for (int cx = x0 >> l; cx <= (x1 - 1) >> l; cx++)
+						if (isOccupied(l, cx, cy, cz, x0, y0, z0, x1, y1, z1))
+							return true;
+			return false;
+		}
+
+		protected boolean isOccupied(final int l, final int cx, final int cy,
+				final int cz, final int x0, final int y0, final int z0,
+				final int x1, final int y1, final int z1) {
+			final D3int lDim = levelDim[l];
+			if ((cx >= lDim.x) || (cy >= lDim.y) || (cz >= lDim.z))
+				return false;
+			if (!levels[l].get(cx, cy, cz))
+				return false;
+			final D3int dim = levelDim[0];
+			// the part of the cell inside the image
+			final int sx = cx << l, ex = min((cx + 1) << l, dim.x);
+			final int sy = cy << l, ey = min((cy + 1) << l, dim.y);
+			final int sz = cz << l, ez = min((cz + 1) << l, dim.z);
+			if ((sx >= x0) && (ex <= x1) && (sy >= y0) && (ey <= y1)
+					&& (sz >= z0) && (ez <= z1))
+				return true;
+			// only part of the cell is in the box, check the children which
+			// overlap it
+			for (int iz = max(cz * 2, z0 >> (l - 1)); iz <= min(cz * 2 + 1,
+					(z1 - 1) >> (l - 1)); iz++)
+				for (int iy = max(cy * 2, y0 >> (l - 1)); iy <= min(
+						cy * 2 + 1, (y1 - 1) >> (l - 1)); iy++)
+					for (int ix = max(cx * 2, x0 >> (l - 1)); ix <= min(
+							cx * 2 + 1, (x1 - 1) >> (l - 1)); ix++)
+						if (isOccupied(l - 1, ix, iy, iz, x0, y0, z0, x1, y1,
+								z1))
+							return true;
+			return false;
+		}
+	}
+
+	/**
+	 * pyramidScanner counts the filled boxes of a given size using the same
+	 * box positions as boxScanner (the last box along each axis is moved back
+	 * to fit inside the image) but checks each box with the occupancy pyramid
+	 */
+	public static class pyramidScanner implements Callable<long[]> {
+		final OccupancyPyramid runPyramid;
+		final int runBoxSize;
+		final D3int runImgSize;
+
+		public pyramidScanner(final OccupancyPyramid inPyramid,
+				final int inBoxSize) {
+			runPyramid = inPyramid;
+			runBoxSize = inBoxSize;
+			runImgSize = inPyramid.levelDim[0];
+		}
+
+		@Override
+		public long[] call() {
+			long filledCount = 0;
+			long totalCount = 0;
+			final long boxVol = ((long) runBoxSize) * runBoxSize * runBoxSize;
+			for (int sz = 0; sz < runImgSize.z; sz += runBoxSize) {
+				final int z = min(sz, runImgSize.z - runBoxSize);
+				for (int sy = 0; sy < runImgSize.y; sy += runBoxSize) {
+					final int y = min(sy, runImgSize.y - runBoxSize);
+					for (int sx = 0; sx < runImgSize.x; sx += runBoxSize) {
+						final int x = min(sx, runImgSize.x - runBoxSize);
+						totalCount++;
+						if (runPyramid.isOccupied(x, y, z, x + runBoxSize, y
+								+ runBoxSize, z + runBoxSize))
+							filledCount++;
+					}
+				}
+			}
+			return new long[] { runBoxSize, filledCount, totalCount,
+					filledCount * boxVol, totalCount * boxVol };
+		}
+	}
+
 	public static void main(final String[] args) {
 		final String kVer = "130527_001";
 		System.out.println("FractalDimension v" + kVer);
@@ -173,10 +336,31 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 												// the normal volume, throw it
 												// out
 
+	/**
+	 * count the boxes using an occupancy pyramid built in a single pass
+	 * instead of rescanning the image for every box size
+	 */
+	public boolean usePyramid = true;
+	/** only use box sizes which are powers of 2 */
+	public boolean powerOfTwoOnly = false;
+
 	final String dlm = ", ";
 	protected FractalDimension() {
 		
 	}
+
+	@Override
+	public ArgumentParser setParameter(final ArgumentParser p,
+			final String prefix) {
+		boxSizeCutoff = p.getOptionDouble(prefix + "boxsizecutoff",
+				boxSizeCutoff,
+				"Fraction of shortest length to use as volume size");
+		usePyramid = p.getOptionBoolean(prefix + "pyramid", usePyramid,
+				"Count boxes with an occupancy pyramid built in one pass");
+		powerOfTwoOnly = p.getOptionBoolean(prefix + "poweroftwo",
+				powerOfTwoOnly, "Only use box sizes which are powers of 2");
+		return p;
+	}
 	@Deprecated
 	protected FractalDimension(final TImgRO inputImage, final String inOutFileName) {
 		LoadImages(new TImgRO[] { inputImage });
@@ -219,10 +403,28 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 		jStartTime = System.currentTimeMillis();
 		FileWriter out = null;
 		final int maxIndex = (int) (boxSizeCutoff * largestBoxEdge);
-		// for(int curBoxSize=largestBoxEdge;curBoxSize>=1;curBoxSize--) {
+		final List<Integer> boxSizes = new LinkedList<Integer>();
 		for (int curBoxSize = 1; curBoxSize <= maxIndex; curBoxSize++) {
-			boxCountList
-					.add(myPool.submit(new boxScanner(inImage, curBoxSize)));
+			if ((!powerOfTwoOnly) || (Integer.bitCount(curBoxSize) == 1))
+				boxSizes.add(curBoxSize);
+		}
+		if (usePyramid) {
+			final OccupancyPyramid cPyramid = new OccupancyPyramid(inImage);
+			String levelStr = "Occupancy Pyramid Built in "
+					+ StrRatio(System.currentTimeMillis() - jStartTime, 1000)
+					+ " seconds, occupied cells per level:";
+			for (int l = 0; l < cPyramid.getLevels(); l++)
+				levelStr += " " + (1 << l) + ":" + cPyramid.levelCount[l];
+			System.out.println(levelStr);
+			procLog += levelStr + "\n";
+			for (Integer curBoxSize : boxSizes)
+				boxCountList.add(myPool.submit(new pyramidScanner(cPyramid,
+						curBoxSize)));
+		} else {
+			// for(int curBoxSize=largestBoxEdge;curBoxSize>=1;curBoxSize--) {
+			for (Integer curBoxSize : boxSizes)
+				boxCountList.add(myPool.submit(new boxScanner(inImage,
+						curBoxSize)));
 		}
 		myPool.shutdown();
 		try {
@@ -243,10 +445,9 @@ public class FractalDimension extends BaseTIPLPluginInExecutor {
 			System.out.println("Cannot Write File:" + outFileName);
 			e.printStackTrace();
 		}
-		for (int curBoxSize = 1; curBoxSize <= maxIndex; curBoxSize++) {
+		for (Future<long[]> curBoxFuture : boxCountList) {
 			try {
-				final long[] curBoxCount = boxCountList.get(curBoxSize - 1)
-						.get();
+				final long[] curBoxCount = curBoxFuture.get();
 				String outString = inImage.getElSize().prod() + dlm
 						+ curBoxCount[0] + dlm + (1.0 * curBoxCount[4])
 						/ curBoxCount[2] + dlm + curBoxCount[1] + dlm;
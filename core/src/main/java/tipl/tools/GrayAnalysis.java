@@ -1,6 +1,7 @@
 package tipl.tools;
 
 
+import tipl.formats.ConcurrentReader;
 import tipl.formats.FImage;
 import tipl.formats.PureFImage;
 import tipl.formats.TImg;
@@ -12,6 +13,7 @@ import java.io.OutputStreamWriter;
 import java.lang.reflect.Method;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Performs shape analysis on a labeled aim image (map) and if given another
@@ -167,6 +169,30 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      * histogram
      */
     protected boolean lacunaMode = false;
+    /**
+     * Accumulate the center of volume, covariances and extents in a single read of
+     * the images (streaming moments) instead of a separate pass for each (false)
+     */
+    protected boolean singlePass = false;
+    /**
+     * Read the slices with several threads, each collecting its blocks of slices in its own
+     * GrayVoxels array, implies singlePass (false)
+     */
+    protected boolean multicore = false;
+    /**
+     * Number of slices in each block of a single pass reading. The blocks are always merged
+     * in order so the results do not depend on the number of threads used
+     */
+    public static final int SHARD_SLICES = 4;
+    // state for the blocks being read by processWork
+    private int shardMode;
+    private int shardCount;
+    private GrayVoxelStore shardTarget;
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+    private int mergedShards;
+    private final Object shardLock = new Object();
+    /** the first error thrown while reading a block, rethrown once all threads are done */
+    private volatile Throwable shardFailure;
     protected boolean noBlank = false;
     /**
      * Calculate distance from wall as distance from edge of ROI volume
@@ -184,6 +210,12 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
     protected TypedPath insName = TIPLStorageManager.createVirtualPath("");
     protected String gfiltName = "";
     protected GrayVoxels[] intGvArray = new GrayVoxels[0];
+    /**
+     * How the statistics for each label are stored: array (a GrayVoxels object for every possible
+     * label), dense or sparse (primitive columns, see GrayVoxelStore)
+     */
+    protected String labelStore = "array";
+    protected GrayVoxelStore gvStore = null;
     boolean useCount;
     private boolean useGFILT;
     private boolean useFMap;
@@ -1006,7 +1038,9 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      * The core of the grayanalysis tool which analyzes each slice that it is given. Made it static to keep the functions consequences clear
      * @param sliceNumber
      * @param noThresh
-     * @param operationMode -> 0- find COM/COV, 1- find covariance matrix, 2- find extents
+     * @param operationMode -> 0- find COM/COV, 1- find covariance matrix, 2- find extents,
+     *                      3- single pass COM/COV, covariance and extents, 4- radius and principal extents
+     *                      (after a single pass)
      */
     static protected int AnalyzeSlice(
             TImgRO mapA, TImgRO gfiltA,
@@ -1014,6 +1048,22 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
             final int sliceNumber, final boolean noThresh, final int operationMode,
             double fmin, double fmax, int fbins, boolean invertGFILT, int maxGroup,
             double threshVal, boolean useGFILT) {
+        return AnalyzeSlice(mapA, gfiltA, GrayVoxelStore.wrap(gvArray), sliceNumber, noThresh,
+                operationMode, fmin, fmax, fbins, invertGFILT, maxGroup, threshVal, useGFILT, null);
+    }
+
+    /**
+     * AnalyzeSlice which writes to a GrayVoxelStore and keeps the overall statistics (voxels, sum,
+     * squared sum) in sliceTotals instead of the static totVox, totSum and totSqSum, so it can be
+     * run from several threads
+     * @param sliceTotals array of length 3 to add the totals to (null to use the static fields)
+     */
+    static protected int AnalyzeSlice(
+            TImgRO mapA, TImgRO gfiltA,
+            final GrayVoxelStore gvStore,
+            final int sliceNumber, final boolean noThresh, final int operationMode,
+            double fmin, double fmax, int fbins, boolean invertGFILT, int maxGroup,
+            double threshVal, boolean useGFILT, final double[] sliceTotals) {
         //
         if (TIPLGlobal.getDebug())
             System.out.println("Reading MapSlice " + sliceNumber + "/"
@@ -1079,10 +1129,22 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
         }
         double cVal;
 
+        // the voxel position is tracked incrementally along the slice so no per-voxel
+        // coordinate arrays need to be created
+        final D3int mapPos = mapA.getPos();
+        final int sliceWidth = mapA.getDim().x;
+        final double zPos = mapPos.z + sliceNumber;
+        int xOff = -1;
+        double yPos = mapPos.y;
+
         for (int cIndex = 0; cIndex < mapSlice.length; cIndex++) {
+            if (++xOff == sliceWidth) {
+                xOff = 0;
+                yPos++;
+            }
             final int cMapVal = mapSlice[cIndex];
 
-            if ((cMapVal > 0) & (cMapVal < gvArray.length)) {
+            if ((cMapVal > 0) && gvStore.accepts(cMapVal)) {
                 if (cMapVal > maxGroup)
                     maxGroup = cMapVal;
                 if (useGFILT) {
@@ -1101,26 +1163,20 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
                 if ((cVal >= threshVal) | (noThresh)) {
 
                     // Track Overall Statistics
-                    totVox++;
-                    totSum += cVal;
-                    totSqSum += Math.pow(cVal, 2);
+                    if (sliceTotals == null) {
+                        totVox++;
+                        totSum += cVal;
+                        totSqSum += Math.pow(cVal, 2);
+                    } else {
+                        sliceTotals[0]++;
+                        sliceTotals[1] += cVal;
+                        sliceTotals[2] += Math.pow(cVal, 2);
+                    }
                     if (cVal < fbins) {
 
-                        final Double[] cPos = TImgTools.getXYZVecFromVec(mapA,
-                                cIndex, sliceNumber);
-
-                        if (operationMode == 0) {
-                            gvArray[cMapVal].addVox(cPos[0].floatValue(),
-                                    cPos[1].floatValue(), cPos[2].floatValue(),
-                                    cVal);
-                        } else if (operationMode == 1) {
-                            gvArray[cMapVal].addCovVox(cPos[0].floatValue(),
-                                    cPos[1].floatValue(), cPos[2].floatValue());
-                        } else if (operationMode == 2) {
-                            gvArray[cMapVal].setExtentsVoxel(
-                                    cPos[0].floatValue(), cPos[1].floatValue(),
-                                    cPos[2].floatValue());
-                        }
+                        final double xPos = mapPos.x + xOff;
+
+                        gvStore.addVoxel(operationMode, cMapVal, xPos, yPos, zPos, cVal);
                     } else {
                         if (TIPLGlobal.getDebug())
                             System.out.println(" Value " + cVal
@@ -1158,12 +1214,25 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      *
      */
     public static Object getInfoFromGVArray(final GrayVoxels[] gvArray, final int maxGroup, String request) {
+        return getInfoFromGVArray(GrayVoxelStore.wrap(gvArray), maxGroup, request);
+    }
+
+    /**
+     * getInfoFromGVArray for any GrayVoxelStore, bins returns the GrayVoxels array for array stores and
+     * the store itself otherwise
+     */
+    public static Object getInfoFromGVArray(final GrayVoxelStore gvStore, final int maxGroup, String request) {
         String niceRequest = request.trim().toLowerCase();
-        if (niceRequest.equalsIgnoreCase("bins")) return gvArray;
+        if (niceRequest.equalsIgnoreCase("bins")) {
+            if (gvStore instanceof GrayVoxelStore.ArrayStore)
+                return ((GrayVoxelStore.ArrayStore) gvStore).getArray();
+            return gvStore;
+        }
+        final int[] storeLabels = gvStore.labels();
         if (niceRequest.equalsIgnoreCase("groups")) {
             int grpCount = 0;
-            for (GrayVoxels curVox : gvArray)
-                if (curVox.count() >= ABS_MIN_VOX) grpCount++;
+            for (int cLabel : storeLabels)
+                if (gvStore.get(cLabel).count() >= ABS_MIN_VOX) grpCount++;
 
             return (long) grpCount;
         }
@@ -1176,12 +1245,13 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
 
                 int grpCount = 0;
                 double valSum = 0;
-                for (GrayVoxels curVox : gvArray)
-
+                for (int cLabel : storeLabels) {
+                    final GrayVoxels curVox = gvStore.get(cLabel);
                     if (curVox.count() >= ABS_MIN_VOX) {
                         grpCount++;
                         valSum += (Double) callMethod.invoke(curVox, null);
                     }
+                }
                 return valSum * 1.0 / grpCount;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -1191,11 +1261,13 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
         if (niceRequest.equalsIgnoreCase("average_volume")) {
             int grpCount = 0;
             long voxCount = 0;
-            for (GrayVoxels curVox : gvArray)
+            for (int cLabel : storeLabels) {
+                final GrayVoxels curVox = gvStore.get(cLabel);
                 if (curVox.count() >= ABS_MIN_VOX) {
                     grpCount++;
                     voxCount += curVox.count();
                 }
+            }
             return voxCount * 1.0 / grpCount;
         }
 
@@ -1210,7 +1282,8 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      */
     @Override
     public Object getInfo(final String request) {
-        Object output = getInfoFromGVArray(intGvArray, maxGroup, request);
+        Object output = (gvStore == null) ? getInfoFromGVArray(intGvArray, maxGroup, request) :
+                getInfoFromGVArray(gvStore, maxGroup, request);
         if (output == null) return super.getInfo(request);
         else return output;
     }
@@ -1227,6 +1300,9 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
         useThresh = inArgs.getOptionBoolean(prefix + "usethresh", useThresh, "use threshold value");
         lacunaMode = inArgs.getOptionBoolean(prefix + "lacuna", lacunaMode, "use lacuna mode");
         noBlank = inArgs.getOptionBoolean(prefix + "noblank", noBlank, "remove blank lines where count is zero");
+        singlePass = inArgs.getOptionBoolean(prefix + "singlepass", singlePass, "calculate center, covariance and extents in one pass through the images");
+        multicore = inArgs.getOptionBoolean(prefix + "multicore", multicore, "read blocks of slices in parallel (implies singlepass)");
+        labelStore = inArgs.getOptionString(prefix + "labelstore", labelStore, "storage for the label statistics: array, dense or sparse (dense and sparse imply singlepass, sparse implies noblank)");
 
         boxDist = inArgs.getOptionBoolean(prefix + "boxroidist", boxDist, "calculated distance based on a box of the region of interest (box edge distance)");
         includeShapeTensor = inArgs.getOptionBoolean(prefix + "shapetensor", includeShapeTensor, "add columns for shape tensor");
@@ -1427,6 +1503,11 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
                 gvArray[cVox] = new GrayVoxels(cVox);
         }
 
+        if (singlePass || multicore) {
+            runSinglePass(GrayVoxelStore.wrap(gvArray));
+            return gvArray;
+        }
+
         long start = System.currentTimeMillis();
         System.out.println("Reading Slices... " + mapA.getDim().z);
 
@@ -1502,6 +1583,191 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
         return gvArray;
     }
 
+    /**
+     * Single pass version of runAllSlices, the center of volume, covariance and extents are
+     * all accumulated in one read of the images. Only lacuna mode requires a second read for the
+     * radius and the extents along the principal components. The slices are read in blocks
+     * of SHARD_SLICES (in parallel with multicore) see readShards
+     * @param gvStore the (empty) store to fill
+     */
+    protected void runSinglePass(final GrayVoxelStore gvStore) {
+        long start = System.currentTimeMillis();
+        System.out.println("Reading Slices (single pass)... " + mapA.getDim().z);
+        readShards(gvStore, 3);
+        System.out.println("Done Reading..."
+                + (System.currentTimeMillis() - start) / (60 * 1000F)
+                + "mins, Objects:" + maxGroup + "; Voxels:" + totVox);
+        if ((lacunaMode) || (angcol)) {
+            System.out.println("Generating Diagonalization...");
+            for (int cGroup : gvStore.labels()) {
+                final GrayVoxels curVox = gvStore.get(cGroup);
+                if ((curVox.count() > ABS_MIN_VOX)) {
+                    curVox.diag();
+                    gvStore.set(cGroup, curVox);
+                }
+            }
+        }
+        if (lacunaMode) {
+            start = System.currentTimeMillis();
+            System.out.println("Rescanning Slices for Radius and Diagonal Extents... "
+                    + mapA.getDim().z);
+            readShards(gvStore, 4);
+            System.out.println("Done Extening..."
+                    + (System.currentTimeMillis() - start) / (60 * 1000F)
+                    + " mins");
+        }
+        if (boxDist) {
+            System.out.println("Calculating ROI Box Distance...");
+            for (int cGroup : gvStore.labels()) {
+                if (cGroup >= maxGroup) continue;
+                final GrayVoxels curVox = gvStore.get(cGroup);
+                curVox.calculateBoxDist(mapA.getPos().x,
+                        mapA.getPos().y, mapA.getPos().z, mapA.getDim().x
+                                + mapA.getPos().x,
+                        mapA.getDim().y + mapA.getPos().y, mapA.getDim().z
+                                + mapA.getPos().z);
+                gvStore.set(cGroup, curVox);
+            }
+        }
+    }
+
+    /**
+     * Run the single pass analysis using one of the column stores (labelStore dense or sparse)
+     * @return the filled store
+     */
+    protected GrayVoxelStore runStoreSlices() {
+        final GrayVoxelStore.ColumnStore cStore;
+        if (labelStore.equalsIgnoreCase("sparse")) {
+            // writing every label up to the largest one would undo the point of a sparse store
+            if (!noBlank) {
+                System.out.println("The sparse label store only writes the labels which are present (noblank)");
+                noBlank = true;
+            }
+            cStore = new GrayVoxelStore.Sparse(1024) {
+                @Override
+                protected GrayVoxels createVoxels(final int label) {
+                    return newLabelVoxels(label);
+                }
+            };
+        } else if (labelStore.equalsIgnoreCase("dense"))
+            cStore = new GrayVoxelStore.Dense(1024) {
+                @Override
+                protected GrayVoxels createVoxels(final int label) {
+                    return newLabelVoxels(label);
+                }
+            };
+        else
+            throw new IllegalArgumentException("Label store " + labelStore + " is not supported, " +
+                    "use array, dense or sparse");
+        System.out.println("Using " + labelStore + " label store...");
+        runSinglePass(cStore);
+        return cStore;
+    }
+
+    /**
+     * A GrayVoxels with the label value used by runAllSlices for this index
+     */
+    protected GrayVoxels newLabelVoxels(final int cVox) {
+        if (useFMap) return new GrayVoxels(i2f(cVox, fmin, fmax, fbins));
+        if (useFloat) return new GrayVoxels(mapScaleFactor * cVox);
+        return new GrayVoxels(cVox);
+    }
+
+    /**
+     * Read all slices in blocks of SHARD_SLICES with the given operationMode (3 or 4). Each
+     * thread collects a block in its own partial store (GrayVoxelStore.newPartial) which is then
+     * merged into gvStore. The blocks are merged strictly in order so the result is identical for
+     * any number of threads
+     * @param gvStore the store to merge the results into
+     * @param operationMode 3 for addMomentVox, 4 for addShapeVox
+     */
+    protected void readShards(final GrayVoxelStore gvStore, final int operationMode) {
+        shardMode = operationMode;
+        shardTarget = gvStore;
+        shardCount = (mapA.getDim().z + SHARD_SLICES - 1) / SHARD_SLICES;
+        nextShard.set(0);
+        mergedShards = 0;
+        shardFailure = null;
+        if (multicore && (neededCores() > 1) && (shardCount > 1)) {
+            launchThread = Thread.currentThread();
+            runMulticore();
+        } else {
+            processWork(Integer.valueOf(0));
+        }
+        shardTarget = null;
+        if (shardFailure != null)
+            throw new IllegalStateException("Reading " + mapA + " failed", shardFailure);
+    }
+
+    /**
+     * Every thread gets work as long as there are at least as many blocks (the blocks themselves are
+     * handed out by processWork)
+     */
+    @Override
+    public Object divideThreadWork(final int cThread, final int inCores) {
+        if (cThread >= Math.min(inCores, shardCount)) return null;
+        return Integer.valueOf(cThread);
+    }
+
+    /**
+     * Read blocks of slices until none are left, each block is collected in a partial store
+     * for this thread and then merged in order into shardTarget
+     */
+    @Override
+    protected void processWork(final Object myWork) {
+        final GrayVoxelStore localStore = shardTarget.newPartial(shardMode);
+        final double[] shardTotals = new double[3];
+        int cShard;
+        while ((cShard = nextShard.getAndIncrement()) < shardCount) {
+            final int startSlice = cShard * SHARD_SLICES;
+            final int endSlice = Math.min(startSlice + SHARD_SLICES, mapA.getDim().z);
+            int localMax = 0;
+            shardTotals[0] = 0;
+            shardTotals[1] = 0;
+            shardTotals[2] = 0;
+            boolean shardRead = false;
+            try {
+                if (shardFailure == null) {
+                    for (int cSlice = startSlice; cSlice < endSlice; cSlice++) {
+                        if (TIPLGlobal.getDebug())
+                            System.out.println("Reading Slices " + cSlice + "/"
+                                    + mapA.getDim().z);
+                        localMax = AnalyzeSlice(mapA, gfiltA, localStore, cSlice,
+                                noThresh, shardMode, fmin, fmax, fbins, invertGFILT,
+                                localMax, threshVal, useGFILT, shardTotals);
+                    }
+                    shardRead = true;
+                }
+            } catch (final Throwable e) {
+                synchronized (shardLock) {
+                    if (shardFailure == null) shardFailure = e;
+                }
+            } finally {
+                // the later blocks wait for this one so it has to be counted even if it failed
+                synchronized (shardLock) {
+                    while (mergedShards < cShard) {
+                        try {
+                            shardLock.wait();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            if (shardFailure == null) shardFailure = e;
+                            break;
+                        }
+                    }
+                    if (shardRead && (shardFailure == null)) {
+                        shardTarget.mergePartial(localStore, shardMode);
+                        if (localMax > maxGroup) maxGroup = localMax;
+                        totVox += shardTotals[0];
+                        totSum += shardTotals[1];
+                        totSqSum += shardTotals[2];
+                    }
+                    mergedShards++;
+                    shardLock.notifyAll();
+                }
+            }
+        }
+    }
+
     /**
      * The function to grayvoxel data to a csv file
      * @param gvArray the array of grayvoxels
@@ -1510,6 +1776,17 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      * @param useLabel use the label inside the grayvoxel (true) or the index
      */
     public void writeOutputToCSV(GrayVoxels[] gvArray, boolean useInsert, int startingIndex, boolean useLabel) {
+        writeOutputToCSV(GrayVoxelStore.wrap(gvArray), useInsert, startingIndex, useLabel);
+    }
+
+    /**
+     * The function to grayvoxel data to a csv file
+     * @param gvStore the grayvoxels for each label (array, dense or sparse)
+     * @param useInsert (insert it into a file)
+     * @param startingIndex starting index (0 for normal data, 1 for grayanalysis)
+     * @param useLabel use the label inside the grayvoxel (true) or the index
+     */
+    public void writeOutputToCSV(GrayVoxelStore gvStore, boolean useInsert, int startingIndex, boolean useLabel) {
         try {
             final OutputStreamWriter out =
                     new OutputStreamWriter(csvName.getFileObject().getOutputStream(true));
@@ -1557,30 +1834,31 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
 
 
                         if ((curRow > 0) & (curRow <= maxGroup)) {
-                            valMean = gvArray[curRow].mean();
-                            valStd = gvArray[curRow].std();
-                            valCnt = gvArray[curRow].count();
-                            valMin = gvArray[curRow].min();
-                            valMax = gvArray[curRow].max();
+                            final GrayVoxels curVox = gvStore.get(curRow);
+                            valMean = curVox.mean();
+                            valStd = curVox.std();
+                            valCnt = curVox.count();
+                            valMin = curVox.min();
+                            valMax = curVox.max();
 
-                            covX = gvArray[curRow].meanx();
-                            covY = gvArray[curRow].meany();
-                            covZ = gvArray[curRow].meanz();
+                            covX = curVox.meanx();
+                            covY = curVox.meany();
+                            covZ = curVox.meanz();
 
-                            sovX = gvArray[curRow].stdx();
-                            sovY = gvArray[curRow].stdy();
-                            sovZ = gvArray[curRow].stdz();
+                            sovX = curVox.stdx();
+                            sovY = curVox.stdy();
+                            sovZ = curVox.stdz();
 
-                            comX = gvArray[curRow].wmeanx();
-                            comY = gvArray[curRow].wmeany();
-                            comZ = gvArray[curRow].wmeanz();
+                            comX = curVox.wmeanx();
+                            comY = curVox.wmeany();
+                            comZ = curVox.wmeanz();
 
-                            gradX = gvArray[curRow].gradx();
-                            gradY = gvArray[curRow].grady();
-                            gradZ = gvArray[curRow].gradz();
+                            gradX = curVox.gradx();
+                            gradY = curVox.grady();
+                            gradZ = curVox.gradz();
 
-                            angT = gvArray[curRow].angVec(0);
-                            gtStr = gvArray[curRow].getTensorString();
+                            angT = curVox.angVec(0);
+                            gtStr = curVox.getTensorString();
 
                         } else {
                             System.out
@@ -1643,61 +1921,64 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
             } else if (lacunaMode) {
 
                 // Write Lacuna Style Output File
-                for (int cGroup = startingIndex; cGroup <= (useLabel ? (gvArray.length - 1) : maxGroup); cGroup++) {
-                    if ((gvArray[cGroup].count() > ABS_MIN_VOX)) { // At least 3
+                final int lastGroup = (useLabel ? gvStore.maxLabel() : maxGroup);
+                for (int cGroup : gvStore.labels()) {
+                    if ((cGroup < startingIndex) || (cGroup > lastGroup)) continue;
+                    final GrayVoxels curVox = gvStore.get(cGroup);
+                    if ((curVox.count() > ABS_MIN_VOX)) { // At least 3
                         // voxels
                         String lacString = "";
-                        lacString = (useLabel ? gvArray[cGroup].getLabel() : cGroup) + ", 0 ," + mapA.getElSize().x
+                        lacString = (useLabel ? curVox.getLabel() : cGroup) + ", 0 ," + mapA.getElSize().x
                                 + "," + mapA.getElSize().y + ","
                                 + mapA.getElSize().z;
                         // Position
-                        lacString += "," + gvArray[cGroup].meanx() + ","
-                                + gvArray[cGroup].meany() + ","
-                                + gvArray[cGroup].meanz();
+                        lacString += "," + curVox.meanx() + ","
+                                + curVox.meany() + ","
+                                + curVox.meanz();
                         // STD
-                        lacString += "," + gvArray[cGroup].stdx() + ","
-                                + gvArray[cGroup].stdy() + ","
-                                + gvArray[cGroup].stdz();
+                        lacString += "," + curVox.stdx() + ","
+                                + curVox.stdy() + ","
+                                + curVox.stdz();
                         // Projection XYZ
-                        lacString += "," + gvArray[cGroup].rangex() + ","
-                                + gvArray[cGroup].rangey() + ","
-                                + gvArray[cGroup].rangez();
+                        lacString += "," + curVox.rangex() + ","
+                                + curVox.rangey() + ","
+                                + curVox.rangez();
                         // PCA Components
                         for (int cpca = 0; cpca < 3; cpca++) {
                             lacString += ","
-                                    + gvArray[cGroup].getComp(cpca)[0]
+                                    + curVox.getComp(cpca)[0]
                                     + ","
-                                    + gvArray[cGroup].getComp(cpca)[1]
+                                    + curVox.getComp(cpca)[1]
                                     + ","
-                                    + gvArray[cGroup].getComp(cpca)[2]
-                                    + "," + gvArray[cGroup].getScore(cpca);
+                                    + curVox.getComp(cpca)[2]
+                                    + "," + curVox.getScore(cpca);
                         }
-                        lacString += "," + gvArray[cGroup].rangep1() + ","
-                                + gvArray[cGroup].rangep2() + ","
-                                + gvArray[cGroup].rangep3();
+                        lacString += "," + curVox.rangep1() + ","
+                                + curVox.rangep2() + ","
+                                + curVox.rangep3();
                         // Radius
-                        lacString += "," + gvArray[cGroup].radius() + ","
-                                + gvArray[cGroup].stdr();
+                        lacString += "," + curVox.radius() + ","
+                                + curVox.stdr();
                         // Volume
                         lacString += ","
-                                + gvArray[cGroup].count()
+                                + curVox.count()
                                 + ","
-                                + (gvArray[cGroup].rangep1()
-                                * gvArray[cGroup].rangep2() * gvArray[cGroup]
+                                + (curVox.rangep1()
+                                * curVox.rangep2() * curVox
                                 .rangep3());
                         if (useGFILT | boxDist) {
                             // Grad X,y,z, angle
-                            lacString += ", " + gvArray[cGroup].gradx()
-                                    + ", " + gvArray[cGroup].grady() + ","
-                                    + gvArray[cGroup].gradz() + ","
-                                    + gvArray[cGroup].angVec(0);
+                            lacString += ", " + curVox.gradx()
+                                    + ", " + curVox.grady() + ","
+                                    + curVox.gradz() + ","
+                                    + curVox.angVec(0);
                             // Distance mean, cov, std
-                            lacString += ", " + gvArray[cGroup].mean()
-                                    + "," + gvArray[cGroup].mean() + ","
-                                    + gvArray[cGroup].std();
+                            lacString += ", " + curVox.mean()
+                                    + "," + curVox.mean() + ","
+                                    + curVox.std();
                         }
                         if (includeShapeTensor)
-                            lacString += gvArray[cGroup].getTensorString();
+                            lacString += curVox.getTensorString();
                         out.append(lacString + "\n");
                     }
                 }
@@ -1776,67 +2057,73 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
                 headerStr += "\n";
 
                 out.append(headerStr);
-                for (int cGroup = 1; cGroup < maxGroup; cGroup++) {
-                    if ((gvArray[cGroup].count() < 1) && (noBlank)) {
+                // only the labels present are needed when blank lines are suppressed
+                final int[] outGroups = gvStore.labels();
+                final int groupCount = noBlank ? outGroups.length : Math.max(maxGroup - 1, 0);
+                for (int cIndex = 0; cIndex < groupCount; cIndex++) {
+                    final int cGroup = noBlank ? outGroups[cIndex] : cIndex + 1;
+                    if (noBlank && ((cGroup < 1) || (cGroup >= maxGroup))) continue;
+                    final GrayVoxels curVox = gvStore.get(cGroup);
+                    if ((curVox.count() < 1) && (noBlank)) {
                         // Do Nothing
                         // Since there are no voxels and blank is suppressed
                     } else {
                         String extraColString = "";
                         if (useGFILT | boxDist)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].mean() + dlmChar
-                                    + gvArray[cGroup].std() + dlmChar
-                                    + gvArray[cGroup].min() + dlmChar
-                                    + gvArray[cGroup].max();
+                                    + curVox.mean() + dlmChar
+                                    + curVox.std() + dlmChar
+                                    + curVox.min() + dlmChar
+                                    + curVox.max();
                         // CoV
                         if (covcol)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].meanx() + dlmChar
-                                    + gvArray[cGroup].meany() + dlmChar
-                                    + gvArray[cGroup].meanz();
+                                    + curVox.meanx() + dlmChar
+                                    + curVox.meany() + dlmChar
+                                    + curVox.meanz();
 
                         // SoV
                         if (sovcol)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].stdx() + dlmChar
-                                    + gvArray[cGroup].stdy() + dlmChar
-                                    + gvArray[cGroup].stdz();
+                                    + curVox.stdx() + dlmChar
+                                    + curVox.stdy() + dlmChar
+                                    + curVox.stdz();
 
                         // CoM
                         if (comcol)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].wmeanx() + dlmChar
-                                    + gvArray[cGroup].wmeany() + dlmChar
-                                    + gvArray[cGroup].wmeanz();
+                                    + curVox.wmeanx() + dlmChar
+                                    + curVox.wmeany() + dlmChar
+                                    + curVox.wmeanz();
 
                         // GRAD
                         if (gradcol)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].gradx() + dlmChar
-                                    + gvArray[cGroup].grady() + dlmChar
-                                    + gvArray[cGroup].gradz();
+                                    + curVox.gradx() + dlmChar
+                                    + curVox.grady() + dlmChar
+                                    + curVox.gradz();
 
                         // Angle
                         if (gradcol)
                             extraColString += dlmChar
-                                    + gvArray[cGroup].angVec(0);
+                                    + curVox.angVec(0);
 
                         // PCA Cols
                         if (pcacols) {
-                            gvArray[cGroup].diag();
+                            curVox.diag();
                             for (int cpca = 0; cpca < 3; cpca++) {
                                 extraColString += dlmChar
-                                        + gvArray[cGroup].getComp(cpca)[0]
+                                        + curVox.getComp(cpca)[0]
                                         + dlmChar
-                                        + gvArray[cGroup].getComp(cpca)[1]
+                                        + curVox.getComp(cpca)[1]
                                         + dlmChar
-                                        + gvArray[cGroup].getComp(cpca)[2];
+                                        + curVox.getComp(cpca)[2];
                             }
                         }
                         if (includeShapeTensor)
-                            extraColString += gvArray[cGroup]
+                            extraColString += curVox
                                     .getTensorString(dlmChar);
-                        out.append(gvArray[cGroup].toString(dlmChar)
+                        out.append(curVox.toString(dlmChar)
                                 + extraColString + "\n");
                     }
                 }
@@ -1855,11 +2142,19 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
      */
     @Override
     public boolean execute() {
+		// background threads started by runMulticore in readShards
+		if ((workForThread != null) && workForThread.containsKey(Thread.currentThread()))
+			return runMulticore();
 		if (doPreload) {
 			System.out.println("Preloading Datasets..." + mapA);
 			mapA = TImgTools.WrapTImgRO(TImgTools.CacheImage(mapA));
 			if (useGFILT)
 				gfiltA = TImgTools.WrapTImgRO(TImgTools.CacheImage(gfiltA));
+		} else {
+			// each thread scans its own block of slices so only a window of them is kept
+			mapA = ConcurrentReader.PrefetchImage(mapA);
+			if (useGFILT)
+				gfiltA = ConcurrentReader.PrefetchImage(gfiltA);
 		}
 		long start = System.currentTimeMillis();
 		boolean gfiltGood = true;
@@ -1870,11 +2165,16 @@ public class GrayAnalysis extends BaseTIPLPluginIn {
 			writeHeader(useInsert);
 			// Restart running time
 
-			intGvArray=runAllSlices();
+			if (labelStore.equalsIgnoreCase("array")) {
+				intGvArray=runAllSlices();
+				gvStore=GrayVoxelStore.wrap(intGvArray);
+			} else {
+				gvStore=runStoreSlices();
+			}
 
 			TIPLGlobal.runGC();
 
-			writeOutputToCSV(intGvArray,useInsert,1,false);
+			writeOutputToCSV(gvStore,useInsert,1,false);
 		} else {
 			throw new IllegalArgumentException("Files Not Present");
 		}
@@ -0,0 +1,725 @@
+package tipl.tools;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Storage for the statistics of every label (group) in GrayAnalysis. The classic version
+ * (ArrayStore) keeps one GrayVoxels object per possible label. Dense and Sparse keep the
+ * statistics as primitive columns (structure of arrays), Dense indexed directly by the label and
+ * Sparse through an open-addressing hash of the labels which are actually present, so images with
+ * very large or scattered label values do not need an object for every possible label.
+ * <p>
+ * The column stores only support the single pass accumulation (operationMode 3 and 4 in
+ * GrayAnalysis.AnalyzeSlice), derived values are calculated by materializing a GrayVoxels object
+ * for a label with get and writing it back with set.
+ */
+public abstract class GrayVoxelStore implements Serializable {
+
+    /**
+     * Wrap an existing GrayVoxels array (label is the index in the array)
+     */
+    public static GrayVoxelStore wrap(final GrayVoxels[] gvArray) {
+        return new ArrayStore(gvArray);
+    }
+
+    /**
+     * Create a store with columns indexed directly by label
+     *
+     * @param initialLabels the number of labels to reserve space for (grows as needed)
+     */
+    public static GrayVoxelStore dense(final int initialLabels) {
+        return new Dense(initialLabels);
+    }
+
+    /**
+     * Create a store with columns indexed through a hash of the labels present
+     *
+     * @param initialLabels the number of labels to reserve space for (grows as needed)
+     */
+    public static GrayVoxelStore sparse(final int initialLabels) {
+        return new Sparse(initialLabels);
+    }
+
+    /**
+     * @return true if the label can be stored
+     */
+    public abstract boolean accepts(int label);
+
+    /**
+     * Add a voxel to the given label
+     *
+     * @param operationMode see GrayAnalysis.AnalyzeSlice
+     */
+    public abstract void addVoxel(int operationMode, int label, double x, double y, double z,
+                                  double pixVal);
+
+    /**
+     * The statistics for a label, for the column stores this is a copy which must be written back
+     * with set if it is changed
+     */
+    public abstract GrayVoxels get(int label);
+
+    public abstract void set(int label, GrayVoxels gvSet);
+
+    /**
+     * @return the labels which have been written to, in ascending order
+     */
+    public abstract int[] labels();
+
+    /**
+     * @return the largest label which has been (or for arrays can be) stored
+     */
+    public abstract int maxLabel();
+
+    /**
+     * Create an empty store of the same type for collecting part of an image (in a separate
+     * thread) with the given operationMode, see mergePartial
+     */
+    public abstract GrayVoxelStore newPartial(int operationMode);
+
+    /**
+     * Add the results of a partial store (from newPartial) to this store and clear the partial
+     * store so it can be reused
+     */
+    public abstract void mergePartial(GrayVoxelStore partial, int operationMode);
+
+    /**
+     * The classic array of GrayVoxels objects
+     */
+    public static class ArrayStore extends GrayVoxelStore {
+        protected final GrayVoxels[] gvArray;
+        /**
+         * the store a partial was made from (a partial with operationMode 4 takes the center and
+         * principal components from there), null unless this is a partial store
+         */
+        protected final ArrayStore source;
+        /**
+         * the operationMode of a partial store, its GrayVoxels are only created once a label is
+         * touched and the touched labels are kept so merging does not go through every label
+         */
+        protected final int partialMode;
+        protected int[] touched = new int[0];
+        protected int touchedCount = 0;
+
+        public ArrayStore(final GrayVoxels[] inArray) {
+            this(inArray, null, -1);
+        }
+
+        protected ArrayStore(final GrayVoxels[] inArray, final ArrayStore inSource,
+                             final int inPartialMode) {
+            gvArray = inArray;
+            source = inSource;
+            partialMode = inPartialMode;
+        }
+
+        public GrayVoxels[] getArray() {
+            return gvArray;
+        }
+
+        @Override
+        public boolean accepts(final int label) {
+            return (label < gvArray.length);
+        }
+
+        /**
+         * the GrayVoxels for a label, created for a partial store if it is not there yet
+         */
+        protected GrayVoxels touch(final int label) {
+            GrayVoxels cVox = gvArray[label];
+            if (cVox == null) {
+                cVox = emptyVoxels(label, partialMode);
+                gvArray[label] = cVox;
+                if (touchedCount == touched.length)
+                    touched = Arrays.copyOf(touched, Math.max(16, 2 * touchedCount));
+                touched[touchedCount++] = label;
+            }
+            return cVox;
+        }
+
+        @Override
+        public void addVoxel(final int operationMode, final int label, final double x,
+                             final double y, final double z, final double pixVal) {
+            switch (operationMode) {
+                case 0:
+                    touch(label).addVox(x, y, z, pixVal);
+                    break;
+                case 1:
+                    touch(label).addCovVox(x, y, z);
+                    break;
+                case 2:
+                    touch(label).setExtentsVoxel(x, y, z);
+                    break;
+                case 3:
+                    touch(label).addMomentVox(x, y, z, pixVal);
+                    break;
+                case 4:
+                    touch(label).addShapeVox(x, y, z, pixVal);
+                    break;
+            }
+        }
+
+        @Override
+        public GrayVoxels get(final int label) {
+            return gvArray[label];
+        }
+
+        @Override
+        public void set(final int label, final GrayVoxels gvSet) {
+            gvArray[label] = gvSet;
+        }
+
+        @Override
+        public int[] labels() {
+            int labelCount = 0;
+            for (GrayVoxels cVox : gvArray) if ((cVox != null) && (cVox.count() > 0)) labelCount++;
+            final int[] outLabels = new int[labelCount];
+            labelCount = 0;
+            for (int i = 0; i < gvArray.length; i++)
+                if ((gvArray[i] != null) && (gvArray[i].count() > 0)) outLabels[labelCount++] = i;
+            return outLabels;
+        }
+
+        @Override
+        public int maxLabel() {
+            return gvArray.length - 1;
+        }
+
+        @Override
+        public GrayVoxelStore newPartial(final int operationMode) {
+            return new ArrayStore(new GrayVoxels[gvArray.length], this, operationMode);
+        }
+
+        private GrayVoxels emptyVoxels(final int label, final int operationMode) {
+            if (operationMode == 4) return source.gvArray[label].shapeCopy();
+            final GrayVoxels gvOut = new GrayVoxels();
+            gvOut.useWeights = source.gvArray[label].useWeights;
+            gvOut.noRecenter = source.gvArray[label].noRecenter;
+            return gvOut;
+        }
+
+        @Override
+        public void mergePartial(final GrayVoxelStore partial, final int operationMode) {
+            final ArrayStore partStore = (ArrayStore) partial;
+            final GrayVoxels[] partArray = partStore.gvArray;
+            for (int i = 0; i < partStore.touchedCount; i++) {
+                final int cLabel = partStore.touched[i];
+                final GrayVoxels cPart = partArray[cLabel];
+                if (operationMode == 4) {
+                    if (cPart.setProjMax || (cPart.csr != 0)) gvArray[cLabel].addShape(cPart);
+                } else if (cPart.count() > 0) {
+                    gvArray[cLabel].add(cPart);
+                }
+                partArray[cLabel] = null;
+            }
+            partStore.touchedCount = 0;
+        }
+    }
+
+    // the columns of the column stores
+    protected static final int C_COUNT = 0;
+    protected static final int C_VALSUM = 1;
+    protected static final int C_SQSUM = 2;
+    protected static final int C_MINVAL = 3;
+    protected static final int C_MAXVAL = 4;
+    protected static final int C_X = 5; // cx, cy, cz
+    protected static final int C_W = 8; // wx, wy, wz
+    protected static final int C_X2 = 11; // cx2, cy2, cz2, cxy, cxz, cyz
+    protected static final int C_SMEAN = 17; // s_meanx, s_meany, s_meanz, s_weight
+    protected static final int C_MIN = 21; // minX, minY, minZ
+    protected static final int C_MAX = 24; // maxX, maxY, maxZ
+    protected static final int C_CR = 27;
+    protected static final int C_CSR = 28;
+    protected static final int C_MINP = 29; // minP1, minP2, minP3
+    protected static final int C_MAXP = 32; // maxP1, maxP2, maxP3
+    protected static final int COLUMNS = 35;
+    // U (row major) and info, only allocated once a diagonalized element is set
+    protected static final int D_U = 0;
+    protected static final int D_INFO = 9;
+    protected static final int DIAG_COLUMNS = 12;
+    // bits of the flags column
+    protected static final byte F_USED = 1;
+    protected static final byte F_SETMAX = 2;
+    protected static final byte F_SETPROJMAX = 4;
+    protected static final byte F_DIAGRUN = 8;
+    protected static final byte F_STREAM = 16;
+
+    /**
+     * Statistics stored in primitive columns, the mapping between labels and rows is left to the
+     * subclasses
+     */
+    public static abstract class ColumnStore extends GrayVoxelStore {
+        public boolean useWeights = false;
+        public boolean noRecenter = false;
+        protected double[][] cols = new double[COLUMNS][];
+        protected double[][] diagCols = null;
+        protected byte[] flags;
+        protected int capacity;
+        /**
+         * the store with the centers and principal components used for operationMode 4 (itself
+         * unless this is a partial store)
+         */
+        protected ColumnStore shapeSource = this;
+
+        protected ColumnStore(final int initialRows) {
+            capacity = Math.max(initialRows, 16);
+            for (int i = 0; i < COLUMNS; i++) cols[i] = new double[capacity];
+            flags = new byte[capacity];
+        }
+
+        /**
+         * @param create add the label if it does not exist yet
+         * @return the row of the label, -1 if it does not exist (and create is false)
+         */
+        protected abstract int row(int label, boolean create);
+
+        /**
+         * Empty all rows
+         */
+        protected abstract void clear();
+
+        protected abstract ColumnStore newEmpty();
+
+        protected void ensureCapacity(final int rows) {
+            if (rows <= capacity) return;
+            int newCapacity = capacity;
+            while (newCapacity < rows)
+                newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * newCapacity);
+            for (int i = 0; i < COLUMNS; i++) cols[i] = Arrays.copyOf(cols[i], newCapacity);
+            if (diagCols != null)
+                for (int i = 0; i < DIAG_COLUMNS; i++)
+                    diagCols[i] = Arrays.copyOf(diagCols[i], newCapacity);
+            flags = Arrays.copyOf(flags, newCapacity);
+            capacity = newCapacity;
+        }
+
+        /**
+         * Zero the first rows rows of all columns
+         */
+        protected void clearRows(final int rows) {
+            for (int i = 0; i < COLUMNS; i++) Arrays.fill(cols[i], 0, rows, 0);
+            if (diagCols != null)
+                for (int i = 0; i < DIAG_COLUMNS; i++) Arrays.fill(diagCols[i], 0, rows, 0);
+            Arrays.fill(flags, 0, rows, (byte) 0);
+        }
+
+        @Override
+        public boolean accepts(final int label) {
+            return (label > 0);
+        }
+
+        @Override
+        public void addVoxel(final int operationMode, final int label, final double x,
+                             final double y, final double z, final double pixVal) {
+            switch (operationMode) {
+                case 3:
+                    addMomentVox(row(label, true), x, y, z, pixVal);
+                    break;
+                case 4:
+                    addShapeVox(label, x, y, z, pixVal);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Operation mode " + operationMode +
+                            " is not supported by " + getClass().getSimpleName() +
+                            ", only the single pass modes (3,4) are");
+            }
+        }
+
+        /**
+         * The column version of GrayVoxels.addMomentVox
+         */
+        protected void addMomentVox(final int cRow, final double x, final double y,
+                                    final double z, final double pixVal) {
+            final double[] cCount = cols[C_COUNT];
+            cols[C_X][cRow] += x;
+            cols[C_X + 1][cRow] += y;
+            cols[C_X + 2][cRow] += z;
+            cols[C_W][cRow] += x * pixVal;
+            cols[C_W + 1][cRow] += y * pixVal;
+            cols[C_W + 2][cRow] += z * pixVal;
+
+            cCount[cRow]++;
+            cols[C_VALSUM][cRow] += pixVal;
+            cols[C_SQSUM][cRow] += Math.pow(pixVal, 2);
+            if (cCount[cRow] == 1) {
+                cols[C_MINVAL][cRow] = pixVal;
+                cols[C_MAXVAL][cRow] = pixVal;
+            }
+            if (pixVal > cols[C_MAXVAL][cRow]) cols[C_MAXVAL][cRow] = pixVal;
+            if (pixVal < cols[C_MINVAL][cRow]) cols[C_MINVAL][cRow] = pixVal;
+
+            final double w = useWeights ? pixVal : 1.0;
+            if (noRecenter) {
+                cols[C_X2][cRow] += w * x * x;
+                cols[C_X2 + 1][cRow] += w * y * y;
+                cols[C_X2 + 2][cRow] += w * z * z;
+                cols[C_X2 + 3][cRow] += w * x * y;
+                cols[C_X2 + 4][cRow] += w * x * z;
+                cols[C_X2 + 5][cRow] += w * y * z;
+            } else if (w != 0) {
+                final double sWeight = (cols[C_SMEAN + 3][cRow] += w);
+                final double f = w / sWeight;
+                final double dx = x - cols[C_SMEAN][cRow];
+                final double dy = y - cols[C_SMEAN + 1][cRow];
+                final double dz = z - cols[C_SMEAN + 2][cRow];
+                final double ex = x - (cols[C_SMEAN][cRow] += dx * f);
+                final double ey = y - (cols[C_SMEAN + 1][cRow] += dy * f);
+                final double ez = z - (cols[C_SMEAN + 2][cRow] += dz * f);
+                cols[C_X2][cRow] += w * dx * ex;
+                cols[C_X2 + 1][cRow] += w * dy * ey;
+                cols[C_X2 + 2][cRow] += w * dz * ez;
+                cols[C_X2 + 3][cRow] += w * dx * ey;
+                cols[C_X2 + 4][cRow] += w * dx * ez;
+                cols[C_X2 + 5][cRow] += w * dy * ez;
+            }
+
+            if ((flags[cRow] & F_SETMAX) != 0) {
+                if (x < cols[C_MIN][cRow]) cols[C_MIN][cRow] = x;
+                if (y < cols[C_MIN + 1][cRow]) cols[C_MIN + 1][cRow] = y;
+                if (z < cols[C_MIN + 2][cRow]) cols[C_MIN + 2][cRow] = z;
+                if (x > cols[C_MAX][cRow]) cols[C_MAX][cRow] = x;
+                if (y > cols[C_MAX + 1][cRow]) cols[C_MAX + 1][cRow] = y;
+                if (z > cols[C_MAX + 2][cRow]) cols[C_MAX + 2][cRow] = z;
+            } else {
+                cols[C_MIN][cRow] = x;
+                cols[C_MIN + 1][cRow] = y;
+                cols[C_MIN + 2][cRow] = z;
+                cols[C_MAX][cRow] = x;
+                cols[C_MAX + 1][cRow] = y;
+                cols[C_MAX + 2][cRow] = z;
+            }
+            flags[cRow] |= F_USED | F_SETMAX | F_STREAM;
+        }
+
+        /**
+         * The column version of GrayVoxels.addShapeVox, the center and principal components come
+         * from shapeSource
+         */
+        protected void addShapeVox(final int label, final double x, final double y,
+                                   final double z, final double pixVal) {
+            final ColumnStore src = shapeSource;
+            final int sRow = src.row(label, false);
+            if (sRow < 0) return;
+            final double meanx, meany, meanz;
+            if (noRecenter) {
+                meanx = 0;
+                meany = 0;
+                meanz = 0;
+            } else if (useWeights) {
+                meanx = src.cols[C_W][sRow] / src.cols[C_VALSUM][sRow];
+                meany = src.cols[C_W + 1][sRow] / src.cols[C_VALSUM][sRow];
+                meanz = src.cols[C_W + 2][sRow] / src.cols[C_VALSUM][sRow];
+            } else {
+                meanx = src.cols[C_X][sRow] / src.cols[C_COUNT][sRow];
+                meany = src.cols[C_X + 1][sRow] / src.cols[C_COUNT][sRow];
+                meanz = src.cols[C_X + 2][sRow] / src.cols[C_COUNT][sRow];
+            }
+            final int cRow = row(label, true);
+            final double w = useWeights ? pixVal : 1.0;
+            final double r2 = Math.pow(x - meanx, 2) + Math.pow(y - meany, 2)
+                    + Math.pow(z - meanz, 2);
+            cols[C_CR][cRow] += w * Math.sqrt(r2);
+            cols[C_CSR][cRow] += w * r2;
+            flags[cRow] |= F_USED;
+            if ((src.flags[sRow] & F_DIAGRUN) == 0) return;
+            final double[][] sDiag = src.diagCols;
+            for (int i = 0; i < 3; i++) {
+                final double p = sDiag[D_U + 3 * i][sRow] * x + sDiag[D_U + 3 * i + 1][sRow] * y
+                        + sDiag[D_U + 3 * i + 2][sRow] * z;
+                if ((flags[cRow] & F_SETPROJMAX) != 0) {
+                    if (p < cols[C_MINP + i][cRow]) cols[C_MINP + i][cRow] = p;
+                    if (p > cols[C_MAXP + i][cRow]) cols[C_MAXP + i][cRow] = p;
+                } else {
+                    cols[C_MINP + i][cRow] = p;
+                    cols[C_MAXP + i][cRow] = p;
+                }
+            }
+            flags[cRow] |= F_SETPROJMAX;
+        }
+
+        /**
+         * Create the GrayVoxels object used by get, can be overridden to give the labels a
+         * different value (scaled maps)
+         */
+        protected GrayVoxels createVoxels(final int label) {
+            return new GrayVoxels(label);
+        }
+
+        @Override
+        public GrayVoxels get(final int label) {
+            final GrayVoxels gvOut = createVoxels(label);
+            gvOut.useWeights = useWeights;
+            gvOut.noRecenter = noRecenter;
+            final int cRow = row(label, false);
+            if (cRow < 0) return gvOut;
+            gvOut.voxelCount = (int) cols[C_COUNT][cRow];
+            gvOut.curValSum = cols[C_VALSUM][cRow];
+            gvOut.curSqSum = cols[C_SQSUM][cRow];
+            gvOut.minVal = cols[C_MINVAL][cRow];
+            gvOut.maxVal = cols[C_MAXVAL][cRow];
+            gvOut.cx = cols[C_X][cRow];
+            gvOut.cy = cols[C_X + 1][cRow];
+            gvOut.cz = cols[C_X + 2][cRow];
+            gvOut.wx = cols[C_W][cRow];
+            gvOut.wy = cols[C_W + 1][cRow];
+            gvOut.wz = cols[C_W + 2][cRow];
+            gvOut.cx2 = cols[C_X2][cRow];
+            gvOut.cy2 = cols[C_X2 + 1][cRow];
+            gvOut.cz2 = cols[C_X2 + 2][cRow];
+            gvOut.cxy = cols[C_X2 + 3][cRow];
+            gvOut.cxz = cols[C_X2 + 4][cRow];
+            gvOut.cyz = cols[C_X2 + 5][cRow];
+            gvOut.s_meanx = cols[C_SMEAN][cRow];
+            gvOut.s_meany = cols[C_SMEAN + 1][cRow];
+            gvOut.s_meanz = cols[C_SMEAN + 2][cRow];
+            gvOut.s_weight = cols[C_SMEAN + 3][cRow];
+            gvOut.minX = cols[C_MIN][cRow];
+            gvOut.minY = cols[C_MIN + 1][cRow];
+            gvOut.minZ = cols[C_MIN + 2][cRow];
+            gvOut.maxX = cols[C_MAX][cRow];
+            gvOut.maxY = cols[C_MAX + 1][cRow];
+            gvOut.maxZ = cols[C_MAX + 2][cRow];
+            gvOut.cr = cols[C_CR][cRow];
+            gvOut.csr = cols[C_CSR][cRow];
+            gvOut.minP1 = cols[C_MINP][cRow];
+            gvOut.minP2 = cols[C_MINP + 1][cRow];
+            gvOut.minP3 = cols[C_MINP + 2][cRow];
+            gvOut.maxP1 = cols[C_MAXP][cRow];
+            gvOut.maxP2 = cols[C_MAXP + 1][cRow];
+            gvOut.maxP3 = cols[C_MAXP + 2][cRow];
+            final byte cFlags = flags[cRow];
+            gvOut.setMax = (cFlags & F_SETMAX) != 0;
+            gvOut.setProjMax = (cFlags & F_SETPROJMAX) != 0;
+            gvOut.streamMoments = (cFlags & F_STREAM) != 0;
+            gvOut.diagRun = (cFlags & F_DIAGRUN) != 0;
+            if (gvOut.diagRun) {
+                gvOut.U = new double[3][3];
+                gvOut.info = new double[3];
+                for (int i = 0; i < 3; i++) {
+                    for (int j = 0; j < 3; j++)
+                        gvOut.U[i][j] = diagCols[D_U + 3 * i + j][cRow];
+                    gvOut.info[i] = diagCols[D_INFO + i][cRow];
+                }
+            }
+            return gvOut;
+        }
+
+        @Override
+        public void set(final int label, final GrayVoxels gvSet) {
+            final int cRow = row(label, true);
+            cols[C_COUNT][cRow] = gvSet.voxelCount;
+            cols[C_VALSUM][cRow] = gvSet.curValSum;
+            cols[C_SQSUM][cRow] = gvSet.curSqSum;
+            cols[C_MINVAL][cRow] = gvSet.minVal;
+            cols[C_MAXVAL][cRow] = gvSet.maxVal;
+            cols[C_X][cRow] = gvSet.cx;
+            cols[C_X + 1][cRow] = gvSet.cy;
+            cols[C_X + 2][cRow] = gvSet.cz;
+            cols[C_W][cRow] = gvSet.wx;
+            cols[C_W + 1][cRow] = gvSet.wy;
+            cols[C_W + 2][cRow] = gvSet.wz;
+            cols[C_X2][cRow] = gvSet.cx2;
+            cols[C_X2 + 1][cRow] = gvSet.cy2;
+            cols[C_X2 + 2][cRow] = gvSet.cz2;
+            cols[C_X2 + 3][cRow] = gvSet.cxy;
+            cols[C_X2 + 4][cRow] = gvSet.cxz;
+            cols[C_X2 + 5][cRow] = gvSet.cyz;
+            cols[C_SMEAN][cRow] = gvSet.s_meanx;
+            cols[C_SMEAN + 1][cRow] = gvSet.s_meany;
+            cols[C_SMEAN + 2][cRow] = gvSet.s_meanz;
+            cols[C_SMEAN + 3][cRow] = gvSet.s_weight;
+            cols[C_MIN][cRow] = gvSet.minX;
+            cols[C_MIN + 1][cRow] = gvSet.minY;
+            cols[C_MIN + 2][cRow] = gvSet.minZ;
+            cols[C_MAX][cRow] = gvSet.maxX;
+            cols[C_MAX + 1][cRow] = gvSet.maxY;
+            cols[C_MAX + 2][cRow] = gvSet.maxZ;
+            cols[C_CR][cRow] = gvSet.cr;
+            cols[C_CSR][cRow] = gvSet.csr;
+            cols[C_MINP][cRow] = gvSet.minP1;
+            cols[C_MINP + 1][cRow] = gvSet.minP2;
+            cols[C_MINP + 2][cRow] = gvSet.minP3;
+            cols[C_MAXP][cRow] = gvSet.maxP1;
+            cols[C_MAXP + 1][cRow] = gvSet.maxP2;
+            cols[C_MAXP + 2][cRow] = gvSet.maxP3;
+            byte cFlags = F_USED;
+            if (gvSet.setMax) cFlags |= F_SETMAX;
+            if (gvSet.setProjMax) cFlags |= F_SETPROJMAX;
+            if (gvSet.streamMoments) cFlags |= F_STREAM;
+            if (gvSet.diagRun) {
+                cFlags |= F_DIAGRUN;
+                if (diagCols == null) {
+                    diagCols = new double[DIAG_COLUMNS][];
+                    for (int i = 0; i < DIAG_COLUMNS; i++) diagCols[i] = new double[capacity];
+                }
+                for (int i = 0; i < 3; i++) {
+                    for (int j = 0; j < 3; j++)
+                        diagCols[D_U + 3 * i + j][cRow] = gvSet.U[i][j];
+                    diagCols[D_INFO + i][cRow] = gvSet.info[i];
+                }
+            }
+            flags[cRow] = cFlags;
+        }
+
+        @Override
+        public GrayVoxelStore newPartial(final int operationMode) {
+            final ColumnStore partStore = newEmpty();
+            partStore.useWeights = useWeights;
+            partStore.noRecenter = noRecenter;
+            if (operationMode == 4) partStore.shapeSource = this;
+            return partStore;
+        }
+
+        @Override
+        public void mergePartial(final GrayVoxelStore partial, final int operationMode) {
+            final ColumnStore partStore = (ColumnStore) partial;
+            for (int cLabel : partStore.labels()) {
+                final GrayVoxels cVox = get(cLabel);
+                if (operationMode == 4) cVox.addShape(partStore.get(cLabel));
+                else cVox.add(partStore.get(cLabel));
+                set(cLabel, cVox);
+            }
+            partStore.clear();
+        }
+    }
+
+    /**
+     * Columns indexed directly by the label
+     */
+    public static class Dense extends ColumnStore {
+        protected int maxRow = 0;
+
+        public Dense(final int initialLabels) {
+            super(initialLabels);
+        }
+
+        @Override
+        protected int row(final int label, final boolean create) {
+            if (label >= capacity) {
+                if (!create) return -1;
+                ensureCapacity(label + 1);
+            }
+            if (create) {
+                if (label > maxRow) maxRow = label;
+            } else if ((flags[label] & F_USED) == 0) return -1;
+            return label;
+        }
+
+        @Override
+        protected void clear() {
+            clearRows(Math.min(maxRow + 1, capacity));
+            maxRow = 0;
+        }
+
+        @Override
+        protected ColumnStore newEmpty() {
+            return new Dense(16);
+        }
+
+        @Override
+        public int[] labels() {
+            int labelCount = 0;
+            for (int i = 0; i <= maxRow; i++) if ((flags[i] & F_USED) != 0) labelCount++;
+            final int[] outLabels = new int[labelCount];
+            labelCount = 0;
+            for (int i = 0; i <= maxRow; i++)
+                if ((flags[i] & F_USED) != 0) outLabels[labelCount++] = i;
+            return outLabels;
+        }
+
+        @Override
+        public int maxLabel() {
+            return maxRow;
+        }
+    }
+
+    /**
+     * Rows are appended as labels appear, the label to row mapping is an open-addressing hash
+     * table with linear probing (labels are always positive so 0 marks an empty slot)
+     */
+    public static class Sparse extends ColumnStore {
+        protected int[] keys;
+        protected int[] keyRows;
+        protected int rowCount = 0;
+        protected int maxKey = 0;
+
+        public Sparse(final int initialLabels) {
+            super(initialLabels);
+            final int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+            keys = new int[tableSize];
+            keyRows = new int[tableSize];
+        }
+
+        private static int slot(final int label, final int mask) {
+            int h = label * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        @Override
+        protected int row(final int label, final boolean create) {
+            int mask = keys.length - 1;
+            int cSlot = slot(label, mask);
+            while (keys[cSlot] != 0) {
+                if (keys[cSlot] == label) return keyRows[cSlot];
+                cSlot = (cSlot + 1) & mask;
+            }
+            if (!create) return -1;
+            if (2 * (rowCount + 1) > keys.length) {
+                rehash(2 * keys.length);
+                mask = keys.length - 1;
+                cSlot = slot(label, mask);
+                while (keys[cSlot] != 0) cSlot = (cSlot + 1) & mask;
+            }
+            ensureCapacity(rowCount + 1);
+            keys[cSlot] = label;
+            keyRows[cSlot] = rowCount;
+            if (label > maxKey) maxKey = label;
+            return rowCount++;
+        }
+
+        private void rehash(final int tableSize) {
+            final int[] oldKeys = keys;
+            final int[] oldRows = keyRows;
+            keys = new int[tableSize];
+            keyRows = new int[tableSize];
+            final int mask = tableSize - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int cSlot = slot(oldKeys[i], mask);
+                while (keys[cSlot] != 0) cSlot = (cSlot + 1) & mask;
+                keys[cSlot] = oldKeys[i];
+                keyRows[cSlot] = oldRows[i];
+            }
+        }
+
+        @Override
+        protected void clear() {
+            clearRows(rowCount);
+            Arrays.fill(keys, 0);
+            rowCount = 0;
+            maxKey = 0;
+        }
+
+        @Override
+        protected ColumnStore newEmpty() {
+            return new Sparse(16);
+        }
+
+        @Override
+        public int[] labels() {
+            final int[] outLabels = new int[rowCount];
+            int labelCount = 0;
+            for (int i = 0; i < keys.length; i++)
+                if ((keys[i] != 0) && ((flags[keyRows[i]] & F_USED) != 0))
+                    outLabels[labelCount++] = keys[i];
+            final int[] sortedLabels = Arrays.copyOf(outLabels, labelCount);
+            Arrays.sort(sortedLabels);
+            return sortedLabels;
+        }
+
+        @Override
+        public int maxLabel() {
+            return maxKey;
+        }
+    }
+}
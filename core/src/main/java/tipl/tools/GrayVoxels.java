@@ -18,6 +18,11 @@ import Jama.Matrix;
  * for standard deviations and shape tensor it must be run again with the 
  * addCovVox command
  * 
+ * Alternatively the addMomentVox command accumulates the counts, center of 
+ * volume, covariances and extents in a single pass using streaming (Welford) 
+ * updates, in which case only the radius and the extents along the principal 
+ * components (addShapeVox) need a second pass after diag.
+ * 
  */
 public class GrayVoxels implements Serializable {
 	int voxelCount;
@@ -76,6 +81,18 @@ public class GrayVoxels implements Serializable {
 	double minVal = 0;
 	double maxVal = 0;
 
+	/**
+	 * Running (weighted) center and total weight used by the single pass 
+	 * accumulation (addMomentVox), the covariance sums cx2..cyz are then 
+	 * co-moments around this center
+	 */
+	boolean streamMoments = false;
+	double s_meanx = 0;
+	double s_meany = 0;
+	double s_meanz = 0;
+	double s_weight = 0;
+	boolean setProjMax = false;
+
 	// Direction Vectors
 	double[][] U; // projection matrix
 	double[] info; // information matrix
@@ -106,9 +123,45 @@ public class GrayVoxels implements Serializable {
 
 	/**
 	 * Method to add two grayvoxels elements together A+=B -> A.add(B),
-	 * non-communative as properties are inheritied from A
+	 * non-communative as properties are inheritied from A. Covariances
+	 * accumulated with addMomentVox are combined using the pairwise update of
+	 * Chan et al. so partial results from different threads can be merged,
+	 * covariances from addCovVox are simply summed since they share a center
 	 */
 	public void add(final GrayVoxels gvAdd) {
+		if (gvAdd.voxelCount == 0)
+			return;
+		if (voxelCount == 0) {
+			copyStatistics(gvAdd);
+			return;
+		}
+		if (streamMoments && gvAdd.streamMoments && !noRecenter) {
+			final double nWeight = s_weight + gvAdd.s_weight;
+			if (gvAdd.s_weight > 0 && nWeight > 0) {
+				final double dx = gvAdd.s_meanx - s_meanx;
+				final double dy = gvAdd.s_meany - s_meany;
+				final double dz = gvAdd.s_meanz - s_meanz;
+				final double cross = s_weight * gvAdd.s_weight / nWeight;
+				final double f = gvAdd.s_weight / nWeight;
+				cx2 += gvAdd.cx2 + dx * dx * cross;
+				cy2 += gvAdd.cy2 + dy * dy * cross;
+				cz2 += gvAdd.cz2 + dz * dz * cross;
+				cxy += gvAdd.cxy + dx * dy * cross;
+				cxz += gvAdd.cxz + dx * dz * cross;
+				cyz += gvAdd.cyz + dy * dz * cross;
+				s_meanx += dx * f;
+				s_meany += dy * f;
+				s_meanz += dz * f;
+				s_weight = nWeight;
+			}
+		} else {
+			cx2 += gvAdd.cx2;
+			cy2 += gvAdd.cy2;
+			cz2 += gvAdd.cz2;
+			cxy += gvAdd.cxy;
+			cxz += gvAdd.cxz;
+			cyz += gvAdd.cyz;
+		}
 		cx += gvAdd.cx;
 		cy += gvAdd.cy;
 		cz += gvAdd.cz;
@@ -117,9 +170,273 @@ public class GrayVoxels implements Serializable {
 		wy += gvAdd.wy;
 		wz += gvAdd.wz;
 
+		cr += gvAdd.cr;
+		csr += gvAdd.csr;
+
 		curValSum += gvAdd.curValSum;
 		curSqSum += gvAdd.curSqSum;
-		voxelCount += voxelCount;
+		if (gvAdd.minVal < minVal)
+			minVal = gvAdd.minVal;
+		if (gvAdd.maxVal > maxVal)
+			maxVal = gvAdd.maxVal;
+		voxelCount += gvAdd.voxelCount;
+		cached_mean = -1;
+
+		if (gvAdd.setMax) {
+			if (setMax) {
+				minX = Math.min(minX, gvAdd.minX);
+				minY = Math.min(minY, gvAdd.minY);
+				minZ = Math.min(minZ, gvAdd.minZ);
+				maxX = Math.max(maxX, gvAdd.maxX);
+				maxY = Math.max(maxY, gvAdd.maxY);
+				maxZ = Math.max(maxZ, gvAdd.maxZ);
+			} else {
+				minX = gvAdd.minX;
+				minY = gvAdd.minY;
+				minZ = gvAdd.minZ;
+				maxX = gvAdd.maxX;
+				maxY = gvAdd.maxY;
+				maxZ = gvAdd.maxZ;
+				setMax = true;
+			}
+		}
+		final boolean hasProj = setProjMax || (setMax && !streamMoments);
+		if (gvAdd.setProjMax || (gvAdd.setMax && !gvAdd.streamMoments)) {
+			if (hasProj) {
+				minP1 = Math.min(minP1, gvAdd.minP1);
+				minP2 = Math.min(minP2, gvAdd.minP2);
+				minP3 = Math.min(minP3, gvAdd.minP3);
+				maxP1 = Math.max(maxP1, gvAdd.maxP1);
+				maxP2 = Math.max(maxP2, gvAdd.maxP2);
+				maxP3 = Math.max(maxP3, gvAdd.maxP3);
+			} else {
+				minP1 = gvAdd.minP1;
+				minP2 = gvAdd.minP2;
+				minP3 = gvAdd.minP3;
+				maxP1 = gvAdd.maxP1;
+				maxP2 = gvAdd.maxP2;
+				maxP3 = gvAdd.maxP3;
+			}
+			setProjMax = setProjMax || gvAdd.setProjMax;
+		}
+	}
+
+	/**
+	 * Create an empty element with the same center of volume and principal
+	 * components, used to collect the addShapeVox results of part of an image
+	 * which are then combined using addShape
+	 */
+	public GrayVoxels shapeCopy() {
+		final GrayVoxels gvOut = new GrayVoxels();
+		gvOut.label = label;
+		gvOut.labelType = labelType;
+		gvOut.useWeights = useWeights;
+		gvOut.noRecenter = noRecenter;
+		calcCOV();
+		gvOut.c_meanx = c_meanx;
+		gvOut.c_meany = c_meany;
+		gvOut.c_meanz = c_meanz;
+		gvOut.cached_mean = gvOut.voxelCount; // keep the center fixed
+		gvOut.diagRun = diagRun;
+		gvOut.U = U;
+		gvOut.info = info;
+		return gvOut;
+	}
+
+	/**
+	 * Add the radius and principal extent results of a shapeCopy to this
+	 * element
+	 */
+	public void addShape(final GrayVoxels gvAdd) {
+		cr += gvAdd.cr;
+		csr += gvAdd.csr;
+		if (!gvAdd.setProjMax)
+			return;
+		if (setProjMax) {
+			minP1 = Math.min(minP1, gvAdd.minP1);
+			minP2 = Math.min(minP2, gvAdd.minP2);
+			minP3 = Math.min(minP3, gvAdd.minP3);
+			maxP1 = Math.max(maxP1, gvAdd.maxP1);
+			maxP2 = Math.max(maxP2, gvAdd.maxP2);
+			maxP3 = Math.max(maxP3, gvAdd.maxP3);
+		} else {
+			minP1 = gvAdd.minP1;
+			minP2 = gvAdd.minP2;
+			minP3 = gvAdd.minP3;
+			maxP1 = gvAdd.maxP1;
+			maxP2 = gvAdd.maxP2;
+			maxP3 = gvAdd.maxP3;
+			setProjMax = true;
+		}
+	}
+
+	/**
+	 * Take over all of the accumulated statistics (but not the label) from another element
+	 */
+	private void copyStatistics(final GrayVoxels gvAdd) {
+		voxelCount = gvAdd.voxelCount;
+		curValSum = gvAdd.curValSum;
+		curSqSum = gvAdd.curSqSum;
+		minVal = gvAdd.minVal;
+		maxVal = gvAdd.maxVal;
+		cx = gvAdd.cx;
+		cy = gvAdd.cy;
+		cz = gvAdd.cz;
+		wx = gvAdd.wx;
+		wy = gvAdd.wy;
+		wz = gvAdd.wz;
+		cx2 = gvAdd.cx2;
+		cy2 = gvAdd.cy2;
+		cz2 = gvAdd.cz2;
+		cxy = gvAdd.cxy;
+		cxz = gvAdd.cxz;
+		cyz = gvAdd.cyz;
+		cr = gvAdd.cr;
+		csr = gvAdd.csr;
+		streamMoments = gvAdd.streamMoments;
+		s_meanx = gvAdd.s_meanx;
+		s_meany = gvAdd.s_meany;
+		s_meanz = gvAdd.s_meanz;
+		s_weight = gvAdd.s_weight;
+		setMax = gvAdd.setMax;
+		minX = gvAdd.minX;
+		minY = gvAdd.minY;
+		minZ = gvAdd.minZ;
+		maxX = gvAdd.maxX;
+		maxY = gvAdd.maxY;
+		maxZ = gvAdd.maxZ;
+		setProjMax = gvAdd.setProjMax;
+		minP1 = gvAdd.minP1;
+		minP2 = gvAdd.minP2;
+		minP3 = gvAdd.minP3;
+		maxP1 = gvAdd.maxP1;
+		maxP2 = gvAdd.maxP2;
+		maxP3 = gvAdd.maxP3;
+		cached_mean = -1;
+	}
+
+	/**
+	 * Single pass accumulation of a voxel: value statistics, center of volume
+	 * (and mass), covariances (inertial tensor) and the extents along x,y,z.
+	 * The covariances are updated with the streaming (Welford) form so no
+	 * second pass is needed for them, only radius and the extents along the
+	 * principal components require addShapeVox after diag
+	 * 
+	 * @param x position
+	 * @param y position
+	 * @param z position
+	 * @param pixVal the value of the pixel
+	 */
+	public void addMomentVox(final double x, final double y, final double z,
+			final double pixVal) {
+		cx += x;
+		cy += y;
+		cz += z;
+
+		wx += x * pixVal;
+		wy += y * pixVal;
+		wz += z * pixVal;
+
+		addVox(pixVal);
+		streamMoments = true;
+
+		final double w = useWeights ? pixVal : 1.0;
+		if (noRecenter) {
+			cx2 += w * x * x;
+			cy2 += w * y * y;
+			cz2 += w * z * z;
+			cxy += w * x * y;
+			cxz += w * x * z;
+			cyz += w * y * z;
+		} else if (w != 0) {
+			s_weight += w;
+			final double f = w / s_weight;
+			final double dx = x - s_meanx;
+			final double dy = y - s_meany;
+			final double dz = z - s_meanz;
+			s_meanx += dx * f;
+			s_meany += dy * f;
+			s_meanz += dz * f;
+			final double ex = x - s_meanx;
+			final double ey = y - s_meany;
+			final double ez = z - s_meanz;
+			cx2 += w * dx * ex;
+			cy2 += w * dy * ey;
+			cz2 += w * dz * ez;
+			cxy += w * dx * ey;
+			cxz += w * dx * ez;
+			cyz += w * dy * ez;
+		}
+
+		if (setMax) {
+			if (x < minX)
+				minX = x;
+			if (y < minY)
+				minY = y;
+			if (z < minZ)
+				minZ = z;
+			if (x > maxX)
+				maxX = x;
+			if (y > maxY)
+				maxY = y;
+			if (z > maxZ)
+				maxZ = z;
+		} else {
+			minX = x;
+			maxX = x;
+			minY = y;
+			maxY = y;
+			minZ = z;
+			maxZ = z;
+			setMax = true;
+		}
+	}
+
+	/**
+	 * Second pass for a single pass accumulation (addMomentVox), calculates the
+	 * radius statistics around the center of volume and the extents along the
+	 * principal components (if diag has been run)
+	 * 
+	 * @param x position
+	 * @param y position
+	 * @param z position
+	 * @param pixVal the value of the pixel
+	 */
+	public void addShapeVox(final double x, final double y, final double z,
+			final double pixVal) {
+		calcCOV();
+		final double w = useWeights ? pixVal : 1.0;
+		final double r2 = Math.pow(x - c_meanx, 2) + Math.pow(y - c_meany, 2)
+				+ Math.pow(z - c_meanz, 2);
+		cr += w * Math.sqrt(r2);
+		csr += w * r2;
+		if (!diagRun)
+			return;
+		final double p1 = U[0][0] * x + U[0][1] * y + U[0][2] * z;
+		final double p2 = U[1][0] * x + U[1][1] * y + U[1][2] * z;
+		final double p3 = U[2][0] * x + U[2][1] * y + U[2][2] * z;
+		if (setProjMax) {
+			if (p1 < minP1)
+				minP1 = p1;
+			if (p2 < minP2)
+				minP2 = p2;
+			if (p3 < minP3)
+				minP3 = p3;
+			if (p1 > maxP1)
+				maxP1 = p1;
+			if (p2 > maxP2)
+				maxP2 = p2;
+			if (p3 > maxP3)
+				maxP3 = p3;
+		} else {
+			minP1 = p1;
+			maxP1 = p1;
+			minP2 = p2;
+			maxP2 = p2;
+			minP3 = p3;
+			maxP3 = p3;
+			setProjMax = true;
+		}
 	}
 
 	/**
@@ -178,8 +495,9 @@ public class GrayVoxels implements Serializable {
 		cr += pixVal
 				* Math.sqrt(Math.pow(x - c_meanx, 2) + Math.pow(y - c_meany, 2)
 						+ Math.pow(z - c_meanz, 2));
-		csr += pixVal * Math.pow(x - c_meanx, 2) + Math.pow(y - c_meany, 2)
-				+ Math.pow(z - c_meanz, 2);
+		csr += pixVal
+				* (Math.pow(x - c_meanx, 2) + Math.pow(y - c_meany, 2) + Math.pow(
+						z - c_meanz, 2));
 		return 1;
 	}
 
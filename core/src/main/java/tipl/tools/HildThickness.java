@@ -10,7 +10,8 @@ import java.util.ArrayList;
 public class HildThickness extends Thickness {
 	@TIPLPluginManager.PluginInfo(pluginType = "HildThickness",
 			desc="Full memory hildebrand thickness",
-			sliceBased=false)
+			sliceBased=false,
+			maximumSize=-1)
     final public static class hthickFactory implements TIPLPluginManager.TIPLPluginFactory {
 		@Override
 		public ITIPLPlugin get() {
@@ -201,7 +202,7 @@ public class HildThickness extends Thickness {
 			DTO(inAimFile, outDistFile, outAimFile, histoFile, profileFile);
 	}
 
-	public boolean[] diffmask;
+	public ChunkedVolume.Bool diffmask;
 	public int maxlabel;
 	public int unfilledVox = 0;
 
@@ -212,9 +213,9 @@ public class HildThickness extends Thickness {
 	public int SKIPFILLING = 3;
 	protected boolean isDiffMaskReady = false;
 
-	int remVoxels = aimLength;
+	long remVoxels = aimLength;
 
-	int totalVoxels = aimLength;
+	long totalVoxels = aimLength;
 	public int bubbleCount = 0;
 
 	private HildThickness() {
@@ -276,8 +277,7 @@ public class HildThickness extends Thickness {
 	/** export the bubble seeds if anyone actually wants them */
 	public TImg ExportRidgeAim(final TImgRO.CanExport templateAim) {
 		if (isDiffMaskReady) {
-			final TImg outAimData = templateAim.inheritedAim(diffmask, dim,
-					offset);
+			final TImg outAimData = diffmask.toTImg(templateAim, offset);
 			outAimData.appendProcLog(procLog);
 			return outAimData;
 		} else {
@@ -296,9 +296,9 @@ public class HildThickness extends Thickness {
 	}
 
 	protected void Init(final D3int idim, final D3int ioffset) {
-		outAim = new int[aimLength];
-		System.arraycopy(inAim, 0, outAim, 0, inAim.length);
-		diffmask = new boolean[aimLength];
+		outAim = new ChunkedVolume.Int(idim);
+		outAim.copyFrom(inAim);
+		diffmask = new ChunkedVolume.Bool(idim);
 		InitDims(idim, ioffset);
 		InitDiffmask();
 	}
@@ -353,21 +353,14 @@ public class HildThickness extends Thickness {
 			throw new IllegalArgumentException(
 					"Too few arguments for LoadImages in:" + getPluginName());
 		final TImgRO inImg = inImages[0];
-		final int[] inputmap = TImgTools.makeTImgFullReadable(inImg)
-				.getIntAim();
-		aimLength = inputmap.length;
-		if (Thickness.doPreserveInput) {
-			inAim = new int[aimLength];
-			System.arraycopy(inputmap, 0, inAim, 0, aimLength);
-		} else {
-			inAim = inputmap;
-		}
+		inAim = ChunkedVolume.Int.fromTImg(inImg);
+		aimLength = inAim.length();
 		Init(inImg.getDim(), inImg.getOffset());
 	}
 
 	private int locateSeeds(final int startSlice, final int finalSlice) {
 		final D3int iNeighborSize = new D3int(2);
-		int off = 0;
+		long off = 0;
 		double avgGrad = 0;
 		double avgDGrad = 0;
 		double avgSGrad = 0;
@@ -375,13 +368,16 @@ public class HildThickness extends Thickness {
 		unfilledVox = 0;
 		int ridgeCnt = 0;
 		final double cFLATCRIT = FLATCRIT;
+		// the words at the ends of the slab are shared with the neighboring threads
+		final long slabStart = diffmask.index(0, 0, startSlice);
+		final long slabEnd = diffmask.index(0, 0, finalSlice);
 		for (int z = startSlice; z < finalSlice; z++) {
 			for (int y = lowy + OUTERSHELL; y < (uppy - OUTERSHELL); y++) {
-				off = (z * dim.y + y) * dim.x + lowx + OUTERSHELL;
+				off = inAim.index(lowx, y, z) + OUTERSHELL;
 				for (int x = lowx + OUTERSHELL; x < (uppx - OUTERSHELL); x++, off++) {
 					// The code is optimized so the least number of voxels make
 					// it past the first check
-					final float cVDist = (float) distScalar * inAim[off];
+					final float cVDist = (float) distScalar * inAim.get(off);
 
 					if (((cVDist) > MINWALLDIST)) {
 						unfilledVox++;
@@ -391,8 +387,7 @@ public class HildThickness extends Thickness {
 								z + iNeighborSize.z, uppz - 1); z2++) {
 							for (int y2 = max(y - iNeighborSize.y, lowy); y2 <= min(
 									y + iNeighborSize.y, uppy - 1); y2++) {
-								int off2 = (z2 * dim.y + y2) * dim.x
-										+ max(x - iNeighborSize.x, lowx);
+								long off2 = inAim.index(max(x - iNeighborSize.x, lowx), y2, z2);
 								for (int x2 = max(x - iNeighborSize.x, lowx); x2 <= min(
 										x + iNeighborSize.x, uppx - 1); x2++, off2++) {
 									if (off != off2) {
@@ -400,9 +395,9 @@ public class HildThickness extends Thickness {
 												&& (Math.abs(x2 - x) <= 1)
 												&& (Math.abs(x2 - x) <= 1)) { // Local
 																				// gradient
-											gradX += (x2 - x) * (inAim[off2]);
-											gradY += (y2 - y) * (inAim[off2]);
-											gradZ += (z2 - z) * (inAim[off2]);
+											gradX += (x2 - x) * (inAim.get(off2));
+											gradY += (y2 - y) * (inAim.get(off2));
+											gradZ += (z2 - z) * (inAim.get(off2));
 											gradCount++;
 										}
 
@@ -436,7 +431,7 @@ public class HildThickness extends Thickness {
 						inVox++;
 						if ((cGrad <= cFLATCRIT)) {
 							// System.out.println("GradVal:"+cGrad+"->("+gradX+", "+gradY+", "+gradZ+"), "+gradCount+", Lap:"+lapVal+", LC"+lapCount);
-							diffmask[off] = true;
+							diffmask.set(off, true, slabStart, slabEnd);
 							ridgeCnt++;
 							avgDGrad += cGrad;
 						}
@@ -475,12 +470,12 @@ public class HildThickness extends Thickness {
 				System.out.println("RGRunning:, <" + startSlice + ", "
 						+ endSlice + ">:" + z + ", " + cBubbleCount);
 			for (int y = lowy + OUTERSHELL; y < (uppy + OUTERSHELL); y++) {
-				int off = (z * dim.y + y) * dim.x + lowx + OUTERSHELL;
+				long off = inAim.index(lowx, y, z) + OUTERSHELL;
 				for (int x = lowx + OUTERSHELL; x < (uppx + OUTERSHELL); x++, off++) {
-					if (diffmask[off]) {
-						if (inAim[off] > 0) {
+					if (diffmask.get(off)) {
+						if (inAim.get(off) > 0) {
 							if ((cBubbleCount % cSKIPFILLING) == 0) {
-								final double nVal = (inAim[off]) * distScalar;
+								final double nVal = (inAim.get(off)) * distScalar;
 								final boolean useSync = ((z + nVal) >= endSlice)
 										| ((z - nVal) < startSlice);
 								fillBubble(x, y, z, nVal, useSync);
@@ -15,7 +15,8 @@ import java.util.Random;
 public class MCThickness extends Thickness {
 	@TIPLPluginManager.PluginInfo(pluginType = "MCThickness",
 			desc="Full memory monte carlo thickness calculation tool",
-			sliceBased=false)
+			sliceBased=false,
+			maximumSize=-1)
     final public static class mcthickFactory implements TIPLPluginManager.TIPLPluginFactory {
 		@Override
 		public ITIPLPlugin get() {
@@ -181,10 +182,10 @@ public class MCThickness extends Thickness {
 		final int[] outVar = new int[3];
 		for (int z = startSlice + OUTERSHELL; z < (endSlice + OUTERSHELL); z++) {
 			for (int y = lowy + OUTERSHELL; y < (uppy + OUTERSHELL); y++) {
-				int off = (z * dim.y + y) * dim.x + lowx + OUTERSHELL;
+				long off = inAim.index(lowx, y, z) + OUTERSHELL;
 				for (int x = lowx + OUTERSHELL; x < (uppx + OUTERSHELL); x++, off++) {
-					if (inAim[off] > bigValue) {
-						bigValue = inAim[off];
+					if (inAim.get(off) > bigValue) {
+						bigValue = inAim.get(off);
 						outVar[0] = x;
 						outVar[1] = y;
 						outVar[2] = z;
@@ -222,8 +223,8 @@ public class MCThickness extends Thickness {
 
 	@Override
 	protected void InitLabels(final D3int idim, final D3int ioffset) {
-		outAim = new int[aimLength];
-		System.arraycopy(inAim, 0, outAim, 0, inAim.length);
+		outAim = new ChunkedVolume.Int(idim);
+		outAim.copyFrom(inAim);
 		InitDims(idim, ioffset);
 
 	}
@@ -256,10 +257,10 @@ public class MCThickness extends Thickness {
 				final int x = sPos[0];
 				final int y = sPos[1];
 				final int z = sPos[2];
-				final int off = (z * dim.y + y) * dim.x + x;
-				if (inAim[off] > 0) {
+				final long off = inAim.index(x, y, z);
+				if (inAim.get(off) > 0) {
 
-					final int myDist = inAim[off];
+					final int myDist = inAim.get(off);
 					/** the distance of the current point away from the edge */
 					final double cMaxVal = (myDist) * distScalar;
 					if (rundi % bestFrequency == 0) {
@@ -316,13 +317,13 @@ public class MCThickness extends Thickness {
 		final int mthkDist = (int) Math.floor((MINTHICKNESS / distScalar));
 		for (int z = lowz; z < (uppz); z++) {
 			for (int y = lowy; y < (uppy); y++) {
-				int off = (z * dim.y + y) * dim.x + lowx;
+				long off = inAim.index(lowx, y, z);
 				for (int x = lowx; x < (uppx); x++, off++) {
-					if (outAim[off] < mthkDist) {
+					if (outAim.get(off) < mthkDist) {
 						if (useSync)
 							synWriteOut(off, 0);
 						else
-							outAim[off] = 0;
+							outAim.set(off, 0);
 					}
 				}
 			}
@@ -0,0 +1,350 @@
+package tipl.tools;
+
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+import tipl.util.*;
+
+import java.util.Arrays;
+
+/**
+ * A median (or any other percentile) filter for 8-bit, 16-bit and binary
+ * images. Rather than collecting and sorting the neighborhood for every voxel
+ * (see {@link BaseTIPLPluginIn#medianFilter}) a histogram of the window is kept
+ * and only updated with the plane of voxels entering and leaving it as the
+ * window slides through the slice (Huang / Perreault-Hebert). The slices are
+ * divided into slabs which are filtered independently using runMulticore.
+ *
+ * @author Kevin Mader
+ */
+public class MedianFilter extends BaseTIPLPluginMult {
+	@TIPLPluginManager.PluginInfo(pluginType = "Median",
+			desc="Full memory histogram-based median / percentile filter",
+			sliceBased=false,
+			maximumSize=1024*1024*1024,
+			bytesPerVoxel=-1)
+    final public static class mfFactory implements TIPLPluginManager.TIPLPluginFactory {
+		@Override
+		public ITIPLPlugin get() {
+			return new MedianFilter();
+		}
+	};
+
+	/** number of bins in the fine histogram grouped into one coarse bin */
+	protected static final int COARSE_SHIFT = 8;
+	/** offset to move signed short values into the histogram bins */
+	protected static final int SHORT_OFFSET = 32768;
+
+	/** half-size of the window in each direction */
+	public D3int radius = new D3int(1, 1, 1);
+	/** the percentile to take from the window (50 is the median) */
+	public double percentile = 50;
+
+	/** the input image as (unsigned) histogram bins */
+	protected char[] inBins;
+	/** number of histogram bins needed for the input type */
+	protected int binCount;
+	/** the filtered image as histogram bins */
+	protected char[] outBins;
+
+	/** Output images */
+	public boolean[] outAimMask;
+	/** Output images */
+	public char[] outAimByte;
+	/** Output images */
+	public short[] outAimShort;
+
+	public MedianFilter() {
+	}
+
+	@Override
+	public ArgumentParser setParameter(final ArgumentParser p,
+			final String prefix) {
+		radius = p.getOptionD3int(prefix + "radius", radius,
+				"Half-size of the filter window in each direction");
+		percentile = p.getOptionDouble(prefix + "percentile", percentile,
+				"Percentile of the window to use (50 is the median)", 0, 100);
+		return p;
+	}
+
+	@Override
+	public String getPluginName() {
+		return "MedianFilter";
+	}
+
+	@Override
+	public boolean execute() {
+		if (Thread.currentThread() != launchThread)
+			return runMulticore();
+		if (!isInitialized)
+			throw new IllegalArgumentException(getPluginName()
+					+ " has not been initialized with an image");
+		System.out.println("MedianFilter: Radius:" + radius + ", Percentile:"
+				+ percentile + ", Bins:" + binCount);
+		procLog += "CMD:MedianFilter: Radius:" + radius + ", Percentile:"
+				+ percentile + "\n";
+		outBins = Arrays.copyOf(inBins, inBins.length);
+		runMulticore();
+		runAll();
+		return true;
+	}
+
+	@Override
+	public void processWork(final Object currentWork) {
+		final int[] range = (int[]) currentWork;
+		final int bSlice = range[0];
+		final int tSlice = range[1];
+		filterSlab(bSlice, tSlice);
+	}
+
+	/**
+	 * Filter the slices from bSlice up to (not including) tSlice. Every slice
+	 * is traversed as a snake, along x then one step in y and back along x, so
+	 * the window only ever moves by one voxel and the histogram is only
+	 * rebuilt once per slice.
+	 */
+	protected void filterSlab(final int bSlice, final int tSlice) {
+		final int[] hist = new int[((binCount >> COARSE_SHIFT) + 1) << COARSE_SHIFT];
+		final int[] coarse = new int[hist.length >> COARSE_SHIFT];
+		final SlidingWindow cWindow = new SlidingWindow(hist, coarse);
+		final int rx = radius.x, ry = radius.y, rz = radius.z;
+		final double frac = Math.min(Math.max(percentile, 0), 100) / 100.0;
+		final int nx = dim.x, ny = dim.y;
+		if ((uppx <= lowx) || (uppy <= lowy))
+			return;
+
+		for (int z = bSlice; z < tSlice; z++) {
+			final int z0 = Math.max(z - rz, 0);
+			final int z1 = Math.min(z + rz, dim.z - 1);
+			Arrays.fill(hist, 0);
+			Arrays.fill(coarse, 0);
+			cWindow.reset();
+			int x = lowx;
+			cWindow.addBox(Math.max(x - rx, 0), Math.min(x + rx, nx - 1),
+					Math.max(lowy - ry, 0), Math.min(lowy + ry, ny - 1), z0, z1);
+			for (int y = lowy; y < uppy; y++) {
+				final boolean forward = ((y - lowy) % 2 == 0);
+				final int yy0 = Math.max(y - ry, 0);
+				final int yy1 = Math.min(y + ry, ny - 1);
+				final int rowOff = (z * ny + y) * nx;
+				while (true) {
+					outBins[rowOff + x] = (char) cWindow
+							.getRank((int) (frac * (cWindow.count - 1)));
+					if (forward ? (x + 1 >= uppx) : (x - 1 < lowx))
+						break;
+					if (forward) {
+						if (x - rx >= 0)
+							cWindow.removeBox(x - rx, x - rx, yy0, yy1, z0, z1);
+						if (x + 1 + rx < nx)
+							cWindow.addBox(x + 1 + rx, x + 1 + rx, yy0, yy1, z0, z1);
+						x++;
+					} else {
+						if (x + rx < nx)
+							cWindow.removeBox(x + rx, x + rx, yy0, yy1, z0, z1);
+						if (x - 1 - rx >= 0)
+							cWindow.addBox(x - 1 - rx, x - 1 - rx, yy0, yy1, z0, z1);
+						x--;
+					}
+				}
+				// step down one row at the current x position
+				if (y + 1 < uppy) {
+					final int xx0 = Math.max(x - rx, 0);
+					final int xx1 = Math.min(x + rx, nx - 1);
+					if (y - ry >= 0)
+						cWindow.removeBox(xx0, xx1, y - ry, y - ry, z0, z1);
+					if (y + 1 + ry < ny)
+						cWindow.addBox(xx0, xx1, y + 1 + ry, y + 1 + ry, z0, z1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The histogram of the current window with a running pointer to the last
+	 * rank which was looked up. Since neighboring windows have nearly the
+	 * same distribution the pointer only moves a few bins (or a few coarse
+	 * blocks of 256 bins) between voxels.
+	 */
+	protected class SlidingWindow {
+		final int[] hist;
+		final int[] coarse;
+		/** number of voxels in the window */
+		int count;
+		/** the bin the pointer is at */
+		int level;
+		/** the number of voxels in bins below level */
+		int below;
+
+		SlidingWindow(final int[] ihist, final int[] icoarse) {
+			hist = ihist;
+			coarse = icoarse;
+		}
+
+		void reset() {
+			count = 0;
+			level = 0;
+			below = 0;
+		}
+
+		void addBox(final int x0, final int x1, final int y0, final int y1,
+				final int z0, final int z1) {
+			for (int z = z0; z <= z1; z++) {
+				for (int y = y0; y <= y1; y++) {
+					final int off = (z * dim.y + y) * dim.x;
+					for (int x = x0; x <= x1; x++) {
+						final int v = inBins[off + x];
+						hist[v]++;
+						coarse[v >> COARSE_SHIFT]++;
+						if (v < level)
+							below++;
+						count++;
+					}
+				}
+			}
+		}
+
+		void removeBox(final int x0, final int x1, final int y0,
+				final int y1, final int z0, final int z1) {
+			for (int z = z0; z <= z1; z++) {
+				for (int y = y0; y <= y1; y++) {
+					final int off = (z * dim.y + y) * dim.x;
+					for (int x = x0; x <= x1; x++) {
+						final int v = inBins[off + x];
+						hist[v]--;
+						coarse[v >> COARSE_SHIFT]--;
+						if (v < level)
+							below--;
+						count--;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @param rank
+		 *            the (0-based) position in the sorted window
+		 * @return the bin holding that rank
+		 */
+		int getRank(final int rank) {
+			final int blockSize = 1 << COARSE_SHIFT;
+			while (below > rank) {
+				final int cBlock = level >> COARSE_SHIFT;
+				if (((level & (blockSize - 1)) == 0)
+						&& (below - coarse[cBlock - 1] > rank)) {
+					below -= coarse[cBlock - 1];
+					level -= blockSize;
+				} else {
+					level--;
+					below -= hist[level];
+				}
+			}
+			while (below + hist[level] <= rank) {
+				final int cBlock = level >> COARSE_SHIFT;
+				if (((level & (blockSize - 1)) == 0)
+						&& (below + coarse[cBlock] <= rank)) {
+					below += coarse[cBlock];
+					level += blockSize;
+				} else {
+					below += hist[level];
+					level++;
+				}
+			}
+			return level;
+		}
+	}
+
+	@Override
+	public TImg[] ExportImages(final TImgRO inImage) {
+		final TImgRO.CanExport templateAim = TImgTools.makeTImgExportable(inImage);
+		if (isInitialized) {
+			if (runCount > 0) {
+				final TImg outAim;
+				switch (imageType) {
+				case TImgTools.IMAGETYPE_BOOL:
+					outAim = templateAim.inheritedAim(outAimMask, dim, offset);
+					break;
+				case TImgTools.IMAGETYPE_CHAR:
+					outAim = templateAim.inheritedAim(outAimByte, dim, offset);
+					break;
+				case TImgTools.IMAGETYPE_SHORT:
+					outAim = templateAim.inheritedAim(outAimShort, dim, offset);
+					break;
+				default:
+					throw new IllegalArgumentException(getPluginName()
+							+ ": Type " + imageType + " is not supported");
+				}
+				outAim.appendProcLog(procLog);
+				return new TImg[] { outAim };
+			} else {
+				System.err.println("The plug-in : " + getPluginName()
+						+ ", has not yet been run, exported does not exactly make sense");
+				return null;
+			}
+		} else {
+			System.err.println("The plug-in : " + getPluginName()
+					+ ", has not yet been initialized, exported does not make any sense");
+			return null;
+		}
+	}
+
+	@Override
+	protected void InitByte() {
+		inBins = inAimByte;
+		binCount = 256;
+	}
+
+	@Override
+	protected void InitFloat() {
+		throw new IllegalArgumentException(getPluginName()
+				+ " only supports 8-bit, 16-bit and binary images, use the median filter in FilterScale for float data");
+	}
+
+	@Override
+	protected void InitInt() {
+		throw new IllegalArgumentException(getPluginName()
+				+ " only supports 8-bit, 16-bit and binary images, use the median filter in FilterScale for int data");
+	}
+
+	@Override
+	protected void InitMask() {
+		inBins = new char[inAimMask.length];
+		for (int i = 0; i < inAimMask.length; i++)
+			inBins[i] = inAimMask[i] ? (char) 1 : (char) 0;
+		binCount = 2;
+	}
+
+	@Override
+	protected void InitShort() {
+		inBins = new char[inAimShort.length];
+		for (int i = 0; i < inAimShort.length; i++)
+			inBins[i] = (char) (inAimShort[i] + SHORT_OFFSET);
+		binCount = 65536;
+	}
+
+	@Override
+	protected void runByte() {
+		outAimByte = outBins;
+	}
+
+	@Override
+	protected void runFloat() {
+	}
+
+	@Override
+	protected void runInt() {
+	}
+
+	@Override
+	protected void runMask() {
+		outAimMask = new boolean[outBins.length];
+		for (int i = 0; i < outBins.length; i++)
+			outAimMask[i] = outBins[i] > 0;
+	}
+
+	@Override
+	protected void runShort() {
+		outAimShort = new short[outBins.length];
+		for (int i = 0; i < outBins.length; i++)
+			outAimShort[i] = (short) (outBins[i] - SHORT_OFFSET);
+	}
+
+}
@@ -12,7 +12,8 @@ import tipl.util.*;
 public class Morpho extends BaseTIPLPluginBW {
     @TIPLPluginManager.PluginInfo(pluginType = "Morpho",
             desc = "Full memory morphological operations",
-            sliceBased = false)
+            sliceBased = false,
+            maximumSize = -1)
     final public static class morphoFactory implements TIPLPluginManager.TIPLPluginFactory {
         @Override
         public ITIPLPlugin get() {
@@ -23,7 +24,7 @@ public class Morpho extends BaseTIPLPluginBW {
      * Not yet implemented but will be a mask indicating protected voxels which
      * cannot be changed during operations
      */
-    public boolean[] morphMask; // A mask indicating which pixels may be changed
+    public ChunkedVolume.Bool morphMask; // A mask indicating which pixels may be changed
     public String procLog = "";
     public boolean supportsThreading = true;
     /**
@@ -42,6 +43,18 @@ public class Morpho extends BaseTIPLPluginBW {
      * copied to input before the next)
      */
     boolean lastInOutput = false;
+    /**
+     * use the {@link MorphoEngine} (separable box, distance map for spheres)
+     * when it gives the same result as scanning the neighborhood, that is with
+     * 100% occupancy and no mask
+     */
+    public boolean useFastMorph = true;
+    /**
+     * The largest box radius run with the bit-packed kernels of {@link BitVolume},
+     * they shift whole words once per voxel of radius so larger boxes are
+     * faster with the running min/max of the {@link MorphoEngine}
+     */
+    public int bitMorphMaxRadius = 32;
 
     public Morpho() {
 
@@ -99,6 +112,12 @@ public class Morpho extends BaseTIPLPluginBW {
     @Deprecated
     public void closeMany(final int iterations) {
         System.out.println("CloseOperation-" + iterations);
+        if ((iterations > 1) && isIdempotent()) {
+            procLog += "CMD:Close: a closing is idempotent, " + iterations + " iterations run once\n";
+            dilate();
+            erode();
+            return;
+        }
         for (int i = 0; i < iterations; i++) {
             dilate();
             erode();
@@ -125,12 +144,12 @@ public class Morpho extends BaseTIPLPluginBW {
     @Deprecated
     public void dilate() {
         if (lastInOutput) {
-            System.arraycopy(outAim, 0, inAim, 0, aimLength);
+            inAim.copyFrom(outAim);
             TIPLGlobal.runGC();
             lastInOutput = false;
         }
         curOperation = 1;
-        runMulticore();
+        if (!fastMorph(true)) runMulticore();
         curOperation = 0;
 
         procLog += "CMD:Dilation :N" + neighborSize + ", @ > "
@@ -157,6 +176,11 @@ public class Morpho extends BaseTIPLPluginBW {
 
     @Deprecated
     public void dilateMany(final int iterations) {
+        if ((iterations > 1) && canUseFastMorph()
+                && MorphoEngine.isBox(neighborKernel, neighborSize)) {
+            runAsOneBox(iterations, true);
+            return;
+        }
         for (int i = 0; i < iterations; i++)
             dilate();
     }
@@ -182,9 +206,9 @@ public class Morpho extends BaseTIPLPluginBW {
      * Dilate code, not suitable for external use!
      */
     protected void dilateSection(final int bSlice, final int tSlice) {
-        int cVox = 0;
-        int sVox = 0;
-        int off = 0;
+        long cVox = 0;
+        long sVox = 0;
+        long off = 0;
         double mNeighs = 0.0;
         double mNeighsCnt = 0.0;
 
@@ -195,37 +219,39 @@ public class Morpho extends BaseTIPLPluginBW {
         else
             curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
 
+        // the words at the ends of the slab are shared with the neighboring threads
+        final long slabStart = outAim.index(0, 0, bSlice);
+        final long slabEnd = outAim.index(0, 0, tSlice);
         for (int z = bSlice; z < tSlice; z++) {
             for (int y = lowy; y < uppy; y++) {
-                off = (z * dim.y + y) * dim.x + lowx;
+                off = inAim.index(lowx, y, z);
                 for (int x = lowx; x < uppx; x++, off++) {
 
-                    outAim[off] = false;
-                    if (inAim[off])
+                    outAim.set(off, false, slabStart, slabEnd);
+                    if (inAim.get(off))
                         cVox++;
 
                     int nCount = 0;
                     int nFull = 0;
-                    int off2;
-                    boolean runVoxel = !inAim[off]; // only run if the voxel is
+                    long off2;
+                    boolean runVoxel = !inAim.get(off); // only run if the voxel is
                     // currently off (otherwise
                     // leave it on)
                     if (useMask)
-                        if (!morphMask[off])
+                        if (!morphMask.get(off))
                             runVoxel = false;
                     if (runVoxel) {
                         for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                 z + neighborSize.z, uppz - 1); z2++) {
                             for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
                                     y + neighborSize.y, uppy - 1); y2++) {
-                                off2 = (z2 * dim.y + y2) * dim.x
-                                        + max(x - neighborSize.x, lowx);
+                                off2 = inAim.index(max(x - neighborSize.x, lowx), y2, z2);
                                 for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
                                         x + neighborSize.x, uppx - 1); x2++, off2++) {
-                                    if (curKernel.inside(off, off2, x, x2, y,
+                                    if (curKernel.inside(0, (int) (off2 - off), x, x2, y,
                                             y2, z, z2)) {
                                         nCount++;
-                                        if (inAim[off2])
+                                        if (inAim.get(off2))
                                             nFull++;
                                     }
                                 }
@@ -238,12 +264,12 @@ public class Morpho extends BaseTIPLPluginBW {
                             // if the number of filled neighbors is greater than
                             // (1-neighborOccupancy) default is if any neighbors
                             // are filled
-                            outAim[off] = true;
+                            outAim.set(off, true, slabStart, slabEnd);
                         } else
-                            outAim[off] = false;
+                            outAim.set(off, false, slabStart, slabEnd);
                     } else
-                        outAim[off] = inAim[off];
-                    if (outAim[off])
+                        outAim.set(off, inAim.get(off), slabStart, slabEnd);
+                    if (outAim.get(off))
                         sVox++;
 
                 }
@@ -253,7 +279,7 @@ public class Morpho extends BaseTIPLPluginBW {
                 + StrRatio(mNeighs, mNeighsCnt) + " @ > "
                 + (1 - neighborOccupancy) * 100 + "%, retained= "
                 + StrPctRatio(sVox, cVox) + "%, " + StrMvx(sVox) + ", "
-                + StrPctRatio(sVox, aimLength) + " Porosity");
+                + StrPctRatio(sVox, inAim.length()) + " Porosity");
 
     }
 
@@ -261,12 +287,12 @@ public class Morpho extends BaseTIPLPluginBW {
     public void erode() {
 
         if (lastInOutput) {
-            System.arraycopy(outAim, 0, inAim, 0, aimLength);
+            inAim.copyFrom(outAim);
             TIPLGlobal.runGC();
             lastInOutput = false;
         }
         curOperation = -1;
-        runMulticore();
+        if (!fastMorph(false)) runMulticore();
         curOperation = 0;
 
         procLog += "CMD:Erosion :N" + neighborSize + ", >= "
@@ -293,6 +319,11 @@ public class Morpho extends BaseTIPLPluginBW {
 
     @Deprecated
     public void erodeMany(final int iterations) {
+        if ((iterations > 1) && canUseFastMorph()
+                && MorphoEngine.isBox(neighborKernel, neighborSize)) {
+            runAsOneBox(iterations, false);
+            return;
+        }
         for (int i = 0; i < iterations; i++)
             erode();
     }
@@ -313,13 +344,98 @@ public class Morpho extends BaseTIPLPluginBW {
         erodeMany(iterations);
     }
 
+    /**
+     * can the operations be run with the {@link MorphoEngine}
+     */
+    protected boolean canUseFastMorph() {
+        return useFastMorph && !useMask && (neighborOccupancy == 1.0);
+    }
+
+    /**
+     * Run the current erosion or dilation with the {@link MorphoEngine}
+     *
+     * @return false if the engine cannot be used and nothing was done
+     */
+    protected boolean fastMorph(final boolean dilate) {
+        if (!canUseFastMorph()) return false;
+        final long startTime = System.currentTimeMillis();
+        final String method;
+        if (bitMorph(dilate)) {
+            method = "bit-packed kernel";
+        } else {
+            final MorphoEngine engine = new MorphoEngine(dim, new D3int(lowx, lowy, lowz),
+                    new D3int(uppx, uppy, uppz), neededCores());
+            if (!engine.filter(inAim, outAim, neighborKernel, neighborSize, dilate))
+                return false;
+            method = engine.getLastMethod();
+        }
+        final String outString = "Operation " + (dilate ? "Dilation" : "Erosion") + " :N"
+                + neighborSize + " using " + method + " in "
+                + StrRatio(System.currentTimeMillis() - startTime, 1000) + " seconds";
+        System.out.println(outString);
+        procLog += outString + "\n";
+        return true;
+    }
+
+    /**
+     * Run the current erosion or dilation with the word-parallel kernels of
+     * {@link BitVolume}, they only handle (small) boxes and the 6 neighbor
+     * cross on the whole image
+     *
+     * @return false if the kernels cannot be used and nothing was done
+     */
+    protected boolean bitMorph(final boolean dilate) {
+        if ((lowx != 0) || (lowy != 0) || (lowz != 0) || (uppx != dim.x) || (uppy != dim.y)
+                || (uppz != dim.z))
+            return false;
+        final D3int ns = neighborSize;
+        final boolean isBox = (Math.max(ns.x, Math.max(ns.y, ns.z)) <= bitMorphMaxRadius)
+                && MorphoEngine.isBox(neighborKernel, ns);
+        if (!isBox && !MorphoEngine.isCross(neighborKernel, ns)) return false;
+        final BitVolume inVol = packInput();
+        final int cores = neededCores();
+        if (isBox)
+            unpackOutput(dilate ? inVol.dilateBox(ns.x, ns.y, ns.z, cores)
+                    : inVol.erodeBox(ns.x, ns.y, ns.z, cores));
+        else
+            unpackOutput(dilate ? inVol.dilateCross(cores) : inVol.erodeCross(cores));
+        return true;
+    }
+
+    /**
+     * Repeated erosions (or dilations) with a box are the same as a single one
+     * with a box iterations times larger, even at the border of the image
+     */
+    protected void runAsOneBox(final int iterations, final boolean dilate) {
+        final D3int oldSize = neighborSize;
+        final BaseTIPLPluginIn.morphKernel oldKernel = neighborKernel;
+        neighborSize = new D3int(oldSize.x * iterations, oldSize.y * iterations,
+                oldSize.z * iterations);
+        neighborKernel = null;
+        try {
+            if (dilate) dilate();
+            else erode();
+        } finally {
+            neighborSize = oldSize;
+            neighborKernel = oldKernel;
+        }
+    }
+
+    /**
+     * with 100% occupancy and a symmetric kernel, erosion and dilation are an
+     * adjunction so repeating an opening (or closing) does not change anything
+     */
+    protected boolean isIdempotent() {
+        return canUseFastMorph() && MorphoEngine.isSymmetric(neighborKernel, neighborSize);
+    }
+
     /**
      * only erode specific slices
      */
     protected void erodeSection(final int bSlice, final int tSlice) {
-        int cVox = 0;
-        int sVox = 0;
-        int off = 0;
+        long cVox = 0;
+        long sVox = 0;
+        long off = 0;
         double mNeighs = 0.0;
         double mNeighsCnt = 0.0;
 
@@ -330,32 +446,34 @@ public class Morpho extends BaseTIPLPluginBW {
         else
             curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
 
+        // the words at the ends of the slab are shared with the neighboring threads
+        final long slabStart = outAim.index(0, 0, bSlice);
+        final long slabEnd = outAim.index(0, 0, tSlice);
         for (int z = bSlice; z < tSlice; z++) {
             for (int y = lowy; y < uppy; y++) {
-                off = (z * dim.y + y) * dim.x + lowx;
+                off = inAim.index(lowx, y, z);
                 for (int x = lowx; x < uppx; x++, off++) {
-                    outAim[off] = false;
-                    boolean runVoxel = inAim[off];
+                    outAim.set(off, false, slabStart, slabEnd);
+                    boolean runVoxel = inAim.get(off);
                     if (useMask)
-                        runVoxel = (inAim[off] && morphMask[off]);
+                        runVoxel = (inAim.get(off) && morphMask.get(off));
                     if (runVoxel) {
                         cVox++;
                         int nCount = 0;
                         int nFull = 0;
-                        int off2;
+                        long off2;
                         for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                 z + neighborSize.z, uppz - 1); z2++) {
                             for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
                                     y + neighborSize.y, uppy - 1); y2++) {
-                                off2 = (z2 * dim.y + y2) * dim.x
-                                        + max(x - neighborSize.x, lowx);
+                                off2 = inAim.index(max(x - neighborSize.x, lowx), y2, z2);
                                 for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
                                         x + neighborSize.x, uppx - 1); x2++, off2++) {
-                                    if (curKernel.inside(off, off2, x, x2, y,
+                                    if (curKernel.inside(0, (int) (off2 - off), x, x2, y,
                                             y2, z, z2)) {
                                         if ((off != off2)) {
                                             nCount++;
-                                            if (inAim[off2])
+                                            if (inAim.get(off2))
                                                 nFull++;
                                         }
                                     }
@@ -367,14 +485,14 @@ public class Morpho extends BaseTIPLPluginBW {
                         mNeighsCnt++;
 
                         if (nFull >= Math.round((nCount) * neighborOccupancy)) {
-                            outAim[off] = true;
+                            outAim.set(off, true, slabStart, slabEnd);
                         } else
-                            outAim[off] = false;
+                            outAim.set(off, false, slabStart, slabEnd);
 
                     } else
-                        outAim[off] = inAim[off];
+                        outAim.set(off, inAim.get(off), slabStart, slabEnd);
 
-                    if (outAim[off])
+                    if (outAim.get(off))
                         sVox++;
 
                 }
@@ -384,7 +502,7 @@ public class Morpho extends BaseTIPLPluginBW {
         System.out.println("Operation Erosion :N" + neighborSize + "-"
                 + StrRatio(mNeighs, mNeighsCnt) + " @ >= " + neighborOccupancy
                 * 100 + "%, retained= " + StrPctRatio(sVox, cVox) + ", "
-                + StrMvx(sVox) + ", " + StrPctRatio(sVox, aimLength)
+                + StrMvx(sVox) + ", " + StrPctRatio(sVox, inAim.length())
                 + " (%) Porosity \n");
     }
 
@@ -405,7 +523,7 @@ public class Morpho extends BaseTIPLPluginBW {
                 System.out
                         .println("Warning : 'Morpho' is not really a plug-in in that sense of the word, but will update the output anyways....");
                 if (lastInOutput) {
-                    System.arraycopy(outAim, 0, inAim, 0, aimLength);
+                    inAim.copyFrom(outAim);
                     TIPLGlobal.runGC();
                     lastInOutput = false;
                 }
@@ -496,6 +614,12 @@ public class Morpho extends BaseTIPLPluginBW {
     @Deprecated
     public void openMany(final int iterations) {
         System.out.println("OpenOperation-" + iterations);
+        if ((iterations > 1) && isIdempotent()) {
+            procLog += "CMD:Open: an opening is idempotent, " + iterations + " iterations run once\n";
+            erode();
+            dilate();
+            return;
+        }
         for (int i = 0; i < iterations; i++) {
             erode();
             dilate();
@@ -554,7 +678,7 @@ public class Morpho extends BaseTIPLPluginBW {
                                 + tSlice
                                 + ">");
                 if (lastInOutput) {
-                    System.arraycopy(outAim, 0, inAim, 0, aimLength);
+                    inAim.copyFrom(outAim);
                     TIPLGlobal.runGC();
                     lastInOutput = false;
                 }
@@ -566,4 +690,14 @@ public class Morpho extends BaseTIPLPluginBW {
         return super.setParameter(p, getPluginName() + ":");
     }
 
+    @Override
+    public ArgumentParser setParameter(final ArgumentParser p, final String cPrefix) {
+        final ArgumentParser t = super.setParameter(p, cPrefix);
+        useFastMorph = t.getOptionBoolean(cPrefix + "fastmorph", useFastMorph,
+                "Use separable and distance map filters when they give the same result");
+        bitMorphMaxRadius = t.getOptionInt(cPrefix + "bitmorphradius", bitMorphMaxRadius,
+                "Largest box radius run with the bit-packed kernels (larger boxes use the running filter)");
+        return t;
+    }
+
 }
@@ -0,0 +1,481 @@
+package tipl.tools;
+
+import tipl.util.ChunkedVolume;
+import tipl.util.D3int;
+import tipl.util.TIPLGlobal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary erosion and dilation (100% occupancy) without scanning the whole
+ * neighborhood for every voxel. The kernel is sampled over the neighborhood
+ * and the operation is run with the cheapest method which gives the same
+ * result as {@link Morpho}:
+ * <li>box kernels are separated into 1D passes along x, y and z using the van
+ * Herk/Gil-Werman running min/max, the cost per voxel does not depend on the radius
+ * <li>ellipsoids which fit inside the neighborhood are thresholds of the
+ * (anisotropic) squared euclidean distance map of the background (erosion)
+ * or the foreground (dilation), computed with the separable lower-envelope
+ * transform of Felzenszwalb and Huttenlocher
+ * <li>other kernels whose rows along x are intervals (cross, ellipsoid clipped
+ * by the neighborhood, ...) are split into their rows, each row is one
+ * running min/max so the cost is the number of rows rather than voxels
+ * <p/>
+ * Voxels outside of the region (low to upp) are ignored, just like the voxel
+ * by voxel version, and the voxel itself is always included.
+ *
+ * @author mader
+ */
+public class MorphoEngine {
+    /**
+     * tolerance used when checking if the distance is within the ellipsoid
+     */
+    public static final double DIST_TOLERANCE = 1e-6;
+    protected final D3int dim;
+    protected final D3int low;
+    protected final D3int upp;
+    protected final int cores;
+    protected String lastMethod = "none";
+
+    /**
+     * @param dim   dimensions of the volumes
+     * @param low   first voxel of the region to process
+     * @param upp   end (exclusive) of the region to process
+     * @param cores number of threads to use
+     */
+    public MorphoEngine(final D3int dim, final D3int low, final D3int upp, final int cores) {
+        this.dim = dim;
+        this.low = low;
+        this.upp = upp;
+        this.cores = Math.max(cores, 1);
+    }
+
+    /**
+     * sample the kernel over the neighborhood, the index is ((dz+ns.z)*sy+dy+ns.y)*sx+dx+ns.x
+     */
+    public static boolean[] sampleKernel(final BaseTIPLPluginIn.morphKernel kernel, final D3int ns) {
+        final int sx = 2 * ns.x + 1, sy = 2 * ns.y + 1, sz = 2 * ns.z + 1;
+        final boolean[] mask = new boolean[sx * sy * sz];
+        final int cOff = (ns.z * sy + ns.y) * sx + ns.x;
+        for (int z = 0, off = 0; z < sz; z++)
+            for (int y = 0; y < sy; y++)
+                for (int x = 0; x < sx; x++, off++)
+                    mask[off] = (kernel == null)
+                            || kernel.inside(cOff, off, ns.x, x, ns.y, y, ns.z, z);
+        return mask;
+    }
+
+    /**
+     * is the kernel the full neighborhood (so that repeated operations are the same as one larger one)
+     */
+    public static boolean isBox(final BaseTIPLPluginIn.morphKernel kernel, final D3int ns) {
+        for (boolean cVal : sampleKernel(kernel, ns)) if (!cVal) return false;
+        return true;
+    }
+
+    /**
+     * is the kernel the voxel and its 6 face-sharing neighbors
+     */
+    public static boolean isCross(final BaseTIPLPluginIn.morphKernel kernel, final D3int ns) {
+        if ((ns.x < 1) || (ns.y < 1) || (ns.z < 1)) return false;
+        final boolean[] mask = sampleKernel(kernel, ns);
+        for (int z = -ns.z, off = 0; z <= ns.z; z++)
+            for (int y = -ns.y; y <= ns.y; y++)
+                for (int x = -ns.x; x <= ns.x; x++, off++)
+                    if (mask[off] != (Math.abs(x) + Math.abs(y) + Math.abs(z) <= 1)) return false;
+        return true;
+    }
+
+    /**
+     * is the kernel point symmetric, needed for opening and closing to be idempotent
+     */
+    public static boolean isSymmetric(final BaseTIPLPluginIn.morphKernel kernel, final D3int ns) {
+        final boolean[] mask = sampleKernel(kernel, ns);
+        for (int i = 0; i < mask.length; i++)
+            if (mask[i] != mask[mask.length - 1 - i]) return false;
+        return true;
+    }
+
+    /**
+     * which method was used by the last call to filter
+     */
+    public String getLastMethod() {
+        return lastMethod;
+    }
+
+    /**
+     * Erode or dilate the region of inAim into outAim (which must be a different volume)
+     *
+     * @return false if the kernel cannot be decomposed (nothing has been written)
+     */
+    public boolean filter(final ChunkedVolume.Bool inAim, final ChunkedVolume.Bool outAim,
+                          final BaseTIPLPluginIn.morphKernel kernel, final D3int ns,
+                          final boolean dilate) {
+        final boolean[] mask = sampleKernel(kernel, ns);
+        boolean allIn = true;
+        for (boolean cVal : mask) allIn &= cVal;
+        if (allIn) {
+            lastMethod = "separable box";
+            boxFilter(inAim, outAim, ns, dilate);
+            return true;
+        }
+        if (kernel instanceof BaseTIPLPluginIn.EllipsoidKernel) {
+            final BaseTIPLPluginIn.EllipsoidKernel eKernel = (BaseTIPLPluginIn.EllipsoidKernel) kernel;
+            if (ellipsoidMatches(mask, ns, eKernel)) {
+                lastMethod = "distance map";
+                ellipsoidFilter(inAim, outAim, eKernel, dilate);
+                return true;
+            }
+        }
+        final Map<Long, List<int[]>> rows = kernelRows(mask, ns);
+        if (rows == null) return false;
+        lastMethod = "row decomposition (" + rows.size() + " widths)";
+        rowFilter(inAim, outAim, rows, dilate);
+        return true;
+    }
+
+    /**
+     * the ellipsoid can be replaced by a distance threshold if it is completely
+     * inside of the neighborhood and every sampled voxel agrees
+     */
+    protected static boolean ellipsoidMatches(final boolean[] mask, final D3int ns,
+                                              final BaseTIPLPluginIn.EllipsoidKernel eKernel) {
+        if (!(eKernel.radx > 0) || !(eKernel.rady > 0) || !(eKernel.radz > 0)) return false;
+        if ((Math.floor(eKernel.radx + DIST_TOLERANCE) > ns.x)
+                || (Math.floor(eKernel.rady + DIST_TOLERANCE) > ns.y)
+                || (Math.floor(eKernel.radz + DIST_TOLERANCE) > ns.z))
+            return false;
+        final double wx = 1 / (eKernel.radx * eKernel.radx);
+        final double wy = 1 / (eKernel.rady * eKernel.rady);
+        final double wz = 1 / (eKernel.radz * eKernel.radz);
+        for (int z = -ns.z, off = 0; z <= ns.z; z++)
+            for (int y = -ns.y; y <= ns.y; y++)
+                for (int x = -ns.x; x <= ns.x; x++, off++)
+                    if (mask[off] != (x * x * wx + y * y * wy + z * z * wz <= 1 + DIST_TOLERANCE))
+                        return false;
+        return true;
+    }
+
+    /**
+     * group the rows (along x) of the kernel by their extent, the key is the
+     * interval (start<<32 | end&0xFFFFFFFF) and the values are the (dy,dz) of
+     * the rows
+     *
+     * @return null if a row is not a single interval
+     */
+    protected static Map<Long, List<int[]>> kernelRows(final boolean[] mask, final D3int ns) {
+        final Map<Long, List<int[]>> rows = new LinkedHashMap<Long, List<int[]>>();
+        final int sx = 2 * ns.x + 1;
+        for (int z = -ns.z, rowOff = 0; z <= ns.z; z++)
+            for (int y = -ns.y; y <= ns.y; y++, rowOff += sx) {
+                int start = Integer.MAX_VALUE, end = Integer.MIN_VALUE, count = 0;
+                for (int x = -ns.x; x <= ns.x; x++) {
+                    if (mask[rowOff + x + ns.x]) {
+                        start = Math.min(start, x);
+                        end = Math.max(end, x);
+                        count++;
+                    }
+                }
+                if (count == 0) continue;
+                if (count != end - start + 1) return null;
+                final Long key = (((long) start) << 32) | (end & 0xFFFFFFFFL);
+                if (!rows.containsKey(key)) rows.put(key, new ArrayList<int[]>());
+                rows.get(key).add(new int[]{y, z});
+            }
+        return rows;
+    }
+
+    /**
+     * separable filter with a 1D pass along each axis, x goes from in to out
+     * and the y and z passes are done in place
+     */
+    protected void boxFilter(final ChunkedVolume.Bool inAim, final ChunkedVolume.Bool outAim, final D3int ns,
+                             final boolean dilate) {
+        final int nx = upp.x - low.x, ny = upp.y - low.y, nz = upp.z - low.z;
+        final long rowStride = dim.x, sliceStride = ((long) dim.x) * dim.y;
+        TIPLGlobal.runBlocks(cores, low.z, upp.z, new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final RunningFilter xLine = new RunningFilter(nx, -ns.x, ns.x, dilate);
+                final RunningFilter yLine = new RunningFilter(ny, -ns.y, ns.y, dilate);
+                final long slabStart = inAim.index(0, 0, start), slabEnd = inAim.index(0, 0, end);
+                for (int z = start; z < end; z++) {
+                    for (int y = low.y; y < upp.y; y++) {
+                        final long off = inAim.index(low.x, y, z);
+                        xLine.run(inAim, off, 1, outAim, off, 1, slabStart, slabEnd, 0);
+                    }
+                    if (ns.y > 0) for (int x = low.x; x < upp.x; x++) {
+                        final long off = inAim.index(x, low.y, z);
+                        yLine.run(outAim, off, rowStride, outAim, off, rowStride, slabStart,
+                                slabEnd, 0);
+                    }
+                }
+            }
+        });
+        if (ns.z > 0) TIPLGlobal.runBlocks(cores, low.y, upp.y, new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final RunningFilter zLine = new RunningFilter(nz, -ns.z, ns.z, dilate);
+                // the rows from start to end of every slice belong to this thread
+                final long rowsStart = inAim.index(0, start, low.z), rowsEnd = inAim.index(0, end, low.z);
+                for (int y = start; y < end; y++)
+                    for (int x = low.x; x < upp.x; x++) {
+                        final long off = inAim.index(x, y, low.z);
+                        zLine.run(outAim, off, sliceStride, outAim, off, sliceStride, rowsStart,
+                                rowsEnd, sliceStride);
+                    }
+            }
+        });
+    }
+
+    /**
+     * combine (and for erosion, or for dilation) the running filter of every
+     * row of the kernel, shifted by the position of the row
+     */
+    protected void rowFilter(final ChunkedVolume.Bool inAim, final ChunkedVolume.Bool outAim,
+                             final Map<Long, List<int[]>> rows, final boolean dilate) {
+        final int nx = upp.x - low.x;
+        final ChunkedVolume.Bool rowAim = new ChunkedVolume.Bool(dim);
+        TIPLGlobal.runBlocks(cores, low.z, upp.z, new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final boolean[] row = new boolean[nx];
+                for (int z = start; z < end; z++)
+                    for (int y = low.y; y < upp.y; y++) {
+                        final long off = inAim.index(low.x, y, z);
+                        inAim.copyOut(off, row, 0, nx);
+                        outAim.copyIn(off, row, 0, nx);
+                    }
+            }
+        });
+        for (final Map.Entry<Long, List<int[]>> cRow : rows.entrySet()) {
+            final int xStart = (int) (cRow.getKey() >> 32);
+            final int xEnd = (int) cRow.getKey().longValue();
+            final List<int[]> shifts = cRow.getValue();
+            // the running filter of every line for this width
+            TIPLGlobal.runBlocks(cores, low.z, upp.z, new TIPLGlobal.BlockOp() {
+                @Override
+                public void run(final int start, final int end) {
+                    final RunningFilter xLine = new RunningFilter(nx, xStart, xEnd, dilate);
+                    final long slabStart = inAim.index(0, 0, start), slabEnd = inAim.index(0, 0, end);
+                    for (int z = start; z < end; z++)
+                        for (int y = low.y; y < upp.y; y++) {
+                            final long off = inAim.index(low.x, y, z);
+                            xLine.run(inAim, off, 1, rowAim, off, 1, slabStart, slabEnd, 0);
+                        }
+                }
+            });
+            // and then combined into the output
+            TIPLGlobal.runBlocks(cores, low.z, upp.z, new TIPLGlobal.BlockOp() {
+                @Override
+                public void run(final int start, final int end) {
+                    final long slabStart = inAim.index(0, 0, start), slabEnd = inAim.index(0, 0, end);
+                    for (int z = start; z < end; z++)
+                        for (int y = low.y; y < upp.y; y++) {
+                            final long off = inAim.index(low.x, y, z);
+                            for (int[] cShift : shifts) {
+                                final int y2 = y + cShift[0], z2 = z + cShift[1];
+                                if ((y2 < low.y) || (y2 >= upp.y) || (z2 < low.z) || (z2 >= upp.z))
+                                    continue;
+                                final long off2 = inAim.index(low.x, y2, z2);
+                                if (dilate) {
+                                    for (int i = 0; i < nx; i++)
+                                        if (rowAim.get(off2 + i)) outAim.set(off + i, true, slabStart, slabEnd);
+                                } else {
+                                    for (int i = 0; i < nx; i++)
+                                        if (!rowAim.get(off2 + i)) outAim.set(off + i, false, slabStart, slabEnd);
+                                }
+                            }
+                        }
+                }
+            });
+        }
+    }
+
+    /**
+     * Threshold the squared distance (scaled by the radii) to the nearest
+     * background (erosion) or foreground (dilation) voxel. The slices are
+     * processed in blocks with a margin of the radius in z since nothing
+     * further away can be within the kernel, so only a few slices of the
+     * distance map are kept in memory at once.
+     */
+    protected void ellipsoidFilter(final ChunkedVolume.Bool inAim, final ChunkedVolume.Bool outAim,
+                                   final BaseTIPLPluginIn.EllipsoidKernel eKernel,
+                                   final boolean dilate) {
+        final int nx = upp.x - low.x, ny = upp.y - low.y;
+        final double wx = 1 / (eKernel.radx * eKernel.radx);
+        final double wy = 1 / (eKernel.rady * eKernel.rady);
+        final double wz = 1 / (eKernel.radz * eKernel.radz);
+        final int rz = (int) Math.floor(eKernel.radz + DIST_TOLERANCE);
+        final int blockSize = Math.max(16, 4 * rz);
+        final List<int[]> blocks = new ArrayList<int[]>();
+        for (int z = low.z; z < upp.z; z += blockSize)
+            blocks.add(new int[]{z, Math.min(z + blockSize, upp.z)});
+        TIPLGlobal.runBlocks(cores, 0, blocks.size(), new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                final LowerEnvelope xEnv = new LowerEnvelope(nx, wx);
+                final LowerEnvelope yEnv = new LowerEnvelope(ny, wy);
+                final LowerEnvelope zEnv = new LowerEnvelope(blockSize + 2 * rz, wz);
+                for (int b = start; b < end; b++) {
+                    final int z0 = blocks.get(b)[0], z1 = blocks.get(b)[1];
+                    final int zs = Math.max(low.z, z0 - rz), ze = Math.min(upp.z, z1 + rz);
+                    final int planeSize = nx * ny;
+                    final float[] distMap = new float[(ze - zs) * planeSize];
+                    // x and y within each slice
+                    for (int z = zs; z < ze; z++) {
+                        final int dOff = (z - zs) * planeSize;
+                        for (int y = low.y; y < upp.y; y++) {
+                            final long off = inAim.index(low.x, y, z);
+                            final int dRow = dOff + (y - low.y) * nx;
+                            for (int x = 0; x < nx; x++)
+                                xEnv.f[x] = (inAim.get(off + x) == dilate) ? 0 : LowerEnvelope.FAR;
+                            xEnv.run(nx);
+                            for (int x = 0; x < nx; x++) distMap[dRow + x] = (float) xEnv.d[x];
+                        }
+                        for (int x = 0; x < nx; x++) {
+                            for (int y = 0; y < ny; y++) yEnv.f[y] = distMap[dOff + y * nx + x];
+                            yEnv.run(ny);
+                            for (int y = 0; y < ny; y++) distMap[dOff + y * nx + x] = (float) yEnv.d[y];
+                        }
+                    }
+                    // z and only for the slices in the block
+                    final int nz = ze - zs;
+                    final long blockStart = inAim.index(0, 0, z0), blockEnd = inAim.index(0, 0, z1);
+                    for (int y = 0; y < ny; y++)
+                        for (int x = 0; x < nx; x++) {
+                            final int dOff = y * nx + x;
+                            for (int z = 0; z < nz; z++) zEnv.f[z] = distMap[z * planeSize + dOff];
+                            zEnv.run(nz);
+                            for (int z = z0; z < z1; z++) {
+                                final long off = inAim.index(x + low.x, y + low.y, z);
+                                final boolean near = zEnv.d[z - zs] <= 1 + DIST_TOLERANCE;
+                                outAim.set(off, dilate ? (inAim.get(off) || near) : (inAim.get(off) && !near),
+                                        blockStart, blockEnd);
+                            }
+                        }
+                }
+            }
+        });
+    }
+
+    /**
+     * The van Herk/Gil-Werman running and (erosion) or or (dilation) over a
+     * window from start to end (relative to the voxel) on a line of length n.
+     * The line is padded with the neutral value so the voxels outside are
+     * ignored, it is then split into blocks the size of the window and the
+     * prefix (within the block) and suffix values are computed. Every window
+     * spans at most two blocks so it is the suffix of its first voxel combined
+     * with the prefix of its last voxel.
+     */
+    protected static class RunningFilter {
+        final int n;
+        final int start;
+        final int window;
+        final int pad;
+        final boolean dilate;
+        final boolean[] line;
+        final boolean[] prefix;
+        final boolean[] suffix;
+
+        public RunningFilter(final int n, final int start, final int end, final boolean dilate) {
+            this.n = n;
+            this.start = start;
+            this.dilate = dilate;
+            window = end - start + 1;
+            pad = Math.max(Math.abs(start), Math.abs(end));
+            line = new boolean[n + 2 * pad];
+            prefix = new boolean[line.length];
+            suffix = new boolean[line.length];
+            // the padding is never overwritten
+            Arrays.fill(line, !dilate);
+        }
+
+        /**
+         * filter the line (it is copied first so the output can be the input),
+         * output voxel i belongs to the range from rangeStart+i*rangeStride to
+         * rangeEnd+i*rangeStride (exclusive) which only this thread writes (see
+         * ChunkedVolume.Bool.set)
+         */
+        public void run(final ChunkedVolume.Bool src, final long srcOff, final long srcStride,
+                        final ChunkedVolume.Bool dst, final long dstOff, final long dstStride,
+                        final long rangeStart, final long rangeEnd, final long rangeStride) {
+            long off = srcOff;
+            for (int i = 0; i < n; i++, off += srcStride) line[pad + i] = src.get(off);
+            final int m = line.length;
+            for (int bStart = 0; bStart < m; bStart += window) {
+                final int bEnd = Math.min(bStart + window, m) - 1;
+                prefix[bStart] = line[bStart];
+                for (int i = bStart + 1; i <= bEnd; i++)
+                    prefix[i] = dilate ? (prefix[i - 1] | line[i]) : (prefix[i - 1] & line[i]);
+                suffix[bEnd] = line[bEnd];
+                for (int i = bEnd - 1; i >= bStart; i--)
+                    suffix[i] = dilate ? (suffix[i + 1] | line[i]) : (suffix[i + 1] & line[i]);
+            }
+            off = dstOff;
+            long rStart = rangeStart, rEnd = rangeEnd;
+            for (int i = 0; i < n; i++, off += dstStride, rStart += rangeStride, rEnd += rangeStride) {
+                final int wStart = i + pad + start;
+                final int wEnd = wStart + window - 1;
+                dst.set(off, dilate ? (suffix[wStart] | prefix[wEnd]) : (suffix[wStart] & prefix[wEnd]),
+                        rStart, rEnd);
+            }
+        }
+    }
+
+    /**
+     * The 1D squared distance transform d(q) = min_p w*(q-p)^2+f(p) as the
+     * lower envelope of the parabolas rooted at every sample (Felzenszwalb
+     * and Huttenlocher). Values beyond the kernel (greater than 1) are
+     * replaced with FAR since they can no longer be inside.
+     */
+    protected static class LowerEnvelope {
+        public static final double FAR = Double.POSITIVE_INFINITY;
+        final double w;
+        final double[] f;
+        final double[] d;
+        final int[] v;
+        final double[] z;
+
+        public LowerEnvelope(final int n, final double w) {
+            this.w = w;
+            f = new double[n];
+            d = new double[n];
+            v = new int[n];
+            z = new double[n + 1];
+        }
+
+        public void run(final int n) {
+            int k = -1;
+            for (int q = 0; q < n; q++) {
+                if (f[q] == FAR) continue;
+                final double fq = f[q] + w * q * q;
+                double s = -FAR;
+                while (k >= 0) {
+                    final int p = v[k];
+                    s = (fq - (f[p] + w * p * p)) / (2 * w * (q - p));
+                    if (s <= z[k]) k--;
+                    else break;
+                }
+                k++;
+                v[k] = q;
+                z[k] = (k == 0) ? -FAR : s;
+                z[k + 1] = FAR;
+            }
+            if (k < 0) {
+                Arrays.fill(d, 0, n, FAR);
+                return;
+            }
+            for (int q = 0, j = 0; q < n; q++) {
+                while (z[j + 1] < q) j++;
+                final int p = v[j];
+                final double cDist = w * (q - p) * (q - p) + f[p];
+                d[q] = (cDist > 1 + DIST_TOLERANCE) ? FAR : cDist;
+            }
+        }
+    }
+}
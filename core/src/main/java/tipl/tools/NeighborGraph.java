@@ -0,0 +1,250 @@
+package tipl.tools;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The contact graph between labeled objects stored in compressed sparse row
+ * (CSR) format. The contacts are first counted in {@link EdgeCountMap}s (one
+ * per thread so no locking is needed) where each pair of labels is packed
+ * into a single long key (smaller label in the upper 32 bits) and then merged
+ * into the graph. Every edge is stored in the rows of both labels, the labels
+ * and the neighbors in each row are sorted.
+ *
+ * @author mader
+ */
+public class NeighborGraph {
+    /**
+     * the labels which have at least one neighbor (sorted)
+     */
+    public final int[] labels;
+    /**
+     * the neighbors of labels[i] are at rowStart[i] up to (not including) rowStart[i+1]
+     */
+    public final int[] rowStart;
+    /**
+     * the label of each neighbor
+     */
+    public final int[] neighbors;
+    /**
+     * the number of contacts between the row label and each neighbor
+     */
+    public final int[] contacts;
+
+    protected NeighborGraph(final int[] labels, final int[] rowStart, final int[] neighbors,
+                            final int[] contacts) {
+        this.labels = labels;
+        this.rowStart = rowStart;
+        this.neighbors = neighbors;
+        this.contacts = contacts;
+    }
+
+    /**
+     * the key for the pair of labels, it is the same for (a,b) and (b,a)
+     */
+    public static long edgeKey(final int labelA, final int labelB) {
+        final int lo = Math.min(labelA, labelB);
+        final int hi = Math.max(labelA, labelB);
+        return (((long) lo) << 32) | (hi & 0xFFFFFFFFL);
+    }
+
+    public static int keyFirst(final long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int keySecond(final long key) {
+        return (int) key;
+    }
+
+    /**
+     * Merge the edge counts (typically from different threads) into a single graph
+     */
+    public static NeighborGraph fromCounts(final List<EdgeCountMap> edgeMaps) {
+        EdgeCountMap allEdges = null;
+        for (EdgeCountMap cMap : edgeMaps) {
+            if (allEdges == null || cMap.size() > allEdges.size()) {
+                if (allEdges != null) cMap.addAll(allEdges);
+                allEdges = cMap;
+            } else allEdges.addAll(cMap);
+        }
+        if (allEdges == null) allEdges = new EdgeCountMap();
+        final long[] keys = allEdges.keys();
+        Arrays.sort(keys);
+        final int edgeCount = keys.length;
+
+        // every edge appears in two rows, find all of the labels
+        final int[] ends = new int[2 * edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            ends[2 * i] = keyFirst(keys[i]);
+            ends[2 * i + 1] = keySecond(keys[i]);
+        }
+        Arrays.sort(ends);
+        int labelCount = 0;
+        for (int i = 0; i < ends.length; i++)
+            if (i == 0 || ends[i] != ends[i - 1]) ends[labelCount++] = ends[i];
+        final int[] labels = Arrays.copyOf(ends, labelCount);
+
+        final int[] rowStart = new int[labelCount + 1];
+        for (int i = 0; i < edgeCount; i++) {
+            rowStart[Arrays.binarySearch(labels, keyFirst(keys[i])) + 1]++;
+            rowStart[Arrays.binarySearch(labels, keySecond(keys[i])) + 1]++;
+        }
+        for (int i = 0; i < labelCount; i++) rowStart[i + 1] += rowStart[i];
+
+        // the keys are sorted by first and then second label so the rows are
+        // filled in order, the lower neighbors of a label (where it is the
+        // second label) are all before the higher neighbors
+        final int[] fillPos = Arrays.copyOf(rowStart, labelCount);
+        final int[] neighbors = new int[2 * edgeCount];
+        final int[] contacts = new int[2 * edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            final int a = keyFirst(keys[i]), b = keySecond(keys[i]);
+            final int cCount = allEdges.get(keys[i]);
+            final int rowB = fillPos[Arrays.binarySearch(labels, b)]++;
+            neighbors[rowB] = a;
+            contacts[rowB] = cCount;
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            final int a = keyFirst(keys[i]), b = keySecond(keys[i]);
+            final int rowA = fillPos[Arrays.binarySearch(labels, a)]++;
+            neighbors[rowA] = b;
+            contacts[rowA] = allEdges.get(keys[i]);
+        }
+        return new NeighborGraph(labels, rowStart, neighbors, contacts);
+    }
+
+    /**
+     * number of different objects touching the given label
+     */
+    public int degree(final int label) {
+        final int row = Arrays.binarySearch(labels, label);
+        if (row < 0) return 0;
+        return rowStart[row + 1] - rowStart[row];
+    }
+
+    /**
+     * number of contacts between the two labels (0 if they do not touch)
+     */
+    public int contacts(final int labelA, final int labelB) {
+        final int row = Arrays.binarySearch(labels, labelA);
+        if (row < 0) return 0;
+        final int pos = Arrays.binarySearch(neighbors, rowStart[row], rowStart[row + 1], labelB);
+        return (pos < 0) ? 0 : contacts[pos];
+    }
+
+    /**
+     * total number of edges (each pair of touching objects is one edge)
+     */
+    public int edgeCount() {
+        return neighbors.length / 2;
+    }
+
+    /**
+     * An open-addressing hash map from a long key (see {@link #edgeKey}) to an
+     * int count, with linear probing and no boxing. It is not thread-safe, each
+     * thread should have its own.
+     */
+    public static class EdgeCountMap {
+        /**
+         * no edge has a first label larger than the second so this key is never used
+         */
+        protected static final long EMPTY = 1L << 32;
+        protected static final float LOAD_FACTOR = 0.5f;
+        protected long[] keyTable;
+        protected int[] countTable;
+        protected int size = 0;
+        protected int mask;
+
+        public EdgeCountMap() {
+            this(64);
+        }
+
+        public EdgeCountMap(final int expectedSize) {
+            int capacity = 16;
+            while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+            allocate(capacity);
+        }
+
+        private void allocate(final int capacity) {
+            keyTable = new long[capacity];
+            Arrays.fill(keyTable, EMPTY);
+            countTable = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        protected static int slot(final long key, final int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h ^= (h >>> 32);
+            return ((int) h) & mask;
+        }
+
+        /**
+         * add inc to the count of key
+         */
+        public void add(final long key, final int inc) {
+            int pos = slot(key, mask);
+            while (true) {
+                final long cKey = keyTable[pos];
+                if (cKey == key) {
+                    countTable[pos] += inc;
+                    return;
+                }
+                if (cKey == EMPTY) break;
+                pos = (pos + 1) & mask;
+            }
+            keyTable[pos] = key;
+            countTable[pos] = inc;
+            size++;
+            if (size > keyTable.length * LOAD_FACTOR) rehash(keyTable.length << 1);
+        }
+
+        /**
+         * the count for key or 0 if it is not present
+         */
+        public int get(final long key) {
+            int pos = slot(key, mask);
+            while (true) {
+                final long cKey = keyTable[pos];
+                if (cKey == key) return countTable[pos];
+                if (cKey == EMPTY) return 0;
+                pos = (pos + 1) & mask;
+            }
+        }
+
+        /**
+         * add all of the counts from another map
+         */
+        public void addAll(final EdgeCountMap other) {
+            for (int i = 0; i < other.keyTable.length; i++)
+                if (other.keyTable[i] != EMPTY) add(other.keyTable[i], other.countTable[i]);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * all of the keys in the map (unsorted)
+         */
+        public long[] keys() {
+            final long[] out = new long[size];
+            int j = 0;
+            for (long cKey : keyTable)
+                if (cKey != EMPTY) out[j++] = cKey;
+            return out;
+        }
+
+        private void rehash(final int capacity) {
+            final long[] oldKeys = keyTable;
+            final int[] oldCounts = countTable;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int pos = slot(oldKeys[i], mask);
+                while (keyTable[pos] != EMPTY) pos = (pos + 1) & mask;
+                keyTable[pos] = oldKeys[i];
+                countTable[pos] = oldCounts[i];
+            }
+        }
+    }
+}
@@ -5,14 +5,14 @@ import tipl.formats.TImgRO;
 import tipl.util.*;
 
 import java.io.FileWriter;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Does a neighborhood analysis on the labeled image inAim returns CountImg - an
  * image with the count of the neighbors of each object or countvox with the
- * count of the neighbors at each voxel
+ * count of the neighbors at each voxel. The contacts are counted slab by slab
+ * on each core into a primitive map and merged into a {@link NeighborGraph}.
  */
 public class Neighbors extends BaseTIPLPluginIO {
     @TIPLPluginManager.PluginInfo(pluginType = "Neighbors",
@@ -29,7 +29,14 @@ public class Neighbors extends BaseTIPLPluginIO {
      * Count background voxels (=0) as neighbors
      */
     public boolean countBg = false;
-    NeighborVoxel nvlist;
+    /**
+     * the contacts between the objects
+     */
+    NeighborGraph nGraph = null;
+    /**
+     * the contacts counted by each thread
+     */
+    protected List<NeighborGraph.EdgeCountMap> edgeMaps = null;
     boolean isRun = false;
 
     public Neighbors() {
@@ -47,8 +54,8 @@ public class Neighbors extends BaseTIPLPluginIO {
     public Neighbors(final short[] inputmap, final D3int idim,
                      final D3int ioffset) {
         aimLength = inputmap.length;
-        inAim = new int[aimLength];
-        for (int i = 0; i < aimLength; i++)
+        inAim = new int[inputmap.length];
+        for (int i = 0; i < inputmap.length; i++)
             inAim[i] = inputmap[i];
         InitLabels(idim, ioffset);
     }
@@ -137,13 +144,13 @@ public class Neighbors extends BaseTIPLPluginIO {
         if (!isRun)
             execute();
 
-        final int[] countImageVar = new int[aimLength];
+        final int[] countImageVar = new int[arrayLength()];
         for (int z = lowz; z < uppz; z++) {
             for (int y = lowy; y < uppy; y++) {
                 off = (z * dim.y + y) * dim.x + lowx;
                 for (int x = lowx; x < uppx; x++, off++) {
                     if (inAim[off] > 0) {
-                        final int ccount = nvlist.count(inAim[off]);
+                        final int ccount = nGraph.degree(inAim[off]);
                         countImageVar[off] = ccount;
                         ncnt += ccount;
                         nvox++;
@@ -167,7 +174,32 @@ public class Neighbors extends BaseTIPLPluginIO {
 
     @Override
     public boolean execute() {
-        int off = 0;
+        if (Thread.currentThread() != launchThread)
+            return runMulticore();
+        final long start = System.currentTimeMillis();
+        edgeMaps = new ArrayList<NeighborGraph.EdgeCountMap>();
+        runMulticore();
+        nGraph = NeighborGraph.fromCounts(edgeMaps);
+        edgeMaps = null;
+        final String outString = "CMD:Neighbors: Objects:" + nGraph.labels.length
+                + ", Edges:" + nGraph.edgeCount() + " in "
+                + StrRatio(System.currentTimeMillis() - start, 1000) + "s";
+        System.out.println(outString);
+        procLog += outString + "\n";
+        isRun = true;
+        runCount++;
+        return true;
+    }
+
+    /**
+     * Count the contacts in the given slices into a map for this thread only
+     */
+    @Override
+    protected void processWork(final Object currentWork) {
+        final int[] range = (int[]) currentWork;
+        final int bSlice = range[0];
+        final int tSlice = range[1];
+        final NeighborGraph.EdgeCountMap cEdges = new NeighborGraph.EdgeCountMap();
 
         // Code for stationaryKernel
         BaseTIPLPluginIn.stationaryKernel curKernel;
@@ -176,12 +208,17 @@ public class Neighbors extends BaseTIPLPluginIO {
         else
             curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
 
-        for (int z = lowz; z < uppz; z++) {
+        // neighboring voxels mostly touch the same object so the counts are
+        // collected until the pair changes
+        long lastKey = 0;
+        int lastCount = 0;
+        int off = 0;
+        for (int z = bSlice; z < tSlice; z++) {
             for (int y = lowy; y < uppy; y++) {
                 off = (z * dim.y + y) * dim.x + lowx;
                 for (int x = lowx; x < uppx; x++, off++) {
-
-                    if (inAim[off] > 0) {
+                    final int cLabel = inAim[off];
+                    if (cLabel > 0) {
                         int off2;
                         for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                 z + neighborSize.z, uppz - 1); z2++) {
@@ -191,22 +228,19 @@ public class Neighbors extends BaseTIPLPluginIO {
                                         + max(x - neighborSize.x, lowx);
                                 for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
                                         x + neighborSize.x, uppx - 1); x2++, off2++) {
-                                    boolean checkPt = true;
-                                    if (!countBg)
-                                        if (inAim[off2] == 0)
-                                            checkPt = false;
-                                    if (checkPt) {
-                                        if (curKernel.inside(off, off2, x, x2,
-                                                y, y2, z, z2)) {
-                                            if ((off != off2)) {
-                                                if (inAim[off] != inAim[off2]) {
-                                                    // New neighbor
-
-                                                    nvlist.addvox(inAim[off],
-                                                            inAim[off2]);
-                                                }
-                                            }
+                                    final int nLabel = inAim[off2];
+                                    if (nLabel == cLabel) continue;
+                                    if (!countBg && nLabel == 0) continue;
+                                    if (curKernel.inside(off, off2, x, x2,
+                                            y, y2, z, z2)) {
+                                        // New neighbor
+                                        final long cKey = NeighborGraph.edgeKey(cLabel, nLabel);
+                                        if (cKey != lastKey) {
+                                            if (lastCount > 0) cEdges.add(lastKey, lastCount);
+                                            lastKey = cKey;
+                                            lastCount = 0;
                                         }
+                                        lastCount++;
                                     }
                                 }
                             }
@@ -215,9 +249,19 @@ public class Neighbors extends BaseTIPLPluginIO {
                 }
             }
         }
-        isRun = true;
-        runCount++;
-        return true;
+        if (lastCount > 0) cEdges.add(lastKey, lastCount);
+        synchronized (edgeMaps) {
+            edgeMaps.add(cEdges);
+        }
+    }
+
+    /**
+     * The contact graph between the objects (after the plugin has been run)
+     */
+    public NeighborGraph getGraph() {
+        if (!isRun)
+            execute();
+        return nGraph;
     }
 
     @Override
@@ -299,7 +343,7 @@ public class Neighbors extends BaseTIPLPluginIO {
 
     private void InitLabels(final D3int idim, final D3int ioffset) {
         isRun = false;
-        nvlist = new NeighborVoxel();
+        nGraph = null;
         InitDims(idim, ioffset);
     }
 
@@ -335,7 +379,9 @@ public class Neighbors extends BaseTIPLPluginIO {
         double nvox = 0.0;
         int maxn = 0;
         int off = 0;
-        final int[] vcountImageVar = new int[aimLength];
+        final int[] vcountImageVar = new int[arrayLength()];
+        final int[] nlabels = new int[(2 * neighborSize.x + 1)
+                * (2 * neighborSize.y + 1) * (2 * neighborSize.z + 1)];
 
         // Code for stationaryKernel
         BaseTIPLPluginIn.stationaryKernel curKernel;
@@ -351,7 +397,7 @@ public class Neighbors extends BaseTIPLPluginIO {
 
                     if (inAim[off] > 0) {
                         int off2;
-                        NeighborList nltemp = new NeighborList(inAim[off]);
+                        int ncount = 0;
                         for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
                                 z + neighborSize.z, uppz - 1); z2++) {
                             for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
@@ -370,7 +416,7 @@ public class Neighbors extends BaseTIPLPluginIO {
                                             if ((off != off2)) {
                                                 if (inAim[off] != inAim[off2]) {
                                                     // New neighbor
-                                                    nltemp.addvox(inAim[off2]);
+                                                    ncount = addDistinct(nlabels, ncount, inAim[off2]);
                                                 }
                                             }
                                         }
@@ -378,12 +424,11 @@ public class Neighbors extends BaseTIPLPluginIO {
                                 }
                             }
                         }
-                        vcountImageVar[off] = nltemp.count();
+                        vcountImageVar[off] = ncount;
                         ncnt += vcountImageVar[off];
                         if (vcountImageVar[off] > maxn)
                             maxn = vcountImageVar[off];
                         nvox++;
-                        nltemp = null;
                     }
                 }
             }
@@ -413,13 +458,14 @@ public class Neighbors extends BaseTIPLPluginIO {
             String outString = "// Sample: " + outfileName + "\n";
             outString += "// Component 1, Component 2, Voxels\n";
             out.write(outString);
-            nvlist.InitIter();
-            while (nvlist.hasNext()) {
-                final Integer[] curLine = (nvlist.next());
-                outString = curLine[0] + ", " + curLine[1] + ", " + curLine[2]
-                        + "\n";
-                out.write(outString);
-                out.flush();
+            for (int row = 0; row < nGraph.labels.length; row++) {
+                final int cLabel = nGraph.labels[row];
+                for (int j = nGraph.rowStart[row]; j < nGraph.rowStart[row + 1]; j++) {
+                    // every edge is written once, from the smaller label
+                    if (nGraph.neighbors[j] < cLabel) continue;
+                    out.write(cLabel + ", " + nGraph.neighbors[j] + ", "
+                            + nGraph.contacts[j] + "\n");
+                }
             }
             out.flush();
             out.close();
@@ -433,121 +479,15 @@ public class Neighbors extends BaseTIPLPluginIO {
 
     }
 
-    protected class NeighborList {
-        // label of neighbor, voxel count
-        private final HashMap<Integer, Integer> nvox;
-        private final Integer one = 1;
-        private final Integer zero = 0;
-
-        public NeighborList(final int ilabel) {
-            nvox = new HashMap<Integer, Integer>();
-        }
-
-        public void addvox(final int inlabel) {
-            final Integer nlabel = inlabel;
-            addvox(nlabel);
-        }
-
-        public void addvox(final Integer nlabel) {
-            if (nvox.containsKey(nlabel)) {
-                nvox.put(nlabel, nvox.get(nlabel).intValue() + 1);
-            } else
-                nvox.put(nlabel, one);
-        }
-
-        public int count() { // number of neighbors it has
-            return nvox.size();
-        }
-
-        public Iterator<Integer> getIter() {
-            return nvox.keySet().iterator();
-        }
-
-        public Integer getvoxs(final Integer nlabel) {
-            if (nvox.containsKey(nlabel)) {
-                return nvox.get(nlabel);
-            } else
-                return zero;
-        }
-    }
-
-    private class NeighborVoxel implements Iterator<Integer[]> {
-        Map<Integer, NeighborList> mp;
-
-        // Iterator Implementation, provides an iterator for all edges in the
-        // image, useful for
-        private Iterator<Integer> nvxIt = null;
-        private Iterator<Integer> subNvxIt = null;
-
-        private Integer nvxCur = null;
-        private Integer snvxCur = null;
-
-        public NeighborVoxel() {
-            mp = new HashMap<Integer, NeighborList>();
-        }
-
-        public void addvox(final int ilabel, final int jlabel) {
-
-            final Integer nlabel = Math.min(ilabel, jlabel);
-            final Integer mlabel = Math.max(ilabel, jlabel);
-            if (!mp.containsKey(nlabel))
-                mp.put(nlabel, new NeighborList(nlabel));
-            mp.get(nlabel).addvox(mlabel);
-        }
-
-        public int count(final int ilabel) { // number of neighbors
-            final Integer nlabel = ilabel;
-            if (mp.containsKey(nlabel))
-                return mp.get(nlabel).count();
-            else
-                return 0;
-        }
-
-        /**
-         * Iterator Implementation, provides an iterator for all edges in the
-         * image, useful for outputting data as csv
-         */
-        @Override
-        public boolean hasNext() {
-            if (subNvxIt.hasNext())
-                return true;
-            else {
-                while (nvxIt.hasNext()) {
-                    nvxCur = nvxIt.next();
-                    subNvxIt = (mp.get(nvxCur)).getIter();
-                    if (subNvxIt.hasNext())
-                        return true;
-                }
-            }
-            return false;
-        }
-
-        public void InitIter() {
-            nvxIt = mp.keySet().iterator();
-            nvxCur = nvxIt.next();
-            subNvxIt = (mp.get(nvxCur)).getIter();
-        }
-
-        /**
-         * Iterator Implementation, provides an iterator for all edges in the
-         * image, useful for outputting data as csv
-         */
-        @Override
-        public Integer[] next() {
-            Integer[] outData = null;
-            if (hasNext()) {
-                outData = new Integer[3];
-                snvxCur = subNvxIt.next();
-                outData[0] = nvxCur;
-                outData[1] = snvxCur;
-                outData[2] = mp.get(nvxCur).getvoxs(snvxCur);
-            }
-            return outData;
-        }
-
-        @Override
-        public void remove() {
-            System.out.println("Please don't hurt me!");
-        }
+    /**
+     * add the label to the first count entries of labels if it is not already there
+     *
+     * @return the new count
+     */
+    private static int addDistinct(final int[] labels, final int count, final int label) {
+        for (int i = 0; i < count; i++)
+            if (labels[i] == label) return count;
+        labels[count] = label;
+        return count + 1;
     }
 }
@@ -212,19 +212,19 @@ public class Peel extends BaseTIPLPluginMult {
 		// Initializes Output
 		switch (imageType) {
 		case 10: // Boolean
-			outAimMask = new boolean[aimLength];
+			outAimMask = new boolean[arrayLength()];
 			break;
 		case 0: // Byte
-			outAimByte = new char[aimLength];
+			outAimByte = new char[arrayLength()];
 			break;
 		case 1: // Short
-			outAimShort = new short[aimLength];
+			outAimShort = new short[arrayLength()];
 			break;
 		case 2: // Int
-			outAimInt = new int[aimLength];
+			outAimInt = new int[arrayLength()];
 			break;
 		case 3: // Float
-			outAimFloat = new float[aimLength];
+			outAimFloat = new float[arrayLength()];
 			break;
 		default:
 			System.err.println("Input type not supported");
@@ -233,10 +233,10 @@ public class Peel extends BaseTIPLPluginMult {
 	}
 
 	protected void InitSelfMask() {
-		peelMask = new boolean[aimLength];
+		peelMask = new boolean[arrayLength()];
 		switch (imageType) {
 		case 10: // Boolean
-			System.arraycopy(inAimMask, 0, peelMask, 0, aimLength);
+			System.arraycopy(inAimMask, 0, peelMask, 0, peelMask.length);
 			break;
 		case 0: // Byte
 			for (int off = 0; off < aimLength; off++)
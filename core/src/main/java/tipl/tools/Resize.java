@@ -1,5 +1,6 @@
 package tipl.tools;
 
+import tipl.formats.ConcurrentReader;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
 import tipl.util.*;
@@ -740,7 +741,7 @@ public class Resize extends BaseTIPLPluginMult {
 		if (inImages.length < 1)
 			throw new IllegalArgumentException("Too few input images given!");
 		final TImgRO inAim = inImages[0];
-		_inputAim = inAim;
+		_inputAim = ConcurrentReader.PrefetchImage(inAim);
 		if(asType>=0) {
 			TImgTools.isValidType(asType);
 			imageType=asType;
@@ -3,6 +3,7 @@ package tipl.tools;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
 import tipl.util.ArgumentParser;
+import tipl.util.ChunkedVolume;
 import tipl.util.D3int;
 import tipl.util.TImgTools;
 
@@ -15,8 +16,8 @@ import tipl.util.TImgTools;
  * 
  */
 public abstract class Thickness extends BaseTIPLPluginIO {
-	protected int[] inAim;
-	protected int[] outAim;
+	protected ChunkedVolume.Int inAim;
+	protected ChunkedVolume.Int outAim;
 	// double neighborOccupancy=1.0; // delete if less than 100% of neighbors
 	// are occupied
 	static final int MAXDIST = 4000;
@@ -47,8 +48,7 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 	protected TImg CreateOutputImage(final TImgRO.CanExport templateAim) {
 		if (isInitialized) {
 			if (runCount > 0) {
-				final TImg outAimData = templateAim.inheritedAim(outAim, dim,
-						offset);
+				final TImg outAimData = outAim.toTImg(templateAim, offset);
 				outAimData.appendProcLog(procLog);
 				return outAimData;
 			} else {
@@ -56,7 +56,7 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 						.println("The plug-in : "
 								+ getPluginName()
 								+ ", has not yet been run, exported does not exactly make sense, original data will be sent.");
-				return templateAim.inheritedAim(inAim, dim, offset);
+				return inAim.toTImg(templateAim, offset);
 			}
 		} else {
 			throw new IllegalArgumentException(
@@ -84,15 +84,13 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 			final double zd = (z - z2) * (z - z2);
 			for (int y2 = tlowy; y2 < tuppy; y2++) {
 				final double yd = (y - y2) * (y - y2);
-				int off2 = (z2 * dim.y + y2) * dim.x + lowx;
-				off2 += (tlowx - lowx);// since loop in next line starts at
-										// tlowx instead of lowx
+				long off2 = inAim.index(tlowx, y2, z2);
 				for (int x2 = tlowx; x2 < tuppx; x2++, off2++) {
 					final double ballCentDist = Math.sqrt((x - x2) * (x - x2)
 							+ yd + zd);
 
 					if (ballCentDist < cMaxVal) {
-						if ((outAim[off2] < myDist) && (outAim[off2] > 0)) {
+						if ((outAim.get(off2) < myDist) && (outAim.get(off2) > 0)) {
 							final int outAimVal = myDist;
 							final double redDist = cMaxVal - (ballCentDist); // Reduced
 																				// distance
@@ -111,7 +109,7 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 																				// sphere
 																				// at
 																				// (x,y,z)
-							final double actDist = inAim[off2] * distScalar - 1; // actual
+							final double actDist = inAim.get(off2) * distScalar - 1; // actual
 																					// distance
 																					// is
 																					// the
@@ -131,13 +129,13 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 								if (useSync)
 									synWriteIn(off2, 0);
 								else
-									inAim[off2] = 0;
+									inAim.set(off2, 0);
 							}
 
 							if (useSync)
 								synWriteOut(off2, outAimVal);
 							else
-								outAim[off2] = outAimVal;
+								outAim.set(off2, outAimVal);
 
 						}
 					}
@@ -152,15 +150,9 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 	public abstract String getPluginName();
 
 	protected void ImportData(final TImgRO inImg) {
-		final int[] inputmap = TImgTools.makeTImgFullReadable(inImg)
-				.getIntAim();
-		aimLength = inputmap.length;
-		if (Thickness.doPreserveInput) {
-			inAim = new int[aimLength];
-			System.arraycopy(inputmap, 0, inAim, 0, aimLength);
-		} else {
-			inAim = inputmap;
-		}
+		// the distance map is always read into a new volume so the input is preserved
+		inAim = ChunkedVolume.Int.fromTImg(inImg);
+		aimLength = inAim.length();
 		InitLabels(inImg.getDim(), inImg.getOffset());
 	}
 
@@ -195,8 +187,8 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 	 * @param off2
 	 * @param val
 	 */
-	protected synchronized void synWriteIn(final int off2, final int val) {
-		inAim[off2] = val;
+	protected synchronized void synWriteIn(final long off2, final int val) {
+		inAim.set(off2, val);
 	}
 
 	/**
@@ -205,7 +197,7 @@ public abstract class Thickness extends BaseTIPLPluginIO {
 	 * @param off2
 	 * @param val
 	 */
-	protected synchronized void synWriteOut(final int off2, final int val) {
-		outAim[off2] = val;
+	protected synchronized void synWriteOut(final long off2, final int val) {
+		outAim.set(off2, val);
 	}
 }
@@ -1,5 +1,6 @@
 package tipl.tools;
 
+import tipl.formats.ConcurrentReader;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
 import tipl.util.*;
@@ -117,13 +118,24 @@ public class VFilterScale extends FilterScale {
 		final TImgRO inImg = inImages[0];
 		elSize = inImg.getElSize();
 		ipos = inImg.getPos();
-		_inputAim = inImg;
+		// the filter reads the slices in order so the next ones can be read in the background
+		_inputAim = ConcurrentReader.PrefetchImage(inImg);
 		imageType = inImg.getImageType();
 		fullLoaded = false;
 		System.out.println("VFS Image:" + inImg + " loaded as:" + imageType);
 		InitLabels(inImg.getDim(), inImg.getOffset());
 	}
 
+	/**
+	 * The separable filter reads each slice from the input image as it is needed
+	 */
+	@Override
+	protected void readInputSlice(final int iz, final float[] sliceData) {
+		final int inImageType = _inputAim.getImageType();
+		copyToFloat(_inputAim.getPolyImage(iz, inImageType), inImageType, 0,
+				sliceData);
+	}
+
 	/**
 	 * Code to actually run the filter code on a portion of the image, loading
 	 * each slice as needed
@@ -3,6 +3,7 @@ package tipl.tools;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
 import tipl.util.ArgumentParser;
+import tipl.util.ChunkedVolume;
 import tipl.util.D3int;
 import tipl.util.TImgTools;
 import tipl.util.TypedPath;
@@ -13,13 +14,13 @@ import tipl.util.TypedPath;
  */
 public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoronoiTransform {
 	/** The labeled input objects */
-	protected int[] labels;
+	protected ChunkedVolume.Int labels;
 	/** The labeled volumes (output) */
-	protected int[] outlabels;
+	protected ChunkedVolume.Int outlabels;
 	/** The mask to be filled (if given) */
-	protected boolean[] mask;
+	protected ChunkedVolume.Bool mask;
 	/** The output distancemap */
-	protected int[] distmap;
+	protected ChunkedVolume.Int distmap;
 
 	protected int maxlabel;
 	/** Maximum distance (as float) which can be output */
@@ -66,7 +67,7 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	
 
 	/** This function is not finished yet... */
-	protected boolean checkGrowthTemplate(final int idx1, final int idx2,
+	protected boolean checkGrowthTemplate(final long idx1, final long idx2,
 			final int gtmode) {
 		if (gtmode == -1)
 			return true;
@@ -88,8 +89,7 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	public TImg ExportDistanceAim(final TImgRO.CanExport templateAim) {
 		if (isInitialized) {
 			if (runCount > 0) {
-				final TImg outAim = templateAim.inheritedAim(distmap, dim,
-						offset);
+				final TImg outAim = distmap.toTImg(templateAim, offset);
 				outAim.setShortScaleFactor((float) distScalar);
 				return outAim;
 			} else {
@@ -124,7 +124,7 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	public TImg ExportVolumesAim(final TImgRO.CanExport templateAim) {
 		if (isInitialized) {
 			if (runCount > 0) {
-				return templateAim.inheritedAim(outlabels, dim, offset);
+				return outlabels.toTImg(templateAim, offset);
 			} else {
 				throw new IllegalArgumentException(
 						"The plug-in : "
@@ -144,11 +144,11 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	public void ImportAim(final boolean[] inputmap, final boolean[] inputmask,
 			final D3int idim, final D3int ioffset) {
 		aimLength = inputmap.length;
-		labels = new int[aimLength];
-		mask = inputmask;
+		labels = new ChunkedVolume.Int(idim);
+		mask = ChunkedVolume.Bool.pack(inputmask, idim);
 		for (int i = 0; i < aimLength; i++) {
 			if (inputmap[i])
-				labels[i] = 1;
+				labels.set(i, 1);
 		}
 		alreadyCopied = true;
 		Init(idim, ioffset);
@@ -157,31 +157,29 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	public void ImportAim(final int[] inputmap, final boolean[] inputmask,
 			final D3int idim, final D3int ioffset) {
 		aimLength = inputmap.length;
-		labels = inputmap;
-		mask = inputmask;
+		labels = ChunkedVolume.Int.wrap(inputmap, idim);
+		mask = ChunkedVolume.Bool.pack(inputmask, idim);
 		Init(idim, ioffset);
 	}
 
 	public void ImportAim(final int[] inputmap, final D3int idim,
 			final D3int ioffset) {
 		aimLength = inputmap.length;
-		labels = inputmap; // Since the input map will be modified we should
+		labels = ChunkedVolume.Int.wrap(inputmap, idim); // Since the input map will be modified we should
 							// have our own
 
-		mask = new boolean[aimLength];
-
-		for (int i = 0; i < aimLength; i++)
-			mask[i] = true;
+		mask = new ChunkedVolume.Bool(idim);
+		mask.fill(true);
 		Init(idim, ioffset);
 	}
 
 	public void ImportAim(final short[] inputmap, final boolean[] inputmask,
 			final D3int idim, final D3int ioffset) {
 		aimLength = inputmap.length;
-		labels = new int[aimLength];
-		mask = inputmask;
+		labels = new ChunkedVolume.Int(idim);
+		mask = ChunkedVolume.Bool.pack(inputmask, idim);
 		for (int i = 0; i < aimLength; i++) {
-			labels[i] = inputmap[i];
+			labels.set(i, inputmap[i]);
 		}
 		alreadyCopied = true;
 		Init(idim, ioffset);
@@ -190,38 +188,54 @@ public abstract class VoronoiTransform extends BaseTIPLPluginIO implements IVoro
 	public void ImportAim(final short[] inputmap, final D3int idim,
 			final D3int ioffset) {
 		aimLength = inputmap.length;
-		labels = new int[aimLength];
-		mask = new boolean[aimLength];
+		labels = new ChunkedVolume.Int(idim);
+		mask = new ChunkedVolume.Bool(idim);
 		for (int i = 0; i < aimLength; i++) {
-			labels[i] = inputmap[i];
-			mask[i] = true;
+			labels.set(i, inputmap[i]);
 		}
+		mask.fill(true);
 		alreadyCopied = true;
 		Init(idim, ioffset);
 	}
 
+	/**
+	 * initializer taking the labels and mask as chunked volumes (used directly),
+	 * a null mask is the whole image
+	 */
+	public void ImportAim(final ChunkedVolume.Int inLabels, final ChunkedVolume.Bool inMask,
+			final D3int ioffset) {
+		aimLength = inLabels.length();
+		labels = inLabels;
+		if (inMask == null) {
+			mask = new ChunkedVolume.Bool(inLabels.getDim());
+			mask.fill(true);
+		} else
+			mask = inMask;
+		Init(inLabels.getDim(), ioffset);
+	}
+
 	public void ImportAim(final TImgRO labelImg) {
-		ImportAim(TImgTools.makeTImgFullReadable(labelImg).getIntAim(),
-				labelImg.getDim(), labelImg.getOffset());
+		ImportAim(ChunkedVolume.Int.fromTImg(labelImg), null,
+				labelImg.getOffset());
 	}
 
 	public void ImportAim(final TImgRO labelImg, final TImgRO maskImg) {
-		ImportAim(TImgTools.makeTImgFullReadable(labelImg).getIntAim(),
-				TImgTools.makeTImgFullReadable(maskImg).getBoolAim(),
-				labelImg.getDim(), labelImg.getOffset());
+		ImportAim(ChunkedVolume.Int.fromTImg(labelImg),
+				ChunkedVolume.Bool.fromTImg(maskImg),
+				labelImg.getOffset());
 	}
 
 	private void Init(final D3int idim, final D3int ioffset) {
-		if (labels.length != mask.length) {
+		if (labels.length() != mask.length()) {
 			System.out.println("SIZES DO NOT MATCH!!!!!!!!");
 			return;
 		}
-		distmap = new int[aimLength];
+		distmap = new ChunkedVolume.Int(idim);
 		if ((preserveLabels) || (alreadyCopied)) {
 			outlabels = labels;
 		} else {
-			outlabels = new int[aimLength];
-			System.arraycopy(labels, 0, outlabels, 0, aimLength);
+			outlabels = new ChunkedVolume.Int(idim);
+			outlabels.copyFrom(labels);
 			alreadyCopied = true;
 		}
 		InitDims(idim, ioffset);
@@ -5,6 +5,7 @@ import tipl.formats.TImg;
 import tipl.formats.TImgRO;
 import tipl.util.*;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -49,6 +50,10 @@ public class XDF extends BaseTIPLPluginMult {
      * scan every voxel in the image (true) or just a random sampling (false) *
      */
     public boolean fullScan = false;
+    /**
+     * calculate the function from every starting point at once using fourier transforms
+     */
+    public boolean fftMode = false;
     /**
      * when running fullscan how many voxels to skip over *
      */
@@ -97,8 +102,8 @@ public class XDF extends BaseTIPLPluginMult {
     boolean[] xdfMask = null;
     Random rgen;
     int vCount = 0;
-    int remVoxels = aimLength;
-    int totalVoxels = aimLength;
+    long remVoxels = aimLength;
+    long totalVoxels = aimLength;
     BaseTIPLPluginIn.stationaryKernel curKernel;
     private int curIter;
     private int missedIter;
@@ -134,6 +139,123 @@ public class XDF extends BaseTIPLPluginMult {
         return outAim;
     }
 
+    /**
+     * The value the landing point at off contributes to the distribution function (the phase
+     * match for labeled images and the (normalized) value for float images)
+     */
+    protected double landingValue(final int cImgTyp, final int off) {
+        switch (cImgTyp) {
+            case 0:
+                return (inAimByte[off] == outPhase) ? 1 : 0;
+            case 1:
+                return (inAimShort[off] == outPhase) ? 1 : 0;
+            case 2:
+                return (inAimInt[off] == outPhase) ? 1 : 0;
+            case 3:
+                if (normalizeFloat)
+                    return (inAimFloat[off] - meanVal) * (inAimFloat[off] - meanVal) / varVal;
+                return inAimFloat[off];
+            case 10:
+                return inAimMask[off] ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Input type" + cImgTyp + " not supported");
+        }
+    }
+
+    /**
+     * Calculate the distribution function from every starting point at once. The number of pairs
+     * at each offset is the correlation of the starting points with the mask (every landing
+     * point) and the sum of values is the correlation of the starting points with the landing
+     * values, each is the inverse transform of the product of the landing transform with the
+     * complex conjugate of the start transform. The volume is padded by the size of the
+     * distribution function (up to the next size with only the factors 2, 3 and 5) so the
+     * periodic transform does not wrap around the edges. The start transform and one landing
+     * volume (used for the counts and then for the values) are kept as floats so this needs
+     * about 8 bytes for every voxel of the padded volume (11.4GB for a 1000^3 image with an
+     * rdfsize up to 125) and the padded volume has to fit in a single array (about 1290^3).
+     *
+     * @param xdfStartMask the valid starting points
+     */
+    protected void runFFTScan(final boolean[] xdfStartMask) {
+        if (milMode)
+            throw new IllegalArgumentException("XDF: MIL mode needs every starting point separately and cannot be run with fft");
+        final int cImgTyp = imageType;
+        final D3int len = rdf.len;
+        final D3int fSize = new D3int(FFT3D.nextSmooth(uppx - lowx + len.x),
+                FFT3D.nextSmooth(uppy - lowy + len.y), FFT3D.nextSmooth(uppz - lowz + len.z));
+        final long fLength = ((long) FFT3D.rowLength(fSize.x)) * fSize.y * fSize.z;
+        if (fLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("XDF: padded volume " + fSize + " is too large for fft mode");
+        final int rowLength = FFT3D.rowLength(fSize.x);
+        System.out.println("XDF: FFT padded size:" + fSize + ", needs " + (2 * 4 * fLength / (1024 * 1024)) + "MB");
+
+        final float[] startSpec = new float[(int) fLength];
+        final float[] landSpec = new float[(int) fLength];
+        long startCount = 0;
+        for (int z = lowz; z < uppz; z++) {
+            for (int y = lowy; y < uppy; y++) {
+                int off = (z * dim.y + y) * dim.x + lowx;
+                int foff = ((z - lowz) * fSize.y + (y - lowy)) * rowLength;
+                for (int x = lowx; x < uppx; x++, off++, foff++) {
+                    if (xdfStartMask[off]) {
+                        startSpec[foff] = 1;
+                        startCount++;
+                    }
+                    if ((!hasMask) || xdfMask[off]) landSpec[foff] = 1;
+                }
+            }
+        }
+        FFT3D.realForward(startSpec, fSize, neededCores());
+
+        if (neighborKernel == null)
+            curKernel = new BaseTIPLPluginIn.stationaryKernel();
+        else
+            curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
+        final radDistFun crdf = new radDistFun(len);
+        // first the number of pairs and then the sum of the values
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                Arrays.fill(landSpec, 0);
+                for (int z = lowz; z < uppz; z++) {
+                    for (int y = lowy; y < uppy; y++) {
+                        int off = (z * dim.y + y) * dim.x + lowx;
+                        int foff = ((z - lowz) * fSize.y + (y - lowy)) * rowLength;
+                        for (int x = lowx; x < uppx; x++, off++, foff++)
+                            if ((!hasMask) || xdfMask[off]) landSpec[foff] = (float) landingValue(cImgTyp, off);
+                    }
+                }
+            }
+            FFT3D.realForward(landSpec, fSize, neededCores());
+            // correlation is the product with the complex conjugate of the start transform
+            for (int i = 0; i < landSpec.length; i += 2) {
+                final double cRe = startSpec[i] * landSpec[i] + startSpec[i + 1] * landSpec[i + 1];
+                final double cIm = startSpec[i] * landSpec[i + 1] - startSpec[i + 1] * landSpec[i];
+                landSpec[i] = (float) cRe;
+                landSpec[i + 1] = (float) cIm;
+            }
+            FFT3D.realInverse(landSpec, fSize, neededCores());
+
+            // the kernel caches on the difference of the offsets so use the offsets inside crdf
+            final int centerDex = crdf.index(0, 0, 0);
+            for (int dz = -len.z; dz <= len.z; dz++) {
+                for (int dy = -len.y; dy <= len.y; dy++) {
+                    for (int dx = -len.x; dx <= len.x; dx++) {
+                        final int cDex = crdf.index(dx, dy, dz);
+                        if (!curKernel.inside(centerDex, cDex, 0, dx, 0, dy, 0, dz)) continue;
+                        // negative offsets are at the end of the periodic volume
+                        final int foff = (((dz + fSize.z) % fSize.z) * fSize.y
+                                + ((dy + fSize.y) % fSize.y)) * rowLength + ((dx + fSize.x) % fSize.x);
+                        if (pass == 0) crdf.n[cDex] = Math.round(landSpec[foff]);
+                        else crdf.hf[cDex] = landSpec[foff];
+                    }
+                }
+            }
+        }
+        addToResult(crdf);
+        curIter = (int) Math.min(startCount, Integer.MAX_VALUE);
+        mcIter = curIter;
+    }
+
     public void setSize(D3int newSize) {
         rdfSize = newSize;
     }
@@ -181,6 +303,8 @@ public class XDF extends BaseTIPLPluginMult {
                 "Scan the entire image");
         skipFactor = p.getOptionD3int(cPrefix + "skipfactor", skipFactor,
                 "Skip factor");
+        fftMode = p.getOptionBoolean(cPrefix + "fft", fftMode,
+                "Calculate the function from every starting point using fourier transforms (needs about 8 bytes per voxel of the image padded by the rdfsize, at most about 1290^3 voxels)");
 
         return p;
     }
@@ -252,7 +376,7 @@ public class XDF extends BaseTIPLPluginMult {
      */
     protected boolean[] prepareStartMask(final int cImgTyp) {
         long totVoxels = 0, allVoxels = 0;
-        boolean[] outImage = new boolean[aimLength];
+        boolean[] outImage = new boolean[arrayLength()];
         for (int z = lowz; z < (uppz); z++) {
             for (int y = (lowy); y < (uppy); y++) {
                 int off = (z * dim.y + y) * dim.x + lowx;
@@ -444,38 +568,42 @@ public class XDF extends BaseTIPLPluginMult {
 
         printStep = new Integer(mcIter / 10);
 
-
-        final xdfScanner[] bfArray = new xdfScanner[neededCores()];
-
         if (hasMask) {
             if (aimLength != xdfMask.length) {
                 System.out.println("SIZES DO NOT MATCH  !!!!!!!!");
                 return false;
             }
         }
-        // Wind up
-        for (int i = 0; i < neededCores(); i++) {
-            bfArray[i] = new xdfScanner(this, valueImageType, i, normalizeFloat);
-        }
-        curIter = 0;
 
-        System.out.println("Calculating XDF ...Type:(" + inputType + "), Phase:(" + outPhase + ")");
-        if (fullScan) {
-            runFullScan(bfArray, hasMask, xdfStartMask);
-        } else { // Iterative Approach
-            runIterativeScan(bfArray, hasMask, xdfStartMask);
-        }
+        if (fftMode) {
+            System.out.println("Calculating XDF with FFT ...Type:(" + imageType + "), Phase:(" + outPhase + ")");
+            runFFTScan(xdfStartMask);
+        } else {
+            final xdfScanner[] bfArray = new xdfScanner[neededCores()];
+            // Wind up
+            for (int i = 0; i < neededCores(); i++) {
+                bfArray[i] = new xdfScanner(this, valueImageType, i, normalizeFloat);
+            }
+            curIter = 0;
 
-        // Wind down
-        for (int i = 0; i < neededCores(); i++) {
-            if (bfArray[i] != null) {
-                bfArray[i].join(); // pseudo-join
-                addToResult(bfArray[i].crdf);
-                System.out.println(bfArray[i] + " finished in : <"
-                        + StrRatio(bfArray[i].runningTime, 1000) + "s, "
-                        + bfArray[i].iters + " iters, "
-                        + StrRatio(bfArray[i].runningTime, bfArray[i].iters)
-                        + " ms/iter>");
+            System.out.println("Calculating XDF ...Type:(" + inputType + "), Phase:(" + outPhase + ")");
+            if (fullScan) {
+                runFullScan(bfArray, hasMask, xdfStartMask);
+            } else { // Iterative Approach
+                runIterativeScan(bfArray, hasMask, xdfStartMask);
+            }
+
+            // Wind down
+            for (int i = 0; i < neededCores(); i++) {
+                if (bfArray[i] != null) {
+                    bfArray[i].join(); // pseudo-join
+                    addToResult(bfArray[i].crdf);
+                    System.out.println(bfArray[i] + " finished in : <"
+                            + StrRatio(bfArray[i].runningTime, 1000) + "s, "
+                            + bfArray[i].iters + " iters, "
+                            + StrRatio(bfArray[i].runningTime, bfArray[i].iters)
+                            + " ms/iter>");
+                }
             }
         }
 
@@ -1128,9 +1256,9 @@ public class XDF extends BaseTIPLPluginMult {
                     new D3int(0));
             myCL.verboseMode = false;
             myCL.execute();
-            final int keepLabel = myCL.labels[index(0, 0, 0)];
+            final int keepLabel = myCL.labels.get(index(0, 0, 0));
             for (int i = 0; i < n.length; i++) {
-                if (myCL.labels[i] != keepLabel) {
+                if (myCL.labels.get(i) != keepLabel) {
                     n[i] = 0;
                     hf[i] = 0;
                 }
@@ -12,14 +12,15 @@ import java.util.*;
 public class cVoronoi extends VoronoiTransform {
     @TIPLPluginManager.PluginInfo(pluginType = "cVoronoi",
             desc = "Full memory center voronoi",
-            sliceBased = false)
+            sliceBased = false,
+            maximumSize = -1)
     final public static class cvFactory implements TIPLPluginManager.TIPLPluginFactory {
         @Override
         public ITIPLPlugin get() {
             return new cVoronoi();
         }
     };
-    public boolean[] tmask;
+    public ChunkedVolume.Bool tmask;
     protected boolean scaleddist = true;
     protected boolean updateCOV = false;
     protected volatile cVorList nvlist;
@@ -141,30 +142,30 @@ public class cVoronoi extends VoronoiTransform {
      */
     protected void customInitSteps() {
         nvlist = new cVorList();
-        int off = 0;
+        long off = 0;
         double fullVoxels = 0;
         // I don't want to screw the input mask up
         if (preserveLabels) {
-            tmask = new boolean[aimLength];
-            System.arraycopy(mask, 0, tmask, 0, mask.length);
+            tmask = new ChunkedVolume.Bool(dim);
+            tmask.copyFrom(mask);
         } else
             tmask = mask;
 
         System.out.println("Scanning Image...");
         for (int z = lowz; z < uppz; z++) {
             for (int y = lowy; y < uppy; y++) {
-                off = (z * dim.y + y) * dim.x + lowx;
+                off = distmap.index(lowx, y, z);
                 for (int x = lowx; x < uppx; x++, off++) {
                     // Label All Voxels
-                    if (labels[off] > 0) {
-                        if (labels[off] > maxVal)
-                            maxVal = labels[off];
-                        nvlist.addvox(labels[off], x, y, z);
+                    if (labels.get(off) > 0) {
+                        if (labels.get(off) > maxVal)
+                            maxVal = labels.get(off);
+                        nvlist.addvox(labels.get(off), x, y, z);
                         fullVoxels++;
                         if (preserveLabels)
-                            tmask[off] = false;
+                            tmask.set(off, false);
                     }
-                    if (tmask[off])
+                    if (tmask.get(off))
                         emptyVoxels++;
                 }
             }
@@ -197,11 +198,11 @@ public class cVoronoi extends VoronoiTransform {
             if (curCVO.count() > 0) {
                 for (int z = startSlice; z < finalSlice; z++) {
                     for (int y = lowy; y < uppy; y++) {
-                        int off = (z * dim.y + y) * dim.x + lowx;
+                        long off = distmap.index(lowx, y, z);
                         for (int x = lowx; x < uppx; x++, off++) {
                             // The code is optimized so the least number of
                             // voxels make it past the first check
-                            if (tmask[off]) {
+                            if (tmask.get(off)) {
                                 final double cdist = curCVO.dist(scaleddist, x,
                                         y, z);
                                 boolean isValid = true;
@@ -211,13 +212,13 @@ public class cVoronoi extends VoronoiTransform {
                                 if (isValid) {
                                     if (loopCnt == 0) {
 
-                                        distmap[off] = (int) (cdist / distScalar);
-                                        outlabels[off] = curLabel;
+                                        distmap.set(off, (int) (cdist / distScalar));
+                                        outlabels.set(off, curLabel);
                                         swappedVox++;
                                     } else {
-                                        if (distmap[off] > ((int) (cdist / distScalar))) {
-                                            distmap[off] = (int) (cdist / distScalar);
-                                            outlabels[off] = curLabel;
+                                        if (distmap.get(off) > ((int) (cdist / distScalar))) {
+                                            distmap.set(off, (int) (cdist / distScalar));
+                                            outlabels.set(off, curLabel);
 
                                             swappedVox++;
                                             if (cdist > maxDist)
@@ -13,7 +13,7 @@ public class kVoronoi extends VoronoiTransform {
 	@TIPLPluginManager.PluginInfo(pluginType = "kVoronoi",
 			desc="Full memory kvoronoi tesselation",
 			sliceBased=false,
-			maximumSize=1024*1024*1024)
+			maximumSize=-1)
     final public static class kvFactory implements TIPLPluginManager.TIPLPluginFactory {
 		@Override
 		public ITIPLPlugin get() {
@@ -131,11 +131,11 @@ public class kVoronoi extends VoronoiTransform {
 	
 	protected void EdgeMask(final TImgRO maskAim) {
 		final boolean cIE=includeEdges;
-		mask = TImgTools.makeTImgFullReadable(maskAim).getBoolAim();
-		aimLength = mask.length;
-		labels = new int[aimLength];
+		mask = ChunkedVolume.Bool.fromTImg(maskAim);
+		aimLength = mask.length();
+		labels = new ChunkedVolume.Int(maskAim.getDim());
 		outlabels = labels;
-		distmap = new int[aimLength];
+		distmap = new ChunkedVolume.Int(maskAim.getDim());
 		InitDims(maskAim.getDim(), maskAim.getOffset());
 		isInitialized = true;
 
@@ -146,31 +146,31 @@ public class kVoronoi extends VoronoiTransform {
 		System.out.println("Scanning Mask File...");
 		for (int z = lowz; z < uppz; z++) {
 			for (int y = lowy; y < uppy; y++) {
-				int off = (z * dim.y + y) * dim.x + lowx;
+				long off = distmap.index(lowx, y, z);
 				for (int x = lowx; x < uppx; x++, off++) {
-					if (labels[off] > 0) {
-						distmap[off] = 0;
+					if (labels.get(off) > 0) {
+						distmap.set(off, 0);
 						fullVoxels++;
-					} else if (mask[off]) {
+					} else if (mask.get(off)) {
 						if (cIE) {
 							// If we are on an image boundary, then set the
 							// distance to 1 and turn the voxel on
 							if ((x == lowx) | (x == uppx) | (y == lowy)
 									| (y == uppy) | (z == lowz) | (z == uppz)) {
-								distmap[off] = (int) (1.0 / distScalar);
-								labels[off] = 1;
+								distmap.set(off, (int) (1.0 / distScalar));
+								labels.set(off, 1);
 								fullVoxels++;
 							} else {
-								distmap[off] = MAXDISTVAL;
+								distmap.set(off, MAXDISTVAL);
 								emptyVoxels++;
 							}
 						} else {
-							distmap[off] = MAXDISTVAL;
+							distmap.set(off, MAXDISTVAL);
 							emptyVoxels++;
 						}
 
 					} else {
-						labels[off] = 1; // Everything outside of the mask is
+						labels.set(off, 1); // Everything outside of the mask is
 											// turned on!
 						outsideMask++;
 					}
@@ -257,16 +257,16 @@ public class kVoronoi extends VoronoiTransform {
 		System.out.println("Scanning Image... MAXDIST:" + maxUsuableDistance);
 		for (int z = lowz; z < uppz; z++) {
 			for (int y = lowy; y < uppy; y++) {
-				int off = (z * dim.y + y) * dim.x + lowx;
+				long off = distmap.index(lowx, y, z);
 				for (int x = lowx; x < uppx; x++, off++) {
 
-					if (labels[off] > 0) {
+					if (labels.get(off) > 0) {
 						fullVoxels++;
-						distmap[off] = 0;
-						if (maxVal < labels[off])
-							maxVal = labels[off];
-					} else if (mask[off]) {
-						distmap[off] = MAXDISTVAL;
+						distmap.set(off, 0);
+						if (maxVal < labels.get(off))
+							maxVal = labels.get(off);
+					} else if (mask.get(off)) {
+						distmap.set(off, MAXDISTVAL);
 						emptyVoxels++;
 					} else {
 						outsideMask++;
@@ -367,9 +367,9 @@ public class kVoronoi extends VoronoiTransform {
 			// End While Loop
 		}
 		System.out.println("Cleaning up Distance Map");
-		for (int i = 0; i < aimLength; i++)
-			if (distmap[i] == MAXDISTVAL)
-				distmap[i] = -1;
+		for (long i = 0; i < distmap.length(); i++)
+			if (distmap.get(i) == MAXDISTVAL)
+				distmap.set(i, -1);
 		procLog += "CMD:kVoronoi: Max Dist:" + fDist + " (" + curIter
 				+ "), swaps: " + swapSteps;
 		runCount = 1;
@@ -377,7 +377,7 @@ public class kVoronoi extends VoronoiTransform {
 	}
 
 	public void subGrow(final int bSlice, final int tSlice) {
-		int off = 0;
+		long off = 0;
 		// Code for stationaryKernel
 		BaseTIPLPluginIn.stationaryKernel curKernel;
 		if (neighborKernel == null)
@@ -393,28 +393,27 @@ public class kVoronoi extends VoronoiTransform {
 		int nvalidVoxels = 0;
 		for (int z = bSlice; z < tSlice; z++) {
 			for (int y = lowy; y < uppy; y++) {
-				off = (z * dim.y + y) * dim.x + lowx;
+				off = distmap.index(lowx, y, z);
 				for (int x = lowx; x < uppx; x++, off++) {
 					// The code is optimized so the least number of voxels make
 					// it past the first check
-					final int cPosVal = outlabels[off];
+					final int cPosVal = outlabels.get(off);
 
-					int off2;
+					long off2;
 
 					if (emptyVoxels < fullVoxels) {
 
-						if ((cPosVal < 1) && (distmap[off] == MAXDISTVAL)
-								&& (mask[off])) {// Eligble Empty Voxel
+						if ((cPosVal < 1) && (distmap.get(off) == MAXDISTVAL)
+								&& (mask.get(off))) {// Eligble Empty Voxel
 							nvalidVoxels++;
 							for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
 									z + neighborSize.z, uppz - 1); z2++) {
 								for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 										y + neighborSize.y, uppy - 1); y2++) {
-									off2 = (z2 * dim.y + y2) * dim.x
-											+ max(x - neighborSize.x, lowx);
+									off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 									for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 											x + neighborSize.x, uppx - 1); x2++, off2++) {
-										if (curKernel.inside(off, off2, x, x2,
+										if (curKernel.inside(0, (int) (off2 - off), x, x2,
 												y, y2, z, z2)) {
 											if (off != off2) {
 												final double cDist = Math
@@ -425,18 +424,18 @@ public class kVoronoi extends VoronoiTransform {
 																+ Math.pow(z2
 																		- z, 2))
 														/ distScalar;
-												final int ikDist = distmap[off2]
+												final int ikDist = distmap.get(off2)
 														+ (int) cDist;
 												// ensure the nearest voxel is
 												// full && the distance is
 												// smaller than the current wave
 												// && it is the local minimum
-												final int ctPosVal = (short) outlabels[off2];
+												final int ctPosVal = (short) outlabels.get(off2);
 												if (checkGrowthTemplate(off,
 														off2, gtmode)) {
 													if ((ctPosVal > 0)
 															&& (curIter >= ikDist)
-															&& (ikDist < distmap[off])) {
+															&& (ikDist < distmap.get(off))) {
 														// If voxel is on and
 														// matches value then
 														// turn on original
@@ -477,13 +476,12 @@ public class kVoronoi extends VoronoiTransform {
 									z + neighborSize.z, uppz - 1); z2++) {
 								for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 										y + neighborSize.y, uppy - 1); y2++) {
-									off2 = (z2 * dim.y + y2) * dim.x
-											+ max(x - neighborSize.x, lowx);
+									off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 									for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 											x + neighborSize.x, uppx - 1); x2++, off2++) {
-										if (curKernel.inside(off, off2, x, x2,
+										if (curKernel.inside(0, (int) (off2 - off), x, x2,
 												y, y2, z, z2)) {
-											if ((off != off2) && (mask[off2])) {
+											if ((off != off2) && (mask.get(off2))) {
 
 												final double cDist = Math
 														.sqrt(Math.pow(x2 - x,
@@ -493,7 +491,7 @@ public class kVoronoi extends VoronoiTransform {
 																+ Math.pow(z2
 																		- z, 2))
 														/ distScalar;
-												final int ikDist = distmap[off]
+												final int ikDist = distmap.get(off)
 														+ (int) cDist;
 
 												// System.out.println(x2+"-"+x+", "+y2+"-"+y+", "+z2+"-"+z+"  "+ikDist+", "+cDist);
@@ -501,7 +499,7 @@ public class kVoronoi extends VoronoiTransform {
 												// full && the distance is
 												// smaller than the current wave
 												// && it is the local minimum
-												final int ctPosVal = outlabels[off2];
+												final int ctPosVal = outlabels.get(off2);
 
 												// ensure the vx is empty && the
 												// distance is smaller than the
@@ -511,7 +509,7 @@ public class kVoronoi extends VoronoiTransform {
 														off2, gtmode)) {
 													if ((ctPosVal < 1)
 															&& (curIter >= ikDist)
-															&& (ikDist < distmap[off2])) {
+															&& (ikDist < distmap.get(off2))) {
 
 														// If voxel is on and
 														// matches value then
@@ -550,7 +548,7 @@ public class kVoronoi extends VoronoiTransform {
 	}
 
 	protected void subSwap(final int bSlice, final int tSlice) {
-		int off;
+		long off;
 		boolean nchanges = false;
 		int nchangescnt = 0;
 		// Code for stationaryKernel
@@ -561,22 +559,21 @@ public class kVoronoi extends VoronoiTransform {
 			curKernel = new BaseTIPLPluginIn.stationaryKernel(neighborKernel);
 		for (int z = bSlice; z < tSlice; z++) {
 			for (int y = lowy; y < uppy; y++) {
-				off = (z * dim.y + y) * dim.x + lowx;
+				off = distmap.index(lowx, y, z);
 				for (int x = lowx; x < uppx; x++, off++) {
 					// The code is optimized so the least number of voxels make
 					// it past the first check
-					final int cPosVal = outlabels[off];
+					final int cPosVal = outlabels.get(off);
 
 					if (cPosVal > 0) {// Eligble Full Voxel
 						for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
 								z + neighborSize.z, uppz - 1); z2++) {
 							for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 									y + neighborSize.y, uppy - 1); y2++) {
-								int off2 = (z2 * dim.y + y2) * dim.x
-										+ max(x - neighborSize.x, lowx);
+								long off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 								for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 										x + neighborSize.x, uppx - 1); x2++, off2++) {
-									if (curKernel.inside(off, off2, x, x2, y,
+									if (curKernel.inside(0, (int) (off2 - off), x, x2, y,
 											y2, z, z2)) {
 										if (off != off2) {
 											final double cDist = Math.sqrt(Math
@@ -584,18 +581,18 @@ public class kVoronoi extends VoronoiTransform {
 													+ Math.pow(y2 - y, 2)
 													+ Math.pow(z2 - z, 2))
 													/ distScalar;
-											final int ikDist = distmap[off]
+											final int ikDist = distmap.get(off)
 													+ (int) cDist;
 											// ensure the nearest voxel is full
 											// && the distance is smaller than
 											// the current wave && it is the
 											// local minimum
-											final int ctPosVal = (short) outlabels[off2];
+											final int ctPosVal = (short) outlabels.get(off2);
 
 											if (checkGrowthTemplate(off, off2,
 													gtmode)) {
 												if ((ctPosVal > 0)
-														&& (ikDist < distmap[off2])) {
+														&& (ikDist < distmap.get(off2))) {
 													synSetVoxel(off2, off,
 															ikDist);
 
@@ -628,10 +625,10 @@ public class kVoronoi extends VoronoiTransform {
 	 * @param ikDist
 	 *            distance to be putinto the distance map at off2
 	 */
-	public synchronized void synSetVoxel(final int off2, final int off,
+	public synchronized void synSetVoxel(final long off2, final long off,
 			final int ikDist) {
-		outlabels[off2] = outlabels[off];
-		distmap[off2] = ikDist;
+		outlabels.set(off2, outlabels.get(off));
+		distmap.set(off2, ikDist);
 
 	}
 
@@ -645,9 +642,9 @@ public class kVoronoi extends VoronoiTransform {
 	 * @param ikDist
 	 *            distance to be putinto the distance map at off2
 	 */
-	public void usSetVoxel(final int off2, final int off, final int ikDist) {
-		outlabels[off2] = outlabels[off];
-		distmap[off2] = ikDist;
+	public void usSetVoxel(final long off2, final long off, final int ikDist) {
+		outlabels.set(off2, outlabels.get(off));
+		distmap.set(off2, ikDist);
 
 	}
 }
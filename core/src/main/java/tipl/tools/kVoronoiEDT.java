@@ -0,0 +1,274 @@
+package tipl.tools;
+
+import tipl.util.ChunkedVolume;
+import tipl.util.ITIPLPlugin;
+import tipl.util.TIPLPluginManager;
+
+/**
+ * Performs the voronoi transform using an exact euclidean distance transform
+ * (Maurer, Qi and Raghavan 2003) instead of growing the labels iteratively. The
+ * transform is separable so the nearest seed (feature) for every voxel is found
+ * in one pass along x, one along y and one along z, each pass only needs the
+ * result of the previous one along a single line of voxels and the lines are
+ * distributed over the cores. The label and distance of the nearest seed are then
+ * copied into the outlabels and distmap so the exports work exactly as for
+ * kVoronoi.
+ * <p>
+ * Unlike kVoronoi the distance is the straight-line distance to the nearest seed,
+ * voxels outside of the mask are not filled but they also do not block the
+ * labels from reaching voxels behind them. Since the results differ from the
+ * other engines whenever a mask is used it is ranked below them and never
+ * picked by createBestPlugin, it has to be created directly.
+ */
+public class kVoronoiEDT extends kVoronoi {
+	@TIPLPluginManager.PluginInfo(pluginType = "kVoronoi",
+			desc="Full memory kvoronoi tesselation using an exact separable distance transform",
+			sliceBased=false,
+			maximumSize=-1,
+			speedRank=9)
+    final public static class kvedtFactory implements TIPLPluginManager.TIPLPluginFactory {
+		@Override
+		public ITIPLPlugin get() {
+			return new kVoronoiEDT();
+		}
+	};
+
+	/** curOperation for the x and y passes (divided over z) */
+	protected static final int PASS_XY = 3;
+	/** curOperation for the z pass (divided over y) */
+	protected static final int PASS_Z = 4;
+	/** curOperation for copying the nearest labels (divided over z) */
+	protected static final int PASS_LABEL = 5;
+
+	/**
+	 * the feature transform, index of the nearest seed voxel for every voxel
+	 * (or -1 if no seed has been found yet)
+	 */
+	protected ChunkedVolume.LongVolume featureMap;
+	protected volatile long filledVoxels;
+
+	public kVoronoiEDT() {
+	}
+
+	@Override
+	public boolean execute(final double maxIterDist) {
+		if ((curOperation != 0) && (Thread.currentThread() != launchThread))
+			return runMulticore();
+		return super.execute(maxIterDist);
+	}
+
+	@Override
+	public String getPluginName() {
+		return "kVoronoi-EDT";
+	}
+
+	@Override
+	public Object divideThreadWork(final int cThread, final int inCores) {
+		if (curOperation == PASS_Z)
+			return BaseTIPLPluginIn.sliceProcessWork(cThread, inCores, lowy, uppy, 1);
+		return BaseTIPLPluginIn.sliceProcessWork(cThread, inCores, lowz, uppz, 1);
+	}
+
+	@Override
+	protected void processWork(final Object currentWork) {
+		final int[] range = (int[]) currentWork;
+		final int bSlice = range[0];
+		final int tSlice = range[1];
+		final int sx = uppx - lowx, sy = uppy - lowy, sz = uppz - lowz;
+		switch (curOperation) {
+		case PASS_XY: {
+			final LinePass cPass = new LinePass(Math.max(sx, sy));
+			for (int z = bSlice; z < tSlice; z++) {
+				for (int y = lowy; y < uppy; y++)
+					cPass.run(featureMap.index(lowx, y, z), 1, sx, 0);
+				for (int x = lowx; x < uppx; x++)
+					cPass.run(featureMap.index(x, lowy, z), dim.x, sy, 1);
+			}
+			return;
+		}
+		case PASS_Z: {
+			final LinePass cPass = new LinePass(sz);
+			final long zStride = featureMap.getSliceSize();
+			for (int y = bSlice; y < tSlice; y++)
+				for (int x = lowx; x < uppx; x++)
+					cPass.run(featureMap.index(x, y, lowz), zStride, sz, 2);
+			return;
+		}
+		case PASS_LABEL:
+			copyLabels(bSlice, tSlice);
+			return;
+		default:
+			super.processWork(currentWork);
+		}
+	}
+
+	@Override
+	public void runTransform() {
+		if (!preScanDone)
+			customInitSteps();
+		featureMap = new ChunkedVolume.LongVolume(dim);
+		long seedCount = 0;
+		for (int z = lowz; z < uppz; z++) {
+			for (int y = lowy; y < uppy; y++) {
+				long off = featureMap.index(lowx, y, z);
+				for (int x = lowx; x < uppx; x++, off++) {
+					if (outlabels.get(off) > 0) {
+						featureMap.set(off, off);
+						seedCount++;
+					} else
+						featureMap.set(off, -1);
+				}
+			}
+		}
+		System.out.println("EDT Voronoi : seeds " + seedCount + ", MAXDIST:"
+				+ maxUsuableDistance);
+		final long start = System.currentTimeMillis();
+		filledVoxels = 0;
+		for (int cOp : new int[] { PASS_XY, PASS_Z, PASS_LABEL }) {
+			curOperation = cOp;
+			launchThread = Thread.currentThread();
+			runMulticore();
+		}
+		curOperation = 0;
+		featureMap = null;
+		final String outString = "CMD:kVoronoi-EDT: Max Dist:" + maxUsuableDistance
+				+ ", seeds: " + seedCount + ", filled: " + filledVoxels + " in "
+				+ StrRatio(System.currentTimeMillis() - start, 1000) + "s";
+		System.out.println(outString);
+		procLog += outString + "\n";
+		runCount = 1;
+	}
+
+	/**
+	 * Fill the empty voxels inside the mask with the label of the nearest seed
+	 * and the distance to it
+	 */
+	protected void copyLabels(final int bSlice, final int tSlice) {
+		final double maxDist = (maxUsuableDistance > 0) ? Math.min(
+				maxUsuableDistance, MAXDIST) : MAXDIST;
+		long nfilled = 0;
+		for (int z = bSlice; z < tSlice; z++) {
+			for (int y = lowy; y < uppy; y++) {
+				long off = featureMap.index(lowx, y, z);
+				for (int x = lowx; x < uppx; x++, off++) {
+					if ((outlabels.get(off) > 0) || (!mask.get(off)))
+						continue;
+					final long cFeat = featureMap.get(off);
+					if (cFeat < 0) {
+						distmap.set(off, -1);
+						continue;
+					}
+					final double cDist = Math.sqrt(featureDist(cFeat, x, y, z));
+					if (cDist > maxDist) {
+						distmap.set(off, -1);
+						continue;
+					}
+					// seeds are never overwritten so reading them from other
+					// slabs is safe
+					outlabels.set(off, outlabels.get(cFeat));
+					distmap.set(off, (int) (cDist / distScalar));
+					nfilled++;
+				}
+			}
+		}
+		synchronized (this) {
+			filledVoxels += nfilled;
+		}
+	}
+
+	/** squared distance between the voxel at index feat and the point x,y,z */
+	protected long featureDist(final long feat, final int x, final int y,
+			final int z) {
+		final long fx = feat % dim.x - x;
+		final long fy = (feat / dim.x) % dim.y - y;
+		final long fz = feat / featureMap.getSliceSize() - z;
+		return fx * fx + fy * fy + fz * fz;
+	}
+
+	/**
+	 * The 1D step of the transform: for a line of voxels along one axis, each
+	 * voxel has a candidate feature from the previous passes (which lies in the
+	 * plane through that voxel perpendicular to the axis). The candidates which
+	 * are the closest for some voxel on the line are kept in a stack (the 1D
+	 * voronoi diagram) and then assigned to the voxels in a single sweep.
+	 */
+	protected class LinePass {
+		/** the stack of candidate features */
+		final long[] g;
+		/** position along the line of each candidate */
+		final int[] h;
+		/** squared distance of each candidate to the line */
+		final long[] d2;
+
+		LinePass(final int maxLength) {
+			g = new long[maxLength];
+			h = new int[maxLength];
+			d2 = new long[maxLength];
+		}
+
+		/**
+		 * @param start
+		 *            index of the first voxel in the line
+		 * @param stride
+		 *            step between voxels in the line
+		 * @param length
+		 *            number of voxels in the line
+		 * @param axis
+		 *            0 for x, 1 for y and 2 for z
+		 */
+		void run(final long start, final long stride, final int length,
+				final int axis) {
+			final long sliceSize = featureMap.getSliceSize();
+			final long lx = start % dim.x;
+			final long ly = (start / dim.x) % dim.y;
+			final long lz = start / sliceSize;
+			int l = -1;
+			long off = start;
+			for (int i = 0; i < length; i++, off += stride) {
+				final long f = featureMap.get(off);
+				if (f < 0)
+					continue;
+				// distance from the feature to the line
+				final long fx = (axis == 0) ? 0 : f % dim.x - lx;
+				final long fy = (axis == 1) ? 0 : (f / dim.x) % dim.y - ly;
+				final long fz = (axis == 2) ? 0 : f / sliceSize - lz;
+				final long fd2 = fx * fx + fy * fy + fz * fz;
+				while ((l >= 1) && removeFeature(l, i, fd2))
+					l--;
+				l++;
+				g[l] = f;
+				h[l] = i;
+				d2[l] = fd2;
+			}
+			if (l < 0)
+				return;
+			final int ns = l;
+			l = 0;
+			off = start;
+			for (int i = 0; i < length; i++, off += stride) {
+				while ((l < ns)
+						&& (lineDist(l, i) > lineDist(l + 1, i)))
+					l++;
+				featureMap.set(off, g[l]);
+			}
+		}
+
+		/** squared distance from candidate l to position i on the line */
+		private long lineDist(final int l, final int i) {
+			final long di = h[l] - i;
+			return d2[l] + di * di;
+		}
+
+		/**
+		 * is the candidate at the top of the stack (l) never the closest once
+		 * the new candidate at position i is added
+		 */
+		private boolean removeFeature(final int l, final int i, final long wd2) {
+			final long a = h[l] - h[l - 1];
+			final long b = i - h[l];
+			final long c = a + b;
+			return (c * d2[l] - b * d2[l - 1] - a * wd2 - a * b * c) > 0;
+		}
+	}
+
+}
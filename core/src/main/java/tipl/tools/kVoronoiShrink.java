@@ -10,6 +10,7 @@ public class kVoronoiShrink extends kVoronoi {
 	@TIPLPluginManager.PluginInfo(pluginType = "kVoronoi",
 			desc="Full memory kvoronoi tesselation, optimized with shrinking bounds",
 			sliceBased=false,
+			maximumSize=-1,
 			speedRank=11)
     final public static class kvsFactory implements TIPLPluginManager.TIPLPluginFactory {
 		@Override
@@ -149,11 +150,11 @@ public class kVoronoiShrink extends kVoronoi {
 		for (int z = lowz; z < uppz; z++) {
 
 			for (int y = lowy; y < uppy; y++) {
-				int off = (z * dim.y + y) * dim.x + lowx;
+				long off = distmap.index(lowx, y, z);
 				for (int x = lowx; x < uppx; x++, off++) {
 					boolean isActive = false;
-					if (mask[off])
-						if (outlabels[off] < 1)
+					if (mask.get(off))
+						if (outlabels.get(off) < 1)
 							isActive = true;
 					if (isActive) {
 						if (x < minActx)
@@ -349,9 +350,9 @@ public class kVoronoiShrink extends kVoronoi {
 			tuppz = min(maxActz + 2, uppz);
 		}
 		System.out.println("Cleaning up Distance Map");
-		for (int i = 0; i < aimLength; i++)
-			if (distmap[i] == MAXDISTVAL)
-				distmap[i] = 0;
+		for (long i = 0; i < distmap.length(); i++)
+			if (distmap.get(i) == MAXDISTVAL)
+				distmap.set(i, 0);
 		procLog += "CMD:kVoronoi: Max Dist:" + fDist + " (" + curIter
 				+ "), swaps: " + swapSteps;
 		runCount = 1;
@@ -390,7 +391,7 @@ public class kVoronoiShrink extends kVoronoi {
 
 	@Override
 	public void subGrow(final int ibSlice, final int itSlice) {
-		int off = 0;
+		long off = 0;
 		// Code for stationaryKernel
 		BaseTIPLPluginIn.stationaryKernel curKernel;
 		if (neighborKernel == null)
@@ -410,32 +411,31 @@ public class kVoronoiShrink extends kVoronoi {
 		for (int z = bSlice; z < tSlice; z++) {
 			boolean isActive = false;
 			for (int y = tlowy; y < tuppy; y++) {
-				off = (z * dim.y + y) * dim.x + tlowx;
+				off = distmap.index(tlowx, y, z);
 				for (int x = tlowx; x < tuppx; x++, off++) {
 					// The code is optimized so the least number of voxels make
 					// it past the first check
-					final int cPosVal = outlabels[off];
+					final int cPosVal = outlabels.get(off);
 
-					int off2;
+					long off2;
 
 					if (emptyVoxels < fullVoxels) {
 
-						if ((cPosVal < 1) && (distmap[off] == MAXDISTVAL)
-								&& (mask[off])) {// Eligble Empty Voxel
+						if ((cPosVal < 1) && (distmap.get(off) == MAXDISTVAL)
+								&& (mask.get(off))) {// Eligble Empty Voxel
 							nvalidVoxels++;
 							for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
 									z + neighborSize.z, uppz - 1); z2++) {
 								for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 										y + neighborSize.y, uppy - 1); y2++) {
-									off2 = (z2 * dim.y + y2) * dim.x
-											+ max(x - neighborSize.x, lowx);
+									off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 									for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 											x + neighborSize.x, uppx - 1); x2++, off2++) {
-										if (curKernel.inside(off, off2, x, x2,
+										if (curKernel.inside(0, (int) (off2 - off), x, x2,
 												y, y2, z, z2)) {
 											if (off != off2) {
-												if (mask[off2]) {
-													final int ctPosVal = (short) outlabels[off2];
+												if (mask.get(off2)) {
+													final int ctPosVal = (short) outlabels.get(off2);
 													if (ctPosVal > 0) { // is
 																		// the
 																		// voxel
@@ -461,7 +461,7 @@ public class kVoronoiShrink extends kVoronoi {
 																						- z,
 																				2))
 																/ distScalar;
-														final int ikDist = distmap[off2]
+														final int ikDist = distmap.get(off2)
 																+ (int) cDist;
 														// ensure the nearest
 														// voxel is full && the
@@ -474,7 +474,7 @@ public class kVoronoiShrink extends kVoronoi {
 																off, off2,
 																gtmode)) {
 															if ((curIter >= ikDist)
-																	&& (ikDist < distmap[off])) {
+																	&& (ikDist < distmap.get(off))) {
 
 																nfullVoxels++;
 																nemptyVoxels--;
@@ -516,14 +516,13 @@ public class kVoronoiShrink extends kVoronoi {
 									z + neighborSize.z, uppz - 1); z2++) {
 								for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 										y + neighborSize.y, uppy - 1); y2++) {
-									off2 = (z2 * dim.y + y2) * dim.x
-											+ max(x - neighborSize.x, lowx);
+									off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 									for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 											x + neighborSize.x, uppx - 1); x2++, off2++) {
-										if (curKernel.inside(off, off2, x, x2,
+										if (curKernel.inside(0, (int) (off2 - off), x, x2,
 												y, y2, z, z2)) {
-											if ((off != off2) && (mask[off2])) {
-												final int ctPosVal = outlabels[off2];
+											if ((off != off2) && (mask.get(off2))) {
+												final int ctPosVal = outlabels.get(off2);
 												if (ctPosVal < 1) { // Check to
 																	// make sure
 																	// it is
@@ -546,7 +545,7 @@ public class kVoronoiShrink extends kVoronoi {
 																					- z,
 																			2))
 															/ distScalar;
-													final int ikDist = distmap[off]
+													final int ikDist = distmap.get(off)
 															+ (int) cDist;
 
 													// System.out.println(x2+"-"+x+", "+y2+"-"+y+", "+z2+"-"+z+"  "+ikDist+", "+cDist);
@@ -563,7 +562,7 @@ public class kVoronoiShrink extends kVoronoi {
 													if (checkGrowthTemplate(
 															off, off2, gtmode)) {
 														if ((curIter >= ikDist)
-																&& (ikDist < distmap[off2])) {
+																&& (ikDist < distmap.get(off2))) {
 
 															// If voxel is on
 															// and matches value
@@ -625,7 +624,7 @@ public class kVoronoiShrink extends kVoronoi {
 
 	@Override
 	protected void subSwap(final int ibSlice, final int itSlice) {
-		int off;
+		long off;
 		boolean nchanges = false;
 		int nchangescnt = 0;
 		// Code for stationaryKernel
@@ -641,22 +640,21 @@ public class kVoronoiShrink extends kVoronoi {
 
 			boolean isActive = false;
 			for (int y = tlowy; y < tuppy; y++) {
-				off = (z * dim.y + y) * dim.x + tlowx;
+				off = distmap.index(tlowx, y, z);
 				for (int x = tlowx; x < tuppx; x++, off++) {
 					// The code is optimized so the least number of voxels make
 					// it past the first check
-					final int cPosVal = outlabels[off];
+					final int cPosVal = outlabels.get(off);
 
 					if (cPosVal > 0) {// Eligble Full Voxel
 						for (int z2 = max(z - neighborSize.z, lowz); z2 <= min(
 								z + neighborSize.z, uppz - 1); z2++) {
 							for (int y2 = max(y - neighborSize.y, lowy); y2 <= min(
 									y + neighborSize.y, uppy - 1); y2++) {
-								int off2 = (z2 * dim.y + y2) * dim.x
-										+ max(x - neighborSize.x, lowx);
+								long off2 = distmap.index(max(x - neighborSize.x, lowx), y2, z2);
 								for (int x2 = max(x - neighborSize.x, lowx); x2 <= min(
 										x + neighborSize.x, uppx - 1); x2++, off2++) {
-									if (curKernel.inside(off, off2, x, x2, y,
+									if (curKernel.inside(0, (int) (off2 - off), x, x2, y,
 											y2, z, z2)) {
 										if (off != off2) {
 											final double cDist = Math.sqrt(Math
@@ -664,18 +662,18 @@ public class kVoronoiShrink extends kVoronoi {
 													+ Math.pow(y2 - y, 2)
 													+ Math.pow(z2 - z, 2))
 													/ distScalar;
-											final int ikDist = distmap[off]
+											final int ikDist = distmap.get(off)
 													+ (int) cDist;
 											// ensure the nearest voxel is full
 											// && the distance is smaller than
 											// the current wave && it is the
 											// local minimum
-											final int ctPosVal = (short) outlabels[off2];
+											final int ctPosVal = (short) outlabels.get(off2);
 
 											if (checkGrowthTemplate(off, off2,
 													gtmode)) {
 												if ((ctPosVal > 0)
-														&& (ikDist < distmap[off2])) {
+														&& (ikDist < distmap.get(off2))) {
 													synSetVoxel(off2, off,
 															ikDist);
 
@@ -732,10 +730,10 @@ public class kVoronoiShrink extends kVoronoi {
 	 *            distance to be putinto the distance map at off2
 	 */
 	@Override
-	public synchronized void synSetVoxel(final int off2, final int off,
+	public synchronized void synSetVoxel(final long off2, final long off,
 			final int ikDist) {
-		outlabels[off2] = outlabels[off];
-		distmap[off2] = ikDist;
+		outlabels.set(off2, outlabels.get(off));
+		distmap.set(off2, ikDist);
 	}
 
 	/**
@@ -749,9 +747,9 @@ public class kVoronoiShrink extends kVoronoi {
 	 *            distance to be putinto the distance map at off2
 	 */
 	@Override
-	public void usSetVoxel(final int off2, final int off, final int ikDist) {
-		outlabels[off2] = outlabels[off];
-		distmap[off2] = ikDist;
+	public void usSetVoxel(final long off2, final long off, final int ikDist) {
+		outlabels.set(off2, outlabels.get(off));
+		distmap.set(off2, ikDist);
 
 	}
 }
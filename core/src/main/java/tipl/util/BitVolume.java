@@ -0,0 +1,356 @@
+package tipl.util;
+
+import tipl.formats.TImgRO;
+
+/**
+ * A binary volume with word-parallel logical and morphological operations. It
+ * is a {@link ChunkedVolume.Bool} (the same bits and the same linear index as
+ * the plugins use) so any binary volume can be processed without converting
+ * it. The kernels copy the rows of each slice into words where every row
+ * starts at a new word, so the rows can be shifted and combined a word at a
+ * time. They use the same conventions as Morpho: voxels outside of the image
+ * are never counted as neighbors, so dilation does not grow in from the
+ * border and erosion does not eat in from the border.
+ *
+ * @author mader
+ */
+public class BitVolume extends ChunkedVolume.Bool {
+    private static final long serialVersionUID = -2516447392371532307L;
+    /**
+     * number of words in each row of a slice buffer
+     */
+    protected final int rowWords;
+    /**
+     * number of words in each slice buffer
+     */
+    protected final int sliceWords;
+    /**
+     * the bits which are inside the image in the last word of a row
+     */
+    protected final long lastWordMask;
+
+    public BitVolume(final D3int idim) {
+        super(idim);
+        rowWords = rowWords(dim);
+        sliceWords = sliceWords(dim);
+        lastWordMask = lastWordMask(dim);
+    }
+
+    /**
+     * A volume using the same bits as inVol
+     */
+    protected BitVolume(final ChunkedVolume.Bool inVol) {
+        super(inVol);
+        rowWords = rowWords(dim);
+        sliceWords = sliceWords(dim);
+        lastWordMask = lastWordMask(dim);
+    }
+
+    /**
+     * The operations of BitVolume on a binary volume without copying it, changes
+     * to the returned volume (and, or, not, ...) are changes to inVol
+     */
+    public static BitVolume wrap(final ChunkedVolume.Bool inVol) {
+        if (inVol instanceof BitVolume) return (BitVolume) inVol;
+        return new BitVolume(inVol);
+    }
+
+    protected static int rowWords(final D3int dim) {
+        return (dim.x + 63) >>> 6;
+    }
+
+    protected static int sliceWords(final D3int dim) {
+        final long cSliceWords = ((long) rowWords(dim)) * dim.y;
+        if (cSliceWords > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("BitVolume: slice is too large " + dim);
+        return (int) cSliceWords;
+    }
+
+    protected static long lastWordMask(final D3int dim) {
+        return ((dim.x & 63) == 0) ? -1L : ((1L << (dim.x & 63)) - 1);
+    }
+
+    /**
+     * Pack a linear boolean array
+     */
+    public static BitVolume fromBoolAim(final boolean[] inAim, final D3int dim) {
+        checkLength(inAim.length, dim);
+        final BitVolume outVol = new BitVolume(dim);
+        outVol.copyIn(0, inAim, 0, inAim.length);
+        return outVol;
+    }
+
+    /**
+     * Pack an image (every value which is true when read as a binary image is set)
+     */
+    public static BitVolume fromTImg(final TImgRO inImg) {
+        final BitVolume outVol = new BitVolume(inImg.getDim());
+        outVol.readImage(inImg);
+        return outVol;
+    }
+
+    public long voxelCount() {
+        return length;
+    }
+
+    /**
+     * Copy a slice in from a linear boolean array
+     *
+     * @param z     the slice
+     * @param slice the array
+     * @param start the index of the first voxel of the slice in the array
+     */
+    public void setSlice(final int z, final boolean[] slice, final int start) {
+        copyIn(((long) z) * sliceSize, slice, start, sliceSize);
+    }
+
+    /**
+     * Copy a slice out into a linear boolean array
+     *
+     * @param z     the slice
+     * @param slice the array
+     * @param start the index of the first voxel of the slice in the array
+     */
+    public void getSlice(final int z, final boolean[] slice, final int start) {
+        copyOut(((long) z) * sliceSize, slice, start, sliceSize);
+    }
+
+    @Override
+    public boolean[] getSlice(final int z) {
+        return (boolean[]) super.getSlice(z);
+    }
+
+    /**
+     * Unpack into a linear boolean array (only for volumes with less than 2^31 voxels)
+     */
+    public void toBoolAim(final boolean[] outAim) {
+        checkLength(outAim.length, dim);
+        copyOut(0, outAim, 0, outAim.length);
+    }
+
+    public boolean[] toBoolAim() {
+        return (boolean[]) toArray();
+    }
+
+    /**
+     * number of voxels which are set in slice z
+     */
+    public long count(final int z) {
+        return count(((long) z) * sliceSize, ((long) z + 1) * sliceSize);
+    }
+
+    private void checkDim(final ChunkedVolume.Bool other) {
+        if (!other.getDim().isEqual(dim))
+            throw new IllegalArgumentException("BitVolume: dimensions do not match " + dim
+                    + " != " + other.getDim());
+    }
+
+    /**
+     * this = this AND other
+     */
+    public BitVolume and(final ChunkedVolume.Bool other) {
+        checkDim(other);
+        for (long w = 0; w < wordCount(); w++) setWord(w, -1L, getWord(w) & other.getWord(w));
+        return this;
+    }
+
+    /**
+     * this = this OR other
+     */
+    public BitVolume or(final ChunkedVolume.Bool other) {
+        checkDim(other);
+        for (long w = 0; w < wordCount(); w++) setWord(w, -1L, getWord(w) | other.getWord(w));
+        return this;
+    }
+
+    /**
+     * this = this XOR other
+     */
+    public BitVolume xor(final ChunkedVolume.Bool other) {
+        checkDim(other);
+        for (long w = 0; w < wordCount(); w++) setWord(w, -1L, getWord(w) ^ other.getWord(w));
+        return this;
+    }
+
+    /**
+     * this = this AND NOT other
+     */
+    public BitVolume andNot(final ChunkedVolume.Bool other) {
+        checkDim(other);
+        for (long w = 0; w < wordCount(); w++) setWord(w, -1L, getWord(w) & ~other.getWord(w));
+        return this;
+    }
+
+    /**
+     * this = NOT this
+     */
+    public BitVolume not() {
+        for (long w = 0; w < wordCount(); w++) setWord(w, -1L, ~getWord(w));
+        clearTail();
+        return this;
+    }
+
+    /**
+     * Copy the rows of a slice into a buffer of sliceWords words
+     */
+    protected void readSlice(final int z, final long[] buffer) {
+        for (int y = 0; y < dim.y; y++) getWords(index(0, y, z), dim.x, buffer, y * rowWords);
+    }
+
+    /**
+     * Copy a buffer of sliceWords words into the rows of a slice
+     */
+    protected void writeSlice(final int z, final long[] buffer) {
+        for (int y = 0; y < dim.y; y++) setWords(index(0, y, z), dim.x, buffer, y * rowWords);
+    }
+
+    /**
+     * Dilate (any voxel in the box is set) with a box of radius rx, ry, rz
+     * (the same as Morpho with the full kernel)
+     */
+    public BitVolume dilateBox(final int rx, final int ry, final int rz, final int cores) {
+        return boxFilter(rx, ry, rz, true, cores);
+    }
+
+    /**
+     * Erode (every voxel in the box is set) with a box of radius rx, ry, rz
+     * (the same as Morpho with the full kernel and an occupancy of 1)
+     */
+    public BitVolume erodeBox(final int rx, final int ry, final int rz, final int cores) {
+        return boxFilter(rx, ry, rz, false, cores);
+    }
+
+    /**
+     * Dilate with the 6 face-sharing neighbors (the same as Morpho with the D kernel)
+     */
+    public BitVolume dilateCross(final int cores) {
+        return crossFilter(true, cores);
+    }
+
+    /**
+     * Erode with the 6 face-sharing neighbors (the same as Morpho with the D
+     * kernel and an occupancy of 1)
+     */
+    public BitVolume erodeCross(final int cores) {
+        return crossFilter(false, cores);
+    }
+
+    /**
+     * The box is separable so it is run as a pass along x, one along y and one along z
+     */
+    protected BitVolume boxFilter(final int rx, final int ry, final int rz, final boolean dilate,
+                                  final int cores) {
+        final long[][] yPass = new long[dim.z][];
+        final BitVolume outVol = new BitVolume(dim);
+        forSlices(cores, dim.z, new SliceOp() {
+            @Override
+            public void run(final int z) {
+                final long[] tmp = new long[rowWords];
+                final long[] xPass = new long[sliceWords];
+                readSlice(z, xPass);
+                for (int y = 0; y < dim.y; y++)
+                    for (int i = 0; i < rx; i++) shiftRow(xPass, y * rowWords, tmp, dilate);
+                yPass[z] = new long[sliceWords];
+                combineRows(xPass, yPass[z], ry, dilate);
+            }
+        });
+        forSlices(cores, dim.z, new SliceOp() {
+            @Override
+            public void run(final int z) {
+                final long[] dst = yPass[z].clone();
+                for (int z2 = Math.max(z - rz, 0); z2 <= Math.min(z + rz, dim.z - 1); z2++) {
+                    final long[] cSlice = yPass[z2];
+                    if (dilate) for (int i = 0; i < sliceWords; i++) dst[i] |= cSlice[i];
+                    else for (int i = 0; i < sliceWords; i++) dst[i] &= cSlice[i];
+                }
+                outVol.writeSlice(z, dst);
+            }
+        });
+        return outVol;
+    }
+
+    protected BitVolume crossFilter(final boolean dilate, final int cores) {
+        final BitVolume outVol = new BitVolume(dim);
+        forSlices(cores, dim.z, new SliceOp() {
+            @Override
+            public void run(final int z) {
+                final long[] tmp = new long[rowWords];
+                final long[] src = new long[sliceWords], dst = new long[sliceWords];
+                readSlice(z, src);
+                final long[] below = (z > 0) ? new long[sliceWords] : null;
+                final long[] above = (z < dim.z - 1) ? new long[sliceWords] : null;
+                if (below != null) readSlice(z - 1, below);
+                if (above != null) readSlice(z + 1, above);
+                System.arraycopy(src, 0, dst, 0, sliceWords);
+                for (int y = 0; y < dim.y; y++) shiftRow(dst, y * rowWords, tmp, dilate);
+                for (int y = 0; y < dim.y; y++) {
+                    final int row = y * rowWords;
+                    for (int w = 0; w < rowWords; w++) {
+                        long v = dst[row + w];
+                        if (dilate) {
+                            if (y > 0) v |= src[row - rowWords + w];
+                            if (y < dim.y - 1) v |= src[row + rowWords + w];
+                            if (below != null) v |= below[row + w];
+                            if (above != null) v |= above[row + w];
+                        } else {
+                            if (y > 0) v &= src[row - rowWords + w];
+                            if (y < dim.y - 1) v &= src[row + rowWords + w];
+                            if (below != null) v &= below[row + w];
+                            if (above != null) v &= above[row + w];
+                        }
+                        dst[row + w] = v;
+                    }
+                }
+                outVol.writeSlice(z, dst);
+            }
+        });
+        return outVol;
+    }
+
+    /**
+     * Combine every voxel in a row with its two neighbors (x-1 and x+1) in
+     * place, OR for dilation and AND for erosion
+     *
+     * @param words    the slice
+     * @param rowStart the first word of the row
+     * @param tmp      a buffer of rowWords words
+     */
+    protected void shiftRow(final long[] words, final int rowStart, final long[] tmp,
+                            final boolean dilate) {
+        System.arraycopy(words, rowStart, tmp, 0, rowWords);
+        // outside of the image is 0 for dilation and 1 for erosion
+        final long outside = dilate ? 0L : -1L;
+        final int last = rowWords - 1;
+        if (!dilate) tmp[last] |= ~lastWordMask;
+        for (int w = 0; w < rowWords; w++) {
+            final long prev = (w > 0) ? tmp[w - 1] : outside;
+            final long next = (w < last) ? tmp[w + 1] : outside;
+            // voxel x gets x-1 (shift up) and x+1 (shift down)
+            final long fromLower = (tmp[w] << 1) | (prev >>> 63);
+            final long fromUpper = (tmp[w] >>> 1) | (next << 63);
+            words[rowStart + w] = dilate ? (tmp[w] | fromLower | fromUpper)
+                    : (tmp[w] & fromLower & fromUpper);
+        }
+        words[rowStart + last] &= lastWordMask;
+    }
+
+    /**
+     * every row of dst is the OR (AND) of the rows within ry in src
+     */
+    protected void combineRows(final long[] src, final long[] dst, final int ry, final boolean dilate) {
+        for (int y = 0; y < dim.y; y++) {
+            final int row = y * rowWords;
+            System.arraycopy(src, row, dst, row, rowWords);
+            for (int y2 = Math.max(y - ry, 0); y2 <= Math.min(y + ry, dim.y - 1); y2++) {
+                final int row2 = y2 * rowWords;
+                if (dilate) for (int w = 0; w < rowWords; w++) dst[row + w] |= src[row2 + w];
+                else for (int w = 0; w < rowWords; w++) dst[row + w] &= src[row2 + w];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BitVolume:" + dim;
+    }
+}
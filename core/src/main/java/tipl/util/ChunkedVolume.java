@@ -0,0 +1,691 @@
+package tipl.util;
+
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A primitive volume with a long index, the voxels are stored in chunks of
+ * 2^CHUNK_BITS voxels so the volume can have more than 2^31 voxels while reading
+ * a voxel is still only a shift and a mask. The index is the usual linear
+ * (z*dim.y+y)*dim.x+x so the single array loops of the plugins only need to
+ * switch to long offsets and get/set. Volumes smaller than a chunk are a single
+ * array, which is shared with the caller when they are wrapped. Binary volumes
+ * are packed into bits (see {@link Bool}).
+ *
+ * @author mader
+ */
+public abstract class ChunkedVolume implements Serializable {
+    private static final long serialVersionUID = 6143817003619268354L;
+    /**
+     * 2^27 voxels per chunk (512mb for an int volume)
+     */
+    public static final int CHUNK_BITS = 27;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    protected static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    protected final D3int dim;
+    protected final long length;
+    protected final int sliceSize;
+
+    protected ChunkedVolume(final D3int idim) {
+        dim = new D3int(idim.x, idim.y, idim.z);
+        final long cSliceSize = ((long) dim.x) * dim.y;
+        if (cSliceSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("ChunkedVolume: slice is too large " + dim);
+        sliceSize = (int) cSliceSize;
+        length = cSliceSize * dim.z;
+    }
+
+    /**
+     * The type of the voxels as one of the TImgTools.IMAGETYPE_ values
+     */
+    public abstract int getImageType();
+
+    /**
+     * the data of the given chunk
+     */
+    protected abstract Object getChunk(int chunk);
+
+    protected abstract Object newArray(int size);
+
+    public D3int getDim() {
+        return dim;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * The linear index of a position
+     */
+    public final long index(final int x, final int y, final int z) {
+        return (((long) z) * dim.y + y) * dim.x + x;
+    }
+
+    protected int chunkCount() {
+        return (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+    }
+
+    protected int chunkLength(final int chunk) {
+        return (int) Math.min(CHUNK_SIZE, length - (((long) chunk) << CHUNK_BITS));
+    }
+
+    /**
+     * Copy a run of voxels out of the volume into an array of the same type
+     */
+    public void copyOut(long start, final Object dst, int dstPos, int count) {
+        while (count > 0) {
+            final int chunk = (int) (start >>> CHUNK_BITS);
+            final int chunkPos = (int) (start & CHUNK_MASK);
+            final int runLength = Math.min(count, chunkLength(chunk) - chunkPos);
+            System.arraycopy(getChunk(chunk), chunkPos, dst, dstPos, runLength);
+            start += runLength;
+            dstPos += runLength;
+            count -= runLength;
+        }
+    }
+
+    /**
+     * Copy a run of voxels from an array of the same type into the volume
+     */
+    public void copyIn(long start, final Object src, int srcPos, int count) {
+        while (count > 0) {
+            final int chunk = (int) (start >>> CHUNK_BITS);
+            final int chunkPos = (int) (start & CHUNK_MASK);
+            final int runLength = Math.min(count, chunkLength(chunk) - chunkPos);
+            System.arraycopy(src, srcPos, getChunk(chunk), chunkPos, runLength);
+            start += runLength;
+            srcPos += runLength;
+            count -= runLength;
+        }
+    }
+
+    /**
+     * A copy of the given slice as an array of the volume type
+     */
+    public Object getSlice(final int z) {
+        final Object outSlice = newArray(sliceSize);
+        copyOut(((long) z) * sliceSize, outSlice, 0, sliceSize);
+        return outSlice;
+    }
+
+    public void setSlice(final int z, final Object slice) {
+        copyIn(((long) z) * sliceSize, slice, 0, sliceSize);
+    }
+
+    /**
+     * Copy the contents of another volume of the same type and size
+     */
+    public void copyFrom(final ChunkedVolume src) {
+        if ((src.getImageType() != getImageType()) || (src.length != length))
+            throw new IllegalArgumentException("ChunkedVolume: cannot copy " + src + " into " + this);
+        for (int i = 0; i < chunkCount(); i++)
+            System.arraycopy(src.getChunk(i), 0, getChunk(i), 0, chunkLength(i));
+    }
+
+    /**
+     * Read every slice of an image (converted to the volume type)
+     */
+    public void readImage(final TImgRO inImg) {
+        if (!inImg.getDim().isEqual(dim))
+            throw new IllegalArgumentException("ChunkedVolume: dimensions do not match "
+                    + inImg.getDim() + " != " + dim);
+        for (int z = 0; z < dim.z; z++)
+            setSlice(z, inImg.getPolyImage(z, getImageType()));
+    }
+
+    /**
+     * The whole volume as a single array (only for volumes with less than 2^31
+     * voxels), shares the data when the volume is a single chunk
+     */
+    public Object toArray() {
+        if (chunkCount() == 1) return getChunk(0);
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("ChunkedVolume: " + this + " is too large for an array");
+        final Object outArray = newArray((int) length);
+        copyOut(0, outArray, 0, (int) length);
+        return outArray;
+    }
+
+    /**
+     * An image with a copy of the volume as slices
+     *
+     * @param tempImg the image to take the position, element size and log from
+     * @param offset  the offset of the image
+     */
+    public TImg toTImg(final TImgTools.HasDimensions tempImg, final D3int offset) {
+        final Object[] sliceData = new Object[dim.z];
+        for (int z = 0; z < dim.z; z++) sliceData[z] = getSlice(z);
+        final TImg outImg = new TImg.ArrayBackedTImg(dim, tempImg.getPos(), tempImg.getElSize(),
+                getImageType(), sliceData);
+        outImg.setOffset(offset);
+        outImg.setShortScaleFactor(tempImg.getShortScaleFactor());
+        outImg.appendProcLog(tempImg.getProcLog());
+        return outImg;
+    }
+
+    /**
+     * an operation on a single slice
+     */
+    public static interface SliceOp {
+        public void run(int z);
+    }
+
+    /**
+     * Run the operation on every slice, the slices are divided into one block per core
+     */
+    public static void forSlices(final int cores, final int sliceCount, final SliceOp op) {
+        forSlices(cores, 0, sliceCount, op);
+    }
+
+    /**
+     * Run the operation on the slices from lowz to uppz (exclusive), the slices
+     * are divided into one block per core
+     */
+    public static void forSlices(final int cores, final int lowz, final int uppz, final SliceOp op) {
+        TIPLGlobal.runBlocks(cores, lowz, uppz, new TIPLGlobal.BlockOp() {
+            @Override
+            public void run(final int start, final int end) {
+                for (int z = start; z < end; z++) op.run(z);
+            }
+        });
+    }
+
+    protected static void checkLength(final int arrayLength, final D3int dim) {
+        if (arrayLength != ((long) dim.x) * dim.y * dim.z)
+            throw new IllegalArgumentException("ChunkedVolume: array length " + arrayLength
+                    + " does not match " + dim);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ":" + dim;
+    }
+
+    /**
+     * A binary volume stored as bits, 64 voxels to a long, with the same
+     * linear index as the other volumes. Neighboring voxels (and the ends of
+     * neighboring slices) share a word so a single voxel is written by reading
+     * and writing back its word. Threads which write different voxels of the
+     * same word at the same time have to use the atomic writes: set with a
+     * range (a thread only writes the words completely inside of its range
+     * directly), setAtomic or the bulk copyIn and setWords (where only the
+     * partial words at the ends are written atomically). The bits after the
+     * last voxel are always 0.
+     */
+    public static class Bool extends ChunkedVolume {
+        private static final long serialVersionUID = -4319281640563349520L;
+        /**
+         * 2^21 words per chunk (the same 2^27 voxels as the other volumes)
+         */
+        protected static final int WORD_CHUNK_BITS = CHUNK_BITS - 6;
+        protected static final long WORD_CHUNK_MASK = (1 << WORD_CHUNK_BITS) - 1;
+        /**
+         * the locks for the atomic writes (picked by the word)
+         */
+        private static final Object[] WORD_LOCKS = new Object[256];
+
+        static {
+            for (int i = 0; i < WORD_LOCKS.length; i++) WORD_LOCKS[i] = new Object();
+        }
+
+        protected final long[][] chunks;
+
+        public Bool(final D3int idim) {
+            super(idim);
+            chunks = new long[chunkCount()][];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = new long[(chunkLength(i) + 63) >>> 6];
+        }
+
+        /**
+         * A volume using the same bits as inVol (changes to one are seen in the other)
+         */
+        protected Bool(final Bool inVol) {
+            super(inVol.dim);
+            chunks = inVol.chunks;
+        }
+
+        /**
+         * Pack the array into a new volume (the voxels are copied since they are stored as bits)
+         */
+        public static Bool pack(final boolean[] inArray, final D3int dim) {
+            checkLength(inArray.length, dim);
+            final Bool outVol = new Bool(dim);
+            outVol.copyIn(0, inArray, 0, inArray.length);
+            return outVol;
+        }
+
+        public static Bool fromTImg(final TImgRO inImg) {
+            final Bool outVol = new Bool(inImg.getDim());
+            outVol.readImage(inImg);
+            return outVol;
+        }
+
+        @Override
+        public int getImageType() {
+            return TImgTools.IMAGETYPE_BOOL;
+        }
+
+        @Override
+        protected Object getChunk(final int chunk) {
+            return chunks[chunk];
+        }
+
+        @Override
+        protected Object newArray(final int size) {
+            return new boolean[size];
+        }
+
+        protected long wordCount() {
+            return (length + 63) >>> 6;
+        }
+
+        /**
+         * the word with voxels word*64 to word*64+63
+         */
+        protected final long getWord(final long word) {
+            return chunks[(int) (word >>> WORD_CHUNK_BITS)][(int) (word & WORD_CHUNK_MASK)];
+        }
+
+        /**
+         * Set the bits of the word which are in the mask to the bits in value,
+         * whole words are written directly and partial words atomically
+         */
+        protected final void setWord(final long word, final long mask, final long value) {
+            final long[] cChunk = chunks[(int) (word >>> WORD_CHUNK_BITS)];
+            final int pos = (int) (word & WORD_CHUNK_MASK);
+            if (mask == -1L) {
+                cChunk[pos] = value;
+                return;
+            }
+            synchronized (WORD_LOCKS[pos & (WORD_LOCKS.length - 1)]) {
+                cChunk[pos] = (cChunk[pos] & ~mask) | (value & mask);
+            }
+        }
+
+        public final boolean get(final long off) {
+            return ((getWord(off >>> 6) >>> (off & 63)) & 1L) != 0;
+        }
+
+        /**
+         * Set a single voxel, this is not thread-safe when another thread
+         * writes a voxel of the same word at the same time
+         */
+        public final void set(final long off, final boolean value) {
+            final long[] cChunk = chunks[(int) (off >>> CHUNK_BITS)];
+            final int pos = (int) ((off & CHUNK_MASK) >>> 6);
+            if (value) cChunk[pos] |= 1L << (off & 63);
+            else cChunk[pos] &= ~(1L << (off & 63));
+        }
+
+        /**
+         * Set a single voxel atomically
+         */
+        public final void setAtomic(final long off, final boolean value) {
+            final long bit = 1L << (off & 63);
+            setWord(off >>> 6, bit, value ? bit : 0L);
+        }
+
+        /**
+         * Set a voxel of the range from start to end (exclusive) which only
+         * this thread writes, the words completely inside of the range are
+         * written directly and only the words shared with the voxels outside
+         * of it are written atomically
+         */
+        public final void set(final long off, final boolean value, final long start, final long end) {
+            final long wordStart = off & ~63L;
+            if ((wordStart >= start) && (wordStart + 64 <= end)) set(off, value);
+            else setAtomic(off, value);
+        }
+
+        public boolean get(final int x, final int y, final int z) {
+            return get(index(x, y, z));
+        }
+
+        public void set(final int x, final int y, final int z, final boolean value) {
+            set(index(x, y, z), value);
+        }
+
+        @Override
+        public void copyOut(long start, final Object dst, int dstPos, int count) {
+            final boolean[] outArray = (boolean[]) dst;
+            while (count > 0) {
+                final int shift = (int) (start & 63);
+                final int runLength = Math.min(64 - shift, count);
+                final long cWord = getWord(start >>> 6) >>> shift;
+                for (int i = 0; i < runLength; i++)
+                    outArray[dstPos + i] = ((cWord >>> i) & 1L) != 0;
+                start += runLength;
+                dstPos += runLength;
+                count -= runLength;
+            }
+        }
+
+        @Override
+        public void copyIn(long start, final Object src, int srcPos, int count) {
+            final boolean[] inArray = (boolean[]) src;
+            while (count > 0) {
+                final int shift = (int) (start & 63);
+                final int runLength = Math.min(64 - shift, count);
+                long cWord = 0;
+                for (int i = 0; i < runLength; i++)
+                    if (inArray[srcPos + i]) cWord |= 1L << i;
+                final long mask = (runLength == 64) ? -1L : (((1L << runLength) - 1) << shift);
+                setWord(start >>> 6, mask, cWord << shift);
+                start += runLength;
+                srcPos += runLength;
+                count -= runLength;
+            }
+        }
+
+        /**
+         * Read count voxels starting at start into words, the first voxel is
+         * bit 0 of words[pos] and the bits after the last voxel are 0
+         */
+        protected void getWords(final long start, final int count, final long[] words, final int pos) {
+            final int shift = (int) (start & 63);
+            final int outWords = (count + 63) >>> 6;
+            for (int i = 0; i < outWords; i++) {
+                final long word = (start >>> 6) + i;
+                long cWord = getWord(word) >>> shift;
+                if ((shift != 0) && (((word + 1) << 6) < length))
+                    cWord |= getWord(word + 1) << (64 - shift);
+                words[pos + i] = cWord;
+            }
+            if ((count & 63) != 0) words[pos + outWords - 1] &= (1L << (count & 63)) - 1;
+        }
+
+        /**
+         * Write count voxels starting at start from words (the opposite of getWords)
+         */
+        protected void setWords(final long start, final int count, final long[] words, final int pos) {
+            final long end = start + count;
+            final int shift = (int) (start & 63);
+            for (long word = start >>> 6; (word << 6) < end; word++) {
+                final long wordStart = word << 6;
+                final long cWord;
+                if (wordStart < start) {
+                    cWord = words[pos] << shift;
+                } else {
+                    final int i = pos + (int) ((wordStart - start) >>> 6);
+                    final int rShift = (int) ((wordStart - start) & 63);
+                    long rWord = words[i] >>> rShift;
+                    if ((rShift != 0) && (wordStart + 64 - rShift < end))
+                        rWord |= words[i + 1] << (64 - rShift);
+                    cWord = rWord;
+                }
+                final int lo = (int) (Math.max(start, wordStart) - wordStart);
+                final int hi = (int) (Math.min(end, wordStart + 64) - wordStart);
+                final long mask = (hi - lo == 64) ? -1L : (((1L << (hi - lo)) - 1) << lo);
+                setWord(word, mask, cWord);
+            }
+        }
+
+        @Override
+        public void copyFrom(final ChunkedVolume src) {
+            if (!(src instanceof Bool) || (src.length != length))
+                throw new IllegalArgumentException("ChunkedVolume: cannot copy " + src + " into " + this);
+            final Bool bSrc = (Bool) src;
+            for (int i = 0; i < chunks.length; i++)
+                System.arraycopy(bSrc.chunks[i], 0, chunks[i], 0, chunks[i].length);
+        }
+
+        /**
+         * The whole volume as a single array (only for volumes with less than
+         * 2^31 voxels), always a copy since the voxels are stored as bits
+         */
+        @Override
+        public Object toArray() {
+            if (length > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("ChunkedVolume: " + this + " is too large for an array");
+            final boolean[] outArray = new boolean[(int) length];
+            copyOut(0, outArray, 0, outArray.length);
+            return outArray;
+        }
+
+        public void fill(final boolean value) {
+            for (long[] cChunk : chunks) Arrays.fill(cChunk, value ? -1L : 0L);
+            if (value) clearTail();
+        }
+
+        /**
+         * the bits after the last voxel must always be 0
+         */
+        protected void clearTail() {
+            if ((length & 63) != 0) setWord(wordCount() - 1, ~((1L << (length & 63)) - 1), 0L);
+        }
+
+        /**
+         * the number of true voxels
+         */
+        public long count() {
+            long outCount = 0;
+            for (long[] cChunk : chunks)
+                for (long cWord : cChunk) outCount += Long.bitCount(cWord);
+            return outCount;
+        }
+
+        /**
+         * the number of true voxels from start to end (exclusive)
+         */
+        public long count(final long start, final long end) {
+            long outCount = 0;
+            for (long word = start >>> 6; (word << 6) < end; word++) {
+                final long wordStart = word << 6;
+                final int lo = (int) (Math.max(start, wordStart) - wordStart);
+                final int hi = (int) (Math.min(end, wordStart + 64) - wordStart);
+                final long mask = (hi - lo == 64) ? -1L : (((1L << (hi - lo)) - 1) << lo);
+                outCount += Long.bitCount(getWord(word) & mask);
+            }
+            return outCount;
+        }
+    }
+
+    /**
+     * A label or integer volume
+     */
+    public static class Int extends ChunkedVolume {
+        private static final long serialVersionUID = 2707468312924817362L;
+        protected final int[][] chunks;
+
+        public Int(final D3int idim) {
+            super(idim);
+            chunks = new int[chunkCount()][];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = new int[chunkLength(i)];
+        }
+
+        protected Int(final D3int idim, final int[] inArray) {
+            super(idim);
+            chunks = new int[][]{inArray};
+        }
+
+        /**
+         * A volume for the array, the array is used directly when it fits in a chunk
+         */
+        public static Int wrap(final int[] inArray, final D3int dim) {
+            checkLength(inArray.length, dim);
+            if (inArray.length <= CHUNK_SIZE) return new Int(dim, inArray);
+            final Int outVol = new Int(dim);
+            outVol.copyIn(0, inArray, 0, inArray.length);
+            return outVol;
+        }
+
+        public static Int fromTImg(final TImgRO inImg) {
+            final Int outVol = new Int(inImg.getDim());
+            outVol.readImage(inImg);
+            return outVol;
+        }
+
+        @Override
+        public int getImageType() {
+            return TImgTools.IMAGETYPE_INT;
+        }
+
+        @Override
+        protected Object getChunk(final int chunk) {
+            return chunks[chunk];
+        }
+
+        @Override
+        protected Object newArray(final int size) {
+            return new int[size];
+        }
+
+        public final int get(final long off) {
+            return chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)];
+        }
+
+        public final void set(final long off, final int value) {
+            chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)] = value;
+        }
+
+        public int get(final int x, final int y, final int z) {
+            return get(index(x, y, z));
+        }
+
+        public void set(final int x, final int y, final int z, final int value) {
+            set(index(x, y, z), value);
+        }
+
+        public void fill(final int value) {
+            for (int[] cChunk : chunks) Arrays.fill(cChunk, value);
+        }
+
+        /**
+         * the number of non-zero voxels
+         */
+        public long count() {
+            long outCount = 0;
+            for (int[] cChunk : chunks)
+                for (int cVal : cChunk) if (cVal != 0) outCount++;
+            return outCount;
+        }
+
+        public int max() {
+            int outMax = Integer.MIN_VALUE;
+            for (int[] cChunk : chunks)
+                for (int cVal : cChunk) if (cVal > outMax) outMax = cVal;
+            return outMax;
+        }
+    }
+
+    /**
+     * A volume of long values (for example linear indices into another volume)
+     */
+    public static class LongVolume extends ChunkedVolume {
+        private static final long serialVersionUID = 4912553702813345046L;
+        protected final long[][] chunks;
+
+        public LongVolume(final D3int idim) {
+            super(idim);
+            chunks = new long[chunkCount()][];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = new long[chunkLength(i)];
+        }
+
+        @Override
+        public int getImageType() {
+            return TImgTools.IMAGETYPE_LONG;
+        }
+
+        @Override
+        protected Object getChunk(final int chunk) {
+            return chunks[chunk];
+        }
+
+        @Override
+        protected Object newArray(final int size) {
+            return new long[size];
+        }
+
+        public final long get(final long off) {
+            return chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)];
+        }
+
+        public final void set(final long off, final long value) {
+            chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)] = value;
+        }
+
+        public void fill(final long value) {
+            for (long[] cChunk : chunks) Arrays.fill(cChunk, value);
+        }
+    }
+
+    /**
+     * A floating point (distance map) volume
+     */
+    public static class FloatVolume extends ChunkedVolume {
+        private static final long serialVersionUID = -833617492206584151L;
+        protected final float[][] chunks;
+
+        public FloatVolume(final D3int idim) {
+            super(idim);
+            chunks = new float[chunkCount()][];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = new float[chunkLength(i)];
+        }
+
+        protected FloatVolume(final D3int idim, final float[] inArray) {
+            super(idim);
+            chunks = new float[][]{inArray};
+        }
+
+        /**
+         * A volume for the array, the array is used directly when it fits in a chunk
+         */
+        public static FloatVolume wrap(final float[] inArray, final D3int dim) {
+            checkLength(inArray.length, dim);
+            if (inArray.length <= CHUNK_SIZE) return new FloatVolume(dim, inArray);
+            final FloatVolume outVol = new FloatVolume(dim);
+            outVol.copyIn(0, inArray, 0, inArray.length);
+            return outVol;
+        }
+
+        public static FloatVolume fromTImg(final TImgRO inImg) {
+            final FloatVolume outVol = new FloatVolume(inImg.getDim());
+            outVol.readImage(inImg);
+            return outVol;
+        }
+
+        @Override
+        public int getImageType() {
+            return TImgTools.IMAGETYPE_FLOAT;
+        }
+
+        @Override
+        protected Object getChunk(final int chunk) {
+            return chunks[chunk];
+        }
+
+        @Override
+        protected Object newArray(final int size) {
+            return new float[size];
+        }
+
+        public final float get(final long off) {
+            return chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)];
+        }
+
+        public final void set(final long off, final float value) {
+            chunks[(int) (off >>> CHUNK_BITS)][(int) (off & CHUNK_MASK)] = value;
+        }
+
+        public float get(final int x, final int y, final int z) {
+            return get(index(x, y, z));
+        }
+
+        public void set(final int x, final int y, final int z, final float value) {
+            set(index(x, y, z), value);
+        }
+
+        public void fill(final float value) {
+            for (float[] cChunk : chunks) Arrays.fill(cChunk, value);
+        }
+    }
+}
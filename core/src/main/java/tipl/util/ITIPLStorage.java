@@ -127,6 +127,21 @@ public interface ITIPLStorage {
 	 */
 	public TImg wrapTImgRO(final TImgRO inImage);
 	public boolean RemoveTImgFromCache(String path);
+	/**
+	 * the hit, miss and eviction counts of the image cache
+	 * @return a snapshot of the counters
+	 */
+	public TImgCache.CacheStats getCacheStats();
+	/**
+	 * get the number of bytes the image cache may occupy
+	 * @return
+	 */
+	public long getCacheBudget();
+	/**
+	 * set the number of bytes the image cache may occupy, images are evicted if it is already larger
+	 * @param maxBytes
+	 */
+	public void setCacheBudget(long maxBytes);
 
 	/**
 	 * Get a version of the image which can be read as a single large array (useful for the old
@@ -6,8 +6,12 @@ import tipl.util.TIPLMongo.TIPLUsage;
 
 import java.awt.*;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -130,6 +134,71 @@ public class TIPLGlobal {
         return requestSimpleES(requestAvailableReaderCount());
     }
 
+    /**
+     * a range of work (slices, rows, lines, ...) from start to end (exclusive)
+     */
+    public static interface BlockOp {
+        public void run(int start, int end);
+    }
+
+    private static volatile ExecutorService blockPool = null;
+
+    /**
+     * The pool shared by every runBlocks call, the threads are reused between calls. It is a
+     * cached pool so blocks which run blocks themselves do not wait for each other, the number
+     * of blocks (not the pool) limits how many threads are busy
+     */
+    public static ExecutorService getBlockPool() {
+        if (blockPool == null) {
+            synchronized (TIPLGlobal.class) {
+                if (blockPool == null) blockPool = Executors.newCachedThreadPool(daemonFactory);
+            }
+        }
+        return blockPool;
+    }
+
+    /**
+     * Divide start to end into one block per core and run the blocks in
+     * parallel on the shared block pool (or directly when there is only one block)
+     */
+    public static void runBlocks(final int cores, final int start, final int end,
+                                 final BlockOp op) {
+        final int blockCount = Math.max(1, Math.min(cores, end - start));
+        if (blockCount == 1) {
+            op.run(start, end);
+            return;
+        }
+        runBlocks(getBlockPool(), blockCount, start, end, op);
+    }
+
+    /**
+     * Divide start to end into one block per core, submit the blocks to the
+     * pool and wait until all of them are finished
+     */
+    public static void runBlocks(final ExecutorService pool, final int cores, final int start,
+                                 final int end, final BlockOp op) {
+        final int count = end - start;
+        final int blockCount = Math.max(1, Math.min(cores, count));
+        final List<Future<Boolean>> jobs = new ArrayList<Future<Boolean>>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            final int bStart = start + (int) (((long) count) * i / blockCount);
+            final int bEnd = start + (int) (((long) count) * (i + 1) / blockCount);
+            jobs.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    op.run(bStart, bEnd);
+                    return true;
+                }
+            }));
+        }
+        try {
+            for (Future<Boolean> cJob : jobs) cJob.get();
+        } catch (final Exception e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("TIPLGlobal: block operation crashed:" + e.getMessage());
+        }
+    }
+
     /**
      * A factory to create a new parser
      *
@@ -170,6 +239,10 @@ public class TIPLGlobal {
         TImgTools.getStorage().setUseScratch(sp.getOptionBoolean("@local", TImgTools.getStorage()
                 .getUseScratch(), "Load image data from local filesystems"));
 
+        TImgTools.getStorage().setCacheBudget(1024L * 1024L * sp.getOptionInt("@cachemb",
+                (int) (TImgTools.getStorage().getCacheBudget() / (1024 * 1024)),
+                "Memory (MB) the image cache may occupy"));
+
         TIPLGlobal.availableCores = sp.getOptionInt("@maxcores",
                 TIPLGlobal.availableCores,
                 "Number of cores/threads to use for processing");
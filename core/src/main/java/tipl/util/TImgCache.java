@@ -0,0 +1,232 @@
+package tipl.util;
+
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+
+import java.io.Serializable;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thread-safe least recently used cache of images keyed by their normalized path. The size of
+ * every image is estimated from its type and dimensions and the oldest images are dropped when
+ * the total would exceed the budget
+ *
+ * @author mader
+ */
+public class TImgCache {
+    /**
+     * the fraction of the maximum heap used by default
+     */
+    public static double DEFAULT_HEAP_FRACTION = 0.25;
+
+    /**
+     * A snapshot of the cache counters
+     */
+    public static class CacheStats implements Serializable {
+        private static final long serialVersionUID = -3214796083612877071L;
+        final public long hits;
+        final public long misses;
+        final public long evictions;
+        final public int entries;
+        final public long usedBytes;
+        final public long maxBytes;
+
+        public CacheStats(final long hits, final long misses, final long evictions,
+                          final int entries, final long usedBytes, final long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.usedBytes = usedBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public double getHitRatio() {
+            return (hits + misses) > 0 ? hits / ((double) (hits + misses)) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Cache: " + entries + " images, " + (usedBytes / (1024 * 1024)) + "/" +
+                    (maxBytes / (1024 * 1024)) + " MB, hits:" + hits + ", misses:" + misses +
+                    ", evictions:" + evictions;
+        }
+    }
+
+    protected static class CacheEntry {
+        final public ITIPLStorage.StampedObj<TImg> image;
+        final public long bytes;
+
+        public CacheEntry(final TImg inImg, final long ibytes) {
+            image = new ITIPLStorage.StampedObj<TImg>(inImg);
+            bytes = ibytes;
+        }
+    }
+
+    /**
+     * access ordered so the first entry is always the least recently used
+     */
+    protected final LinkedHashMap<String, CacheEntry> entries =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    protected long maxBytes;
+    protected long usedBytes = 0;
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+
+    public TImgCache() {
+        this(defaultBudget());
+    }
+
+    /**
+     * @param imaxBytes the number of bytes the cached images may occupy
+     */
+    public TImgCache(final long imaxBytes) {
+        maxBytes = imaxBytes;
+    }
+
+    public static long defaultBudget() {
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * the number of bytes the image takes when it is fully loaded
+     */
+    public static long imageBytes(final TImgRO inImg) {
+        return Math.max(TImgTools.typeSize(inImg.getImageType()), 1) * ((long) inImg.getDim().prod());
+    }
+
+    /**
+     * the key for a path, local paths are made absolute and have . and .. removed so the same
+     * file always has the same key
+     */
+    public static String normalizePath(final TypedPath path) {
+        if (path.isLocal()) return normalizePath(path.getPath());
+        String outPath = path.getPath();
+        final String sep = path.getPathSeparator();
+        while (outPath.length() > sep.length() && outPath.endsWith(sep))
+            outPath = outPath.substring(0, outPath.length() - sep.length());
+        return outPath;
+    }
+
+    public static String normalizePath(final String path) {
+        try {
+            return Paths.get(path).toAbsolutePath().normalize().toString();
+        } catch (final InvalidPathException e) {
+            return path;
+        }
+    }
+
+    /**
+     * get an image from the cache
+     *
+     * @param key the normalized path
+     * @return the image or null if it is not cached
+     */
+    public synchronized TImg get(final String key) {
+        final CacheEntry cEntry = entries.get(key);
+        if (cEntry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cEntry.image.get();
+    }
+
+    public synchronized boolean contains(final String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * add an image to the cache, evicting the least recently used images until it fits
+     *
+     * @param key    the normalized path
+     * @param inImg  the image
+     * @return if the image was cached (it is not when it is larger than the entire budget)
+     */
+    public synchronized boolean put(final String key, final TImg inImg) {
+        remove(key);
+        final long cBytes = imageBytes(inImg);
+        if (cBytes > maxBytes) {
+            if (TIPLGlobal.getDebug())
+                System.out.println(this + ": " + key + " (" + cBytes + " bytes) is too large to be cached");
+            return false;
+        }
+        trimTo(maxBytes - cBytes);
+        entries.put(key, new CacheEntry(inImg, cBytes));
+        usedBytes += cBytes;
+        return true;
+    }
+
+    public synchronized boolean remove(final String key) {
+        final CacheEntry cEntry = entries.remove(key);
+        if (cEntry == null) return false;
+        usedBytes -= cEntry.bytes;
+        return true;
+    }
+
+    /**
+     * remove all of the images which have not been accessed in the given time
+     *
+     * @param deadTime time in seconds
+     * @return the number of images removed
+     */
+    public synchronized int purgeOlderThan(final double deadTime) {
+        final List<String> toDelete = new ArrayList<String>();
+        for (Map.Entry<String, CacheEntry> cEntry : entries.entrySet())
+            if (cEntry.getValue().image.getAge() > deadTime) toDelete.add(cEntry.getKey());
+        for (String cKey : toDelete) remove(cKey);
+        return toDelete.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * change the budget, images are evicted if the cache is already larger
+     */
+    public synchronized void setMaxBytes(final long imaxBytes) {
+        maxBytes = imaxBytes;
+        trimTo(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, entries.size(), usedBytes, maxBytes);
+    }
+
+    /**
+     * evict the least recently used images until at most targetBytes are used
+     */
+    protected void trimTo(final long targetBytes) {
+        final Iterator<Map.Entry<String, CacheEntry>> entryIter = entries.entrySet().iterator();
+        while ((usedBytes > targetBytes) && entryIter.hasNext()) {
+            final Map.Entry<String, CacheEntry> cEntry = entryIter.next();
+            if (TIPLGlobal.getDebug())
+                System.out.println(this + ": evicting " + cEntry.getKey());
+            usedBytes -= cEntry.getValue().bytes;
+            entryIter.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TImgCache";
+    }
+}
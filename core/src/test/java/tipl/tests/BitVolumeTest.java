@@ -0,0 +1,126 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.BitVolumeImage;
+import tipl.formats.TImgRO;
+import tipl.util.BitVolume;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the bit-packed binary volume and its kernels against the voxel by voxel versions
+ *
+ * @author mader
+ */
+public class BitVolumeTest {
+    // more than one word per row and a partial last word
+    final private static D3int testDim = new D3int(70, 13, 9);
+
+    protected static boolean[] randomAim(final D3int dim, final double fill, final long seed) {
+        final Random rand = new Random(seed);
+        final boolean[] outAim = new boolean[(int) dim.prod()];
+        for (int i = 0; i < outAim.length; i++) outAim[i] = rand.nextDouble() < fill;
+        return outAim;
+    }
+
+    /**
+     * the box or cross filter the slow way, voxels outside of the image are ignored
+     */
+    protected static boolean[] slowFilter(final boolean[] inAim, final D3int dim, final int rx,
+                                          final int ry, final int rz, final boolean cross,
+                                          final boolean dilate) {
+        final boolean[] outAim = new boolean[inAim.length];
+        for (int z = 0; z < dim.z; z++)
+            for (int y = 0; y < dim.y; y++)
+                for (int x = 0; x < dim.x; x++) {
+                    boolean cVal = !dilate;
+                    for (int z2 = Math.max(z - rz, 0); z2 <= Math.min(z + rz, dim.z - 1); z2++)
+                        for (int y2 = Math.max(y - ry, 0); y2 <= Math.min(y + ry, dim.y - 1); y2++)
+                            for (int x2 = Math.max(x - rx, 0); x2 <= Math.min(x + rx, dim.x - 1); x2++) {
+                                if (cross && (Math.abs(x2 - x) + Math.abs(y2 - y) + Math.abs(z2 - z) > 1))
+                                    continue;
+                                final boolean nVal = inAim[(z2 * dim.y + y2) * dim.x + x2];
+                                cVal = dilate ? (cVal | nVal) : (cVal & nVal);
+                            }
+                    outAim[(z * dim.y + y) * dim.x + x] = cVal;
+                }
+        return outAim;
+    }
+
+    @Test
+    public void testPacking() {
+        final boolean[] inAim = randomAim(testDim, 0.3, 1);
+        final BitVolume cVol = BitVolume.fromBoolAim(inAim, testDim);
+        TIPLTestingLibrary.doSlicesMatch(inAim, cVol.toBoolAim());
+        long setCount = 0;
+        for (boolean cVal : inAim) if (cVal) setCount++;
+        assertEquals(setCount, cVol.count());
+
+        cVol.set(69, 12, 8, true);
+        assertEquals(true, cVol.get(69, 12, 8));
+        cVol.set(69, 12, 8, false);
+        assertEquals(false, cVol.get(69, 12, 8));
+    }
+
+    @Test
+    public void testLogicalOps() {
+        final boolean[] a = randomAim(testDim, 0.5, 2);
+        final boolean[] b = randomAim(testDim, 0.5, 3);
+        final boolean[] andAim = new boolean[a.length], orAim = new boolean[a.length];
+        final boolean[] xorAim = new boolean[a.length], notAim = new boolean[a.length];
+        for (int i = 0; i < a.length; i++) {
+            andAim[i] = a[i] & b[i];
+            orAim[i] = a[i] | b[i];
+            xorAim[i] = a[i] ^ b[i];
+            notAim[i] = !a[i];
+        }
+        final BitVolume bVol = BitVolume.fromBoolAim(b, testDim);
+        TIPLTestingLibrary.doSlicesMatch(andAim, BitVolume.fromBoolAim(a, testDim).and(bVol).toBoolAim());
+        TIPLTestingLibrary.doSlicesMatch(orAim, BitVolume.fromBoolAim(a, testDim).or(bVol).toBoolAim());
+        TIPLTestingLibrary.doSlicesMatch(xorAim, BitVolume.fromBoolAim(a, testDim).xor(bVol).toBoolAim());
+        final BitVolume notVol = BitVolume.fromBoolAim(a, testDim).not();
+        TIPLTestingLibrary.doSlicesMatch(notAim, notVol.toBoolAim());
+        // the padding at the end of the rows should not be counted
+        assertEquals(testDim.prod(), notVol.count() + BitVolume.fromBoolAim(a, testDim).count(), 0);
+    }
+
+    @Test
+    public void testMorphology() {
+        final boolean[] inAim = randomAim(testDim, 0.6, 4);
+        final BitVolume cVol = BitVolume.fromBoolAim(inAim, testDim);
+        for (int cores = 1; cores <= 3; cores += 2) {
+            TIPLTestingLibrary.doSlicesMatch(slowFilter(inAim, testDim, 1, 1, 1, false, true),
+                    cVol.dilateBox(1, 1, 1, cores).toBoolAim());
+            TIPLTestingLibrary.doSlicesMatch(slowFilter(inAim, testDim, 1, 1, 1, false, false),
+                    cVol.erodeBox(1, 1, 1, cores).toBoolAim());
+            TIPLTestingLibrary.doSlicesMatch(slowFilter(inAim, testDim, 3, 2, 0, false, false),
+                    cVol.erodeBox(3, 2, 0, cores).toBoolAim());
+            TIPLTestingLibrary.doSlicesMatch(slowFilter(inAim, testDim, 1, 1, 1, true, true),
+                    cVol.dilateCross(cores).toBoolAim());
+            TIPLTestingLibrary.doSlicesMatch(slowFilter(inAim, testDim, 1, 1, 1, true, false),
+                    cVol.erodeCross(cores).toBoolAim());
+        }
+        final boolean[] sparseAim = randomAim(testDim, 0.02, 5);
+        TIPLTestingLibrary.doSlicesMatch(slowFilter(sparseAim, testDim, 2, 1, 3, false, true),
+                BitVolume.fromBoolAim(sparseAim, testDim).dilateBox(2, 1, 3, 2).toBoolAim());
+    }
+
+    @Test
+    public void testImage() {
+        final boolean[] inAim = randomAim(testDim, 0.3, 6);
+        final TImgRO cImg = new BitVolumeImage(BitVolume.fromBoolAim(inAim, testDim),
+                new D3int(0), new D3float(1, 1, 1));
+        assertEquals(TImgTools.IMAGETYPE_BOOL, cImg.getImageType());
+        final int sliceSize = testDim.x * testDim.y;
+        final int[] intSlice = (int[]) cImg.getPolyImage(4, TImgTools.IMAGETYPE_INT);
+        for (int i = 0; i < sliceSize; i++)
+            assertEquals(inAim[4 * sliceSize + i] ? 1 : 0, intSlice[i] > 0 ? 1 : 0);
+        TIPLTestingLibrary.doSlicesMatch(inAim, BitVolume.fromTImg(cImg).toBoolAim());
+    }
+
+}
@@ -0,0 +1,141 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.BitVolumeImage;
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+import tipl.util.BitVolume;
+import tipl.util.ChunkedVolume;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the long indexed volumes against plain arrays
+ *
+ * @author mader
+ */
+public class ChunkedVolumeTest {
+    final private static D3int testDim = new D3int(31, 7, 11);
+
+    protected static int[] randomLabels(final D3int dim, final int maxLabel, final long seed) {
+        final Random rand = new Random(seed);
+        final int[] outAim = new int[(int) dim.prod()];
+        for (int i = 0; i < outAim.length; i++) outAim[i] = rand.nextInt(maxLabel + 1);
+        return outAim;
+    }
+
+    @Test
+    public void testIndexing() {
+        final int[] inAim = randomLabels(testDim, 100, 1);
+        final ChunkedVolume.Int cVol = ChunkedVolume.Int.wrap(inAim, testDim);
+        assertEquals(inAim.length, cVol.length());
+        assertEquals(testDim.x * testDim.y, cVol.getSliceSize());
+        for (int z = 0; z < testDim.z; z++)
+            for (int y = 0; y < testDim.y; y++)
+                for (int x = 0; x < testDim.x; x++) {
+                    final int off = (z * testDim.y + y) * testDim.x + x;
+                    assertEquals(off, cVol.index(x, y, z));
+                    assertEquals(inAim[off], cVol.get(x, y, z));
+                }
+        // small volumes share the array they wrap
+        cVol.set(30, 6, 10, -5);
+        assertEquals(-5, inAim[inAim.length - 1]);
+        assertEquals(true, inAim == cVol.toArray());
+    }
+
+    @Test
+    public void testSlices() {
+        final int[] inAim = randomLabels(testDim, 100, 2);
+        final ChunkedVolume.Int cVol = new ChunkedVolume.Int(testDim);
+        final int sliceSize = testDim.x * testDim.y;
+        for (int z = 0; z < testDim.z; z++) {
+            final int[] cSlice = new int[sliceSize];
+            System.arraycopy(inAim, z * sliceSize, cSlice, 0, sliceSize);
+            cVol.setSlice(z, cSlice);
+        }
+        assertArrayEquals(inAim, (int[]) cVol.toArray());
+        final int[] lastSlice = (int[]) cVol.getSlice(testDim.z - 1);
+        lastSlice[0] = -1;
+        // the slices are copies
+        assertEquals(inAim[(testDim.z - 1) * sliceSize], cVol.get(cVol.index(0, 0, testDim.z - 1)));
+
+        final int[] rowBuffer = new int[10];
+        cVol.copyOut(sliceSize - 3, rowBuffer, 0, rowBuffer.length);
+        for (int i = 0; i < rowBuffer.length; i++) assertEquals(inAim[sliceSize - 3 + i], rowBuffer[i]);
+
+        final ChunkedVolume.Int copyVol = new ChunkedVolume.Int(testDim);
+        copyVol.copyFrom(cVol);
+        assertArrayEquals(inAim, (int[]) copyVol.toArray());
+        int maxVal = 0;
+        long nonZero = 0;
+        for (int cVal : inAim) {
+            maxVal = Math.max(maxVal, cVal);
+            if (cVal != 0) nonZero++;
+        }
+        assertEquals(maxVal, copyVol.max());
+        assertEquals(nonZero, copyVol.count());
+    }
+
+    @Test
+    public void testImage() {
+        final boolean[] inAim = new boolean[(int) testDim.prod()];
+        final int[] labAim = randomLabels(testDim, 1, 3);
+        for (int i = 0; i < inAim.length; i++) inAim[i] = labAim[i] > 0;
+        final TImgRO cImg = new BitVolumeImage(BitVolume.fromBoolAim(inAim, testDim),
+                new D3int(0), new D3float(1, 1, 1));
+        final ChunkedVolume.Bool cVol = ChunkedVolume.Bool.fromTImg(cImg);
+        TIPLTestingLibrary.doSlicesMatch(inAim, (boolean[]) cVol.toArray());
+
+        final TImg outImg = cVol.toTImg(cImg, new D3int(2, 1, 0));
+        assertEquals(TImgTools.IMAGETYPE_BOOL, outImg.getImageType());
+        assertEquals(true, testDim.isEqual(outImg.getDim()));
+        assertEquals(2, outImg.getOffset().x);
+        TIPLTestingLibrary.doSlicesMatch(inAim, (boolean[]) ChunkedVolume.Bool.fromTImg(outImg).toArray());
+    }
+
+    @Test
+    public void testBits() {
+        final boolean[] inAim = new boolean[(int) testDim.prod()];
+        final int[] labAim = randomLabels(testDim, 1, 4);
+        for (int i = 0; i < inAim.length; i++) inAim[i] = labAim[i] > 0;
+        final ChunkedVolume.Bool cVol = ChunkedVolume.Bool.pack(inAim, testDim);
+        // runs which start and end inside of words
+        final boolean[] runBuffer = new boolean[150];
+        cVol.copyOut(37, runBuffer, 0, runBuffer.length);
+        long runCount = 0;
+        for (int i = 0; i < runBuffer.length; i++) {
+            assertEquals(inAim[37 + i], runBuffer[i]);
+            if (runBuffer[i]) runCount++;
+        }
+        assertEquals(runCount, cVol.count(37, 37 + runBuffer.length));
+        for (int i = 0; i < runBuffer.length; i++) runBuffer[i] = !runBuffer[i];
+        cVol.copyIn(37, runBuffer, 0, runBuffer.length);
+        for (int i = 0; i < inAim.length; i++)
+            assertEquals(((i >= 37) && (i < 37 + runBuffer.length)) != inAim[i], cVol.get(i));
+        cVol.fill(true);
+        assertEquals(inAim.length, cVol.count());
+    }
+
+    @Test
+    public void testParallelBits() {
+        // the slices (217 voxels) share words so the threads write the same words
+        final ChunkedVolume.Bool cVol = new ChunkedVolume.Bool(testDim);
+        final int sliceSize = cVol.getSliceSize();
+        ChunkedVolume.forSlices(4, testDim.z, new ChunkedVolume.SliceOp() {
+            @Override
+            public void run(final int z) {
+                final long sliceStart = ((long) z) * sliceSize, sliceEnd = sliceStart + sliceSize;
+                for (long off = sliceStart; off < sliceEnd; off++)
+                    cVol.set(off, off % 3 != 0, sliceStart, sliceEnd);
+            }
+        });
+        for (long off = 0; off < cVol.length(); off++) assertEquals(off % 3 != 0, cVol.get(off));
+    }
+
+}
@@ -0,0 +1,54 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.ConcurrentReader;
+import tipl.formats.TImg;
+import tipl.tools.FractalDimension;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that counting boxes with the occupancy pyramid gives the same numbers as scanning the
+ * image
+ *
+ * @author mader
+ */
+public class FractalDimensionTest {
+    final private static D3int testDim = new D3int(23, 13, 11);
+
+    protected static TImg makeImage(final double fill, final long seed) {
+        final Random rand = new Random(seed);
+        final Object[] sliceData = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) {
+            final boolean[] cSlice = new boolean[testDim.x * testDim.y];
+            for (int i = 0; i < cSlice.length; i++) cSlice[i] = rand.nextDouble() < fill;
+            sliceData[z] = cSlice;
+        }
+        return new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1),
+                TImgTools.IMAGETYPE_BOOL, sliceData);
+    }
+
+    @Test
+    public void testPyramidMatchesScan() throws Exception {
+        for (final double fill : new double[]{0.0, 0.002, 0.02, 0.3}) {
+            final ConcurrentReader inImg = new ConcurrentReader(makeImage(fill, 42));
+            final FractalDimension.OccupancyPyramid cPyramid =
+                    new FractalDimension.OccupancyPyramid(inImg);
+            for (int boxSize = 1; boxSize <= testDim.z; boxSize++) {
+                final long[] scanCount = new FractalDimension.boxScanner(inImg, boxSize).call();
+                final long[] pyramidCount = new FractalDimension.pyramidScanner(cPyramid,
+                        boxSize).call();
+                assertEquals(scanCount.length, pyramidCount.length);
+                for (int i = 0; i < scanCount.length; i++)
+                    assertEquals("Fill " + fill + ", box " + boxSize + ", column " + i,
+                            scanCount[i], pyramidCount[i]);
+            }
+            inImg.close();
+        }
+    }
+}
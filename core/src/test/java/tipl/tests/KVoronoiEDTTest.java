@@ -0,0 +1,67 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImg;
+import tipl.tools.kVoronoiEDT;
+import tipl.util.ChunkedVolume;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the distance transform voronoi against the nearest seed found by brute force
+ *
+ * @author mader
+ */
+public class KVoronoiEDTTest {
+    final private static D3int testDim = new D3int(13, 9, 7);
+    final private static int[][] seeds = new int[][]{{0, 0, 0}, {12, 8, 6}, {6, 4, 3},
+            {2, 7, 5}, {11, 1, 2}, {7, 8, 0}};
+
+    protected static long seedDist(final int[] seed, final int x, final int y, final int z) {
+        final long dx = seed[0] - x, dy = seed[1] - y, dz = seed[2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Test
+    public void testBruteForce() {
+        final int[] labelArr = new int[(int) testDim.prod()];
+        for (int i = 0; i < seeds.length; i++)
+            labelArr[(seeds[i][2] * testDim.y + seeds[i][1]) * testDim.x + seeds[i][0]] = i + 1;
+        final ChunkedVolume.Int labels = ChunkedVolume.Int.wrap(labelArr, testDim);
+        final TImg labelImg = labels.toTImg(new TImg.ArrayBackedTImg(testDim, new D3int(0),
+                new D3float(1, 1, 1), TImgTools.IMAGETYPE_INT, new Object[testDim.z]),
+                new D3int(0));
+
+        final kVoronoiEDT kv = new kVoronoiEDT();
+        kv.ImportAim(labels, null, new D3int(0));
+        kv.execute();
+        final TImg outLabels = kv.ExportVolumesAim(labelImg);
+        final TImg outDist = kv.ExportDistanceAim(labelImg);
+        final float distScale = outDist.getShortScaleFactor();
+
+        for (int z = 0; z < testDim.z; z++) {
+            final int[] lSlice = (int[]) outLabels.getPolyImage(z, TImgTools.IMAGETYPE_INT);
+            final int[] dSlice = (int[]) outDist.getPolyImage(z, TImgTools.IMAGETYPE_INT);
+            for (int y = 0; y < testDim.y; y++) {
+                for (int x = 0; x < testDim.x; x++) {
+                    final int off = y * testDim.x + x;
+                    long minDist = Long.MAX_VALUE;
+                    for (final int[] cSeed : seeds)
+                        minDist = Math.min(minDist, seedDist(cSeed, x, y, z));
+                    final String pos = "(" + x + ", " + y + ", " + z + ")";
+                    final int cLabel = lSlice[off];
+                    assertTrue("Unfilled voxel " + pos, (cLabel > 0) && (cLabel <= seeds.length));
+                    // ties can go to either seed but the chosen one has to be the nearest
+                    assertEquals("Nearest seed " + pos, minDist,
+                            seedDist(seeds[cLabel - 1], x, y, z));
+                    assertEquals("Distance " + pos, Math.sqrt(minDist), dSlice[off] * distScale,
+                            distScale);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.tools.BaseTIPLPluginIn;
+import tipl.tools.Morpho;
+import tipl.tools.MorphoEngine;
+import tipl.util.D3int;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the separable, distance map and row based morphology against scanning the neighborhood
+ *
+ * @author mader
+ */
+@SuppressWarnings("deprecation")
+public class MorphoEngineTest {
+    final private static D3int testDim = new D3int(23, 19, 17);
+
+    protected static boolean[] randomAim(final D3int dim, final double fill, final long seed) {
+        final Random rand = new Random(seed);
+        final boolean[] outAim = new boolean[(int) dim.prod()];
+        for (int i = 0; i < outAim.length; i++) outAim[i] = rand.nextDouble() < fill;
+        return outAim;
+    }
+
+    /**
+     * run the operation (erode, dilate, erodeMany, openMany, ...) with or without the engine
+     */
+    protected static boolean[] runMorpho(final boolean[] inAim, final D3int offset,
+                                         final BaseTIPLPluginIn.morphKernel kernel,
+                                         final D3int ns, final String operation,
+                                         final int iterations, final boolean fast) {
+        return runMorpho(inAim, offset, kernel, ns, operation, iterations, fast,
+                new Morpho().bitMorphMaxRadius);
+    }
+
+    /**
+     * @param bitRadius the largest box run with the bit-packed kernels
+     */
+    protected static boolean[] runMorpho(final boolean[] inAim, final D3int offset,
+                                         final BaseTIPLPluginIn.morphKernel kernel,
+                                         final D3int ns, final String operation,
+                                         final int iterations, final boolean fast,
+                                         final int bitRadius) {
+        final Morpho MP = new Morpho(inAim, testDim, offset);
+        MP.useFastMorph = fast;
+        MP.bitMorphMaxRadius = bitRadius;
+        MP.neighborKernel = kernel;
+        MP.neighborSize = ns;
+        if (iterations < 1) MP.execute(operation);
+        else MP.execute(operation, iterations);
+        return (boolean[]) MP.outAim.toArray();
+    }
+
+    protected static void checkOperation(final boolean[] inAim, final D3int offset,
+                                         final BaseTIPLPluginIn.morphKernel kernel,
+                                         final D3int ns, final String operation,
+                                         final int iterations) {
+        TIPLTestingLibrary.doSlicesMatch(
+                runMorpho(inAim, offset, kernel, ns, operation, iterations, false),
+                runMorpho(inAim, offset, kernel, ns, operation, iterations, true));
+    }
+
+    protected static void checkErodeDilate(final BaseTIPLPluginIn.morphKernel kernel,
+                                           final D3int ns) {
+        final boolean[] denseAim = randomAim(testDim, 0.85, 1);
+        final boolean[] sparseAim = randomAim(testDim, 0.05, 2);
+        for (D3int offset : new D3int[]{new D3int(0), new D3int(1, 2, 0)}) {
+            checkOperation(denseAim, offset, kernel, ns, "erode", 0);
+            checkOperation(sparseAim, offset, kernel, ns, "dilate", 0);
+        }
+    }
+
+    @Test
+    public void testBox() {
+        checkErodeDilate(null, new D3int(1));
+        checkErodeDilate(BaseTIPLPluginIn.fullKernel, new D3int(2, 1, 0));
+        checkErodeDilate(null, new D3int(4, 3, 2));
+    }
+
+    @Test
+    public void testSphere() {
+        // fits in the neighborhood (distance map)
+        checkErodeDilate(BaseTIPLPluginIn.sphKernel(2), new D3int(2));
+        checkErodeDilate(BaseTIPLPluginIn.sphKernel(1.75), new D3int(2));
+        checkErodeDilate(BaseTIPLPluginIn.sphKernel(3, 2, 1.5), new D3int(3, 2, 1));
+        // clipped by the neighborhood (rows)
+        checkErodeDilate(BaseTIPLPluginIn.sphKernel(3), new D3int(2));
+        // rounding makes the sampled kernel differ from the distance
+        checkErodeDilate(BaseTIPLPluginIn.sphKernel(Math.sqrt(3)), new D3int(2));
+    }
+
+    /**
+     * boxes larger than bitMorphMaxRadius are run with the running filter of the engine
+     */
+    @Test
+    public void testBoxWithoutBitKernels() {
+        // so something is left after the larger erosions and dilations
+        final boolean[] denseAim = randomAim(testDim, 0.997, 1);
+        final boolean[] sparseAim = randomAim(testDim, 0.003, 2);
+        for (D3int ns : new D3int[]{new D3int(1), new D3int(4, 3, 2), new D3int(9, 0, 5)}) {
+            TIPLTestingLibrary.doSlicesMatch(
+                    runMorpho(denseAim, new D3int(0), null, ns, "erode", 0, false),
+                    runMorpho(denseAim, new D3int(0), null, ns, "erode", 0, true, 0));
+            TIPLTestingLibrary.doSlicesMatch(
+                    runMorpho(sparseAim, new D3int(0), null, ns, "dilate", 0, false),
+                    runMorpho(sparseAim, new D3int(0), null, ns, "dilate", 0, true, 0));
+        }
+        // larger than the default limit (and the image) with and without the bit-packed kernels
+        final boolean[] pointAim = randomAim(testDim, 0.002, 4);
+        final D3int bigBox = new D3int(new Morpho().bitMorphMaxRadius + 1, 2, 1);
+        final boolean[] slowAim = runMorpho(pointAim, new D3int(0), null, bigBox, "dilate", 0, false);
+        TIPLTestingLibrary.doSlicesMatch(slowAim,
+                runMorpho(pointAim, new D3int(0), null, bigBox, "dilate", 0, true));
+        TIPLTestingLibrary.doSlicesMatch(slowAim,
+                runMorpho(pointAim, new D3int(0), null, bigBox, "dilate", 0, true, bigBox.x));
+    }
+
+    @Test
+    public void testCross() {
+        checkErodeDilate(BaseTIPLPluginIn.dKernel, new D3int(1));
+    }
+
+    @Test
+    public void testIterations() {
+        final boolean[] inAim = randomAim(testDim, 0.7, 3);
+        checkOperation(inAim, new D3int(0), null, new D3int(1), "erodeMany", 3);
+        checkOperation(inAim, new D3int(1, 2, 0), null, new D3int(1, 1, 0), "dilateMany", 2);
+        checkOperation(inAim, new D3int(0), BaseTIPLPluginIn.sphKernel(1.5), new D3int(2), "openMany", 3);
+        checkOperation(inAim, new D3int(0), BaseTIPLPluginIn.dKernel, new D3int(1), "closeMany", 2);
+    }
+
+    @Test
+    public void testKernelShape() {
+        assertEquals(true, MorphoEngine.isBox(null, new D3int(2)));
+        assertEquals(true, MorphoEngine.isBox(BaseTIPLPluginIn.sphKernel(5), new D3int(1)));
+        assertEquals(false, MorphoEngine.isBox(BaseTIPLPluginIn.dKernel, new D3int(1)));
+        assertEquals(true, MorphoEngine.isSymmetric(BaseTIPLPluginIn.sphKernel(2, 1, 3), new D3int(2)));
+        assertEquals(false, MorphoEngine.isSymmetric(new BaseTIPLPluginIn.morphKernel() {
+            @Override
+            public boolean inside(final int off, final int off2, final int x1, final int x2,
+                                  final int y1, final int y2, final int z1, final int z2) {
+                return x2 >= x1;
+            }
+        }, new D3int(1)));
+    }
+}
@@ -0,0 +1,69 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.tools.NeighborGraph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the primitive edge count maps and the CSR neighbor graph
+ *
+ * @author mader
+ */
+public class NeighborGraphTest {
+
+    @Test
+    public void testEdgeKey() {
+        assertEquals(NeighborGraph.edgeKey(3, 7), NeighborGraph.edgeKey(7, 3));
+        final long cKey = NeighborGraph.edgeKey(70000, 0);
+        assertEquals(0, NeighborGraph.keyFirst(cKey));
+        assertEquals(70000, NeighborGraph.keySecond(cKey));
+    }
+
+    @Test
+    public void testCountMap() {
+        final NeighborGraph.EdgeCountMap cMap = new NeighborGraph.EdgeCountMap(4);
+        // enough keys to force several rehashes
+        for (int i = 1; i <= 1000; i++)
+            for (int j = 0; j < i % 3 + 1; j++)
+                cMap.add(NeighborGraph.edgeKey(i, i + 1), 1);
+        assertEquals(1000, cMap.size());
+        for (int i = 1; i <= 1000; i++)
+            assertEquals(i % 3 + 1, cMap.get(NeighborGraph.edgeKey(i + 1, i)));
+        assertEquals(0, cMap.get(NeighborGraph.edgeKey(1, 3)));
+    }
+
+    /**
+     * the counts from different threads should be merged and every edge should
+     * be in the rows of both labels
+     */
+    @Test
+    public void testMergedGraph() {
+        final List<NeighborGraph.EdgeCountMap> maps = new ArrayList<NeighborGraph.EdgeCountMap>();
+        final NeighborGraph.EdgeCountMap mapA = new NeighborGraph.EdgeCountMap();
+        mapA.add(NeighborGraph.edgeKey(1, 2), 4);
+        mapA.add(NeighborGraph.edgeKey(5, 1), 1);
+        final NeighborGraph.EdgeCountMap mapB = new NeighborGraph.EdgeCountMap();
+        mapB.add(NeighborGraph.edgeKey(2, 1), 2);
+        mapB.add(NeighborGraph.edgeKey(2, 5), 3);
+        maps.add(mapA);
+        maps.add(mapB);
+        final NeighborGraph nGraph = NeighborGraph.fromCounts(maps);
+
+        assertArrayEquals(new int[]{1, 2, 5}, nGraph.labels);
+        assertArrayEquals(new int[]{0, 2, 4, 6}, nGraph.rowStart);
+        assertArrayEquals(new int[]{2, 5, 1, 5, 1, 2}, nGraph.neighbors);
+        assertEquals(3, nGraph.edgeCount());
+        assertEquals(6, nGraph.contacts(1, 2));
+        assertEquals(6, nGraph.contacts(2, 1));
+        assertEquals(3, nGraph.contacts(5, 2));
+        assertEquals(0, nGraph.contacts(5, 7));
+        assertEquals(2, nGraph.degree(5));
+        assertEquals(0, nGraph.degree(4));
+    }
+
+}
@@ -0,0 +1,100 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.ConcurrentReader;
+import tipl.formats.TImgRO;
+import tipl.util.TImgTools;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the slices, hits and window of the prefetching reader
+ *
+ * @author mader
+ */
+public class PrefetchReaderTest {
+    final private static int testSize = 20;
+    final private static int window = 3;
+    final private static int history = 1;
+
+    protected static TImgRO makeImage() {
+        return TestPosFunctions.wrapItAs(testSize, new TestPosFunctions.ProgZImage(),
+                TImgTools.IMAGETYPE_INT);
+    }
+
+    protected static void checkSlice(final TImgRO inImg, final int sliceNo) {
+        final int[] cSlice = (int[]) inImg.getPolyImage(sliceNo, TImgTools.IMAGETYPE_INT);
+        assertEquals(testSize * testSize, cSlice.length);
+        assertEquals(sliceNo, cSlice[0]);
+        assertEquals(sliceNo, cSlice[cSlice.length - 1]);
+    }
+
+    @Test
+    public void testForward() {
+        final ConcurrentReader.PrefetchReader pr = new ConcurrentReader.PrefetchReader(
+                makeImage(), window, history);
+        for (int z = 0; z < testSize; z++) {
+            checkSlice(pr, z);
+            assertTrue("Slices kept: " + pr.getSliceCount(),
+                    pr.getSliceCount() <= window + history + 1);
+        }
+        // only the first slice has to be read directly
+        assertEquals((testSize - 1) / ((double) testSize), pr.getHitRatio(), 1e-5);
+        pr.close();
+        assertEquals(0, pr.getSliceCount());
+    }
+
+    @Test
+    public void testBackward() {
+        final ConcurrentReader.PrefetchReader pr = new ConcurrentReader.PrefetchReader(
+                makeImage(), window, history);
+        for (int z = testSize - 1; z >= 0; z--) {
+            checkSlice(pr, z);
+            assertTrue(pr.getSliceCount() <= window + history + 1);
+        }
+        assertEquals((testSize - 1) / ((double) testSize), pr.getHitRatio(), 1e-5);
+        pr.close();
+    }
+
+    @Test
+    public void testRandom() {
+        final ConcurrentReader.PrefetchReader pr = new ConcurrentReader.PrefetchReader(
+                makeImage(), window, history);
+        final int[] sliceOrder = new int[]{7, 15, 2, 11, 19, 5, 13, 9};
+        for (final int z : sliceOrder) {
+            checkSlice(pr, z);
+            // jumps should never start reading ahead
+            assertTrue(pr.getSliceCount() <= 2 * history + 1);
+        }
+        assertEquals(0, pr.getHitRatio(), 1e-5);
+        pr.close();
+    }
+
+    @Test
+    public void testPrefetchImage() {
+        final TImgRO inImg = makeImage();
+        // function images are computed in memory so they are not wrapped
+        assertEquals(true, inImg == ConcurrentReader.PrefetchImage(inImg));
+        final TImgRO pr = new ConcurrentReader.PrefetchReader(inImg);
+        assertEquals(true, pr == ConcurrentReader.PrefetchImage(pr));
+        // the output of plugins should not change when the input is wrapped
+        assertEquals(inImg.getSampleName(), pr.getSampleName());
+        assertEquals(inImg.getPath().getPath(), pr.getPath().getPath());
+    }
+
+    @Test
+    public void testLater() throws Exception {
+        final ConcurrentReader.PrefetchReader pr = new ConcurrentReader.PrefetchReader(
+                makeImage(), window, history);
+        // many more requests than there are io threads must not wait on each other
+        final List<Future<Object>> slices = pr.getPolyImageSlices(0, testSize,
+                TImgTools.IMAGETYPE_INT);
+        for (int z = 0; z < testSize; z++)
+            assertEquals(z, ((int[]) slices.get(z).get())[0]);
+        pr.close();
+    }
+}
@@ -0,0 +1,80 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImg;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgCache;
+import tipl.util.TImgTools;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the eviction and counters of the image cache
+ *
+ * @author mader
+ */
+public class TImgCacheTest {
+    final private static D3int testDim = new D3int(10, 10, 10);
+
+    /**
+     * an empty boolean image takes 1 byte per voxel
+     */
+    protected static TImg makeImage() {
+        final Object[] sliceData = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) sliceData[z] = new boolean[testDim.x * testDim.y];
+        return new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1),
+                TImgTools.IMAGETYPE_BOOL, sliceData);
+    }
+
+    @Test
+    public void testEviction() {
+        final TImgCache cCache = new TImgCache(2500);
+        final TImg aImg = makeImage(), bImg = makeImage(), cImg = makeImage();
+        assertEquals(1000, TImgCache.imageBytes(aImg));
+        assertEquals(true, cCache.put("a", aImg));
+        assertEquals(true, cCache.put("b", bImg));
+        // a is now more recently used than b
+        assertEquals(true, aImg == cCache.get("a"));
+        assertEquals(true, cCache.put("c", cImg));
+        assertEquals(false, cCache.contains("b"));
+        assertEquals(true, cCache.contains("a"));
+        assertEquals(2000, cCache.getUsedBytes());
+        assertEquals(null, cCache.get("b"));
+
+        TImgCache.CacheStats cStats = cCache.getStats();
+        assertEquals(1, cStats.hits);
+        assertEquals(1, cStats.misses);
+        assertEquals(1, cStats.evictions);
+        assertEquals(2, cStats.entries);
+
+        // larger than the entire budget
+        cCache.setMaxBytes(500);
+        assertEquals(0, cCache.getUsedBytes());
+        assertEquals(false, cCache.put("a", aImg));
+        cStats = cCache.getStats();
+        assertEquals(3, cStats.evictions);
+        assertEquals(0, cStats.entries);
+    }
+
+    @Test
+    public void testReplace() {
+        final TImgCache cCache = new TImgCache(5000);
+        cCache.put("a", makeImage());
+        cCache.put("a", makeImage());
+        assertEquals(1000, cCache.getUsedBytes());
+        assertEquals(true, cCache.remove("a"));
+        assertEquals(false, cCache.remove("a"));
+        assertEquals(0, cCache.getUsedBytes());
+    }
+
+    @Test
+    public void testNormalizePath() {
+        final String absPath = new File("test.tif").getAbsolutePath();
+        assertEquals(absPath, TImgCache.normalizePath("test.tif"));
+        assertEquals(absPath, TImgCache.normalizePath("./dummy/../test.tif"));
+        assertEquals(absPath, TImgCache.normalizePath(absPath));
+    }
+}
@@ -0,0 +1,112 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImgHeader;
+import tipl.formats.TImgRO;
+import tipl.formats.TiffCodec;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the native tiff codec by reading back what it wrote
+ *
+ * @author mader
+ */
+public class TiffCodecTest {
+    // several strips for the 16 and 32 bit images
+    final private static int width = 301;
+    final private static int height = 123;
+    final private static int[] compressions = new int[]{TiffCodec.COMPRESSION_NONE,
+            TiffCodec.COMPRESSION_PACKBITS, TiffCodec.COMPRESSION_DEFLATE,
+            TiffCodec.COMPRESSION_DEFLATE_OLD};
+
+    /**
+     * images with runs (for packbits) and noise
+     */
+    protected static int[] testValues(final int maxVal, final long seed) {
+        final Random rand = new Random(seed);
+        final int[] outValues = new int[width * height];
+        for (int i = 0; i < outValues.length; i++)
+            outValues[i] = ((i / 7) % 3 == 0) ? maxVal : rand.nextInt(maxVal + 1);
+        return outValues;
+    }
+
+    protected static TiffCodec.NativeSliceReader roundTrip(final TiffCodec.Encoder cEncoder,
+                                                           final Object pixels) throws IOException {
+        final ByteBuffer encoded = cEncoder.encode(pixels, width, height);
+        // copy it since the encoder reuses the buffer
+        final ByteBuffer fileData = ByteBuffer.allocate(encoded.remaining());
+        fileData.put(encoded).flip();
+        assertEquals(true, TiffCodec.isTiff(fileData));
+        final TiffCodec.Header cHeader = TiffCodec.readHeader(fileData);
+        assertEquals(true, cHeader.isSupported());
+        return new TiffCodec.NativeSliceReader(fileData, cHeader);
+    }
+
+    @Test
+    public void testByte() throws IOException {
+        final int[] values = testValues(255, 1);
+        final byte[] pixels = new byte[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = (byte) values[i];
+        for (int cComp : compressions) {
+            final TiffCodec.NativeSliceReader cReader = roundTrip(new TiffCodec.Encoder(cComp), pixels);
+            assertEquals(TImgTools.IMAGETYPE_CHAR, cReader.getImageType());
+            assertEquals(width, cReader.getDim().x);
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+        }
+    }
+
+    @Test
+    public void testShort() throws IOException {
+        final int[] values = testValues(65535, 2);
+        final short[] pixels = new short[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = (short) values[i];
+        for (int cComp : compressions) {
+            final TiffCodec.NativeSliceReader cReader = roundTrip(new TiffCodec.Encoder(cComp), pixels);
+            // 16 bit tiffs are unsigned so they are read as integers
+            assertEquals(TImgTools.IMAGETYPE_INT, cReader.getImageType());
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+            assertArrayEquals(pixels, (short[]) cReader.getNativePixels());
+        }
+    }
+
+    @Test
+    public void testFloat() throws IOException {
+        final int[] values = testValues(1000, 3);
+        final float[] pixels = new float[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = values[i] / 7.0f - 20;
+        // the same encoder for all of the slices
+        for (int cComp : compressions) {
+            final TiffCodec.Encoder cEncoder = new TiffCodec.Encoder(cComp);
+            for (int slice = 0; slice < 2; slice++) {
+                final TiffCodec.NativeSliceReader cReader = roundTrip(cEncoder, pixels);
+                assertEquals(TImgTools.IMAGETYPE_FLOAT, cReader.getImageType());
+                assertArrayEquals(pixels, (float[]) cReader.polyReadImage(TImgTools.IMAGETYPE_FLOAT), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testHeaderFields() throws IOException {
+        final TImgRO cImg = TestPosFunctions.wrapIt(5, new TestPosFunctions.DotsFunction());
+        final TImgHeader cHeader = TImgHeader.ReadHeadersFromTImg(cImg);
+        cHeader.setElSize(new D3float(0.5, 1.5, 2.5));
+        cHeader.setPos(new D3int(1, -2, 3));
+        final ByteBuffer encoded = new TiffCodec.Encoder(TiffCodec.COMPRESSION_DEFLATE)
+                .encode(new byte[width * height], width, height, cHeader.toTiffFields());
+        // the extra tags must not confuse the layout
+        final TiffCodec.Header tHeader = TiffCodec.readHeader(encoded);
+        assertEquals(height, tHeader.height);
+        assertEquals(TiffCodec.COMPRESSION_DEFLATE, tHeader.compression);
+        assertEquals(0, ((byte[]) TiffCodec.readPixels(encoded, tHeader))[width * height - 1]);
+    }
+
+}
@@ -0,0 +1,923 @@
+package tipl.formats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TIPLGlobal;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+import tipl.util.TypedPath.PathFilter;
+
+/**
+ * Reads a folder of compressed 3D blocks (similar to the N5 layout). The folder contains an
+ * attributes.json header and every block (bx,by,bz) is stored in the file bx/by/bz with the
+ * voxels in little endian x,y,z order. Blocks at the edge of the image are clipped to the image
+ * and blocks which were never written (or were entirely zero) are read as zeros. Since a slice
+ * only needs the blocks in its layer and a region only the blocks it overlaps, reading parts of
+ * an image is much cheaper than for the slice based formats
+ *
+ * @author mader
+ */
+public class BlockFolder extends DirectoryReader {
+    private static final long serialVersionUID = 3381208421764427510L;
+
+    public static final String HEADER_NAME = "attributes.json";
+    /**
+     * the suffix for block folders when choosing a writer
+     */
+    public static final String FOLDER_SUFFIX = "blk";
+    public static final String COMPRESSION_RAW = "raw";
+    public static final String COMPRESSION_LZ4 = "lz4";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+    /**
+     * the fraction of the maximum heap used to keep decompressed blocks
+     */
+    public static double BLOCK_CACHE_FRACTION = 0.1;
+
+    @DirectoryReader.DReader(name = "block")
+    final public static class blockReaderFactory extends DRFactory {
+        @Override
+        public DirectoryReader get(final TypedPath path) {
+            try {
+                return new BlockFolder(path);
+            } catch (final Exception e) {
+                System.out.println("Error reading block folder");
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        @Override
+        public TSliceReader getSliceReader(final TypedPath slice) {
+            throw new IllegalArgumentException(slice + " is not a slice, block folders must be read with " + BlockFolder.class.getSimpleName());
+        }
+
+        @Override
+        public PathFilter getFilter() {
+            return headerFilter;
+        }
+    }
+
+    final static public PathFilter headerFilter = new PathFilter() {
+        @Override
+        public boolean accept(final TypedPath pathname) {
+            return new File(pathname.getPath()).getName().equals(HEADER_NAME);
+        }
+    };
+
+    /**
+     * The slices are not files, so they cannot be read by DirectoryReader
+     */
+    protected static class NoSliceFactory implements TSliceFactory {
+        private static final long serialVersionUID = -8046813102787152924L;
+
+        @Override
+        public TSliceReader ReadFile(final TypedPath curfile) throws IOException {
+            throw new IOException(curfile + " is not a slice, block folders must be read with " + BlockFolder.class.getSimpleName());
+        }
+    }
+
+    /**
+     * The contents of the attributes.json file
+     */
+    public static class Header implements Serializable {
+        private static final long serialVersionUID = -1436612590367914447L;
+        final public D3int dim;
+        final public D3int blockSize;
+        final public D3int pos;
+        final public D3int offset;
+        final public D3float elSize;
+        final public int imageType;
+        final public String compression;
+        final public float shortScaleFactor;
+        final public boolean signed;
+        final public String procLog;
+
+        public Header(final D3int dim, final D3int blockSize, final D3int pos, final D3int offset,
+                      final D3float elSize, final int imageType, final String compression,
+                      final float shortScaleFactor, final boolean signed, final String procLog) {
+            for (int v : new int[]{blockSize.x, blockSize.y, blockSize.z})
+                if (v < 1) throw new IllegalArgumentException("Block sizes must be positive:" + blockSize);
+            getTypeName(imageType); // only the types we can store
+            getCompression(compression);
+            this.dim = new D3int(dim);
+            this.blockSize = new D3int(blockSize);
+            this.pos = new D3int(pos);
+            this.offset = new D3int(offset);
+            this.elSize = new D3float(elSize);
+            this.imageType = imageType;
+            this.compression = compression;
+            this.shortScaleFactor = shortScaleFactor;
+            this.signed = signed;
+            this.procLog = procLog;
+        }
+
+        /**
+         * create the header for saving an image
+         *
+         * @param imageType the type to save it as (-1 for the type of the image)
+         */
+        public Header(final TImgRO inImg, final int imageType, final D3int blockSize,
+                      final String compression) {
+            this(inImg.getDim(), blockSize, inImg.getPos(), inImg.getOffset(), inImg.getElSize(),
+                    (imageType == -1) ? inImg.getImageType() : imageType, compression,
+                    inImg.getShortScaleFactor(), inImg.getSigned(), inImg.getProcLog());
+        }
+
+        public int getTypeSize() {
+            return (int) TImgTools.typeSize(imageType);
+        }
+
+        /**
+         * the number of blocks in each direction
+         */
+        public D3int getBlockCount() {
+            return new D3int((dim.x + blockSize.x - 1) / blockSize.x,
+                    (dim.y + blockSize.y - 1) / blockSize.y,
+                    (dim.z + blockSize.z - 1) / blockSize.z);
+        }
+
+        /**
+         * the size of a block, the last block in each direction is clipped to the image
+         */
+        public D3int getBlockDim(final int bx, final int by, final int bz) {
+            return new D3int(Math.min(blockSize.x, dim.x - bx * blockSize.x),
+                    Math.min(blockSize.y, dim.y - by * blockSize.y),
+                    Math.min(blockSize.z, dim.z - bz * blockSize.z));
+        }
+
+        public int getBlockBytes(final int bx, final int by, final int bz) {
+            final D3int bDim = getBlockDim(bx, by, bz);
+            return bDim.x * bDim.y * bDim.z * getTypeSize();
+        }
+
+        public File getBlockFile(final TypedPath folder, final int bx, final int by, final int bz) {
+            return new File(folder.getPath(), bx + File.separator + by + File.separator + bz);
+        }
+
+        public static Header read(final TypedPath folder) throws IOException {
+            final File headerFile = new File(folder.getPath(), HEADER_NAME);
+            final byte[] rawHeader = readFile(headerFile);
+            if (rawHeader == null) throw new IOException(headerFile + " does not exist");
+            return fromJSON(new String(rawHeader, "UTF-8"));
+        }
+
+        public void write(final TypedPath folder) throws IOException {
+            writeFile(new File(folder.getPath(), HEADER_NAME), toJSON().getBytes("UTF-8"));
+        }
+
+        public String toJSON() {
+            final StringBuilder out = new StringBuilder("{\n");
+            out.append("  \"dimensions\": ").append(jsonArray(dim.x, dim.y, dim.z)).append(",\n");
+            out.append("  \"blockSize\": ").append(jsonArray(blockSize.x, blockSize.y, blockSize.z)).append(",\n");
+            out.append("  \"dataType\": \"").append(getTypeName(imageType)).append("\",\n");
+            out.append("  \"compression\": \"").append(compression).append("\",\n");
+            out.append("  \"position\": ").append(jsonArray(pos.x, pos.y, pos.z)).append(",\n");
+            out.append("  \"offset\": ").append(jsonArray(offset.x, offset.y, offset.z)).append(",\n");
+            out.append("  \"elementSize\": ").append(jsonArray(elSize.x, elSize.y, elSize.z)).append(",\n");
+            out.append("  \"shortScaleFactor\": ").append(shortScaleFactor).append(",\n");
+            out.append("  \"signed\": ").append(signed).append(",\n");
+            out.append("  \"procLog\": ").append(jsonString(procLog)).append("\n");
+            return out.append("}\n").toString();
+        }
+
+        public static Header fromJSON(final String json) throws IOException {
+            final Map<String, Object> fields = new JSONParser(json).parseObject();
+            final String typeName = (String) required(fields, "dataType");
+            int imageType = -1;
+            for (int cType : storedTypes) if (getTypeName(cType).equals(typeName)) imageType = cType;
+            if (imageType < 0) throw new IOException("Unsupported data type:" + typeName);
+            final Object ssf = fields.get("shortScaleFactor");
+            final Object signed = fields.get("signed");
+            final Object procLog = fields.get("procLog");
+            final Object compression = fields.get("compression");
+            return new Header(getD3int(required(fields, "dimensions")),
+                    getD3int(required(fields, "blockSize")),
+                    fields.containsKey("position") ? getD3int(fields.get("position")) : new D3int(0),
+                    fields.containsKey("offset") ? getD3int(fields.get("offset")) : new D3int(0),
+                    fields.containsKey("elementSize") ? getD3float(fields.get("elementSize")) : new D3float(1, 1, 1),
+                    imageType,
+                    (compression == null) ? COMPRESSION_RAW : (String) compression,
+                    (ssf == null) ? 1.0f : ((Number) ssf).floatValue(),
+                    (signed == null) || (Boolean) signed,
+                    (procLog == null) ? "" : (String) procLog);
+        }
+
+        @Override
+        public String toString() {
+            return "BlockHeader:" + getTypeName(imageType) + ", dim:" + dim + ", block:" + blockSize + ", " + compression;
+        }
+
+        private static Object required(final Map<String, Object> fields, final String name) throws IOException {
+            final Object value = fields.get(name);
+            if (value == null) throw new IOException(HEADER_NAME + " is missing " + name);
+            return value;
+        }
+
+        private static double[] getTriple(final Object value) throws IOException {
+            if (!(value instanceof List) || ((List<?>) value).size() != 3)
+                throw new IOException(value + " is not a list of 3 numbers");
+            final double[] out = new double[3];
+            for (int i = 0; i < 3; i++) out[i] = ((Number) ((List<?>) value).get(i)).doubleValue();
+            return out;
+        }
+
+        private static D3int getD3int(final Object value) throws IOException {
+            final double[] vals = getTriple(value);
+            return new D3int((int) vals[0], (int) vals[1], (int) vals[2]);
+        }
+
+        private static D3float getD3float(final Object value) throws IOException {
+            final double[] vals = getTriple(value);
+            return new D3float(vals[0], vals[1], vals[2]);
+        }
+
+        private static String jsonArray(final Object x, final Object y, final Object z) {
+            return "[" + x + ", " + y + ", " + z + "]";
+        }
+
+        private static String jsonString(final String inStr) {
+            final StringBuilder out = new StringBuilder("\"");
+            for (char c : inStr.toCharArray()) {
+                switch (c) {
+                    case '"':
+                        out.append("\\\"");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                        else out.append(c);
+                }
+            }
+            return out.append('"').toString();
+        }
+    }
+
+    /**
+     * Just enough of a JSON parser to read the headers (objects, arrays, strings, numbers and
+     * booleans)
+     */
+    protected static class JSONParser {
+        final private String text;
+        private int index = 0;
+
+        public JSONParser(final String text) {
+            this.text = text;
+        }
+
+        public Map<String, Object> parseObject() throws IOException {
+            final Map<String, Object> out = new LinkedHashMap<String, Object>();
+            expect('{');
+            if (peek() == '}') {
+                index++;
+                return out;
+            }
+            do {
+                final String key = parseString();
+                expect(':');
+                out.put(key, parseValue());
+            } while (next() == ',');
+            index--;
+            expect('}');
+            return out;
+        }
+
+        protected Object parseValue() throws IOException {
+            final char c = peek();
+            switch (c) {
+                case '{':
+                    return parseObject();
+                case '[':
+                    final List<Object> outList = new ArrayList<Object>();
+                    index++;
+                    if (peek() == ']') {
+                        index++;
+                        return outList;
+                    }
+                    do {
+                        outList.add(parseValue());
+                    } while (next() == ',');
+                    index--;
+                    expect(']');
+                    return outList;
+                case '"':
+                    return parseString();
+                default:
+                    if (text.startsWith("true", index)) {
+                        index += 4;
+                        return Boolean.TRUE;
+                    }
+                    if (text.startsWith("false", index)) {
+                        index += 5;
+                        return Boolean.FALSE;
+                    }
+                    if (text.startsWith("null", index)) {
+                        index += 4;
+                        return null;
+                    }
+                    final int start = index;
+                    while (index < text.length() && "+-0123456789.eE".indexOf(text.charAt(index)) >= 0)
+                        index++;
+                    try {
+                        return Double.valueOf(text.substring(start, index));
+                    } catch (final NumberFormatException e) {
+                        throw new IOException("Invalid JSON value at " + start + ": " + e.getMessage());
+                    }
+            }
+        }
+
+        protected String parseString() throws IOException {
+            expect('"');
+            final StringBuilder out = new StringBuilder();
+            while (index < text.length()) {
+                final char c = text.charAt(index++);
+                if (c == '"') return out.toString();
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (index >= text.length()) break;
+                final char e = text.charAt(index++);
+                switch (e) {
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'b':
+                        out.append('\b');
+                        break;
+                    case 'f':
+                        out.append('\f');
+                        break;
+                    case 'u':
+                        if (index + 4 > text.length()) throw new IOException("Invalid JSON escape at " + index);
+                        out.append((char) Integer.parseInt(text.substring(index, index + 4), 16));
+                        index += 4;
+                        break;
+                    default:
+                        out.append(e);
+                }
+            }
+            throw new IOException("Unterminated JSON string");
+        }
+
+        private char peek() throws IOException {
+            while (index < text.length() && Character.isWhitespace(text.charAt(index))) index++;
+            if (index >= text.length()) throw new IOException("Unexpected end of JSON");
+            return text.charAt(index);
+        }
+
+        private char next() throws IOException {
+            final char c = peek();
+            index++;
+            return c;
+        }
+
+        private void expect(final char c) throws IOException {
+            if (next() != c) throw new IOException("Expected '" + c + "' at " + (index - 1) + " in JSON header");
+        }
+    }
+
+    /**
+     * the image types which can be saved in block folders
+     */
+    final static int[] storedTypes = new int[]{TImgTools.IMAGETYPE_BOOL, TImgTools.IMAGETYPE_CHAR,
+            TImgTools.IMAGETYPE_SHORT, TImgTools.IMAGETYPE_INT, TImgTools.IMAGETYPE_LONG,
+            TImgTools.IMAGETYPE_FLOAT, TImgTools.IMAGETYPE_DOUBLE};
+
+    /**
+     * the name of the type in the header
+     */
+    public static String getTypeName(final int imageType) {
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_BOOL:
+                return "bool";
+            case TImgTools.IMAGETYPE_CHAR:
+                return "uint8";
+            case TImgTools.IMAGETYPE_SHORT:
+                return "int16";
+            case TImgTools.IMAGETYPE_INT:
+                return "int32";
+            case TImgTools.IMAGETYPE_LONG:
+                return "int64";
+            case TImgTools.IMAGETYPE_FLOAT:
+                return "float32";
+            case TImgTools.IMAGETYPE_DOUBLE:
+                return "float64";
+            default:
+                throw new IllegalArgumentException("Block folders cannot store images of type " + TImgTools.getImageTypeName(imageType));
+        }
+    }
+
+    protected static void getCompression(final String compression) {
+        if (!(COMPRESSION_RAW.equals(compression) || COMPRESSION_LZ4.equals(compression) ||
+                COMPRESSION_DEFLATE.equals(compression)))
+            throw new IllegalArgumentException("Unknown block compression:" + compression);
+    }
+
+    /**
+     * convert a slice or block to its little endian bytes
+     */
+    public static byte[] toBytes(final Object inArray, final int imageType) {
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_BOOL:
+                final boolean[] boolArray = (boolean[]) inArray;
+                final byte[] boolBytes = new byte[boolArray.length];
+                for (int i = 0; i < boolArray.length; i++) if (boolArray[i]) boolBytes[i] = 1;
+                return boolBytes;
+            case TImgTools.IMAGETYPE_CHAR:
+                final char[] charArray = (char[]) inArray;
+                final byte[] charBytes = new byte[charArray.length];
+                for (int i = 0; i < charArray.length; i++) charBytes[i] = (byte) charArray[i];
+                return charBytes;
+        }
+        final int length = java.lang.reflect.Array.getLength(inArray);
+        final ByteBuffer outBuffer = ByteBuffer.allocate(length * ((int) TImgTools.typeSize(imageType)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_SHORT:
+                outBuffer.asShortBuffer().put((short[]) inArray);
+                break;
+            case TImgTools.IMAGETYPE_INT:
+                outBuffer.asIntBuffer().put((int[]) inArray);
+                break;
+            case TImgTools.IMAGETYPE_LONG:
+                outBuffer.asLongBuffer().put((long[]) inArray);
+                break;
+            case TImgTools.IMAGETYPE_FLOAT:
+                outBuffer.asFloatBuffer().put((float[]) inArray);
+                break;
+            case TImgTools.IMAGETYPE_DOUBLE:
+                outBuffer.asDoubleBuffer().put((double[]) inArray);
+                break;
+            default:
+                throw new IllegalArgumentException("Block folders cannot store images of type " + TImgTools.getImageTypeName(imageType));
+        }
+        return outBuffer.array();
+    }
+
+    /**
+     * convert little endian bytes back to an array
+     *
+     * @param voxels the number of voxels to read starting at off
+     */
+    public static Object fromBytes(final byte[] inBytes, final int off, final int voxels, final int imageType) {
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_BOOL:
+                final boolean[] boolArray = new boolean[voxels];
+                for (int i = 0; i < voxels; i++) boolArray[i] = inBytes[off + i] != 0;
+                return boolArray;
+            case TImgTools.IMAGETYPE_CHAR:
+                final char[] charArray = new char[voxels];
+                for (int i = 0; i < voxels; i++) charArray[i] = (char) (inBytes[off + i] & 0xFF);
+                return charArray;
+        }
+        final ByteBuffer inBuffer = ByteBuffer.wrap(inBytes, off, voxels * ((int) TImgTools.typeSize(imageType)))
+                .slice().order(ByteOrder.LITTLE_ENDIAN);
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_SHORT:
+                final short[] shortArray = new short[voxels];
+                inBuffer.asShortBuffer().get(shortArray);
+                return shortArray;
+            case TImgTools.IMAGETYPE_INT:
+                final int[] intArray = new int[voxels];
+                inBuffer.asIntBuffer().get(intArray);
+                return intArray;
+            case TImgTools.IMAGETYPE_LONG:
+                final long[] longArray = new long[voxels];
+                inBuffer.asLongBuffer().get(longArray);
+                return longArray;
+            case TImgTools.IMAGETYPE_FLOAT:
+                final float[] floatArray = new float[voxels];
+                inBuffer.asFloatBuffer().get(floatArray);
+                return floatArray;
+            case TImgTools.IMAGETYPE_DOUBLE:
+                final double[] doubleArray = new double[voxels];
+                inBuffer.asDoubleBuffer().get(doubleArray);
+                return doubleArray;
+            default:
+                throw new IllegalArgumentException("Block folders cannot store images of type " + TImgTools.getImageTypeName(imageType));
+        }
+    }
+
+    public static byte[] compressBlock(final byte[] rawBlock, final String compression) {
+        if (COMPRESSION_LZ4.equals(compression)) return LZ4Codec.compress(rawBlock);
+        if (COMPRESSION_DEFLATE.equals(compression)) {
+            final Deflater cDeflater = new Deflater();
+            try {
+                cDeflater.setInput(rawBlock);
+                cDeflater.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(rawBlock.length / 4 + 64);
+                final byte[] buffer = new byte[65536];
+                while (!cDeflater.finished()) out.write(buffer, 0, cDeflater.deflate(buffer));
+                return out.toByteArray();
+            } finally {
+                cDeflater.end();
+            }
+        }
+        return rawBlock;
+    }
+
+    public static byte[] decompressBlock(final byte[] storedBlock, final int rawLength, final String compression) throws IOException {
+        if (COMPRESSION_LZ4.equals(compression)) return LZ4Codec.decompress(storedBlock, rawLength);
+        if (COMPRESSION_DEFLATE.equals(compression)) {
+            final Inflater cInflater = new Inflater();
+            try {
+                cInflater.setInput(storedBlock);
+                final byte[] out = new byte[rawLength];
+                int outPos = 0;
+                while (outPos < rawLength && !cInflater.finished()) {
+                    final int count = cInflater.inflate(out, outPos, rawLength - outPos);
+                    if (count == 0 && (cInflater.needsInput() || cInflater.needsDictionary())) break;
+                    outPos += count;
+                }
+                if (outPos != rawLength) throw new IOException("Deflate block decompressed to " + outPos + " instead of " + rawLength + " bytes");
+                return out;
+            } catch (final DataFormatException e) {
+                throw new IOException("Corrupt deflate block: " + e.getMessage());
+            } finally {
+                cInflater.end();
+            }
+        }
+        if (storedBlock.length != rawLength) throw new IOException("Raw block has " + storedBlock.length + " instead of " + rawLength + " bytes");
+        return storedBlock;
+    }
+
+    /**
+     * @return the contents of the file or null if it does not exist
+     */
+    protected static byte[] readFile(final File inFile) throws IOException {
+        if (!inFile.isFile()) return null;
+        final FileInputStream is = new FileInputStream(inFile);
+        try {
+            final FileChannel fc = is.getChannel();
+            final ByteBuffer fileData = ByteBuffer.allocate((int) fc.size());
+            while (fileData.hasRemaining() && fc.read(fileData) >= 0) ;
+            return fileData.array();
+        } finally {
+            is.close();
+        }
+    }
+
+    protected static void writeFile(final File outFile, final byte[] outData) throws IOException {
+        final File parent = outFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Directory " + parent + " could not be created");
+        final FileOutputStream os = new FileOutputStream(outFile);
+        try {
+            final FileChannel fc = os.getChannel();
+            final ByteBuffer fileData = ByteBuffer.wrap(outData);
+            while (fileData.hasRemaining()) fc.write(fileData);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static ExecutorService blockPool = null;
+
+    /**
+     * the threads used for compressing and decompressing blocks, shared by all of the block
+     * folders since they are only busy while reading or writing
+     */
+    protected static synchronized ExecutorService getBlockPool() {
+        if (blockPool == null) blockPool = TIPLGlobal.requestSimpleES();
+        return blockPool;
+    }
+
+    /**
+     * run the tasks on the block pool and wait for all of them to finish
+     */
+    protected static <T> List<T> runAll(final List<Callable<T>> tasks) throws IOException {
+        final List<T> out = new ArrayList<T>(tasks.size());
+        if (tasks.size() == 1) {
+            try {
+                out.add(tasks.get(0).call());
+            } catch (final IOException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new IOException(e);
+            }
+            return out;
+        }
+        final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        final ExecutorService cPool = getBlockPool();
+        for (Callable<T> cTask : tasks) futures.add(cPool.submit(cTask));
+        try {
+            for (Future<T> cFuture : futures) out.add(cFuture.get());
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while waiting for blocks: " + e.getMessage());
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        return out;
+    }
+
+    /**
+     * A slice assembled from the blocks
+     */
+    public static class BlockSliceReader extends TReader.SliceReader {
+        private static final long serialVersionUID = 2906213567934520271L;
+        protected final Object pixels;
+        protected final boolean signed;
+
+        public BlockSliceReader(final BlockFolder inFolder, final int slice, final Object pixels) {
+            this.pixels = pixels;
+            final Header cHeader = inFolder.getHeader();
+            dim = new D3int(cHeader.dim.x, cHeader.dim.y, 1);
+            sliceSize = dim.x * dim.y;
+            imageType = cHeader.imageType;
+            maxVal = (imageType == TImgTools.IMAGETYPE_CHAR) ? 255 : 65536;
+            pos = new D3int(cHeader.pos.x, cHeader.pos.y, cHeader.pos.z + slice);
+            offset = cHeader.offset;
+            elSize = cHeader.elSize;
+            ShortScaleFactor = cHeader.shortScaleFactor;
+            signed = cHeader.signed;
+            path = inFolder.getPath();
+        }
+
+        @Override
+        public boolean getSigned() {
+            return signed;
+        }
+
+        @Override
+        public Object polyReadImage(final int asType) throws IOException {
+            return TImgTools.convertArrayType(pixels, imageType, asType, signed, ShortScaleFactor, maxVal);
+        }
+    }
+
+    /**
+     * the header has to be set by ReadHeader which runs inside of the DirectoryReader
+     * constructor, so it must not have an initializer
+     */
+    protected Header header;
+    /**
+     * the most recently used decompressed blocks, an empty array is a block without a file
+     */
+    protected transient volatile LinkedHashMap<Long, byte[]> blockCache;
+    protected transient long cachedBytes;
+    final private static byte[] EMPTY_BLOCK = new byte[0];
+
+    public BlockFolder(final TypedPath path) throws IOException {
+        super(path, headerFilter, new NoSliceFactory());
+    }
+
+    public static boolean isBlockFolder(final TypedPath path) {
+        return new File(path.getPath(), HEADER_NAME).isFile();
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    @Override
+    public void ParseFirstHeader() {
+    }
+
+    @Override
+    public void ReadHeader() {
+        try {
+            header = Header.read(getPath());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("Error Reading header of " + getPath() + ":" + e.getMessage());
+        }
+        setDim(new D3int(header.dim));
+        setElSize(header.elSize);
+        setOffset(header.offset);
+        setPos(header.pos);
+        setImageType(header.imageType);
+        ShortScaleFactor = header.shortScaleFactor;
+        System.out.println("DirectoryReader [" + readerName()
+                + "] : Sample: " + getPath() + " Timg has been selected");
+    }
+
+    @Override
+    public String getProcLog() {
+        return header.procLog;
+    }
+
+    @Override
+    public boolean getSigned() {
+        return header.signed;
+    }
+
+    @Override
+    public String readerName() {
+        return "Block-Folder-Reader:" + header;
+    }
+
+    @Override
+    public void SetupReader(final TypedPath inPath) {
+    }
+
+    /**
+     * Read a slice, only the blocks in the layer of the slice are read and they are kept so
+     * the next slices in the same layer do not need to decompress them again
+     */
+    @Override
+    public TReader.TSliceReader ReadSlice(final int slice) throws IOException {
+        if (slice < 0 || slice >= dim.z) {
+            throw new IOException("Exceeds bound!!!" + slice + " of " + dim.z);
+        }
+        final D3int sliceDim = new D3int(dim.x, dim.y, 1);
+        return new BlockSliceReader(this, slice, fromBytes(readRegionBytes(new D3int(0, 0, slice), sliceDim),
+                0, dim.x * dim.y, header.imageType));
+    }
+
+    /**
+     * Read a region of the image, only the blocks which overlap the region are read
+     *
+     * @param start the corner of the region (relative to the first voxel of the image)
+     * @param size  the size of the region
+     * @param asType the type of the array to return
+     * @return the region as a single array in x,y,z order
+     */
+    public Object readRegion(final D3int start, final D3int size, final int asType) throws IOException {
+        final Object nativeData = fromBytes(readRegionBytes(start, size), 0, (int) size.prod(), header.imageType);
+        return TImgTools.convertArrayType(nativeData, header.imageType, asType, header.signed,
+                header.shortScaleFactor, (header.imageType == TImgTools.IMAGETYPE_CHAR) ? 255 : 65536);
+    }
+
+    /**
+     * Read a region of the image as a new image (for working on a region of interest without
+     * reading the rest of the image)
+     *
+     * @param start the corner of the region (relative to the first voxel of the image)
+     * @param size  the size of the region
+     */
+    public TImg getRegion(final D3int start, final D3int size) throws IOException {
+        final byte[] regionBytes = readRegionBytes(start, size);
+        final int sliceVoxels = size.x * size.y;
+        final Object[] sliceData = new Object[size.z];
+        for (int z = 0; z < size.z; z++)
+            sliceData[z] = fromBytes(regionBytes, z * sliceVoxels * header.getTypeSize(), sliceVoxels, header.imageType);
+        final TImg outImg = new TImg.ArrayBackedTImg(new D3int(size),
+                new D3int(pos.x + start.x, pos.y + start.y, pos.z + start.z), elSize,
+                header.imageType, sliceData);
+        outImg.setShortScaleFactor(header.shortScaleFactor);
+        outImg.setSigned(header.signed);
+        outImg.appendProcLog(header.procLog);
+        outImg.appendProcLog("Region " + start + " of size " + size + " read from " + getPath());
+        return outImg;
+    }
+
+    /**
+     * Read the blocks overlapping a region in parallel and copy them into a single array
+     */
+    protected byte[] readRegionBytes(final D3int start, final D3int size) throws IOException {
+        if (start.x < 0 || start.y < 0 || start.z < 0 || size.x < 1 || size.y < 1 || size.z < 1 ||
+                start.x + size.x > dim.x || start.y + size.y > dim.y || start.z + size.z > dim.z)
+            throw new IOException("Region " + start + " of size " + size + " is outside of the image " + dim);
+        final int typeSize = header.getTypeSize();
+        final long regionBytes = ((long) size.x) * size.y * size.z * typeSize;
+        if (regionBytes > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Region " + size + " is too large to be read as a single array");
+        final D3int bs = header.blockSize;
+        final List<int[]> blockList = new ArrayList<int[]>();
+        for (int bz = start.z / bs.z; bz <= (start.z + size.z - 1) / bs.z; bz++)
+            for (int by = start.y / bs.y; by <= (start.y + size.y - 1) / bs.y; by++)
+                for (int bx = start.x / bs.x; bx <= (start.x + size.x - 1) / bs.x; bx++)
+                    blockList.add(new int[]{bx, by, bz});
+        final List<byte[]> blocks = getBlocks(blockList);
+
+        final byte[] out = new byte[(int) regionBytes];
+        for (int i = 0; i < blockList.size(); i++) {
+            final byte[] cBlock = blocks.get(i);
+            if (cBlock.length == 0) continue; // empty blocks are zero
+            final int[] bIdx = blockList.get(i);
+            final D3int bDim = header.getBlockDim(bIdx[0], bIdx[1], bIdx[2]);
+            final D3int bStart = new D3int(bIdx[0] * bs.x, bIdx[1] * bs.y, bIdx[2] * bs.z);
+            final int x0 = Math.max(start.x, bStart.x), x1 = Math.min(start.x + size.x, bStart.x + bDim.x);
+            final int y0 = Math.max(start.y, bStart.y), y1 = Math.min(start.y + size.y, bStart.y + bDim.y);
+            final int z0 = Math.max(start.z, bStart.z), z1 = Math.min(start.z + size.z, bStart.z + bDim.z);
+            final int rowBytes = (x1 - x0) * typeSize;
+            for (int z = z0; z < z1; z++) {
+                for (int y = y0; y < y1; y++) {
+                    final int srcOff = (((z - bStart.z) * bDim.y + (y - bStart.y)) * bDim.x + (x0 - bStart.x)) * typeSize;
+                    final int dstOff = (((z - start.z) * size.y + (y - start.y)) * size.x + (x0 - start.x)) * typeSize;
+                    System.arraycopy(cBlock, srcOff, out, dstOff, rowBytes);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * get the decompressed blocks, the ones which are not cached are read in parallel
+     *
+     * @param blockList the (bx,by,bz) indices of the blocks
+     * @return the raw bytes of the blocks (empty arrays for blocks without data)
+     */
+    protected List<byte[]> getBlocks(final List<int[]> blockList) throws IOException {
+        final byte[][] out = new byte[blockList.size()][];
+        final List<Callable<byte[]>> toRead = new ArrayList<Callable<byte[]>>();
+        final List<Integer> readIndex = new ArrayList<Integer>();
+        for (int i = 0; i < out.length; i++) {
+            final int[] bIdx = blockList.get(i);
+            out[i] = getCachedBlock(blockKey(bIdx));
+            if (out[i] == null) {
+                readIndex.add(i);
+                toRead.add(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return readBlock(bIdx[0], bIdx[1], bIdx[2]);
+                    }
+                });
+            }
+        }
+        if (toRead.size() > 0) {
+            final List<byte[]> readBlocks = runAll(toRead);
+            for (int i = 0; i < readBlocks.size(); i++) {
+                final int outIndex = readIndex.get(i);
+                out[outIndex] = readBlocks.get(i);
+                cacheBlock(blockKey(blockList.get(outIndex)), out[outIndex]);
+            }
+        }
+        final List<byte[]> outList = new ArrayList<byte[]>(out.length);
+        for (byte[] cBlock : out) outList.add(cBlock);
+        return outList;
+    }
+
+    /**
+     * read and decompress a single block
+     *
+     * @return the raw bytes in x,y,z order or an empty array if the block has no file
+     */
+    public byte[] readBlock(final int bx, final int by, final int bz) throws IOException {
+        final File blockFile = header.getBlockFile(getPath(), bx, by, bz);
+        final byte[] storedBlock = readFile(blockFile);
+        if (storedBlock == null) return EMPTY_BLOCK;
+        try {
+            return decompressBlock(storedBlock, header.getBlockBytes(bx, by, bz), header.compression);
+        } catch (final IOException e) {
+            throw new IOException(blockFile + ": " + e.getMessage());
+        }
+    }
+
+    protected long blockKey(final int[] bIdx) {
+        final D3int bCount = header.getBlockCount();
+        return (((long) bIdx[2]) * bCount.y + bIdx[1]) * bCount.x + bIdx[0];
+    }
+
+    protected synchronized byte[] getCachedBlock(final long key) {
+        if (blockCache == null) return null;
+        return blockCache.get(key);
+    }
+
+    protected synchronized void cacheBlock(final long key, final byte[] block) {
+        final long maxBytes = (long) (Runtime.getRuntime().maxMemory() * BLOCK_CACHE_FRACTION);
+        if (block.length > maxBytes) return;
+        if (blockCache == null) {
+            blockCache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+            cachedBytes = 0;
+        }
+        final byte[] oldBlock = blockCache.put(key, block);
+        if (oldBlock != null) cachedBytes -= oldBlock.length;
+        cachedBytes += block.length;
+        final Iterator<Map.Entry<Long, byte[]>> blockIter = blockCache.entrySet().iterator();
+        while (cachedBytes > maxBytes && blockIter.hasNext()) {
+            cachedBytes -= blockIter.next().getValue().length;
+            blockIter.remove();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package tipl.formats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import tipl.util.D3int;
+import tipl.util.TImgSlice;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+
+/**
+ * Writes an image as a folder of compressed blocks (see BlockFolder). The slices are kept until
+ * every slice of a layer of blocks has arrived and then the blocks of that layer are compressed
+ * and written in parallel. All of the slices in a layer must therefore be given to the same
+ * writer, blocks which are entirely zero are not written at all
+ *
+ * @author mader
+ */
+public class BlockWriter implements TSliceWriter {
+    private static final long serialVersionUID = -2337905294127441390L;
+
+    @TSliceWriter.DWriter(name = "Block Folder", type = BlockFolder.FOLDER_SUFFIX)
+    final public static class myFactory implements DWFactory {
+        @Override
+        public TSliceWriter get(final TImgRO outFile, final TypedPath path, int outType) {
+            TSliceWriter outWriter = new BlockWriter();
+            outWriter.SetupWriter(outFile, path, outType);
+            outWriter.WriteHeader();
+            return outWriter;
+        }
+    }
+
+    /**
+     * the block size used for new writers
+     */
+    public static D3int blockSize = new D3int(128, 128, 16);
+    /**
+     * the compression used for new writers (BlockFolder.COMPRESSION_RAW, _LZ4 or _DEFLATE)
+     */
+    public static String compression = BlockFolder.COMPRESSION_LZ4;
+    public static boolean writeFailureThrowsError = true;
+
+    final protected D3int wBlockSize;
+    final protected String wCompression;
+    protected TypedPath outpath;
+    protected BlockFolder.Header header;
+    /**
+     * the slices of the layers which are not yet complete, indexed by layer
+     */
+    protected transient HashMap<Integer, byte[][]> pendingLayers = null;
+
+    public BlockWriter() {
+        this(blockSize, compression);
+    }
+
+    public BlockWriter(final D3int iblockSize, final String icompression) {
+        wBlockSize = new D3int(iblockSize);
+        wCompression = icompression;
+    }
+
+    @Override
+    public void SetupWriter(final TImgRO imageToSave, final TypedPath outputPath, final int outType) {
+        final File outFolder = new File(outputPath.getPath());
+        if (outFolder.mkdirs()) System.out.println("Directory: " + outputPath + " created");
+        outpath = outputPath;
+        header = new BlockFolder.Header(imageToSave, outType, wBlockSize, wCompression);
+    }
+
+    @Override
+    public void WriteHeader() {
+        try {
+            header.write(outpath);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("Error, Header for " + outpath + " could not be written:" + e.getMessage());
+        }
+    }
+
+    @Override
+    public String writerName() {
+        return "BlockWriter";
+    }
+
+    public BlockFolder.Header getHeader() {
+        return header;
+    }
+
+    /**
+     * SimpleWrite gives the index of the slice while the DTImg gives its position, the
+     * position of the slice itself is the same in both cases
+     */
+    protected int getSliceIndex(final TImgSlice outSlice, final int outSlicePosition) {
+        final int sliceIndex = outSlice.getPos().z - header.pos.z;
+        if (sliceIndex >= 0 && sliceIndex < header.dim.z) return sliceIndex;
+        return outSlicePosition;
+    }
+
+    /**
+     * the number of slices in a layer of blocks
+     */
+    protected int getLayerSlices(final int layer) {
+        return Math.min(header.blockSize.z, header.dim.z - layer * header.blockSize.z);
+    }
+
+    @Override
+    public void WriteSlice(final TImgSlice outSlice, final int outSlicePosition) {
+        final int sliceIndex = getSliceIndex(outSlice, outSlicePosition);
+        if (sliceIndex < 0 || sliceIndex >= header.dim.z)
+            throw new IllegalArgumentException(writerName() + ": slice " + sliceIndex + " is outside of " + header.dim);
+        final Object curSliceData = outSlice.get();
+        final Object typedSlice = TImgTools.convertArrayType(curSliceData, TImgTools.identifySliceType(curSliceData),
+                header.imageType, header.signed, header.shortScaleFactor,
+                (header.imageType == TImgTools.IMAGETYPE_CHAR) ? 255 : 65536);
+        final byte[] sliceBytes = BlockFolder.toBytes(typedSlice, header.imageType);
+
+        final int layer = sliceIndex / header.blockSize.z;
+        byte[][] completeLayer = null;
+        synchronized (this) {
+            if (pendingLayers == null) pendingLayers = new HashMap<Integer, byte[][]>();
+            byte[][] layerSlices = pendingLayers.get(layer);
+            if (layerSlices == null) {
+                layerSlices = new byte[getLayerSlices(layer)][];
+                pendingLayers.put(layer, layerSlices);
+            }
+            layerSlices[sliceIndex - layer * header.blockSize.z] = sliceBytes;
+            boolean isComplete = true;
+            for (byte[] cSlice : layerSlices) isComplete &= (cSlice != null);
+            if (isComplete) completeLayer = pendingLayers.remove(layer);
+        }
+        if (completeLayer != null) {
+            try {
+                writeLayer(layer, completeLayer);
+            } catch (final IOException e) {
+                System.err.println("Cannot write block layer " + layer);
+                e.printStackTrace();
+                if (writeFailureThrowsError)
+                    throw new IllegalArgumentException(e + "Cant write block layer " + layer + " at " + outpath);
+            }
+        }
+    }
+
+    /**
+     * cut the layer into blocks and compress and write them in parallel
+     */
+    protected void writeLayer(final int layer, final byte[][] layerSlices) throws IOException {
+        final D3int bCount = header.getBlockCount();
+        final List<Callable<Boolean>> blockTasks = new ArrayList<Callable<Boolean>>(bCount.x * bCount.y);
+        for (int by = 0; by < bCount.y; by++) {
+            for (int bx = 0; bx < bCount.x; bx++) {
+                final int fbx = bx, fby = by;
+                blockTasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return writeBlock(fbx, fby, layer, layerSlices);
+                    }
+                });
+            }
+        }
+        BlockFolder.runAll(blockTasks);
+    }
+
+    /**
+     * @return if the block had any data and was written
+     */
+    protected boolean writeBlock(final int bx, final int by, final int bz, final byte[][] layerSlices) throws IOException {
+        final int typeSize = header.getTypeSize();
+        final D3int bDim = header.getBlockDim(bx, by, bz);
+        final int rowBytes = bDim.x * typeSize;
+        final byte[] rawBlock = new byte[bDim.x * bDim.y * bDim.z * typeSize];
+        boolean isEmpty = true;
+        for (int z = 0; z < bDim.z; z++) {
+            for (int y = 0; y < bDim.y; y++) {
+                final int srcOff = ((by * header.blockSize.y + y) * header.dim.x + bx * header.blockSize.x) * typeSize;
+                final int dstOff = (z * bDim.y + y) * rowBytes;
+                System.arraycopy(layerSlices[z], srcOff, rawBlock, dstOff, rowBytes);
+            }
+        }
+        for (int i = 0; i < rawBlock.length && isEmpty; i++) isEmpty = (rawBlock[i] == 0);
+        final File blockFile = header.getBlockFile(outpath, bx, by, bz);
+        if (isEmpty) {
+            // remove the block from an earlier image in the same folder
+            if (blockFile.exists() && !blockFile.delete())
+                throw new IOException(blockFile + " could not be removed");
+            return false;
+        }
+        BlockFolder.writeFile(blockFile, BlockFolder.compressBlock(rawBlock, header.compression));
+        return true;
+    }
+
+}
@@ -4,7 +4,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 import tipl.util.*;
 
@@ -16,75 +20,80 @@ import tipl.util.*;
  * Newer version to find parameters ( Michael Gerber, 05-03-2003)
  */
 public class ISQReader implements TReader {
+	/**
+	 * A slice of the ISQ file as a little-endian view on the memory-mapped
+	 * file, nothing is read until polyReadImage is called and then the values
+	 * are converted directly into the requested type
+	 */
 	public static class ISQSliceReader extends SliceReader {
-		private final RandomAccessFile in;
-		final long startPos;
+		private final ShortBuffer sliceData;
 		final ISQReader curReader;
 
-		public ISQSliceReader(final RandomAccessFile infile,
-				final int sliceNumber, final ISQReader icurReader)
-				throws IOException {
-			in = infile;
+		public ISQSliceReader(final ShortBuffer isliceData,
+				final ISQReader icurReader) {
+			sliceData = isliceData;
 			curReader = icurReader;
 			dim = curReader.getDim();
 			pos = curReader.getPos();
 			elSize = curReader.getElSize();
-			long nPos = ((long) dim.x) * dim.y * bytesPerPixel;
-			nPos *= sliceNumber;
-			nPos += curReader.fileOffset;
-			//System.out.println("Read Slice " + sliceNumber + " : " + nPos+ ", Currently :" + in.getFilePointer());
-			in.seek(nPos);
-			startPos = in.getFilePointer();
+		}
+
+		/**
+		 * @return a read-only view of the slice data (can be shorter than a
+		 *         full slice if the file is truncated)
+		 */
+		public ShortBuffer getShortBuffer() {
+			return sliceData.asReadOnlyBuffer();
 		}
 
 		@Override
 		public Object polyReadImage(final int asType) throws IOException {
-			if (in.getFilePointer() != startPos)
-				in.seek(startPos);
-
-			int pixelsRead;
-			final byte[] buffer = new byte[curReader.bufferSize];
-			long totalRead = 0L;
-			int base = 0; // file position nPixels*iSlice;
-			int count;
-			int bufferCount;
-			final short[] cSlice = new short[curReader.nPixels];
-			int bufferSize = curReader.bufferSize;
-
-			while (totalRead < curReader.byteCount) {
-				if ((totalRead + bufferSize) > curReader.byteCount)
-					bufferSize = (int) (curReader.byteCount - totalRead);
-				bufferCount = 0;
-				while (bufferCount < bufferSize) { // fill the buffer
-					count = in.read(buffer, bufferCount, bufferSize
-							- bufferCount);
-					if (count == -1) {
-						if (bufferCount > 0)
-							for (int i = bufferCount; i < bufferSize; i++)
-								buffer[i] = 0;
-						totalRead = curReader.byteCount;
-						curReader.eofError();
-						break;
-					}
-					bufferCount += count;
-				}
-				totalRead += bufferSize;
-				pixelsRead = bufferSize / bytesPerPixel;
-
-				for (int i = base, j = 0; i < (base + pixelsRead); i++, j += 2) {
-
-					cSlice[i] = ((short) (((buffer[j + 1] & 0xff) << 8) | (buffer[j] & 0xff)));
-
-					if (cSlice[i] > curReader.max)
-						curReader.max = cSlice[i];
-					if (cSlice[i] < curReader.min)
-						curReader.min = cSlice[i];
-					curReader.mean += cSlice[i];
-
-				}
-				base += pixelsRead;
+			final ShortBuffer cData = sliceData.duplicate();
+			final int nPixels = curReader.nPixels;
+			final int available = Math.min(cData.remaining(), nPixels);
+			if (available < nPixels)
+				curReader.eofError();
+			switch (asType) {
+			case TImgTools.IMAGETYPE_SHORT:
+				final short[] gs = new short[nPixels];
+				cData.get(gs, 0, available);
+				return gs;
+			case TImgTools.IMAGETYPE_CHAR:
+				final char[] gb = new char[nPixels];
+				for (int i = 0; i < available; i++)
+					gb[i] = (char) cData.get(i);
+				return gb;
+			case TImgTools.IMAGETYPE_INT:
+				final int[] gi = new int[nPixels];
+				for (int i = 0; i < available; i++)
+					gi[i] = cData.get(i);
+				return gi;
+			case TImgTools.IMAGETYPE_LONG:
+				final long[] gl = new long[nPixels];
+				for (int i = 0; i < available; i++)
+					gl[i] = cData.get(i);
+				return gl;
+			case TImgTools.IMAGETYPE_FLOAT:
+				final float[] gf = new float[nPixels];
+				for (int i = 0; i < available; i++)
+					gf[i] = cData.get(i);
+				return gf;
+			case TImgTools.IMAGETYPE_DOUBLE:
+				final double[] gd = new double[nPixels];
+				for (int i = 0; i < available; i++)
+					gd[i] = cData.get(i);
+				return gd;
+			case TImgTools.IMAGETYPE_BOOL:
+				final boolean[] gbool = new boolean[nPixels];
+				for (int i = 0; i < available; i++)
+					gbool[i] = cData.get(i) > 0;
+				return gbool;
+			default:
+				final short[] cSlice = new short[nPixels];
+				cData.get(cSlice, 0, available);
+				return TImgTools.convertArrayType(cSlice,
+						TImgTools.IMAGETYPE_SHORT, asType, true, 1, maxVal);
 			}
-			return TImgTools.convertArrayType(cSlice,TImgTools.IMAGETYPE_SHORT, asType, true, 1, maxVal);
 		}
 
 	}
@@ -101,19 +110,31 @@ public class ISQReader implements TReader {
 	// TImg iImg;
 	private int width, height;
 	protected long skipCount;
-	protected int bufferSize, nPixels;
+	protected int nPixels;
 	protected long byteCount;
 
-	public double min, max, mean; // readRGB48() calculates min/max pixel values
 	public boolean headerRead = false;
 	protected D3int dim = new D3int(0);
 	private final D3int pos = new D3int(0);
 	private D3int off = new D3int(0);
 	private D3float elSize = new D3float(0.0f, 0.0f, 0.0f);
-	/** Each thread gets its own RandomAccessFile */
-	protected Hashtable<Thread, RandomAccessFile> fileForThread = new Hashtable<Thread, RandomAccessFile>(
-			5);
 	public final static int bytesPerPixel = 2;
+	/**
+	 * The largest part of the file which is mapped at once (always a whole
+	 * number of slices)
+	 */
+	protected final static long MAX_MAPPED_BYTES = 1L << 30;
+	/** The channel is shared by all threads since mapping is position-free */
+	private FileChannel fileChannel = null;
+	private MappedByteBuffer[] mappedChunks = null;
+	private int slicesPerChunk = 1;
+	/**
+	 * The copy of the file to scratch which is still running (null if the
+	 * file is read directly)
+	 */
+	protected ScratchCopy stagedCopy = null;
+	/** the header is always in the first 512 bytes */
+	protected final static int HEADER_BYTES = 512;
 
 	public ISQReader() {
 	}
@@ -151,20 +172,65 @@ public class ISQReader implements TReader {
 		return readerName() + ": Opened: " + iFile.getPath() + "\n";
 	}
 
-	protected RandomAccessFile getRAFile() throws IOException {
-		final Thread myThread = Thread.currentThread();
-		if (fileForThread != null && fileForThread.containsKey(myThread)) { // RAIo
-																			// already
-																			// exists
-			return fileForThread.get(myThread);
-		} else {
-			System.out.println("New File for " + myThread
-					+ " has been opened...");
-			final RandomAccessFile curFile = new RandomAccessFile(iFile, "r");
-			fileForThread.put(myThread, curFile);
-			return curFile;
+	/**
+	 * Get the bytes of a slice from the memory-mapped file. The file is mapped
+	 * in chunks of several slices (at most MAX_MAPPED_BYTES) the first time
+	 * they are needed
+	 * 
+	 * @param sliceNumber
+	 *            the slice to read
+	 * @return a little-endian buffer with the slice (shorter than a slice if
+	 *         the file is truncated)
+	 */
+	protected synchronized ByteBuffer getSliceBuffer(final int sliceNumber)
+			throws IOException {
+		if ((sliceNumber < 0) || (sliceNumber >= dim.z))
+			throw new IOException("Slice " + sliceNumber
+					+ " is outside of the image " + dim);
+		if (fileChannel == null) {
+			fileChannel = new RandomAccessFile(iFile, "r").getChannel();
+			slicesPerChunk = (int) Math.max(1,
+					Math.min(MAX_MAPPED_BYTES / byteCount, dim.z));
+			mappedChunks = new MappedByteBuffer[(dim.z + slicesPerChunk - 1)
+					/ slicesPerChunk];
 		}
+		// wait until the copy to scratch has reached the end of this slice
+		if (stagedCopy != null)
+			stagedCopy.awaitBytes(fileOffset + (sliceNumber + 1) * byteCount);
+		final int chunk = sliceNumber / slicesPerChunk;
+		if (mappedChunks[chunk] == null) {
+			final long chunkStart = fileOffset + ((long) chunk)
+					* slicesPerChunk * byteCount;
+			final long chunkLength = Math.min(slicesPerChunk * byteCount,
+					Math.max(fileChannel.size() - chunkStart, 0));
+			mappedChunks[chunk] = fileChannel.map(
+					FileChannel.MapMode.READ_ONLY, chunkStart, chunkLength);
+		}
+		final ByteBuffer sliceBuffer = mappedChunks[chunk].duplicate();
+		final int sliceStart = (int) Math.min(
+				(sliceNumber % slicesPerChunk) * byteCount,
+				sliceBuffer.capacity());
+		final int sliceEnd = (int) Math.min(sliceStart + byteCount,
+				sliceBuffer.capacity());
+		sliceBuffer.limit(sliceEnd);
+		sliceBuffer.position(sliceStart);
+		return sliceBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
 
+	/**
+	 * Release the file channel and the mapped chunks, they are opened again
+	 * if another slice is read
+	 */
+	public synchronized void close() {
+		mappedChunks = null;
+		if (fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			fileChannel = null;
+		}
 	}
 
 	@Override
@@ -190,6 +256,8 @@ public class ISQReader implements TReader {
 	@Override
 	public void ReadHeader() {
 		try {
+			if (stagedCopy != null)
+				stagedCopy.awaitBytes(HEADER_BYTES);
 			final FileInputStream p = new FileInputStream(iFile);
 
 			p.skip(44);
@@ -230,11 +298,6 @@ public class ISQReader implements TReader {
 
 			nPixels = xdimension * ydimension;
 			byteCount = ((long) width) * height * bytesPerPixel;
-			bufferSize = (int) (byteCount / 25L);
-			if (bufferSize < 8192)
-				bufferSize = 8192;
-			else
-				bufferSize = (bufferSize / 8192) * 8192;
 			headerRead = true;
 
 		} catch (final Exception e) {
@@ -247,7 +310,8 @@ public class ISQReader implements TReader {
 	@Override
 	public TSliceReader ReadSlice(final int iSlice) { // implicit random
 		try {
-			return new ISQSliceReader(getRAFile(), iSlice, this);
+			return new ISQSliceReader(getSliceBuffer(iSlice).asShortBuffer(),
+					this);
 		} catch (final Exception e) {
 			e.printStackTrace();
 			throw new IllegalStateException("Invalid Slice to Read from ISQ "
@@ -267,6 +331,21 @@ public class ISQReader implements TReader {
 
 	}
 
+	/**
+	 * Read from a scratch copy while it is still being written, each slice is
+	 * read as soon as it has been copied
+	 * 
+	 * @param inPath
+	 *            the path of the scratch file
+	 * @param istagedCopy
+	 *            the copy writing to it
+	 */
+	public void SetupReader(final TypedPath inPath,
+			final ScratchCopy istagedCopy) {
+		stagedCopy = istagedCopy;
+		SetupReader(inPath);
+	}
+
 	@Override
 	public TypedPath getPath() {
 		return inPath;
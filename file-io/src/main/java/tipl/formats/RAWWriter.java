@@ -5,35 +5,88 @@ import tipl.util.TImgTools;
 import tipl.util.TypedPath;
 
 import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Writes TImg data to a RAW file
+ * Writes TImg data to a RAW file. Every slice has the same encoded length so each one is written
+ * at its own offset through a shared FileChannel, this lets the slices be fetched and encoded in
+ * parallel while the file still comes out in slice order. The values are stored big-endian as
+ * before and boolean slices are packed 8 voxels to a byte.
  */
 public class RAWWriter implements TWriter {
-    OutputStream os;
+    FileChannel outChannel;
     TypedPath rawName;
     TImg outImg;
     int rawType;
+    /**
+     * the number of bytes a single encoded slice takes in the file
+     */
+    long sliceBytes;
+    /**
+     * one direct buffer per writing thread, reused for every slice it encodes (and replaced when
+     * the writer is set up again for larger slices)
+     */
+    private final ThreadLocal<ByteBuffer> sliceBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect((int) sliceBytes).order(ByteOrder.BIG_ENDIAN);
+        }
+    };
 
     public RAWWriter(final int irawType) {
         rawType = irawType;
     }
 
+    /**
+     * the size of a single slice in the raw file
+     *
+     * @param rawType   type to write
+     * @param sliceSize voxels in the slice
+     * @return length in bytes
+     */
+    public static long getSliceBytes(final int rawType, final long sliceSize) {
+        switch (rawType) {
+            case TImgTools.IMAGETYPE_CHAR:
+                return sliceSize;
+            case TImgTools.IMAGETYPE_SHORT:
+                return 2 * sliceSize;
+            case TImgTools.IMAGETYPE_INT:
+            case TImgTools.IMAGETYPE_FLOAT:
+                return 4 * sliceSize;
+            case TImgTools.IMAGETYPE_DOUBLE:
+            case TImgTools.IMAGETYPE_LONG:
+                return 8 * sliceSize;
+            case TImgTools.IMAGETYPE_BOOL:
+                return (sliceSize + 7) / 8;
+            default:
+                throw new IllegalArgumentException("RAWWriter: Type " + rawType + " is not supported");
+        }
+    }
+
     @Override
     public boolean isParallel() {
-        return false;
+        return true;
     }
 
     @Override
     public void SetupWriter(final TImg inImg, final TypedPath outpath) {
         outImg = inImg;
         rawName = outpath;
+        sliceBytes = getSliceBytes(rawType, ((long) outImg.getDim().x) * outImg.getDim().y);
         try {
-            os = new FileOutputStream(outpath.getPath());
+            final RandomAccessFile raf = new RandomAccessFile(outpath.getPath(), "rw");
+            raf.setLength(0);
+            outChannel = raf.getChannel();
         } catch (final Exception e) {
             System.out.println(writerName() + ": Cannot write raw file "
                     + outpath);
@@ -45,12 +98,37 @@ public class RAWWriter implements TWriter {
     @Override
     public void Write() {
         WriteHeader();
-        for (int n = 0; n < outImg.getDim().z; n++) {
-            WriteSlice(n);
+        final int sliceCount = outImg.getDim().z;
+        final int writerCount = Math.max(1, Math.min(sliceCount, TIPLGlobal.requestAvailableReaderCount()));
+        final AtomicInteger nextSlice = new AtomicInteger(0);
+        final ExecutorService writePool = TIPLGlobal.requestSimpleES(writerCount);
+        final List<Future<Integer>> writerList = new ArrayList<Future<Integer>>(writerCount);
+        // each writer takes the next free slice so they all move through the volume together
+        for (int i = 0; i < writerCount; i++) {
+            writerList.add(writePool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int written = 0;
+                    for (int n = nextSlice.getAndIncrement(); n < sliceCount;
+                         n = nextSlice.getAndIncrement()) {
+                        WriteSlice(n);
+                        written++;
+                    }
+                    return written;
+                }
+            }));
+        }
+        try {
+            for (Future<Integer> cWriter : writerList) cWriter.get();
+        } catch (final Exception e) {
+            System.out.println(writerName() + ": Slice writer crashed");
+            e.printStackTrace();
+        } finally {
+            TIPLGlobal.waitForever(writePool);
         }
 
         try {
-            os.close();
+            outChannel.close();
         } catch (final Exception e) {
             System.out.println(writerName() + ": Cannot close raw file");
             e.printStackTrace();
@@ -83,69 +161,72 @@ public class RAWWriter implements TWriter {
         return "RAWWriter";
     }
 
+    /**
+     * Encode a slice into the given buffer
+     *
+     * @param buffer the buffer (cleared and sized to sliceBytes)
+     * @param n      slice number
+     */
+    protected void encodeSlice(final ByteBuffer buffer, final int n) {
+        final Object cSlice = outImg.getPolyImage(n, rawType);
+        switch (rawType) {
+            case TImgTools.IMAGETYPE_CHAR:
+                final char[] cslice = (char[]) cSlice;
+                for (char cVal : cslice)
+                    buffer.put((byte) cVal);
+                break;
+            case TImgTools.IMAGETYPE_SHORT:
+                buffer.asShortBuffer().put((short[]) cSlice);
+                break;
+            case TImgTools.IMAGETYPE_INT:
+                buffer.asIntBuffer().put((int[]) cSlice);
+                break;
+            case TImgTools.IMAGETYPE_FLOAT:
+                buffer.asFloatBuffer().put((float[]) cSlice);
+                break;
+            case TImgTools.IMAGETYPE_DOUBLE:
+                buffer.asDoubleBuffer().put((double[]) cSlice);
+                break;
+            case TImgTools.IMAGETYPE_LONG:
+                buffer.asLongBuffer().put((long[]) cSlice);
+                break;
+            case TImgTools.IMAGETYPE_BOOL:
+                final boolean[] bslice = (boolean[]) cSlice;
+                int cByte = 0,
+                        bitIndex = 0;
+                for (boolean aBslice : bslice) {
+                    if (aBslice) cByte |= 1 << bitIndex;
+                    bitIndex++;
+                    if (bitIndex == 8) {
+                        buffer.put((byte) cByte);
+                        cByte = 0;
+                        bitIndex = 0;
+                    }
+                }
+                if (bitIndex > 0) buffer.put((byte) cByte);
+                break;
+        }
+        // the view buffers do not move the position of the backing buffer
+        buffer.position(0).limit((int) sliceBytes);
+    }
+
     @Override
     public void WriteSlice(final int n) {
-        byte[] buffer = null;
-        final TImg.TImgFull fullOutImg = new TImg.TImgFull(outImg);
+        ByteBuffer buffer = sliceBuffer.get();
+        if (buffer.capacity() < sliceBytes) {
+            buffer = ByteBuffer.allocateDirect((int) sliceBytes).order(ByteOrder.BIG_ENDIAN);
+            sliceBuffer.set(buffer);
+        }
+        buffer.clear();
         try {
-            switch (rawType) {
-                case TImgTools.IMAGETYPE_CHAR:
-                    final char[] cslice = fullOutImg.getByteArray(n);
-                    buffer = new byte[cslice.length];
-                    for (int i = 0; i < cslice.length; i++)
-                        buffer[i] = (byte) cslice[i];
-                    break;
-                case TImgTools.IMAGETYPE_SHORT:
-                    final short[] sslice = fullOutImg.getShortArray(n);
-                    buffer = new byte[2 * sslice.length];
-                    for (int i = 0; i < sslice.length; i++) {
-                        final byte[] tbuffer = ByteBuffer.allocate(2)
-                                .putShort(sslice[i]).array();
-                        System.arraycopy(tbuffer, 0, buffer, 4 * i + 0, 2);
-                    }
-                    break;
-                case TImgTools.IMAGETYPE_INT:
-                    final int[] islice = fullOutImg.getIntArray(n);
-                    buffer = new byte[4 * islice.length];
-                    for (int i = 0; i < islice.length; i++) {
-                        final byte[] tbuffer = ByteBuffer.allocate(4)
-                                .putInt(islice[i]).array();
-                        System.arraycopy(tbuffer, 0, buffer, 4 * i + 0, 4);
-                    }
-                    break;
-                case TImgTools.IMAGETYPE_FLOAT:
-                    final float[] fslice = fullOutImg.getFloatArray(n);
-                    buffer = new byte[4 * fslice.length];
-                    for (int i = 0; i < fslice.length; i++) {
-                        final byte[] tbuffer = ByteBuffer.allocate(4)
-                                .putFloat(fslice[i]).array();
-                        System.arraycopy(tbuffer, 0, buffer, 4 * i + 0, 4);
-                    }
-                    break;
-                case TImgTools.IMAGETYPE_BOOL:
-                    final boolean[] bslice = fullOutImg.getBoolArray(n);
-                    int byteLen = bslice.length / 8;
-                    if ((bslice.length % 8) != 0)
-                        byteLen++;
-                    buffer = new byte[byteLen];
-                    int bitIndex = 0,
-                            byteIndex = 0;
-                    for (boolean aBslice : bslice) {
-                        if (aBslice) {
-                            buffer[byteIndex] |= (byte) (((byte) 1) << bitIndex);
-                        }
-                        bitIndex++;
-                        if (bitIndex == 8) {
-                            bitIndex = 0;
-                            byteIndex++;
-                        }
-                    }
-                    break;
+            encodeSlice(buffer, n);
+            long filePos = n * sliceBytes;
+            while (buffer.hasRemaining()) {
+                filePos += outChannel.write(buffer, filePos);
             }
-            os.write(buffer);
         } catch (final Exception e) {
             System.out.println("Cannot write slice " + n + " raw file");
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,139 @@
+package tipl.formats;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * Copies a file to a local scratch disk in chunks so readers can start on the beginning of the
+ * file while the rest is still being copied. The target has its full length from the start so it
+ * can be memory-mapped, readers call awaitBytes before touching a region of it
+ *
+ * @author mader
+ */
+public class ScratchCopy implements Callable<Long> {
+    /**
+     * the number of bytes copied with each transferTo call
+     */
+    public static long CHUNK_BYTES = 32L << 20;
+
+    final protected File source;
+    final protected File target;
+    final protected long size;
+    private long copiedBytes = 0;
+    private boolean finished = false;
+    private IOException failure = null;
+
+    /**
+     * @param isource the file to copy
+     * @param itarget the scratch file (will be overwritten)
+     */
+    public ScratchCopy(final File isource, final File itarget) {
+        source = isource;
+        target = itarget;
+        size = isource.length();
+    }
+
+    /**
+     * Copy the file, the progress is published after every chunk
+     *
+     * @return the number of bytes copied
+     */
+    @Override
+    public Long call() throws IOException {
+        FileChannel inChannel = null;
+        RandomAccessFile outFile = null;
+        try {
+            inChannel = new FileInputStream(source).getChannel();
+            outFile = new RandomAccessFile(target, "rw");
+            outFile.setLength(size);
+            final FileChannel outChannel = outFile.getChannel();
+            long cPos = 0;
+            while (cPos < size) {
+                final long chunkEnd = Math.min(cPos + CHUNK_BYTES, size);
+                outChannel.position(cPos);
+                while (cPos < chunkEnd) {
+                    final long copied = inChannel.transferTo(cPos, chunkEnd - cPos, outChannel);
+                    if (copied <= 0)
+                        throw new IOException("Source " + source + " ended at " + cPos + " of " + size + " bytes");
+                    cPos += copied;
+                }
+                setCopiedBytes(cPos);
+            }
+        } catch (final IOException e) {
+            setFailure(e);
+            throw e;
+        } finally {
+            if (inChannel != null) inChannel.close();
+            if (outFile != null) outFile.close();
+        }
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+        return size;
+    }
+
+    /**
+     * Wait until the first endByte bytes of the file have been copied
+     *
+     * @throws IOException if the copy failed or the wait was interrupted
+     */
+    public synchronized void awaitBytes(final long endByte) throws IOException {
+        final long needed = Math.min(endByte, size);
+        while ((copiedBytes < needed) && (failure == null)) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted while waiting for " + target + " to be copied");
+            }
+        }
+        if ((copiedBytes < needed) && (failure != null))
+            throw new IOException("Copying " + source + " to " + target + " failed", failure);
+    }
+
+    /**
+     * Wait until the entire file has been copied
+     */
+    public void awaitAll() throws IOException {
+        awaitBytes(size);
+    }
+
+    public synchronized long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    private synchronized void setCopiedBytes(final long newCopied) {
+        copiedBytes = newCopied;
+        notifyAll();
+    }
+
+    private synchronized void setFailure(final IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "ScratchCopy:" + source + "->" + target + " (" + getCopiedBytes() + "/" + size + ")";
+    }
+}
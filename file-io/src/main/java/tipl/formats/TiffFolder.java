@@ -35,12 +35,39 @@ public class TiffFolder extends DirectoryReader {
     private static class TiffSliceFactory implements TSliceFactory {
         @Override
         public TSliceReader ReadFile(final TypedPath infile) throws IOException {
-            return new TIFSliceReader(infile);
+            return ReadTiffSlice(infile);
         }
     }
 
+    /**
+     * Read a slice with the native tiff codec when it supports the layout and with JAI otherwise
+     * (jpeg, lzw, tiles, ...)
+     * @param infile the slice to read
+     * @return a reader for the slice
+     * @throws IOException
+     */
+    public static TSliceReader ReadTiffSlice(final TypedPath infile) throws IOException {
+        return ReadTiffSlice(TiffCodec.readFile(infile));
+    }
+
+    public static TSliceReader ReadTiffSlice(final ByteBuffer fileData) throws IOException {
+        if (TiffCodec.isTiff(fileData)) {
+            final TiffCodec.Header cHeader = TiffCodec.readHeader(fileData);
+            if (cHeader.isSupported()) return new TiffCodec.NativeSliceReader(fileData, cHeader);
+            if (TIPLGlobal.getDebug()) System.out.println(cHeader + " is read with JAI");
+        }
+        final byte[] bufferArr;
+        if (fileData.hasArray() && (fileData.arrayOffset() == 0) && (fileData.limit() == fileData.array().length))
+            bufferArr = fileData.array();
+        else {
+            bufferArr = new byte[fileData.limit()];
+            fileData.duplicate().get(bufferArr);
+        }
+        return new TIFSliceReader(bufferArr);
+    }
+
     public static double[] ReadByteStreamAsDouble(final byte[] buffer)  throws IOException {
-        TIFSliceReader outReader = new TIFSliceReader(buffer);
+        TSliceReader outReader = ReadTiffSlice(ByteBuffer.wrap(buffer));
         return (double[]) outReader.polyReadImage(TImgTools.IMAGETYPE_DOUBLE);
     }
 
@@ -192,7 +219,7 @@ public class TiffFolder extends DirectoryReader {
         @Override
         public TSliceReader getSliceReader(TypedPath slice) {
             try {
-                return new TIFSliceReader(slice);
+                return ReadTiffSlice(slice);
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new IllegalArgumentException(slice+" could not be read");
@@ -224,7 +251,7 @@ public class TiffFolder extends DirectoryReader {
         public TSliceReader getSliceReader(TypedPath slice) {
 
             try {
-                return new TIFSliceReader(slice);
+                return ReadTiffSlice(slice);
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new IllegalArgumentException(slice+" could not be read");
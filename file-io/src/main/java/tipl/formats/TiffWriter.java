@@ -1,27 +1,19 @@
 package tipl.formats;
 
-import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.SampleModel;
-import java.awt.image.WritableRaster;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import tipl.util.*;
 
-import com.sun.media.jai.codec.ImageCodec;
-import com.sun.media.jai.codec.ImageEncoder;
-import com.sun.media.jai.codec.TIFFEncodeParam;
-import com.sun.media.jai.codecimpl.util.DataBufferFloat;
-import com.sun.media.jai.codecimpl.util.RasterFactory;
 /**
- * A function for writing images based on the slices inside. 
+ * A function for writing images based on the slices inside. The slices are encoded with the
+ * native tiff codec (uncompressed by default)
  * @author mader
  *
  */
@@ -48,6 +40,13 @@ public class TiffWriter implements TSliceWriter {
 	protected int biType=2;
 	protected boolean isSigned=true;
 	public static boolean writeFailureThrowsError=true;
+	/**
+	 * the compression used for new writers (TiffCodec.COMPRESSION_NONE, _PACKBITS or _DEFLATE),
+	 * deflate is written with the old code (_DEFLATE_OLD) the JAI readers recognize
+	 */
+	public static int compression=TiffCodec.COMPRESSION_NONE;
+	protected int tiffCompression=TiffCodec.COMPRESSION_NONE;
+	protected transient volatile ThreadLocal<TiffCodec.Encoder> encoders=null;
 	
 	@Override
 	public void SetupWriter(TImgRO imageToSave, TypedPath outputPath, int outType) {
@@ -75,6 +74,8 @@ public class TiffWriter implements TSliceWriter {
 			cType = BufferedImage.TYPE_BYTE_GRAY;
 
 		theader=TImgHeader.ReadHeadersFromTImg(imageToSave);
+		// TiffDirectory and the spark readers still read through JAI
+		tiffCompression=(compression==TiffCodec.COMPRESSION_DEFLATE) ? TiffCodec.COMPRESSION_DEFLATE_OLD : compression;
 	}
 
 	@Override
@@ -107,19 +108,15 @@ public class TiffWriter implements TSliceWriter {
 		if (outSlicePosition == 0)
 			System.out.println("Writing: " + coutName);
 		try {
-
-			final OutputStream os = new FileOutputStream(coutName);
-
-			final TIFFEncodeParam tparam = new TIFFEncodeParam();
-			
-			theader.writeToTIFF(tparam);
-
-
-			final ImageEncoder encoder = ImageCodec.createImageEncoder(
-					"tiff", os, tparam);
-			
-			encoder.encode(sliceAsImage(outSlice));
-			os.close();
+			final ByteBuffer fileData = getEncoder().encode(sliceAsPixels(outSlice), dim.x, dim.y,
+					theader.toTiffFields());
+			final FileOutputStream os = new FileOutputStream(coutName);
+			try {
+				final FileChannel fc = os.getChannel();
+				while (fileData.hasRemaining()) fc.write(fileData);
+			} finally {
+				os.close();
+			}
 		} catch (final Exception e) {
 			System.err.println("Cannot write slice " + outSlicePosition);
 			e.printStackTrace();
@@ -128,15 +125,32 @@ public class TiffWriter implements TSliceWriter {
 		}
 
 	}
+
+	/**
+	 * The encoder keeps its buffers between slices, slices can be written from several threads
+	 * so every thread gets its own
+	 */
+	protected TiffCodec.Encoder getEncoder() {
+		if (encoders == null) {
+			synchronized (this) {
+				if (encoders == null) encoders = new ThreadLocal<TiffCodec.Encoder>();
+			}
+		}
+		TiffCodec.Encoder cEncoder = encoders.get();
+		if (cEncoder == null) {
+			cEncoder = new TiffCodec.Encoder(tiffCompression);
+			encoders.set(cEncoder);
+		}
+		return cEncoder;
+	}
 	
 	/**
-	 * Creates a buffered image for the given slice which can be used to save as
-	 * tiff
+	 * Converts the slice to the primitive array which is saved in the tiff file
 	 * 
 	 * @param in the slice (as an image block)
-	 * @return a bufferedimage
+	 * @return byte[] (8 bit), short[] (16 bit) or float[] (32 bit) pixels
 	 */
-	protected BufferedImage sliceAsImage(final TImgSlice in) {
+	protected Object sliceAsPixels(final TImgSlice in) {
 		Object curSliceData=in.get();
 		final int imageType=TImgTools.identifySliceType(curSliceData);
 		
@@ -148,36 +162,25 @@ public class TiffWriter implements TSliceWriter {
 		if (cType == BufferedImage.TYPE_BYTE_BINARY)
 			maxVal = 255;
 		final int sliceLen = dim.x * dim.y;
-		//final int outType;
 		if (cType==BufferedImage.TYPE_CUSTOM) {
 			final int outType=TImgTools.IMAGETYPE_FLOAT;
-			float[] fpixels = (float[]) TImgTools.convertArrayType(curSliceData, imageType, outType, isSigned, theader.getShortScaleFactor(), maxVal);
-			final int nbBands = 1;
-			final int[] rgbOffset = new int[nbBands];
-			final SampleModel sampleModel = RasterFactory
-					.createPixelInterleavedSampleModel(
-							DataBuffer.TYPE_FLOAT, dim.x, dim.y, nbBands,
-							nbBands * dim.x, rgbOffset);
-
-			final ColorModel colorModel = ImageCodec
-					.createComponentColorModel(sampleModel);
-
-			final DataBufferFloat dataBuffer = new DataBufferFloat(fpixels,
-					fpixels.length);
-			final WritableRaster raster = RasterFactory
-					.createWritableRaster(sampleModel, dataBuffer,
-							new Point(0, 0));
-
-			return new BufferedImage(colorModel, raster, false, null);
+			return TImgTools.convertArrayType(curSliceData, imageType, outType, isSigned, theader.getShortScaleFactor(), maxVal);
 		} else {
 			final int outType=TImgTools.IMAGETYPE_INT;
 			int[] pixels = (int[]) TImgTools.convertArrayType(curSliceData, imageType, outType, isSigned,  theader.getShortScaleFactor(), maxVal);
-			BufferedImage image = new BufferedImage(dim.x, dim.y, cType);
-			final WritableRaster raster = (WritableRaster) image.getData();
-			raster.setPixels(0, 0, dim.x, dim.y, pixels);
-			image.setData(raster);
-			return image;
+			switch (cType) {
+				case BufferedImage.TYPE_BYTE_GRAY:
+					final byte[] bytePixels = new byte[sliceLen];
+					for (int i = 0; i < sliceLen; i++) bytePixels[i] = (byte) pixels[i];
+					return bytePixels;
+				case BufferedImage.TYPE_USHORT_GRAY:
+					final short[] shortPixels = new short[sliceLen];
+					for (int i = 0; i < sliceLen; i++) shortPixels[i] = (short) pixels[i];
+					return shortPixels;
+				default:
+					throw new IllegalArgumentException(writerName()+" cannot write images of type "+TImgTools.getImageTypeName(biType));
+			}
 		} 	
 	}
 
-}
+}
\ No newline at end of file
@@ -16,6 +16,9 @@ import java.awt.image.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * The basis for the other image processing tools this class serves as a
@@ -197,6 +200,11 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
      * The filename of the actual scratch file used
      */
     private TypedPath scratchFilename = TIPLStorageManager.openPath("");
+    /**
+     * The reader of an ISQ file, kept so the file can be released once it has
+     * been loaded
+     */
+    private ISQReader isqReader = null;
     private File[] imglist;
     private int cgLength = -1;
 
@@ -331,7 +339,7 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
         if (inputFile.length() > 0) {
 
             outputFile = p.getOptionPath("output", "",
-                    "Output Aim File (.raw, .tif, directory/, etc)");
+                    "Output Aim File (.raw, .tif, .blk, directory/, etc)");
 
             System.out.println("Loading " + inputFile + " ...");
 
@@ -693,6 +701,8 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
         aimShort = null;
         aimInt = null;
         aimFloat = null;
+        if (isqReader != null)
+            isqReader.close();
         if (scratchLoading)
             if (scratchFilename.length() > 0)
                 scratchFilename.delete();
@@ -780,6 +790,9 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
         }
         // Convert or read in aim file
         runSliceLoader(1, asType);
+        // everything is in memory now so the file is no longer needed
+        if (isqReader != null)
+            isqReader.close();
 
         // Delete old data
         if (fullAimLoaded) {
@@ -1552,34 +1565,35 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
     }
 
     /**
-     * Used to write a slice into the main array
+     * Used to write a slice into the main array (the slices do not overlap so
+     * the loading threads do not need to be synchronized)
      */
-    protected synchronized void ibyteCopy(final char[] slice, final int oPos,
-                                          final int cLen) {
+    protected void ibyteCopy(final char[] slice, final int oPos,
+                             final int cLen) {
         System.arraycopy(slice, 0, aimByte, oPos, cLen);
     }
 
     /**
      * Used to write a slice into the main array
      */
-    protected synchronized void ifloatCopy(final float[] slice, final int oPos,
-                                           final int cLen) {
+    protected void ifloatCopy(final float[] slice, final int oPos,
+                              final int cLen) {
         System.arraycopy(slice, 0, aimFloat, oPos, cLen);
     }
 
     /**
      * Used to write a slice into the main array
      */
-    protected synchronized void iintCopy(final int[] slice, final int oPos,
-                                         final int cLen) {
+    protected void iintCopy(final int[] slice, final int oPos,
+                            final int cLen) {
         System.arraycopy(slice, 0, aimInt, oPos, cLen);
     }
 
     /**
      * Used to write a slice into the main array
      */
-    protected synchronized void imaskCopy(final boolean[] slice,
-                                          final int oPos, final int cLen) {
+    protected void imaskCopy(final boolean[] slice,
+                             final int oPos, final int cLen) {
         System.arraycopy(slice, 0, aimMask, oPos, cLen);
     }
 
@@ -1844,8 +1858,8 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
     /**
      * Used to write a slice into the main array
      */
-    protected synchronized void ishortCopy(final short[] slice, final int oPos,
-                                           final int cLen) {
+    protected void ishortCopy(final short[] slice, final int oPos,
+                              final int cLen) {
         System.arraycopy(slice, 0, aimShort, oPos, cLen);
     }
 
@@ -2003,34 +2017,16 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
                         ShortScaleFactor);
             }
 
-            final int[] gi = new int[sliceSize];
-
-            int maxVal = 65536;
             switch (imageType) {
                 case TImgTools.IMAGETYPE_CHAR:
-                    for (int cIndex = outPos; cIndex < (outPos + dim.x * dim.y); cIndex++)
-                        gi[cIndex - outPos] = (aimByte[cIndex]);
-                    maxVal = 255;
-                    break;
                 case TImgTools.IMAGETYPE_SHORT:
-                    for (int cIndex = outPos; cIndex < (outPos + dim.x * dim.y); cIndex++)
-                        gi[cIndex - outPos] = aimShort[cIndex];
-                    break;
                 case TImgTools.IMAGETYPE_INT:
-                    System.arraycopy(aimInt, outPos, gi, outPos - outPos, outPos + dim.x * dim.y - outPos);
-                    break;
                 case TImgTools.IMAGETYPE_BOOL:
-                    for (int cIndex = outPos; cIndex < (outPos + dim.x * dim.y); cIndex++)
-                        if (aimMask[cIndex])
-                            gi[cIndex - outPos] = 255;
-                    break;
-
+                    return convertLoadedSlice(outPos, sliceSize, asType);
                 default:
                     System.out.println("Not supported!" + imageType);
                     return 0;
             }
-            return TImgTools.convertArrayType(gi,TImgTools.IMAGETYPE_INT, asType, isSigned,
-                    ShortScaleFactor, maxVal);
 
         }
 
@@ -2077,6 +2073,40 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
 
     }
 
+    /**
+     * Copy a slice out of the loaded (non-float) aim and convert it directly
+     * from the loaded type, the same way the slices are converted before the
+     * aim is loaded. Signed values are centered on half of the range of the
+     * loaded type (127.5 for 8-bit and 32768 for 16-bit images)
+     */
+    private Object convertLoadedSlice(final int outPos, final int sliceSize,
+                                      final int asType) {
+        final Object cSlice;
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_CHAR:
+                cSlice = new char[sliceSize];
+                System.arraycopy(aimByte, outPos, cSlice, 0, sliceSize);
+                break;
+            case TImgTools.IMAGETYPE_SHORT:
+                cSlice = new short[sliceSize];
+                System.arraycopy(aimShort, outPos, cSlice, 0, sliceSize);
+                break;
+            case TImgTools.IMAGETYPE_INT:
+                cSlice = new int[sliceSize];
+                System.arraycopy(aimInt, outPos, cSlice, 0, sliceSize);
+                break;
+            case TImgTools.IMAGETYPE_BOOL:
+                cSlice = new boolean[sliceSize];
+                System.arraycopy(aimMask, outPos, cSlice, 0, sliceSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Not supported!" + imageType);
+        }
+        final int maxVal = (imageType == TImgTools.IMAGETYPE_CHAR) ? 255 : 65536;
+        return TImgTools.convertArrayType(cSlice, imageType, asType, isSigned,
+                ShortScaleFactor, maxVal);
+    }
+
     protected void loadStackFromAim() {
         loadStackFromAim(false);
     }
@@ -2166,6 +2196,20 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
     protected TypedPath localLoadingRead(final TypedPath inpath) {
         if (!scratchLoading)
             return inpath;
+        final ScratchCopy stagedCopy = startScratchCopy(inpath);
+        if (stagedCopy != null) {
+            try {
+                stagedCopy.awaitAll();
+                System.out.println("Created Local File : " + scratchFilename);
+                return scratchFilename;
+            } catch (final IOException e) {
+                e.printStackTrace();
+                System.out.println("Could not write local file :"
+                        + scratchFilename + ", proceeding normally with:"
+                        + inpath);
+                return inpath;
+            }
+        }
         try {
 
             final File f = File.createTempFile("virtAIM-", "", new File(
@@ -2196,6 +2240,36 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
 
     }
 
+    /**
+     * start copying a local file to the scratch directory in the background
+     *
+     * @return the running copy or null if the file cannot be copied this way
+     */
+    protected ScratchCopy startScratchCopy(final TypedPath inpath) {
+        final File inFile = new File(inpath.getPath());
+        if (!scratchLoading || !inFile.isFile())
+            return null;
+        try {
+            final File f = File.createTempFile("virtAIM-", "", new File(
+                    scratchDirectory.getPath()));
+            scratchFilename = new LocalTypedPath(f);
+            TIPLGlobal.DeleteTempAtFinish(scratchFilename);
+            final ScratchCopy stagedCopy = new ScratchCopy(inFile, f);
+            final ExecutorService copyRunner = TIPLGlobal.requestSimpleES(1);
+            copyRunner.submit(stagedCopy);
+            copyRunner.shutdown();
+            System.out.println("Copying to Local File : " + scratchFilename);
+            return stagedCopy;
+        } catch (final Exception e) {
+            e.printStackTrace();
+            scratchFilename = TIPLStorageManager.openPath("");
+            System.out
+                    .println("Could not create local int :" + scratchDirectory
+                            + ", proceeding normally with:" + inpath);
+            return null;
+        }
+    }
+
     /**
      * how many cores does the plugin want (-1 = as many as possible)
      */
@@ -2362,13 +2436,20 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
             }
             dim = new D3int(-1, -1, zlen);
         } else if (spath.endsWith("ISQ")) {
-            // For isq files we can copy them locally first
-            localpath = localLoadingRead(inpath);
+            // For isq files we can copy them locally first, the slices are
+            // read as soon as they have been copied
+            final ISQReader myISQ = new ISQReader();
+            isqReader = myISQ;
+            final ScratchCopy stagedCopy = startScratchCopy(inpath);
+            if (stagedCopy != null) {
+                localpath = scratchFilename;
+                myISQ.SetupReader(localpath, stagedCopy);
+            } else {
+                localpath = localLoadingRead(inpath);
+                myISQ.SetupReader(localpath);
+            }
             System.out.println("Reading in ISQ File: " + inpath
                     + ", locally as " + localpath);
-            final ISQReader myISQ = new ISQReader();
-
-            myISQ.SetupReader(localpath);
             myISQ.ReadHeader();
 
             appendProcLog("Reading in ISQ File: " + inpath + ", locally as "
@@ -2413,31 +2494,34 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
      */
     public void runSliceLoader(final int nOperation, final int asType) {
         jStartTime = System.currentTimeMillis();
-        // Call the other threads
-        final Hashtable<sliceLoader, int[]> threadList = new Hashtable<sliceLoader, int[]>(
-                neededCores());
-        int[] mySlices;
-        sliceLoader bgThread;
-        for (int i = 0; i < neededCores(); i++) { // setup the background
-            // threads
-            mySlices = divideSlices(i);
-            bgThread = new sliceLoader(this, asType, mySlices[0], mySlices[1]);
-            threadList.put(bgThread, mySlices);
-            bgThread.start();
-        }
-        // bgThread.join(); // run on current thread
-
-        // Now check the others
-        while (threadList.size() > 0) { // for all other threads:
-            final sliceLoader theThread = threadList.keys().nextElement();
-            try {
-                theThread.join(); // wait until thread has finished
-            } catch (final InterruptedException e) {
-                System.out.println("ERROR-Thread : " + theThread
-                        + " was interrupted, proceed carefully!");
-
+        // one job per slice in order, so the first slices are done (and a
+        // file still being copied to scratch is read) as early as possible
+        final ExecutorService loaderPool = TIPLGlobal.requestSimpleES(neededCores());
+        final List<Future<?>> sliceJobs = new ArrayList<Future<?>>(dim.z);
+        try {
+            for (int n = 0; n < dim.z; n++) {
+                final int cSlice = n;
+                sliceJobs.add(loaderPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        getAimSubSection(asType, cSlice, cSlice + 1);
+                    }
+                }));
             }
-            threadList.remove(theThread); // and remove it from the list.
+            for (int n = 0; n < dim.z; n++) {
+                try {
+                    sliceJobs.get(n).get();
+                } catch (final InterruptedException e) {
+                    System.out.println("ERROR-Slice : " + n
+                            + " was interrupted, proceed carefully!");
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                    throw new IllegalStateException("Slice " + n + " of " + this
+                            + " could not be loaded", e.getCause());
+                }
+            }
+        } finally {
+            loaderPool.shutdownNow();
         }
         System.out.println("VA-MC Job Ran in "
                 + StrRatio(System.currentTimeMillis() - jStartTime, 1000)
@@ -2567,6 +2651,12 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
             }
 
             plPath = outpath + ".pl.txt";
+        } else if (optp.checkSuffix("." + BlockFolder.FOLDER_SUFFIX)) {
+            // Folder of compressed blocks
+            System.out.println("Writing block folder: " + outpath);
+            final TSliceWriter blockWriter = new BlockWriter.myFactory().get(this, optp, biType);
+            TSliceWriter.Writers.SimpleWrite(blockWriter, this, biType);
+            plPath = outpath + "/procLog.txt";
         } else { // Tiff Stack
             final boolean makeFolder = (new File(outpath)).mkdir();
             if (makeFolder) {
@@ -2654,6 +2744,10 @@ public class VirtualAim implements TImg, TImgRO.TImgOld, TImgRO.FullReadable,
         WriteAim(outpath, outType);
     }
 
+    /**
+     * @deprecated runSliceLoader now loads the slices on a thread pool
+     */
+    @Deprecated
     public static class sliceLoader extends Thread {
         int sslice, fslice, asType;
         volatile VirtualAim parent;
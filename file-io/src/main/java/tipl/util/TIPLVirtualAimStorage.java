@@ -3,10 +3,6 @@
  */
 package tipl.util;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-
 import tipl.formats.ConcurrentReader;
 import tipl.formats.TImg;
 import tipl.formats.TImgRO;
@@ -14,7 +10,7 @@ import tipl.formats.VirtualAim;
 
 /**
  * The standard implementation of the storage engine
- * Provides basic mechanisms for caching images using a linkedhashmap
+ * Provides basic mechanisms for caching images in a bounded least recently used cache
  * @author mader
  *
  */
@@ -45,7 +41,10 @@ public class TIPLVirtualAimStorage implements ITIPLStorage {
 		}
 	}
 
-	protected LinkedHashMap<String, StampedObj<TImg>> cachedImages = new LinkedHashMap<String,  StampedObj<TImg>>();
+	/**
+	 * the images which have been read or written, keyed by their normalized path
+	 */
+	protected final TImgCache cachedImages = new TImgCache();
 	
 	/**
 	 * Nothing really to be constructed yet
@@ -87,12 +86,14 @@ public class TIPLVirtualAimStorage implements ITIPLStorage {
 	
 	public TImg readTImg(final TypedPath path, final boolean readFromCache,
 			final boolean saveToCache) {
-		if (readFromCache)
-			if (cachedImages.containsKey(path))
-				return cachedImages.get(path).get();
+		final String cacheKey = TImgCache.normalizePath(path);
+		if (readFromCache) {
+			final TImg cachedImg = cachedImages.get(cacheKey);
+			if (cachedImg != null) return cachedImg;
+		}
 		final TImg curImg = new VirtualAim(path);
 		if (saveToCache)
-			cachedImages.put(path.getPath(), new ITIPLStorage.StampedObj<TImg>(curImg));
+			cachedImages.put(cacheKey, curImg);
 		return curImg;
 	}
 	/** 
@@ -101,27 +102,32 @@ public class TIPLVirtualAimStorage implements ITIPLStorage {
 	 * @return
 	 */
 	public boolean autopurge(int deadTime) {
-		List<String> toDelete=new ArrayList<String>(cachedImages.size());
-		
-		for(String cPath: cachedImages.keySet()) {
-			if (cachedImages.get(cPath).getAge()>deadTime) toDelete.add(cPath);
-		}
-		for(String cPath: toDelete) cachedImages.remove(cPath);
-		return (toDelete.size()>0);
-		
+		return (cachedImages.purgeOlderThan(deadTime)>0);
 	}
 	public boolean autopurge() {return autopurge(500);}
 	
 	public boolean RemoveTImgFromCache(final String path) {
-		try {
-			cachedImages.remove(path);
+		if (cachedImages.remove(TImgCache.normalizePath(path))) {
 			TIPLGlobal.runGC();
 			return true;
-		} catch (final Exception e) {
-			e.printStackTrace();
-			System.err.println("Image:" + path + " is not in the cache!");
-			return false;
 		}
+		System.err.println("Image:" + path + " is not in the cache!");
+		return false;
+	}
+
+	@Override
+	public TImgCache.CacheStats getCacheStats() {
+		return cachedImages.getStats();
+	}
+
+	@Override
+	public long getCacheBudget() {
+		return cachedImages.getMaxBytes();
+	}
+
+	@Override
+	public void setCacheBudget(long maxBytes) {
+		cachedImages.setMaxBytes(maxBytes);
 	}
 
 	@Override
@@ -170,7 +176,7 @@ public class TIPLVirtualAimStorage implements ITIPLStorage {
 			else
 				VirtualAim.TImgToVirtualAim(curImg).WriteAim(path.getPath());
 			if (saveToCache)
-				cachedImages.put(path.getPath(), new ITIPLStorage.StampedObj<TImg>(wrapTImgRO(curImg)));
+				cachedImages.put(TImgCache.normalizePath(path), wrapTImgRO(curImg));
 			return true;
 		} catch (final Exception e) {
 			System.err.println("Image: " + curImg.getSampleName() + " @ "
@@ -186,7 +192,7 @@ public class TIPLVirtualAimStorage implements ITIPLStorage {
 		VirtualAim cAim=VirtualAim.TImgToVirtualAim(inImg);
 		cAim.WriteAim(outpath.getPath(), outType, scaleVal,IisSigned);
 		if (saveToCache)
-			cachedImages.put(outpath.toString(), new ITIPLStorage.StampedObj<TImg>(cAim));
+			cachedImages.put(TImgCache.normalizePath(outpath), cAim);
 		return true;
 	}
 	@Override
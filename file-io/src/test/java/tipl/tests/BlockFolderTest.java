@@ -0,0 +1,178 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.BlockFolder;
+import tipl.formats.BlockWriter;
+import tipl.formats.LZ4Codec;
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+import tipl.formats.TSliceWriter;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the block folder reader and writer and the LZ4 codec they use
+ *
+ * @author mader
+ */
+public class BlockFolderTest {
+    // none of the sides are a multiple of the block size
+    final private static D3int testDim = new D3int(23, 17, 11);
+    final private static D3int testBlock = new D3int(8, 5, 4);
+    final private static String[] compressions = new String[]{BlockFolder.COMPRESSION_RAW,
+            BlockFolder.COMPRESSION_LZ4, BlockFolder.COMPRESSION_DEFLATE};
+
+    /**
+     * an integer image with runs (which compress) and noise
+     */
+    protected static TImg makeImage(final int maxVal, final long seed) {
+        final Random rand = new Random(seed);
+        final int sliceSize = testDim.x * testDim.y;
+        final Object[] sliceData = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) {
+            final int[] cSlice = new int[sliceSize];
+            for (int i = 0; i < sliceSize; i++)
+                cSlice[i] = ((i / 9) % 2 == 0) ? z : rand.nextInt(maxVal + 1);
+            sliceData[z] = cSlice;
+        }
+        return new TImg.ArrayBackedTImg(testDim, new D3int(3, -2, 5), new D3float(0.5, 1, 2),
+                TImgTools.IMAGETYPE_INT, sliceData);
+    }
+
+    protected static BlockFolder writeAndRead(final TImgRO inImg, final String name,
+                                              final String compression, final int outType) throws IOException {
+        final TypedPath outPath = TIPLTestingLibrary.createTestFolder(name + "." + BlockFolder.FOLDER_SUFFIX);
+        final TSliceWriter cWriter = new BlockWriter(testBlock, compression);
+        cWriter.SetupWriter(inImg, outPath, outType);
+        cWriter.WriteHeader();
+        TSliceWriter.Writers.SimpleWrite(cWriter, inImg, outType);
+        return new BlockFolder(outPath);
+    }
+
+    @Test
+    public void testLZ4() throws IOException {
+        final Random rand = new Random(1);
+        final byte[] mixed = new byte[100000];
+        for (int i = 0; i < mixed.length; i++) mixed[i] = (byte) (((i / 300) % 2 == 0) ? (i % 7) : rand.nextInt());
+        final byte[] noise = new byte[5000];
+        rand.nextBytes(noise);
+        final byte[] zeros = new byte[70000];
+        for (byte[] cData : new byte[][]{mixed, noise, zeros, new byte[0], new byte[]{1, 2, 3}}) {
+            final byte[] compressed = LZ4Codec.compress(cData);
+            assertEquals(true, compressed.length <= LZ4Codec.maxCompressedLength(cData.length));
+            assertArrayEquals(cData, LZ4Codec.decompress(compressed, cData.length));
+        }
+        assertEquals(true, LZ4Codec.compress(zeros).length < 500);
+        try {
+            LZ4Codec.decompress(LZ4Codec.compress(mixed), mixed.length + 1);
+            assertEquals("the wrong length must not be accepted", false, true);
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        final BlockFolder.Header cHeader = new BlockFolder.Header(testDim, testBlock, new D3int(1, 2, 3),
+                new D3int(0), new D3float(0.25, 0.5, 1), TImgTools.IMAGETYPE_FLOAT,
+                BlockFolder.COMPRESSION_DEFLATE, 2.5f, false, "line 1\n\"quoted\"\tand \\ slashed");
+        final BlockFolder.Header readHeader = BlockFolder.Header.fromJSON(cHeader.toJSON());
+        assertEquals(true, testDim.isEqual(readHeader.dim));
+        assertEquals(true, testBlock.isEqual(readHeader.blockSize));
+        assertEquals(3, readHeader.pos.z);
+        assertEquals(0.25, readHeader.elSize.x, 1e-6);
+        assertEquals(TImgTools.IMAGETYPE_FLOAT, readHeader.imageType);
+        assertEquals(BlockFolder.COMPRESSION_DEFLATE, readHeader.compression);
+        assertEquals(2.5f, readHeader.shortScaleFactor, 0);
+        assertEquals(false, readHeader.signed);
+        assertEquals(cHeader.procLog, readHeader.procLog);
+        assertEquals(true, new D3int(3, 4, 3).isEqual(cHeader.getBlockCount()));
+        assertEquals(true, new D3int(7, 2, 3).isEqual(cHeader.getBlockDim(2, 3, 2)));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final TImg inImg = makeImage(30000, 2);
+        for (String cComp : compressions) {
+            for (int cType : new int[]{TImgTools.IMAGETYPE_INT, TImgTools.IMAGETYPE_SHORT,
+                    TImgTools.IMAGETYPE_FLOAT}) {
+                final BlockFolder cFolder = writeAndRead(inImg, "round_" + cComp + "_" + cType, cComp, cType);
+                assertEquals(cType, cFolder.getImageType());
+                assertEquals(true, testDim.isEqual(cFolder.getDim()));
+                assertEquals(5, cFolder.getPos().z);
+                final TImgRO outImg = cFolder.getImage();
+                for (int z = 0; z < testDim.z; z++)
+                    assertArrayEquals((int[]) inImg.getPolyImage(z, TImgTools.IMAGETYPE_INT),
+                            (int[]) outImg.getPolyImage(z, TImgTools.IMAGETYPE_INT));
+            }
+        }
+    }
+
+    @Test
+    public void testBoolean() throws IOException {
+        final TImg inImg = makeImage(1, 3);
+        final BlockFolder cFolder = writeAndRead(inImg, "bool", BlockFolder.COMPRESSION_LZ4,
+                TImgTools.IMAGETYPE_BOOL);
+        for (int z = 0; z < testDim.z; z++)
+            TIPLTestingLibrary.doSlicesMatch((boolean[]) inImg.getPolyImage(z, TImgTools.IMAGETYPE_BOOL),
+                    (boolean[]) cFolder.getImage().getPolyImage(z, TImgTools.IMAGETYPE_BOOL));
+    }
+
+    @Test
+    public void testRegion() throws IOException {
+        final TImg inImg = makeImage(255, 4);
+        final BlockFolder cFolder = writeAndRead(inImg, "region", BlockFolder.COMPRESSION_LZ4,
+                TImgTools.IMAGETYPE_CHAR);
+        final D3int start = new D3int(6, 4, 3);
+        final D3int size = new D3int(11, 9, 6);
+        final int[] region = (int[]) cFolder.readRegion(start, size, TImgTools.IMAGETYPE_INT);
+        final TImg regionImg = cFolder.getRegion(start, size);
+        assertEquals(true, size.isEqual(regionImg.getDim()));
+        assertEquals(3 + start.x, regionImg.getPos().x);
+        assertEquals(5 + start.z, regionImg.getPos().z);
+        for (int z = 0; z < size.z; z++) {
+            final int[] inSlice = (int[]) inImg.getPolyImage(z + start.z, TImgTools.IMAGETYPE_INT);
+            final int[] regionSlice = (int[]) regionImg.getPolyImage(z, TImgTools.IMAGETYPE_INT);
+            for (int y = 0; y < size.y; y++)
+                for (int x = 0; x < size.x; x++) {
+                    final int inVal = inSlice[(y + start.y) * testDim.x + x + start.x];
+                    assertEquals(inVal, region[(z * size.y + y) * size.x + x]);
+                    assertEquals(inVal, regionSlice[y * size.x + x]);
+                }
+        }
+    }
+
+    @Test
+    public void testEmptyBlocks() throws IOException {
+        final Object[] sliceData = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) sliceData[z] = new short[testDim.x * testDim.y];
+        // a single voxel in the last block
+        ((short[]) sliceData[testDim.z - 1])[testDim.x * testDim.y - 1] = 7;
+        final TImg inImg = new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1),
+                TImgTools.IMAGETYPE_SHORT, sliceData);
+        final BlockFolder cFolder = writeAndRead(inImg, "empty", BlockFolder.COMPRESSION_LZ4,
+                TImgTools.IMAGETYPE_SHORT);
+        final D3int bCount = cFolder.getHeader().getBlockCount();
+        final File lastBlock = cFolder.getHeader().getBlockFile(cFolder.getPath(), bCount.x - 1,
+                bCount.y - 1, bCount.z - 1);
+        assertEquals(true, lastBlock.isFile());
+        assertEquals(false, cFolder.getHeader().getBlockFile(cFolder.getPath(), 0, 0, 0).exists());
+        assertEquals(0, cFolder.readBlock(0, 0, 0).length);
+        final short[] lastSlice = (short[]) cFolder.getImage().getPolyImage(testDim.z - 1,
+                TImgTools.IMAGETYPE_SHORT);
+        final short[] expected = new short[lastSlice.length];
+        expected[expected.length - 1] = 7;
+        assertEquals(true, Arrays.equals(expected, lastSlice));
+    }
+
+}
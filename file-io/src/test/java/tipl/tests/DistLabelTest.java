@@ -0,0 +1,136 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImg;
+import tipl.formats.TImgRO;
+import tipl.tools.DistLabel;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TIPLGlobal;
+import tipl.util.TImgTools;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the scheduled bubble filling gives the same labels as filling the bubbles one at a
+ * time and that it is the same on one core as on several
+ *
+ * @author mader
+ */
+public class DistLabelTest {
+    final private static D3int testDim = new D3int(48, 40, 36);
+    /**
+     * the scaling between voxels and the values in the distance map
+     */
+    final private static double distScalar = 4000 / 32765.0;
+
+    /**
+     * overlapping spheres with the distance to the closest edge as distance map, the images are
+     * made again for every run since the mask is filled in place
+     */
+    protected static TImgRO[] makeFoam(final long seed) {
+        final Random rand = new Random(seed);
+        final int sphereCount = 14;
+        final double[][] spheres = new double[sphereCount][];
+        for (int i = 0; i < sphereCount; i++)
+            spheres[i] = new double[]{6 + rand.nextInt(testDim.x - 12),
+                    6 + rand.nextInt(testDim.y - 12), 6 + rand.nextInt(testDim.z - 12),
+                    5 + 4 * rand.nextDouble()};
+        final Object[] distSlices = new Object[testDim.z];
+        final Object[] maskSlices = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) {
+            final int[] dSlice = new int[testDim.x * testDim.y];
+            final boolean[] mSlice = new boolean[dSlice.length];
+            for (int y = 0, off = 0; y < testDim.y; y++) {
+                for (int x = 0; x < testDim.x; x++, off++) {
+                    double cDist = 0;
+                    for (final double[] cSphere : spheres)
+                        cDist = Math.max(cDist, cSphere[3] - Math.sqrt(
+                                Math.pow(x - cSphere[0], 2) + Math.pow(y - cSphere[1], 2)
+                                        + Math.pow(z - cSphere[2], 2)));
+                    dSlice[off] = (int) (cDist / distScalar);
+                    mSlice[off] = cDist > 0;
+                }
+            }
+            distSlices[z] = dSlice;
+            maskSlices[z] = mSlice;
+        }
+        return new TImgRO[]{
+                new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1),
+                        TImgTools.IMAGETYPE_INT, distSlices),
+                new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1),
+                        TImgTools.IMAGETYPE_BOOL, maskSlices)};
+    }
+
+    /**
+     * fills the seed list in order like DistLabel did before the scheduler
+     */
+    protected static class SequentialDistLabel extends DistLabel {
+        @SuppressWarnings("deprecation")
+        public SequentialDistLabel(final TImgRO imap, final TImgRO imask) {
+            super(imap, imask);
+        }
+
+        @Override
+        public boolean execute() {
+            fillSequentially();
+            return true;
+        }
+    }
+
+    /**
+     * locate the seeds on 4 cores (so all runs have the same seeds) and fill them on fillCores
+     *
+     * @param parameters the settings of the plugin (or null for the defaults)
+     * @param sequential fill the bubbles in order instead of with the scheduler
+     */
+    @SuppressWarnings("deprecation")
+    protected static int[] fillFoam(final long seed, final int fillCores, final String parameters,
+                                    final boolean sequential) {
+        final int oldCores = TIPLGlobal.availableCores;
+        try {
+            TIPLGlobal.availableCores = 4;
+            final TImgRO[] foam = makeFoam(seed);
+            final DistLabel cLabel = sequential ? new SequentialDistLabel(foam[0], foam[1]) :
+                    new DistLabel(foam[0], foam[1]);
+            if (parameters != null) cLabel.setParameter(parameters);
+            TIPLGlobal.availableCores = fillCores;
+            cLabel.execute();
+            return cLabel.labels.clone();
+        } finally {
+            TIPLGlobal.availableCores = oldCores;
+        }
+    }
+
+    @Test
+    public void testSchedulerMatchesSequential() {
+        for (final long seed : new long[]{1, 2, 3}) {
+            final int[] seqLabels = fillFoam(seed, 1, null, true);
+            final int[] schedLabels = fillFoam(seed, 4, null, false);
+            int maxLabel = 0;
+            for (int i = 0; i < seqLabels.length; i++) {
+                assertEquals("Seed " + seed + ", voxel " + i, seqLabels[i], schedLabels[i]);
+                maxLabel = Math.max(maxLabel, seqLabels[i]);
+            }
+            assertTrue("Seed " + seed + " has bubbles", maxLabel > 1);
+        }
+    }
+
+    @Test
+    public void testSequentialMatchesParallel() {
+        // with a claim factor the bubbles which are far enough apart are filled at the same time
+        for (final long seed : new long[]{1, 2, 3}) {
+            final int[] seqLabels = fillFoam(seed, 1, "-claimfactor=2", false);
+            final int[] parLabels = fillFoam(seed, 4, "-claimfactor=2", false);
+            int maxLabel = 0;
+            for (int i = 0; i < seqLabels.length; i++) {
+                assertEquals("Seed " + seed + ", voxel " + i, seqLabels[i], parLabels[i]);
+                maxLabel = Math.max(maxLabel, seqLabels[i]);
+            }
+            assertTrue("Seed " + seed + " has bubbles", maxLabel > 1);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.RAWWriter;
+import tipl.formats.TImg;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the raw writer by reading the written files back
+ *
+ * @author mader
+ */
+public class RAWWriterTest {
+    final private static TypedPath basePath = TIPLTestingLibrary.createTestFolder("raw_tests");
+    final private static int[] rawTypes = new int[]{TImgTools.IMAGETYPE_CHAR,
+            TImgTools.IMAGETYPE_SHORT, TImgTools.IMAGETYPE_INT, TImgTools.IMAGETYPE_FLOAT,
+            TImgTools.IMAGETYPE_DOUBLE, TImgTools.IMAGETYPE_LONG, TImgTools.IMAGETYPE_BOOL};
+
+    /**
+     * an integer image with zeros (for the boolean slices) and values from 0 to 255
+     */
+    protected static TImg makeImage(final D3int dim, final long seed) {
+        final Random rand = new Random(seed);
+        final int sliceSize = dim.x * dim.y;
+        final Object[] sliceData = new Object[dim.z];
+        for (int z = 0; z < dim.z; z++) {
+            final int[] cSlice = new int[sliceSize];
+            for (int i = 0; i < sliceSize; i++)
+                cSlice[i] = (rand.nextInt(3) == 0) ? 0 : rand.nextInt(256);
+            sliceData[z] = cSlice;
+        }
+        return new TImg.ArrayBackedTImg(dim, new D3int(0), new D3float(1, 1, 1),
+                TImgTools.IMAGETYPE_INT, sliceData);
+    }
+
+    /**
+     * read the big-endian file back and compare every voxel with the image
+     */
+    protected static void checkFile(final TImg inImg, final TypedPath rawPath, final int rawType)
+            throws IOException {
+        final D3int dim = inImg.getDim();
+        final int sliceSize = dim.x * dim.y;
+        final long sliceBytes = RAWWriter.getSliceBytes(rawType, sliceSize);
+        final ByteBuffer fileData = ByteBuffer.wrap(Files.readAllBytes(Paths.get(rawPath.getPath())));
+        assertEquals(sliceBytes * dim.z, fileData.capacity());
+        for (int z = 0; z < dim.z; z++) {
+            final int[] cSlice = (int[]) inImg.getPolyImage(z, TImgTools.IMAGETYPE_INT);
+            final int off = (int) (z * sliceBytes);
+            for (int i = 0; i < sliceSize; i++) {
+                final double readVal;
+                switch (rawType) {
+                    case TImgTools.IMAGETYPE_CHAR:
+                        readVal = fileData.get(off + i) & 0xff;
+                        break;
+                    case TImgTools.IMAGETYPE_SHORT:
+                        readVal = fileData.getShort(off + 2 * i);
+                        break;
+                    case TImgTools.IMAGETYPE_INT:
+                        readVal = fileData.getInt(off + 4 * i);
+                        break;
+                    case TImgTools.IMAGETYPE_FLOAT:
+                        readVal = fileData.getFloat(off + 4 * i);
+                        break;
+                    case TImgTools.IMAGETYPE_DOUBLE:
+                        readVal = fileData.getDouble(off + 8 * i);
+                        break;
+                    case TImgTools.IMAGETYPE_LONG:
+                        readVal = fileData.getLong(off + 8 * i);
+                        break;
+                    default:
+                        readVal = (fileData.get(off + i / 8) >> (i % 8)) & 1;
+                }
+                final double expVal = (rawType == TImgTools.IMAGETYPE_BOOL) ?
+                        ((cSlice[i] > 0) ? 1 : 0) : cSlice[i];
+                assertEquals("type " + rawType + " slice " + z + " voxel " + i, expVal, readVal, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final TImg testImg = makeImage(new D3int(13, 7, 21), 1);
+        for (int rawType : rawTypes) {
+            final TypedPath rawPath = basePath.append("test_" + rawType + ".raw");
+            final RAWWriter cWriter = new RAWWriter(rawType);
+            cWriter.SetupWriter(testImg, rawPath);
+            cWriter.Write();
+            checkFile(testImg, rawPath, rawType);
+        }
+    }
+
+    /**
+     * the slice buffer of a thread has to grow when the same writer is set up for larger slices
+     */
+    @Test
+    public void testLargerSlices() throws IOException {
+        final TImg smallImg = makeImage(new D3int(5, 4, 3), 2);
+        final TImg largeImg = makeImage(new D3int(31, 17, 4), 3);
+        final RAWWriter cWriter = new RAWWriter(TImgTools.IMAGETYPE_FLOAT);
+        final TypedPath smallPath = basePath.append("small.raw");
+        cWriter.SetupWriter(smallImg, smallPath);
+        // write a slice from this thread so it has a buffer for the small slices
+        cWriter.WriteSlice(0);
+        cWriter.Write();
+        checkFile(smallImg, smallPath, TImgTools.IMAGETYPE_FLOAT);
+
+        final TypedPath largePath = basePath.append("large.raw");
+        cWriter.SetupWriter(largeImg, largePath);
+        for (int z = 0; z < largeImg.getDim().z; z++) cWriter.WriteSlice(z);
+        checkFile(largeImg, largePath, TImgTools.IMAGETYPE_FLOAT);
+        // the parallel write closes the file
+        cWriter.Write();
+        checkFile(largeImg, largePath, TImgTools.IMAGETYPE_FLOAT);
+    }
+}
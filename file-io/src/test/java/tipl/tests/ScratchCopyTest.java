@@ -0,0 +1,147 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.ISQReader;
+import tipl.formats.ScratchCopy;
+import tipl.formats.TImg;
+import tipl.util.D3int;
+import tipl.util.TIPLGlobal;
+import tipl.util.TIPLStorageManager;
+import tipl.util.TImgTools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test copying files to scratch and reading them while they are being copied
+ *
+ * @author mader
+ */
+public class ScratchCopyTest {
+    final private static D3int testDim = new D3int(13, 7, 9);
+
+    private static File testFolder = null;
+
+    protected static synchronized File getTestFile(final String name) {
+        if (testFolder == null)
+            testFolder = new File(TIPLTestingLibrary.createTestFolder("scratchCopy").getPath());
+        return new File(testFolder, name);
+    }
+
+    protected static short testValue(final int x, final int y, final int z) {
+        return (short) (x + 17 * y + 131 * z);
+    }
+
+    /**
+     * write a minimal ISQ file (only the fields the reader uses) with the data right after the
+     * 512 byte header
+     */
+    protected static File writeISQ(final String name) throws IOException {
+        final int sliceSize = testDim.x * testDim.y;
+        final ByteBuffer fileData = ByteBuffer.allocate(512 + 2 * sliceSize * testDim.z).order(
+                ByteOrder.LITTLE_ENDIAN);
+        fileData.putInt(44, testDim.x);
+        fileData.putInt(48, testDim.y);
+        fileData.putInt(52, testDim.z);
+        fileData.putInt(56, 1000 * testDim.x);
+        fileData.putInt(60, 1000 * testDim.y);
+        fileData.putInt(64, 1000 * testDim.z);
+        fileData.putInt(508, 0);
+        fileData.position(512);
+        for (int z = 0; z < testDim.z; z++)
+            for (int y = 0; y < testDim.y; y++)
+                for (int x = 0; x < testDim.x; x++)
+                    fileData.putShort(testValue(x, y, z));
+        final File isqFile = getTestFile(name);
+        final FileOutputStream os = new FileOutputStream(isqFile);
+        os.write(fileData.array());
+        os.close();
+        return isqFile;
+    }
+
+    protected static byte[] readAll(final File inFile) throws IOException {
+        final byte[] out = new byte[(int) inFile.length()];
+        final FileInputStream is = new FileInputStream(inFile);
+        int cPos = 0;
+        while (cPos < out.length) cPos += is.read(out, cPos, out.length - cPos);
+        is.close();
+        return out;
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        final long oldChunk = ScratchCopy.CHUNK_BYTES;
+        ScratchCopy.CHUNK_BYTES = 100;
+        try {
+            final File inFile = writeISQ("copy.isq");
+            final ScratchCopy sc = new ScratchCopy(inFile, getTestFile("copy.scratch"));
+            assertEquals(inFile.length(), sc.call().longValue());
+            assertEquals(true, sc.isFinished());
+            assertEquals(inFile.length(), sc.getCopiedBytes());
+            // the wait should return right away
+            sc.awaitBytes(inFile.length() + 1000);
+            assertArrayEquals(readAll(inFile), readAll(sc.getTarget()));
+        } finally {
+            ScratchCopy.CHUNK_BYTES = oldChunk;
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailedCopy() throws Exception {
+        // the target folder does not exist
+        final ScratchCopy sc = new ScratchCopy(writeISQ("failed.isq"),
+                new File(getTestFile("missing"), "failed.scratch"));
+        try {
+            sc.call();
+        } catch (final IOException e) {
+            // waiting should fail instead of hanging
+        }
+        sc.awaitBytes(1);
+    }
+
+    @Test
+    public void testStagedISQ() throws Exception {
+        final long oldChunk = ScratchCopy.CHUNK_BYTES;
+        ScratchCopy.CHUNK_BYTES = 64;
+        try {
+            final File inFile = writeISQ("staged.isq");
+            final ScratchCopy sc = new ScratchCopy(inFile, getTestFile("staged.scratch"));
+            final ExecutorService copyRunner = TIPLGlobal.requestSimpleES(1);
+            final Future<Long> copyJob = copyRunner.submit(sc);
+            final ISQReader myISQ = new ISQReader();
+            myISQ.SetupReader(TIPLStorageManager.openPath(sc.getTarget().getPath()), sc);
+            myISQ.ReadHeader();
+            assertEquals(testDim.x, myISQ.getDim().x);
+            assertEquals(testDim.y, myISQ.getDim().y);
+            assertEquals(testDim.z, myISQ.getDim().z);
+            final TImg.TImgFull fullImg = new TImg.TImgFull(myISQ.getImage());
+            for (int z = 0; z < testDim.z; z++) {
+                final short[] cSlice = fullImg.getShortArray(z);
+                final float[] fSlice = (float[]) myISQ.getImage().getPolyImage(z,
+                        TImgTools.IMAGETYPE_FLOAT);
+                for (int y = 0; y < testDim.y; y++)
+                    for (int x = 0; x < testDim.x; x++) {
+                        assertEquals(testValue(x, y, z), cSlice[y * testDim.x + x]);
+                        assertEquals(testValue(x, y, z), fSlice[y * testDim.x + x], 1e-5);
+                    }
+            }
+            assertEquals(inFile.length(), copyJob.get().longValue());
+            copyRunner.shutdown();
+            // the file is opened again when a slice is read after closing
+            myISQ.close();
+            assertEquals(testValue(3, 2, 1), fullImg.getShortArray(1)[2 * testDim.x + 3]);
+            myISQ.close();
+        } finally {
+            ScratchCopy.CHUNK_BYTES = oldChunk;
+        }
+    }
+}
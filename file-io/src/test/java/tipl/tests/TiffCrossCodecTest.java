@@ -0,0 +1,190 @@
+package tipl.tests;
+
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageEncoder;
+import com.sun.media.jai.codec.TIFFEncodeParam;
+import com.sun.media.jai.codecimpl.util.DataBufferFloat;
+import com.sun.media.jai.codecimpl.util.RasterFactory;
+import org.junit.Test;
+import tipl.formats.TImgRO;
+import tipl.formats.TSliceWriter;
+import tipl.formats.TiffCodec;
+import tipl.formats.TiffFolder;
+import tipl.formats.TiffWriter;
+import tipl.formats.TReader.TSliceReader;
+import tipl.util.TImgTools;
+import tipl.util.TypedPath;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the native tiff codec against JAI: slices written natively have to be read by JAI and
+ * slices written by JAI have to be read natively
+ *
+ * @author mader
+ */
+public class TiffCrossCodecTest {
+    // several strips for the 16 and 32 bit images
+    final private static int width = 301;
+    final private static int height = 123;
+    final private static int[] nativeCompressions = new int[]{TiffCodec.COMPRESSION_PACKBITS,
+            TiffCodec.COMPRESSION_DEFLATE, TiffCodec.COMPRESSION_DEFLATE_OLD};
+    final private static int[] jaiCompressions = new int[]{TIFFEncodeParam.COMPRESSION_PACKBITS,
+            TIFFEncodeParam.COMPRESSION_DEFLATE};
+
+    /**
+     * images with runs (for packbits) and noise
+     */
+    protected static int[] testValues(final int maxVal, final long seed) {
+        final Random rand = new Random(seed);
+        final int[] outValues = new int[width * height];
+        for (int i = 0; i < outValues.length; i++)
+            outValues[i] = ((i / 7) % 3 == 0) ? maxVal : rand.nextInt(maxVal + 1);
+        return outValues;
+    }
+
+    protected static float[] floatValues() {
+        final int[] values = testValues(1000, 3);
+        final float[] pixels = new float[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = values[i] / 7.0f - 20;
+        return pixels;
+    }
+
+    /**
+     * write the slice with the native encoder and read it with JAI
+     */
+    protected static TSliceReader nativeToJAI(final int compression, final Object pixels)
+            throws IOException {
+        final ByteBuffer encoded = new TiffCodec.Encoder(compression).encode(pixels, width, height);
+        final byte[] fileData = new byte[encoded.remaining()];
+        encoded.get(fileData);
+        return new TiffFolder.TIFSliceReader(fileData);
+    }
+
+    /**
+     * write the image with JAI and read it with the native reader
+     */
+    protected static TSliceReader jaiToNative(final int compression, final BufferedImage image)
+            throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TIFFEncodeParam tparam = new TIFFEncodeParam();
+        tparam.setCompression(compression);
+        final ImageEncoder encoder = ImageCodec.createImageEncoder("tiff", os, tparam);
+        encoder.encode(image);
+        os.close();
+        final ByteBuffer fileData = ByteBuffer.wrap(os.toByteArray());
+        final TiffCodec.Header cHeader = TiffCodec.readHeader(fileData);
+        assertEquals(cHeader.toString(), true, cHeader.isSupported());
+        final TSliceReader cReader = TiffFolder.ReadTiffSlice(fileData);
+        // it must not have fallen back to JAI
+        assertEquals(TiffCodec.NativeSliceReader.class, cReader.getClass());
+        return cReader;
+    }
+
+    protected static BufferedImage grayImage(final int imageType, final int[] values) {
+        final BufferedImage image = new BufferedImage(width, height, imageType);
+        final WritableRaster raster = image.getRaster();
+        raster.setPixels(0, 0, width, height, values);
+        return image;
+    }
+
+    protected static BufferedImage floatImage(final float[] values) {
+        final SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_FLOAT, width, height, 1, width, new int[1]);
+        final WritableRaster raster = RasterFactory.createWritableRaster(sampleModel,
+                new DataBufferFloat(values, values.length), new Point(0, 0));
+        return new BufferedImage(ImageCodec.createComponentColorModel(sampleModel), raster, false,
+                null);
+    }
+
+    @Test
+    public void testByte() throws IOException {
+        final int[] values = testValues(255, 1);
+        final byte[] pixels = new byte[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = (byte) values[i];
+        for (int cComp : nativeCompressions) {
+            final TSliceReader cReader = nativeToJAI(cComp, pixels);
+            assertEquals(TImgTools.IMAGETYPE_CHAR, cReader.getImageType());
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+        }
+        for (int cComp : jaiCompressions) {
+            final TSliceReader cReader = jaiToNative(cComp,
+                    grayImage(BufferedImage.TYPE_BYTE_GRAY, values));
+            assertEquals(TImgTools.IMAGETYPE_CHAR, cReader.getImageType());
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+        }
+    }
+
+    @Test
+    public void testShort() throws IOException {
+        final int[] values = testValues(65535, 2);
+        final short[] pixels = new short[values.length];
+        for (int i = 0; i < values.length; i++) pixels[i] = (short) values[i];
+        // 16 bit tiffs are unsigned so both readers read them as integers
+        for (int cComp : nativeCompressions) {
+            final TSliceReader cReader = nativeToJAI(cComp, pixels);
+            assertEquals(TImgTools.IMAGETYPE_INT, cReader.getImageType());
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+        }
+        for (int cComp : jaiCompressions) {
+            final TSliceReader cReader = jaiToNative(cComp,
+                    grayImage(BufferedImage.TYPE_USHORT_GRAY, values));
+            assertEquals(TImgTools.IMAGETYPE_INT, cReader.getImageType());
+            assertArrayEquals(values, (int[]) cReader.polyReadImage(TImgTools.IMAGETYPE_INT));
+        }
+    }
+
+    @Test
+    public void testFloat() throws IOException {
+        final float[] pixels = floatValues();
+        for (int cComp : nativeCompressions) {
+            final TSliceReader cReader = nativeToJAI(cComp, pixels);
+            assertEquals(TImgTools.IMAGETYPE_FLOAT, cReader.getImageType());
+            assertArrayEquals(pixels, (float[]) cReader.polyReadImage(TImgTools.IMAGETYPE_FLOAT), 0);
+        }
+        for (int cComp : jaiCompressions) {
+            final TSliceReader cReader = jaiToNative(cComp, floatImage(floatValues()));
+            assertEquals(TImgTools.IMAGETYPE_FLOAT, cReader.getImageType());
+            assertArrayEquals(pixels, (float[]) cReader.polyReadImage(TImgTools.IMAGETYPE_FLOAT), 0);
+        }
+    }
+
+    /**
+     * stacks written with deflate have to use the code the JAI readers recognize
+     */
+    @Test
+    public void testWriterDeflate() throws IOException {
+        final TImgRO testImg = TestPosFunctions.wrapItAs(10, new TestPosFunctions.ProgZImage(),
+                TImgTools.IMAGETYPE_FLOAT);
+        final TypedPath outPath = TIPLTestingLibrary.createTestFolder("tiff_codec_tests")
+                .append("deflate.tif");
+        final int oldCompression = TiffWriter.compression;
+        TiffWriter.compression = TiffCodec.COMPRESSION_DEFLATE;
+        try {
+            final TSliceWriter tsw = new TiffWriter();
+            tsw.SetupWriter(testImg, outPath, TImgTools.IMAGETYPE_FLOAT);
+            TSliceWriter.Writers.SimpleWrite(tsw, testImg, TImgTools.IMAGETYPE_FLOAT);
+        } finally {
+            TiffWriter.compression = oldCompression;
+        }
+        for (int slice = 0; slice < testImg.getDim().z; slice++) {
+            final TypedPath slicePath = outPath.append("/" + String.format("%04d", slice) + ".tif");
+            final TiffCodec.Header cHeader = TiffCodec.readHeader(TiffCodec.readFile(slicePath));
+            assertEquals(TiffCodec.COMPRESSION_DEFLATE_OLD, cHeader.compression);
+            final TSliceReader cReader = new TiffFolder.TIFSliceReader(slicePath);
+            assertArrayEquals((float[]) testImg.getPolyImage(slice, TImgTools.IMAGETYPE_FLOAT),
+                    (float[]) cReader.polyReadImage(TImgTools.IMAGETYPE_FLOAT), 0);
+        }
+    }
+}
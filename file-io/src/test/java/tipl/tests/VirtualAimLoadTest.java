@@ -0,0 +1,121 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImg;
+import tipl.formats.VirtualAim;
+import tipl.util.D3float;
+import tipl.util.D3int;
+import tipl.util.TImgTools;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that the slices of a fully loaded VirtualAim are the same as the slices read before it was
+ * loaded
+ *
+ * @author mader
+ */
+public class VirtualAimLoadTest {
+    final private static D3int testDim = new D3int(6, 5, 4);
+    final private static int[] testTypes = new int[]{TImgTools.IMAGETYPE_BOOL,
+            TImgTools.IMAGETYPE_CHAR, TImgTools.IMAGETYPE_SHORT, TImgTools.IMAGETYPE_INT,
+            TImgTools.IMAGETYPE_FLOAT};
+
+    protected static int testValue(final int i, final int z) {
+        return ((i * 7 + z * 31) % 5 == 0) ? 0 : (i * 13 + z * 41) % 200;
+    }
+
+    protected static TImg makeImage(final int imageType) {
+        final int sliceSize = testDim.x * testDim.y;
+        final Object[] sliceData = new Object[testDim.z];
+        for (int z = 0; z < testDim.z; z++) {
+            final int[] cSlice = new int[sliceSize];
+            for (int i = 0; i < sliceSize; i++) cSlice[i] = testValue(i, z);
+            sliceData[z] = TImgTools.convertArrayType(cSlice, TImgTools.IMAGETYPE_INT,
+                    imageType, false, 1.0f);
+        }
+        return new TImg.ArrayBackedTImg(testDim, new D3int(0), new D3float(1, 1, 1), imageType,
+                sliceData);
+    }
+
+    /**
+     * load the full aim as the given type
+     */
+    protected static void loadAs(final VirtualAim inAim, final int imageType) {
+        switch (imageType) {
+            case TImgTools.IMAGETYPE_BOOL:
+                inAim.getBoolAim();
+                break;
+            case TImgTools.IMAGETYPE_CHAR:
+                inAim.getByteAim();
+                break;
+            case TImgTools.IMAGETYPE_SHORT:
+                inAim.getShortAim();
+                break;
+            case TImgTools.IMAGETYPE_INT:
+                inAim.getIntAim();
+                break;
+            case TImgTools.IMAGETYPE_FLOAT:
+                inAim.getFloatAim();
+                break;
+        }
+    }
+
+    protected static void assertSlicesEqual(final String msg, final Object expected,
+                                            final Object actual) {
+        final int sliceType = TImgTools.identifySliceType(expected);
+        assertEquals(msg, sliceType, TImgTools.identifySliceType(actual));
+        final float[] eSlice = (float[]) TImgTools.convertArrayType(expected, sliceType,
+                TImgTools.IMAGETYPE_FLOAT);
+        final float[] aSlice = (float[]) TImgTools.convertArrayType(actual, sliceType,
+                TImgTools.IMAGETYPE_FLOAT);
+        assertEquals(msg, eSlice.length, aSlice.length);
+        for (int i = 0; i < eSlice.length; i++)
+            assertEquals(msg + ", voxel " + i, eSlice[i], aSlice[i], 1e-5);
+    }
+
+    @Test
+    public void testLoadedMatchesUnloaded() {
+        for (final int sourceType : testTypes) {
+            final TImg inImg = makeImage(sourceType);
+            final VirtualAim unloaded = new VirtualAim(inImg);
+            final VirtualAim loaded = new VirtualAim(inImg);
+            loadAs(loaded, sourceType);
+            for (final int targetType : testTypes) {
+                for (int z = 0; z < testDim.z; z++) {
+                    assertSlicesEqual("Read " + sourceType + " as " + targetType + ", slice " + z,
+                            unloaded.getPolyImage(z, targetType),
+                            loaded.getPolyImage(z, targetType));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSignedOffset() {
+        final int sliceSize = testDim.x * testDim.y;
+        final char[] charData = new char[sliceSize * testDim.z];
+        final short[] shortData = new short[sliceSize * testDim.z];
+        for (int i = 0; i < charData.length; i++) {
+            charData[i] = (char) testValue(i % sliceSize, i / sliceSize);
+            shortData[i] = (short) testValue(i % sliceSize, i / sliceSize);
+        }
+        final VirtualAim charAim = new VirtualAim(charData, testDim, new D3int(0),
+                new D3int(0), new D3float(1, 1, 1));
+        charAim.setSigned(true);
+        final VirtualAim shortAim = new VirtualAim(shortData, testDim, new D3int(0),
+                new D3int(0), new D3float(1, 1, 1));
+        shortAim.setSigned(true);
+        for (int z = 0; z < testDim.z; z++) {
+            final float[] charSlice = (float[]) charAim.getPolyImage(z,
+                    TImgTools.IMAGETYPE_FLOAT);
+            final double[] shortSlice = (double[]) shortAim.getPolyImage(z,
+                    TImgTools.IMAGETYPE_DOUBLE);
+            for (int i = 0; i < sliceSize; i++) {
+                // 8-bit images are centered on the middle of their own range
+                assertEquals(testValue(i, z) - 127.5f, charSlice[i], 1e-5);
+                assertEquals(testValue(i, z) - 32768.0, shortSlice[i], 1e-5);
+            }
+        }
+    }
+}
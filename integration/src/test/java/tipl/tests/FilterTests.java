@@ -3,6 +3,7 @@
  */
 package tipl.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertSame;
 
@@ -251,6 +252,37 @@ public class FilterTests {
         TIPLTestingLibrary.doPointsMatch(outImg, 3, 3, 3, 0.89f, 0.01f);
     }
 
+    /**
+     * The separable gaussian and mean filters should match the full window versions
+     */
+    @Test
+    public void testSeparable() {
+        int boxSize = 10;
+        final TImgRO sheetImage = TestPosFunctions.wrapItAs(boxSize,
+                new TestPosFunctions.SphericalLayeredImage(boxSize / 2, boxSize / 2, boxSize / 2,
+                        0, 1, 3), TImgTools.IMAGETYPE_FLOAT);
+        final String[] filterArgs = new String[]{
+                "-upfactor=3,3,3 -downfactor=2,2,2 -filter=" + FilterSettings.GAUSSIAN +
+                        " -filtersetting=1.0",
+                "-upfactor=1,1,1 -downfactor=2,3,2 -filter=" + FilterSettings.MEAN};
+        for (String cArgs : filterArgs) {
+            ITIPLPluginIO RS = makeFilter(pluginId, sheetImage);
+            RS.setParameter(cArgs);
+            RS.execute();
+            TImgRO fullImg = RS.ExportImages(sheetImage)[0];
+
+            RS = makeFilter(pluginId, sheetImage);
+            RS.setParameter(cArgs + " -separable=true");
+            RS.execute();
+            TImgRO sepImg = RS.ExportImages(sheetImage)[0];
+
+            TIPLTestingLibrary.checkDim(sepImg, fullImg.getDim());
+            for (int z = 0; z < fullImg.getDim().z; z++)
+                assertArrayEquals((float[]) fullImg.getPolyImage(z, TImgTools.IMAGETYPE_FLOAT),
+                        (float[]) sepImg.getPolyImage(z, TImgTools.IMAGETYPE_FLOAT), 1e-4f);
+        }
+    }
+
     /**
      * Test the laplace filter on a single point
      */
@@ -11,9 +11,12 @@ import tipl.util.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Hashtable;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test the GrayAnalysis and CSVFile classes
@@ -135,6 +138,36 @@ public class GrayAnalysisTest {
 
     }
 
+    @Test
+    public void testGrayVoxelSinglePass() {
+        System.out.println("Testing GrayVoxel single pass accumulation");
+        final GrayVoxels t = new GrayVoxels(107);
+        final GrayVoxels a = new GrayVoxels(107);
+        final GrayVoxels b = new GrayVoxels(107);
+        final int[][] pts = {{0, 0, 0}, {1, 2, 3}, {4, 1, 1}, {2, 2, 5}, {3, 0, 2}};
+        for (int i = 0; i < pts.length; i++) {
+            t.addVox(pts[i][0], pts[i][1], pts[i][2], 1);
+            ((i < 2) ? a : b).addMomentVox(pts[i][0], pts[i][1], pts[i][2], 1);
+        }
+        for (int[] pt : pts) t.addCovVox(pt[0], pt[1], pt[2]);
+        a.add(b);
+
+        assertEquals(t.count(), a.count(), 0.5);
+        assertEquals(t.meanx(), a.meanx(), 1e-9);
+        assertEquals(t.meanz(), a.meanz(), 1e-9);
+        assertEquals(t.stdx(), a.stdx(), 1e-9);
+        assertEquals(t.stdy(), a.stdy(), 1e-9);
+        assertEquals(t.stdz(), a.stdz(), 1e-9);
+        assertEquals(4, a.rangex(), 1e-9);
+        assertEquals(5, a.rangez(), 1e-9);
+
+        final double[][] tTensor = t.getTensor();
+        final double[][] aTensor = a.getTensor();
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 3; j++)
+                assertEquals(tTensor[i][j], aTensor[i][j], 1e-9);
+    }
+
     //@Test
     public void testCSVStringRead() {
         final CSVFile insFile = CSVFile.FromString(testCSVData.split("\n"), 2);
@@ -220,4 +253,58 @@ public class GrayAnalysisTest {
 
     }
 
+    /**
+     * blocks of labels with some labels missing and some background between them
+     */
+    protected static TImgRO gappedLabelImage() {
+        return TestPosFunctions.wrapItAs(20, new TestPosFunctions() {
+            @Override
+            public double rget(final long x, final long y, final long z) {
+                final long label = 1 + (x / 5) + (y / 7) * 4 + (z / 6) * 12;
+                if ((label % 5 == 0) || ((x + 2 * y + 3 * z) % 11 == 0)) return 0;
+                return label;
+            }
+
+            @Override
+            public double[] getRange() {
+                return new double[]{0, 100};
+            }
+        }, TImgTools.IMAGETYPE_INT);
+    }
+
+    /**
+     * run the analysis with the given store on cores cores and read the output back
+     */
+    protected static String storeCSV(final TImgRO labelImage, final String storeArgs,
+                                     final int cores) throws IOException {
+        final TypedPath outFile = TIPLTestingLibrary.createTestImage(
+                File.createTempFile("labelStore", ".csv").getAbsolutePath());
+        final int oldCores = TIPLGlobal.availableCores;
+        TIPLGlobal.availableCores = cores;
+        try {
+            final GrayAnalysis cGA = new GrayAnalysis(labelImage, outFile, "Store Test");
+            cGA.setParameter("-noblank " + storeArgs);
+            cGA.execute();
+        } finally {
+            TIPLGlobal.availableCores = oldCores;
+        }
+        return new String(Files.readAllBytes(Paths.get(outFile.getPath())), "UTF-8");
+    }
+
+    /**
+     * The array, dense and sparse stores have to write the same rows, with one thread and with
+     * several (where each thread collects blocks of slices in a partial store)
+     */
+    @Test
+    public void testLabelStores() throws IOException {
+        final TImgRO labelImage = gappedLabelImage();
+        final String arrayCSV = storeCSV(labelImage, "-labelstore=array -singlepass", 1);
+        assertTrue(arrayCSV.split("\n").length > 10);
+        for (String cStore : new String[]{"array", "dense", "sparse"}) {
+            assertEquals(cStore, arrayCSV, storeCSV(labelImage, "-labelstore=" + cStore +
+                    " -singlepass", 1));
+            assertEquals(cStore + " multicore", arrayCSV, storeCSV(labelImage, "-labelstore=" +
+                    cStore + " -multicore", 3));
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package tipl.tests;
+
+import org.junit.Test;
+import tipl.formats.TImgRO;
+import tipl.tools.BaseTIPLPluginIn;
+import tipl.tools.MedianFilter;
+import tipl.util.ITIPLPluginIO;
+import tipl.util.TImgTools;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the histogram-based MedianFilter plugin and the median filterKernel
+ *
+ * @author mader
+ */
+public class MedianFilterTests {
+
+    protected static TImgRO runMF(final TImgRO inImage, final String args) {
+        final ITIPLPluginIO MF = new MedianFilter();
+        MF.LoadImages(new TImgRO[]{inImage});
+        MF.setParameter(args);
+        MF.execute();
+        return MF.ExportImages(inImage)[0];
+    }
+
+    /**
+     * The median of a single point is empty, the maximum is a 3x3x3 cube
+     */
+    @Test
+    public void testSinglePoint() {
+        final TImgRO testImg = TestPosFunctions.wrapIt(10,
+                new TestPosFunctions.SinglePointFunction(5, 5, 5));
+        final TImgRO medImg = runMF(testImg, "-radius=1,1,1");
+        assertEquals(TImgTools.IMAGETYPE_BOOL, medImg.getImageType());
+        assertEquals(0, TIPLTestingLibrary.countVoxelsImage(medImg));
+
+        final TImgRO maxImg = runMF(testImg, "-radius=1,1,1 -percentile=100");
+        assertEquals(27, TIPLTestingLibrary.countVoxelsImage(maxImg));
+    }
+
+    /**
+     * The median of a ramp is the ramp itself (except at the edges)
+     */
+    @Test
+    public void testRamp() {
+        final TImgRO testImg = TestPosFunctions.wrapItAs(10,
+                new TestPosFunctions.ProgXImage(), TImgTools.IMAGETYPE_SHORT);
+        final TImgRO medImg = runMF(testImg, "-radius=2,1,1");
+        assertEquals(TImgTools.IMAGETYPE_SHORT, medImg.getImageType());
+        for (int x = 2; x < 8; x++)
+            TIPLTestingLibrary.doPointsMatch(medImg, x, 5, 5, x, 0.1f);
+        // the window is clipped at the border
+        TIPLTestingLibrary.doPointsMatch(medImg, 0, 5, 5, 1, 0.1f);
+        TIPLTestingLibrary.doPointsMatch(medImg, 0, 0, 0, 1, 0.1f);
+        TIPLTestingLibrary.doPointsMatch(medImg, 9, 9, 9, 8, 0.1f);
+    }
+
+    /**
+     * the filterKernel version should average the two middle values for an even count
+     */
+    @Test
+    public void testMedianKernel() {
+        final BaseTIPLPluginIn.filterKernel mKernel = BaseTIPLPluginIn.medianFilter(1, 1, 1);
+        for (double cVal : new double[]{10, 1, 3})
+            mKernel.addpt(0, 0, 0, 0, 0, 0, cVal);
+        assertEquals(3, mKernel.value(), 1e-9);
+        mKernel.addpt(0, 0, 0, 0, 0, 0, 2);
+        assertEquals(2.5, mKernel.value(), 1e-9);
+    }
+
+}
@@ -16,6 +16,7 @@ import tipl.util.TypedPath;
 import java.util.Collection;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 
 /**
@@ -154,6 +155,75 @@ public class XDFTest {
         fail("Not yet implemented"); // TODO
     }
 
+    /**
+     * The fft mode should give the same function as scanning every voxel
+     *
+     * @param images    the start, mask and value images
+     * @param args      the parameters for both runs
+     * @param tolerance relative to the largest value of the function
+     */
+    protected void assertFFTMatchesFullScan(final TImgRO[] images, final String args,
+                                            final float tolerance) {
+        ITIPLPluginIO XF = (ITIPLPluginIO) TIPLPluginManager.getPlugin(pluginId);
+        XF.LoadImages(images);
+        XF.setParameter(args + " -fullscan -skipfactor=1,1,1");
+        XF.execute();
+        final float[] scanRdf = (float[]) XF.ExportImages(images[0])[0].getPolyImage(5,
+                TImgTools.IMAGETYPE_FLOAT);
+
+        XF = (ITIPLPluginIO) TIPLPluginManager.getPlugin(pluginId);
+        XF.LoadImages(images);
+        XF.setParameter(args + " -fft");
+        XF.execute();
+        final float[] fftRdf = (float[]) XF.ExportImages(images[0])[0].getPolyImage(5,
+                TImgTools.IMAGETYPE_FLOAT);
+        float maxVal = 0;
+        for (float cVal : scanRdf) maxVal = Math.max(maxVal, Math.abs(cVal));
+        assertArrayEquals(scanRdf, fftRdf, tolerance * Math.max(maxVal, 1));
+    }
+
+    protected static TImgRO fftSphere() {
+        return TestPosFunctions.wrapIt(24, new TestPosFunctions.EllipsoidFunction(12, 12, 12, 6));
+    }
+
+    @Test
+    public void testFFTMatchesFullScan() {
+        assertFFTMatchesFullScan(new TImgRO[]{fftSphere()}, "-rdfsize=5,5,5", 1e-5f);
+    }
+
+    @Test
+    public void testFFTMatchesFullScanLabeled() {
+        final TImgRO testImg = TestPosFunctions.wrapItAs(24,
+                new TestPosFunctions.BGPlusPhase(new TestPosFunctions.LayeredImage(1, 2, 3, 0, 0),
+                        new TestPosFunctions.EllipsoidFunction(12, 12, 12, 6), 3),
+                TImgTools.IMAGETYPE_INT);
+        assertFFTMatchesFullScan(new TImgRO[]{testImg},
+                "-rdfsize=5,4,3 -asint -inphase=3 -outphase=1", 1e-5f);
+        assertFFTMatchesFullScan(new TImgRO[]{testImg},
+                "-rdfsize=5,4,3 -asint -inphase=2 -outphase=1", 1e-5f);
+    }
+
+    @Test
+    public void testFFTMatchesFullScanFloatValue() {
+        final TImgRO valImg = TestPosFunctions.wrapItAs(24, new TestPosFunctions.ProgZImage(),
+                TImgTools.IMAGETYPE_FLOAT);
+        final TImgRO[] images = new TImgRO[]{fftSphere(), null, valImg};
+        assertFFTMatchesFullScan(images, "-rdfsize=5,5,5 -valueImageType=3", 1e-5f);
+        assertFFTMatchesFullScan(images, "-rdfsize=5,5,5 -valueImageType=3 -normalizefloat",
+                1e-5f);
+    }
+
+    @Test
+    public void testFFTMatchesFullScanMasked() {
+        final TImgRO maskImg = TestPosFunctions.wrapIt(24,
+                new TestPosFunctions.LayeredImage(0, 1, 3, 0, 0));
+        assertFFTMatchesFullScan(new TImgRO[]{fftSphere(), maskImg}, "-rdfsize=5,5,5", 1e-5f);
+        final TImgRO valImg = TestPosFunctions.wrapItAs(24, new TestPosFunctions.ProgZImage(),
+                TImgTools.IMAGETYPE_FLOAT);
+        assertFFTMatchesFullScan(new TImgRO[]{fftSphere(), maskImg, valImg},
+                "-rdfsize=5,5,5 -valueImageType=3", 1e-5f);
+    }
+
     /**
      * Test method for
      *
@@ -3,6 +3,7 @@
  */
 package tipl.spark;
 
+import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -11,8 +12,11 @@ import org.apache.spark.storage.StorageLevel;
 
 import scala.Tuple2;
 import scala.Tuple3;
+import tipl.formats.BlockFolder;
+import tipl.formats.BlockWriter;
 import tipl.formats.FImage;
 import tipl.formats.TImg;
+import tipl.formats.TImgHeader;
 import tipl.formats.TImgRO;
 import tipl.formats.TSliceWriter;
 import tipl.util.*;
@@ -20,8 +24,10 @@ import tipl.util.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A distributed TImg based on a JavaRDD class and several subclass types I
@@ -48,6 +54,10 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
      */
     private transient JavaPairRDD<D3int, TImgSlice<T>> baseImg;
     private String procLog = "";
+    /**
+     * the recently fetched slices (created lazily since it is not serialized)
+     */
+    private transient SliceCache<T> sliceCache = null;
 
 
     /**
@@ -62,7 +72,7 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
     DTImg(TImgTools.HasDimensions parent, JavaPairRDD<D3int, TImgSlice<T>> newImage,
           int imgType, TypedPath path) {
         super(parent, imgType);
-        this.baseImg = newImage;//.partitionBy(SparkGlobal.getPartitioner(getDim()));
+        setBaseImg(newImage);//.partitionBy(SparkGlobal.getPartitioner(getDim()));
         TImgTools.mirrorImage(parent, this);
         this.path = path;
         SparkGlobal.assertPersistence(this);
@@ -162,6 +172,60 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
         });
     }
 
+    /**
+     * import a region of a block folder, every task reads one layer of blocks so the blocks are
+     * only read and decompressed once and blocks outside of the region are never read
+     *
+     * @param jsc
+     * @param imgName the block folder
+     * @param imgType
+     * @param start   the corner of the region (relative to the first voxel of the image)
+     * @param size    the size of the region
+     * @return
+     */
+    protected static <U> JavaPairRDD<D3int, TImgSlice<U>> ImportBlockImage(
+            final JavaSparkContext jsc, final TypedPath imgName, final int imgType,
+            final D3int start, final D3int size) {
+        assert (TImgTools.isValidType(imgType));
+        final TypedPath absPath = imgName.makeAbsPath();
+        final BlockFolder.Header cHeader;
+        try {
+            cHeader = BlockFolder.Header.read(absPath);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException(imgName + " is not a block folder:" + e.getMessage());
+        }
+        final int layerSlices = cHeader.blockSize.z;
+        final D3int imgPos = cHeader.pos;
+        final D3int sliceDim = new D3int(size.x, size.y, 1);
+        final List<int[]> l = new ArrayList<int[]>();
+        for (int layer = start.z / layerSlices; layer <= (start.z + size.z - 1) / layerSlices; layer++) {
+            l.add(new int[]{Math.max(layer * layerSlices, start.z),
+                    Math.min((layer + 1) * layerSlices, start.z + size.z)});
+        }
+
+        return jsc.parallelize(l, Math.max(l.size(), 1)).flatMapToPair(new PairFlatMapFunction<int[],
+                D3int, TImgSlice<U>>() {
+
+            @Override
+            public Iterable<Tuple2<D3int, TImgSlice<U>>> call(int[] sliceRange)
+                    throws Exception {
+                final BlockFolder cFolder = new BlockFolder(absPath);
+                ArrayList<Tuple2<D3int, TImgSlice<U>>> outSlices = new ArrayList<Tuple2<D3int,
+                        TImgSlice<U>>>(sliceRange[1] - sliceRange[0]);
+                for (int z = sliceRange[0]; z < sliceRange[1]; z++) {
+                    final D3int cPos = new D3int(imgPos.x + start.x, imgPos.y + start.y,
+                            imgPos.z + z);
+                    final U cSlice = (U) cFolder.readRegion(new D3int(start.x, start.y, z),
+                            sliceDim, imgType);
+                    outSlices.add(new Tuple2<D3int, TImgSlice<U>>(cPos,
+                            new TImgSlice<U>(cSlice, cPos, sliceDim)));
+                }
+                return outSlices;
+            }
+
+        });
+    }
+
     /**
      * import an image from an existing TImgRO by reading in every slice (this
      * is no manually done and singe core..)
@@ -225,12 +289,36 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
      */
     static public <Fc> DTImg<Fc> ReadImage(JavaSparkContext jsc, final TypedPath imgName,
                                            int imgType) {
-        JavaPairRDD<D3int, TImgSlice<Fc>> newImage = ImportImage(jsc, imgName, imgType);
         TImgTools.HasDimensions parent = TImgTools.ReadTImg(imgName);
+        final JavaPairRDD<D3int, TImgSlice<Fc>> newImage;
+        if (BlockFolder.isBlockFolder(imgName))
+            newImage = ImportBlockImage(jsc, imgName, imgType, new D3int(0), parent.getDim());
+        else newImage = ImportImage(jsc, imgName, imgType);
         DTImg<Fc> outImage = new DTImg<Fc>(parent, newImage, imgType, imgName);
         return outImage;
     }
 
+    /**
+     * factory create a new image from a region of a block folder, only the blocks overlapping
+     * the region are read
+     *
+     * @param jsc
+     * @param imgName the block folder
+     * @param imgType
+     * @param start   the corner of the region (relative to the first voxel of the image)
+     * @param size    the size of the region
+     */
+    static public <Fc> DTImg<Fc> ReadImageRegion(JavaSparkContext jsc, final TypedPath imgName,
+                                                 int imgType, final D3int start, final D3int size) {
+        final TImgHeader parent = TImgHeader.ReadHeadersFromTImg(TImgTools.ReadTImg(imgName));
+        final D3int imgPos = parent.getPos();
+        parent.setPos(new D3int(imgPos.x + start.x, imgPos.y + start.y, imgPos.z + start.z));
+        parent.setDim(new D3int(size));
+        JavaPairRDD<D3int, TImgSlice<Fc>> newImage = ImportBlockImage(jsc, imgName, imgType,
+                start, size);
+        return new DTImg<Fc>(parent, newImage, imgType, imgName);
+    }
+
     /**
      * Produce a new DTImg from an existing TImgRO object
      *
@@ -346,6 +434,25 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
     public void DSave(final TypedPath path) {
         final TSliceWriter cWriter = TSliceWriter.Writers.ChooseBest(this,
                 path.makeAbsPath(), imageType);
+        if (cWriter instanceof BlockWriter) {
+            // a layer of blocks can only be written once all of its slices are in one writer
+            final int layerSlices = ((BlockWriter) cWriter).getHeader().blockSize.z;
+            final int startZ = getPos().z;
+            baseImg.mapToPair(new PairFunction<Tuple2<D3int, TImgSlice<T>>, Integer,
+                    TImgSlice<T>>() {
+                @Override
+                public Tuple2<Integer, TImgSlice<T>> call(Tuple2<D3int, TImgSlice<T>> arg0) {
+                    return new Tuple2<Integer, TImgSlice<T>>((arg0._1().z - startZ) / layerSlices,
+                            arg0._2());
+                }
+            }).groupByKey().foreach(new VoidFunction<Tuple2<Integer, Iterable<TImgSlice<T>>>>() {
+                @Override
+                public void call(Tuple2<Integer, Iterable<TImgSlice<T>>> arg0) throws Exception {
+                    for (TImgSlice<T> cSlice : arg0._2()) cWriter.WriteSlice(cSlice, cSlice.getPos().z);
+                }
+            });
+            return;
+        }
         baseImg.foreach(new VoidFunction<Tuple2<D3int, TImgSlice<T>>>() {
 
             @Override
@@ -421,7 +528,9 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
     }
 
     /**
-     * A fairly simple operation of filtering the RDD for the correct slice and returning that slice
+     * Return the slice from the local slice cache, on a miss the aligned block of slices holding
+     * the requested one is fetched in a single job so walking through the image in either
+     * direction takes one job per block rather than one lookup per slice
      */
     @Override
     public Object getPolyImage(int sliceNumber, final int asType) {
@@ -429,21 +538,100 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
             throw new IllegalArgumentException(this.getSampleName() + ": Slice requested (" +
                     sliceNumber + ") exceeds image dimensions " + getDim());
 
-        final int zPos = getPos().z + sliceNumber;
-
-        List<TImgSlice<T>> outSlices = this.baseImg.lookup(new D3int(getPos().x, getPos().y, zPos));
+        TImgSlice<T> outSlice = getSliceCache().get(sliceNumber);
+        if (outSlice == null) {
+            final int blockSize = Math.max(1, SparkGlobal.getSliceCacheSize() / 2);
+            final int blockStart = sliceNumber / blockSize * blockSize;
+            outSlice = fetchSlices(blockStart, Math.min(blockSize, getDim().z - blockStart),
+                    sliceNumber);
+        }
 
-        if (outSlices.size() != 1) throw
+        if (outSlice == null) throw
                 new IllegalArgumentException(this.getSampleName() + ", " +
-                        "lookup failed (#" + outSlices.size() + " found):" + sliceNumber + " (z:"
-                        + zPos + "), of " + getDim() + " of #" + this.baseImg.count() + " blocks");
+                        "lookup failed:" + sliceNumber + " (z:" + (getPos().z + sliceNumber) +
+                        "), of " + getDim() + " in " + this.baseImg.partitions().size() +
+                        " partitions");
 
-        T curSlice = outSlices.get(0).get();
+        T curSlice = outSlice.get();
 
         return TImgTools.convertArrayType(curSlice, getImageType(), asType, getSigned(),
                 getShortScaleFactor());
     }
 
+    protected synchronized SliceCache<T> getSliceCache() {
+        if (sliceCache == null) sliceCache = new SliceCache<T>(SparkGlobal.getSliceCacheSize());
+        return sliceCache;
+    }
+
+    /**
+     * @return the number of slices which have been read from the local slice cache
+     */
+    public long getSliceCacheHits() {
+        return getSliceCache().getHits();
+    }
+
+    /**
+     * Replace the underlying rdd, the cached slices belong to the old one so they are dropped
+     */
+    private synchronized void setBaseImg(final JavaPairRDD<D3int, TImgSlice<T>> newImage) {
+        this.baseImg = newImage;
+        if (sliceCache != null) sliceCache.clear();
+    }
+
+    /**
+     * Fetch a block of slices with one job over only the partitions which hold them and put
+     * them in the slice cache
+     *
+     * @param startSlice the first slice (relative to the image position)
+     * @param sliceCount the number of slices to fetch
+     * @param wantedSlice the slice to return (inside the block)
+     * @return the slice at wantedSlice (null if it is not in the image)
+     */
+    protected TImgSlice<T> fetchSlices(final int startSlice, final int sliceCount,
+                                       final int wantedSlice) {
+        final int startZ = getPos().z + startSlice;
+        final int endZ = startZ + sliceCount;
+
+        final int partCount = this.baseImg.partitions().size();
+        final scala.Option<Partitioner> curPartitioner = this.baseImg.rdd().partitioner();
+        final boolean[] ownsSlices = new boolean[partCount];
+        boolean allParts = !curPartitioner.isDefined();
+        if (!allParts) {
+            try {
+                for (int z = startZ; z < endZ; z++)
+                    ownsSlices[curPartitioner.get().getPartition(new D3int(getPos().x,
+                            getPos().y, z))] = true;
+            } catch (Exception e) {
+                if (TIPLGlobal.getDebug()) System.out.println(getSampleName() + ": " +
+                        "Partitioner cannot place slices, searching all partitions:" + e);
+                allParts = true;
+            }
+        }
+        final List<Integer> partList = new ArrayList<Integer>(partCount);
+        for (int i = 0; i < partCount; i++) if (allParts || ownsSlices[i]) partList.add(i);
+        final int[] partIds = new int[partList.size()];
+        for (int i = 0; i < partIds.length; i++) partIds[i] = partList.get(i);
+
+        if (TIPLGlobal.getDebug()) System.out.println(getSampleName() + ": Fetching slices " +
+                startSlice + " to " + (startSlice + sliceCount) + " from " + partIds.length +
+                " of " + partCount + " partitions");
+
+        // filter keeps the partitions the same so the ids still apply
+        final List<Tuple2<D3int, TImgSlice<T>>>[] fetchedParts = this.baseImg.
+                filter(new SliceRangeFilter<T>(startZ, endZ)).collectPartitions(partIds);
+
+        final SliceCache<T> curCache = getSliceCache();
+        TImgSlice<T> wantedOut = null;
+        for (List<Tuple2<D3int, TImgSlice<T>>> cPart : fetchedParts) {
+            for (Tuple2<D3int, TImgSlice<T>> cSlice : cPart) {
+                final int sliceNumber = cSlice._1().z - getPos().z;
+                if (sliceNumber == wantedSlice) wantedOut = cSlice._2();
+                curCache.put(sliceNumber, cSlice._2());
+            }
+        }
+        return wantedOut;
+    }
+
     @Override
     public String getSampleName() {
         return path.getPath();
@@ -679,7 +867,7 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
      */
     public void persist(StorageLevel setLevel) {
         if (this.baseImg.getStorageLevel() == StorageLevel.NONE()) {
-            this.baseImg = this.baseImg.persist(setLevel);
+            setBaseImg(this.baseImg.persist(setLevel));
         }
     }
 
@@ -926,6 +1114,69 @@ public class DTImg<T> extends TImg.ATImg implements TImg, Serializable {
     }
 
 
+    /**
+     * A filter for keeping the slices within a range of z positions
+     *
+     * @param <W> the type of the image as an array
+     */
+    static class SliceRangeFilter<W> implements Function<Tuple2<D3int, TImgSlice<W>>, Boolean> {
+        final int startZ;
+        final int endZ;
+
+        /**
+         * @param startZ the first z position to keep
+         * @param endZ   the z position after the last to keep
+         */
+        public SliceRangeFilter(final int startZ, final int endZ) {
+            this.startZ = startZ;
+            this.endZ = endZ;
+        }
+
+        @Override
+        public Boolean call(Tuple2<D3int, TImgSlice<W>> inSlice) {
+            final int z = inSlice._1().z;
+            return (z >= startZ) && (z < endZ);
+        }
+    }
+
+    /**
+     * A bounded least-recently-used store of slices which have been brought back from the
+     * cluster
+     *
+     * @param <W> the type of the image as an array
+     */
+    protected static class SliceCache<W> {
+        private final LinkedHashMap<Integer, TImgSlice<W>> slices;
+        private long hits = 0;
+
+        public SliceCache(final int maxSlices) {
+            slices = new LinkedHashMap<Integer, TImgSlice<W>>(maxSlices + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, TImgSlice<W>> eldest) {
+                    return size() > maxSlices;
+                }
+            };
+        }
+
+        public synchronized TImgSlice<W> get(final int sliceNumber) {
+            final TImgSlice<W> outSlice = slices.get(sliceNumber);
+            if (outSlice != null) hits++;
+            return outSlice;
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized void put(final int sliceNumber, final TImgSlice<W> slice) {
+            slices.put(sliceNumber, slice);
+        }
+
+        public synchronized void clear() {
+            slices.clear();
+        }
+    }
+
     /**
      * A simple block shifting class for testing out the join operations
      *
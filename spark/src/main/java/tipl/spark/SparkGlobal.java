@@ -52,6 +52,10 @@ abstract public class SparkGlobal {
      */
     private static int sparkPersistence = -1;
     private static int intSlicesPerCore = 1;
+    /**
+     * The number of slices a DTImg keeps locally when it is read slice by slice
+     */
+    private static int intSliceCacheSize = 32;
 
     /**
      * Get the local directory for saving temporary files
@@ -242,6 +246,15 @@ abstract public class SparkGlobal {
         intSlicesPerCore = slicesPerCore;
     }
 
+    static public int getSliceCacheSize() {
+        return intSliceCacheSize;
+    }
+
+    static public void setSliceCacheSize(int sliceCacheSize) {
+        assert (sliceCacheSize > 0);
+        intSliceCacheSize = sliceCacheSize;
+    }
+
     /**
      * Calculates the number of partitions based on a given dataset and slices per core distribution
      *
@@ -302,6 +315,9 @@ abstract public class SparkGlobal {
         setSlicesPerCore(sp.getOptionInt("@sparkpartitions", getSlicesPerCore(),
                 "The number of slices to load onto a single operating core",
                 1, Integer.MAX_VALUE));
+        setSliceCacheSize(sp.getOptionInt("@sparkslicecache", getSliceCacheSize(),
+                "The number of slices of a distributed image to fetch and keep locally when it " +
+                        "is read slice by slice", 1, Integer.MAX_VALUE));
         setSparkPersistence(sp.getOptionInt("@sparkpersist", getSparkPersistenceValue(),
                 "Image default persistance options:" + getPersistenceText(),
                 -1, 4));
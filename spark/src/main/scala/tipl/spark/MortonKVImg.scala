@@ -0,0 +1,324 @@
+package tipl.spark
+
+import org.apache.spark.SparkContext._
+import org.apache.spark.api.java.JavaPairRDD
+import org.apache.spark.rdd.RDD
+import org.apache.spark.{Partitioner, SparkContext}
+import tipl.formats.{TImg, TImgRO}
+import tipl.tools.TypedSliceLookup
+import tipl.util._
+
+import scala.collection.mutable.{ArrayBuffer, Map => MuMap}
+import scala.reflect.ClassTag
+import scala.{specialized => spec}
+
+/**
+ * A KV Pair image like KVImg where the key is not a D3int but the Morton (Z-order) index of the
+ * position relative to the image position packed into a single long. The keys are primitive so
+ * each voxel costs a boxed long instead of a D3int and shuffles move 8 bytes per key,
+ * and since neighboring voxels have nearby codes the range partitioner keeps local
+ * neighborhoods in the same partition
+ *
+ * @param dim
+ * @param pos
+ * @param elSize
+ * @param imageType
+ * @param baseImg    the voxels keyed by MortonKVImg.encode(x-pos.x,y-pos.y,z-pos.z)
+ * @param paddingVal the value to assign points removed from the image
+ * @param lm
+ * @tparam T
+ */
+class MortonKVImg[@spec(Boolean, Byte, Short, Int, Long, Float, Double) T](dim: D3int, pos: D3int,
+                                                                           elSize: D3float,
+                                                                           imageType: Int,
+                                                                           baseImg: RDD[(Long,
+                                                                             T)], paddingVal: T)(
+                                                                            implicit lm: ClassTag[T])
+  extends TImg.ATImg(dim, pos, elSize, imageType) with TImg with TypedSliceLookup[T] {
+
+  def this(inImg: TImgTools.HasDimensions, imageType: Int, baseImg: RDD[(Long, T)],
+           paddingVal: T)(implicit lm: ClassTag[T]) =
+    this(inImg.getDim, inImg.getPos, inImg.getElSize, imageType, baseImg, paddingVal)(lm)
+
+  def getBaseImg() = baseImg
+
+  def getPaddingVal() = paddingVal
+
+  override def getSampleName() = baseImg.name
+
+  @deprecated("this function is not supported in Spark Image Layer", "1.0")
+  override def inheritedAim(inImg: TImgRO): TImg =
+    throw new IllegalArgumentException("Not a supported function")
+
+  def mapValues[U: ClassTag](f: (T) => U, newPaddingVal: U, newImageType: Int = imageType):
+  MortonKVImg[U] =
+    new MortonKVImg[U](dim, pos, elSize, newImageType, baseImg.mapValues(f), newPaddingVal)
+
+  def filter(f: ((Long, T)) => Boolean): MortonKVImg[T] =
+    new MortonKVImg[T](dim, pos, elSize, imageType, baseImg.filter(f), paddingVal)
+
+  /**
+   * @note the z-order does not keep slices together so every partition has to be scanned
+   */
+  override def getSlice(sliceNum: Int): Option[Array[T]] = {
+    val sliceWidth = dim.x
+    val outSlice = Array.fill[T](dim.x * dim.y)(paddingVal)
+    baseImg.filter(cPt => MortonKVImg.decodeZ(cPt._1) == sliceNum).map {
+      cPt => (MortonKVImg.decodeY(cPt._1) * sliceWidth + MortonKVImg.decodeX(cPt._1), cPt._2)
+    }.collect.foreach(cPt => outSlice(cPt._1) = cPt._2)
+    Some(outSlice)
+  }
+
+  /**
+   * The image as a KVImg keyed by D3int positions
+   */
+  def toKVImg(): KVImg[T] = {
+    val kvPos = pos
+    new KVImg[T](this, imageType, baseImg.map {
+      cPt => (MortonKVImg.decodeD3int(cPt._1, kvPos), cPt._2)
+    }.partitionBy(SparkGlobal.getPartitioner(this)), paddingVal)
+  }
+
+  /**
+   * Gather the voxels into slices, each partition builds fragments (voxel index and value) for
+   * the slices it touches which are then assembled on a slice partitioner
+   */
+  private[spark] def toSliceRDD(): RDD[(D3int, TImgSlice[Array[T]])] = {
+    val sDim = dim
+    val sPos = pos
+    val sPadding = paddingVal
+    val sliceDim = new D3int(dim.x, dim.y, 1)
+    baseImg.mapPartitions {
+      inPoints =>
+        val outMap = MuMap[Int, (ArrayBuffer[Int], ArrayBuffer[T])]()
+        while (inPoints.hasNext) {
+          val (cKey, cVal) = inPoints.next()
+          val cFrag = outMap.getOrElseUpdate(MortonKVImg.decodeZ(cKey),
+            (new ArrayBuffer[Int](), new ArrayBuffer[T]()))
+          cFrag._1 += MortonKVImg.decodeY(cKey) * sDim.x + MortonKVImg.decodeX(cKey)
+          cFrag._2 += cVal
+        }
+        outMap.toIterator.map {
+          case (z, (inds, vals)) => (new D3int(sPos.x, sPos.y, sPos.z + z), (inds.toArray, vals.toArray))
+        }
+    }.groupByKey(SparkGlobal.getPartitioner(this)).map {
+      case (slicePos, frags) =>
+        val outSlice = Array.fill[T](sDim.x * sDim.y)(sPadding)
+        for ((inds, vals) <- frags) {
+          var i = 0
+          while (i < inds.length) {
+            outSlice(inds(i)) = vals(i)
+            i += 1
+          }
+        }
+        (slicePos, new TImgSlice[Array[T]](outSlice, slicePos, sliceDim))
+    }
+  }
+
+  def toDSImg(): DSImg[T] =
+    new DSImg[T](this, toSliceRDD(), imageType)
+
+  def toDTImg(): DTImg[Array[T]] =
+    DTImg.WrapRDD[Array[T]](this, JavaPairRDD.fromRDD(toSliceRDD()), imageType)
+
+}
+
+object MortonKVImg {
+  /**
+   * the number of bits used for each axis (3*21 fits in the positive range of a long)
+   */
+  val AXIS_BITS = 21
+  val MAX_AXIS_SIZE = 1 << AXIS_BITS
+
+  /**
+   * spread the lower 21 bits of a value so there are two zero bits between each
+   */
+  @inline private def spreadBits(inVal: Int): Long = {
+    var x = inVal.toLong & 0x1fffffL
+    x = (x | (x << 32)) & 0x1f00000000ffffL
+    x = (x | (x << 16)) & 0x1f0000ff0000ffL
+    x = (x | (x << 8)) & 0x100f00f00f00f00fL
+    x = (x | (x << 4)) & 0x10c30c30c30c30c3L
+    x = (x | (x << 2)) & 0x1249249249249249L
+    x
+  }
+
+  /**
+   * the inverse of spreadBits, collect every third bit
+   */
+  @inline private def compactBits(inVal: Long): Int = {
+    var x = inVal & 0x1249249249249249L
+    x = (x | (x >>> 2)) & 0x10c30c30c30c30c3L
+    x = (x | (x >>> 4)) & 0x100f00f00f00f00fL
+    x = (x | (x >>> 8)) & 0x1f0000ff0000ffL
+    x = (x | (x >>> 16)) & 0x1f00000000ffffL
+    x = (x | (x >>> 32)) & 0x1fffffL
+    x.toInt
+  }
+
+  /**
+   * The Morton index of a position (all coordinates must be between 0 and MAX_AXIS_SIZE)
+   */
+  @inline def encode(x: Int, y: Int, z: Int): Long =
+    spreadBits(x) | (spreadBits(y) << 1) | (spreadBits(z) << 2)
+
+  @inline def decodeX(code: Long): Int = compactBits(code)
+
+  @inline def decodeY(code: Long): Int = compactBits(code >>> 1)
+
+  @inline def decodeZ(code: Long): Int = compactBits(code >>> 2)
+
+  def decodeD3int(code: Long, pos: D3int) =
+    new D3int(pos.x + decodeX(code), pos.y + decodeY(code), pos.z + decodeZ(code))
+
+  def checkDim(dim: D3int) =
+    if (dim.x > MAX_AXIS_SIZE || dim.y > MAX_AXIS_SIZE || dim.z > MAX_AXIS_SIZE)
+      throw new IllegalArgumentException("Image " + dim + " is too large for " + AXIS_BITS +
+        " bit Morton keys")
+
+  /**
+   * The number of voxels inside of a box starting at the origin with the given dimensions whose
+   * Morton index is below code. The octree is walked from the top, every level has at most one
+   * octant which is only partially below the code so this takes at most 8*AXIS_BITS steps
+   */
+  def countBelow(dim: D3int, code: Long): Long = {
+    def overlap(start: Long, size: Long, dimLen: Int) =
+      math.max(0L, math.min(start + size, dimLen.toLong) - start)
+    var count = 0L
+    var (ox, oy, oz) = (0L, 0L, 0L)
+    var level = AXIS_BITS - 1
+    var remaining = code
+    while (level >= 0 && remaining > 0) {
+      val octSize = 1L << level
+      val octCodes = 1L << (3 * level)
+      // the octants fully below the code
+      val fullOcts = math.min(8L, remaining / octCodes).toInt
+      var i = 0
+      while (i < fullOcts) {
+        count += overlap(ox + (i & 1) * octSize, octSize, dim.x) *
+          overlap(oy + ((i >> 1) & 1) * octSize, octSize, dim.y) *
+          overlap(oz + ((i >> 2) & 1) * octSize, octSize, dim.z)
+        i += 1
+      }
+      if (fullOcts == 8) {
+        remaining = 0
+      } else {
+        // descend into the partially covered octant
+        ox += (fullOcts & 1) * octSize
+        oy += ((fullOcts >> 1) & 1) * octSize
+        oz += ((fullOcts >> 2) & 1) * octSize
+        remaining -= fullOcts * octCodes
+      }
+      level -= 1
+    }
+    count
+  }
+
+  /**
+   * A partitioner which splits the Morton index space into contiguous ranges
+   *
+   * @param bounds the first code of every partition after the first (sorted)
+   */
+  case class MortonRangePartitioner(bounds: Array[Long]) extends Partitioner {
+    override def numPartitions: Int = bounds.length + 1
+
+    override def getPartition(key: Any): Int = {
+      val code = key match {
+        case lKey: Long => lKey
+        case nKey: Number => nKey.longValue()
+        case _ => throw new IllegalArgumentException("This kind of key is not handled by the " +
+          "parititoner : " + this.getClass().getName() + " = " + key)
+      }
+      // the number of bounds which are less than or equal to the code
+      var (lo, hi) = (0, bounds.length)
+      while (lo < hi) {
+        val mid = (lo + hi) >>> 1
+        if (bounds(mid) <= code) lo = mid + 1 else hi = mid
+      }
+      lo
+    }
+
+    override def equals(other: Any): Boolean = other match {
+      case mrp: MortonRangePartitioner => java.util.Arrays.equals(bounds, mrp.bounds)
+      case _ => false
+    }
+
+    override def hashCode: Int = java.util.Arrays.hashCode(bounds)
+  }
+
+  /**
+   * Create a partitioner where every partition holds the same number of voxels of a dense
+   * image with the given dimensions
+   */
+  def getPartitioner(dim: D3int, partitions: Int): MortonRangePartitioner = {
+    checkDim(dim)
+    val voxelCount = dim.x.toLong * dim.y * dim.z
+    val maxCode = encode(dim.x - 1, dim.y - 1, dim.z - 1) + 1
+    val bounds = (1 until math.max(1, partitions)).map {
+      cPart =>
+        val target = voxelCount * cPart / partitions
+        // find the smallest code with target voxels below it
+        var (lo, hi) = (0L, maxCode)
+        while (lo < hi) {
+          val mid = lo + (hi - lo) / 2
+          if (countBelow(dim, mid) < target) lo = mid + 1 else hi = mid
+        }
+        lo
+    }.distinct.toArray
+    MortonRangePartitioner(bounds)
+  }
+
+  def getPartitioner(inImg: TImgTools.HasDimensions): MortonRangePartitioner =
+    getPartitioner(inImg.getDim, SparkGlobal.calculatePartitions(inImg.getDim.z))
+
+  /**
+   * Convert slices into Morton keyed voxels
+   */
+  private[spark] def sliceRDDToMorton[T](inImg: RDD[(D3int, TImgSlice[Array[T]])], pos: D3int,
+                                         dim: D3int): RDD[(Long, T)] = {
+    checkDim(dim)
+    inImg.flatMap {
+      cPoint =>
+        val sPos = cPoint._1
+        val sDim = new D3int(cPoint._2.getDim, 1)
+        val curSlice = cPoint._2.get
+        for {z <- 0 until sDim.z
+             y <- 0 until sDim.y
+             x <- 0 until sDim.x
+        }
+          yield (encode(sPos.x - pos.x + x, sPos.y - pos.y + y, sPos.z - pos.z + z),
+            curSlice((z * sDim.y + y) * sDim.x + x))
+    }.partitionBy(getPartitioner(dim, SparkGlobal.calculatePartitions(dim.z)))
+  }
+
+  def ConvertTImg[T: ClassTag](sc: SparkContext, inImg: TImgRO, imType: Int, paddingVal: T) =
+    fromDSImg(new DSImg[T](sc, inImg, imType), paddingVal)
+
+  def fromDSImg[@spec(Boolean, Byte, Short, Int, Long, Float, Double) T](inImg: DSImg[T],
+                                                                         paddingVal: T)
+                                                                        (implicit tm: ClassTag[T]):
+  MortonKVImg[T] =
+    new MortonKVImg[T](inImg, inImg.getImageType,
+      sliceRDDToMorton[T](inImg.getBaseImg, inImg.getPos, inImg.getDim), paddingVal)
+
+  /**
+   * Transform the DTImg into a MortonKVImg, the slices of the DTImg must be arrays of V
+   */
+  def fromDTImg[V](inImg: DTImg[_], paddingVal: V)(implicit V: ClassTag[V]): MortonKVImg[V] = {
+    val imgType = inImg.getImageType
+    val sliceRdd = inImg.getBaseImg.rdd.map {
+      cPoint => (cPoint._1, cPoint._2.asInstanceOf[TImgSlice[Array[V]]])
+    }
+    new MortonKVImg[V](inImg, imgType,
+      sliceRDDToMorton[V](sliceRdd, inImg.getPos, inImg.getDim), paddingVal)
+  }
+
+  def fromKVImg[T](inImg: KVImg[T], paddingVal: T)(implicit tm: ClassTag[T]): MortonKVImg[T] = {
+    val pos = inImg.getPos
+    checkDim(inImg.getDim)
+    new MortonKVImg[T](inImg, inImg.getImageType, inImg.getBaseImg.map {
+      cPt => (encode(cPt._1.x - pos.x, cPt._1.y - pos.y, cPt._1.z - pos.z), cPt._2)
+    }.partitionBy(getPartitioner(inImg)), paddingVal)
+  }
+
+}
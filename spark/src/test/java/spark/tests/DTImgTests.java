@@ -92,9 +92,21 @@ public class DTImgTests {
     /**
      * Test method for {@link tipl.spark.DTImg#getPolyImage(int, int)}.
      */
-    //@Test
+    @Test
     public void testGetPolyImage() {
-        fail("Not yet implemented"); // TODO
+        final TImgRO curTestImage = TestPosFunctions.wrapItAs(zsize,
+                new TestPosFunctions.SinglePointFunction(5, 5, 5), TImgTools.IMAGETYPE_DOUBLE);
+        DTImg<double[]> curImage = DTImg.ConvertTImg(jsc, curTestImage, TImgTools.IMAGETYPE_DOUBLE);
+        // read backwards so the slices come from the cache as well as from new blocks
+        for (int i = zsize - 1; i >= 0; i--) {
+            double[] dblSlice = (double[]) curImage.getPolyImage(i, TImgTools.IMAGETYPE_DOUBLE);
+            assertArrayEquals((double[]) curTestImage.getPolyImage(i, TImgTools.IMAGETYPE_DOUBLE),
+                    dblSlice, 1e-6);
+        }
+        // every block is fetched once, the rest of its slices come from the cache
+        final int blockSize = Math.max(1, SparkGlobal.getSliceCacheSize() / 2);
+        final int blockCount = (zsize + blockSize - 1) / blockSize;
+        assertEquals(zsize - blockCount, curImage.getSliceCacheHits());
     }
 
     /**
@@ -97,6 +97,35 @@ class KVImgTests extends FunSuite with LocalSparkContext {
       case None => Unit
     }
   }
+
+  test("Morton Keys") {
+    import tipl.spark.MortonKVImg._
+    val dim = new D3int(13, 7, 21)
+    for (z <- 0 until dim.z; y <- 0 until dim.y; x <- 0 until dim.x) {
+      val code = encode(x, y, z)
+      assert((decodeX(code), decodeY(code), decodeZ(code)) ==(x, y, z))
+    }
+    countBelow(dim, Long.MaxValue) shouldBe dim.prod.toLong
+    // the partitions should be contiguous and of equal size
+    val mrp = getPartitioner(dim, 4)
+    val partSizes = (for (z <- 0 until dim.z; y <- 0 until dim.y; x <- 0 until dim.x)
+      yield mrp.getPartition(encode(x, y, z))).groupBy(identity).mapValues(_.size)
+    partSizes.size shouldBe 4
+    partSizes.values.max - partSizes.values.min should be <= 1
+  }
+
+  test("Morton KVImg") {
+    sc = getSpark("MortonKVImg")
+    val kvnorm = testKVImage(sc, 10)
+    val kvobj = new KVImg[Double](new D3int(33), new D3int(-1), new D3float(1.0f),
+      TImgTools.IMAGETYPE_DOUBLE, kvnorm, 0.0)
+    val mkv = MortonKVImg.fromKVImg(kvobj, 0.0)
+    mkv.getBaseImg.count shouldBe kvnorm.count
+    val kvBack = mkv.toKVImg.getBaseImg.collect.toMap
+    kvnorm.collect.foreach(cPt => kvBack(cPt._1) shouldBe cPt._2)
+    mkv.getSlice(4).get.sum shouldBe kvobj.getSlice(4).get.sum
+    mkv.toDSImg.getSlice(4).get.sum shouldBe kvobj.getSlice(4).get.sum
+  }
 }
 
 class VoxOpsTest extends FunSuite with LocalSparkContext {
@@ -612,7 +612,7 @@ public class UFEM implements Runnable {
         maskAim.appendProcLog(boneClose.procLog);
 
         for (int i = 0; i < scdat.length; i++)
-            scdat[i] = !boneClose.outAim[i]; // Invert to poros
+            scdat[i] = !boneClose.outAim.get(i); // Invert to poros
         maskAim.appendProcLog("CMD:Invert");
 
         boneClose = null; // Done with boneClose tool
@@ -628,7 +628,7 @@ public class UFEM implements Runnable {
         maskAim.appendProcLog(bubOpen.procLog);
 
         for (int i = 0; i < scdat.length; i++)
-            scdat[i] = !bubOpen.outAim[i]; // Invert back to bone
+            scdat[i] = !bubOpen.outAim.get(i); // Invert back to bone
 
         maskAim.appendProcLog("CMD:Invert");
         return TImgTools.makeTImgExportable(maskAim).inheritedAim(scdat,